@@ -0,0 +1,142 @@
+package jcifs.smb;
+
+import java.io.IOException;
+
+import smbdav.TimerWheel;
+
+/**
+ * Watches a directory for changes using NT_TRANSACT_NOTIFY_CHANGE.
+ * jCIFS does not support change notification, and waits at most the
+ * configured response timeout for any transaction; as a notification
+ * may remain outstanding indefinitely, this class periodically extends
+ * the expiration of the pending response while it is waiting.
+ * <p>
+ * The directory remains open until <code>close()</code> is called, so
+ * that the server buffers changes occurring between successive calls
+ * to <code>next()</code>.
+ *
+ * @author Eric Glass
+ */
+public class DirectoryWatch {
+
+    private static final long RESPONSE_TIMEOUT =
+            SmbConstants.RESPONSE_TIMEOUT;
+
+    private static final int FILE_LIST_DIRECTORY = 0x0001;
+
+    private static final int FILE_DIRECTORY_FILE = 0x0001;
+
+    private static final int FILE_NOTIFY_CHANGE_FILE_NAME = 0x0001;
+
+    private static final int FILE_NOTIFY_CHANGE_DIR_NAME = 0x0002;
+
+    private static final int FILE_NOTIFY_CHANGE_ATTRIBUTES = 0x0004;
+
+    private static final int FILE_NOTIFY_CHANGE_SIZE = 0x0008;
+
+    private static final int FILE_NOTIFY_CHANGE_LAST_WRITE = 0x0010;
+
+    private static final int FILE_NOTIFY_CHANGE_CREATION = 0x0040;
+
+    private static final int COMPLETION_FILTER = FILE_NOTIFY_CHANGE_FILE_NAME |
+            FILE_NOTIFY_CHANGE_DIR_NAME | FILE_NOTIFY_CHANGE_ATTRIBUTES |
+                    FILE_NOTIFY_CHANGE_SIZE | FILE_NOTIFY_CHANGE_LAST_WRITE |
+                            FILE_NOTIFY_CHANGE_CREATION;
+
+    private static final int NT_STATUS_NOTIFY_CLEANUP = 0x0000010b;
+
+    private static final int NT_STATUS_NOTIFY_ENUM_DIR = 0x0000010c;
+
+    private static final int BUFFER_SIZE = 4096;
+
+    private final SmbFile directory;
+
+    private final int fid;
+
+    private TimerWheel.Timeout task;
+
+    private NtTransNotifyChangeResponse pending;
+
+    private boolean closed;
+
+    /**
+     * Opens the specified directory for watching.
+     *
+     * @param directory The directory to watch.
+     * @throws IOException If the directory cannot be opened.
+     */
+    public DirectoryWatch(SmbFile directory) throws IOException {
+        this.directory = new SmbFile(directory, "", SmbFile.FILE_SHARE_READ |
+                SmbFile.FILE_SHARE_WRITE | SmbFile.FILE_SHARE_DELETE);
+        fid = this.directory.open0(SmbFile.O_RDONLY, FILE_LIST_DIRECTORY,
+                SmbFile.ATTR_DIRECTORY, FILE_DIRECTORY_FILE);
+        long period = Math.max(RESPONSE_TIMEOUT / 2, 1000l);
+        task = TimerWheel.getInstance().schedule(DirectoryWatch.class,
+                new Runnable() {
+                    public void run() {
+                        extend();
+                    }
+                }, period, period);
+    }
+
+    /**
+     * Waits for changes within the directory.
+     *
+     * @return An array containing the names of the changed entries.
+     * An empty array indicates that changes occurred, but were too numerous
+     * to be reported individually.  If the watch has been closed,
+     * <code>null</code> is returned.
+     * @throws IOException If an IO error occurs, or the server does not
+     * support change notification.
+     */
+    public String[] next() throws IOException {
+        NtTransNotifyChangeResponse response =
+                new NtTransNotifyChangeResponse();
+        synchronized (this) {
+            if (closed) return null;
+            pending = response;
+        }
+        try {
+            directory.send(new NtTransNotifyChange(fid, COMPLETION_FILTER,
+                    false, BUFFER_SIZE), response);
+        } catch (SmbException ex) {
+            synchronized (this) {
+                if (closed) return null;
+            }
+            if (response.errorCode == NT_STATUS_NOTIFY_CLEANUP) return null;
+            if (response.errorCode == NT_STATUS_NOTIFY_ENUM_DIR) {
+                return new String[0];
+            }
+            throw ex;
+        } finally {
+            synchronized (this) {
+                pending = null;
+            }
+        }
+        return response.names;
+    }
+
+    /**
+     * Stops watching the directory.  Any thread waiting in
+     * <code>next()</code> returns once the server has acknowledged
+     * the closure.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            if (task != null) task.cancel();
+            task = null;
+        }
+        try {
+            directory.close(fid, 0l);
+        } catch (SmbException ex) { }
+    }
+
+    private synchronized void extend() {
+        if (pending != null) {
+            pending.expiration = System.currentTimeMillis() + RESPONSE_TIMEOUT;
+        }
+    }
+
+}
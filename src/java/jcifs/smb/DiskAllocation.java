@@ -0,0 +1,88 @@
+package jcifs.smb;
+
+/**
+ * Retrieves the allocation information (total capacity and free space)
+ * for the share containing a resource.  <code>SmbFile</code> exposes only
+ * the free space; this class issues the same TRANS2_QUERY_FS_INFORMATION
+ * request to obtain both values in a single round trip.
+ *
+ * @author Eric Glass
+ */
+public class DiskAllocation {
+
+    private static final int FULL_SIZE =
+            Trans2QueryFSInformationResponse.SMB_FS_FULL_SIZE_INFORMATION;
+
+    private static final int ALLOCATION =
+            Trans2QueryFSInformationResponse.SMB_INFO_ALLOCATION;
+
+    private final long capacity;
+
+    private final long free;
+
+    private DiskAllocation(long capacity, long free) {
+        this.capacity = capacity;
+        this.free = free;
+    }
+
+    /**
+     * Queries the allocation information for the share containing
+     * the specified resource.
+     *
+     * @param file A resource on the share.
+     * @return A <code>DiskAllocation</code> for the share.
+     * @throws SmbException If the query fails.
+     */
+    public static DiskAllocation query(SmbFile file) throws SmbException {
+        AllocInfo info;
+        try {
+            info = query(file, FULL_SIZE);
+        } catch (SmbException ex) {
+            switch (ex.getNtStatus()) {
+            case NtStatus.NT_STATUS_INVALID_INFO_CLASS:
+            case NtStatus.NT_STATUS_UNSUCCESSFUL:
+                info = query(file, ALLOCATION);
+                break;
+            default:
+                throw ex;
+            }
+        }
+        return new DiskAllocation(info.getCapacity(), info.getFree());
+    }
+
+    /**
+     * Returns the total capacity of the share.
+     *
+     * @return A <code>long</code> containing the capacity in bytes.
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the free space available on the share.
+     *
+     * @return A <code>long</code> containing the free space in bytes.
+     */
+    public long getFree() {
+        return free;
+    }
+
+    /**
+     * Returns the space in use on the share.
+     *
+     * @return A <code>long</code> containing the used space in bytes.
+     */
+    public long getUsed() {
+        return Math.max(capacity - free, 0l);
+    }
+
+    private static AllocInfo query(SmbFile file, int level)
+            throws SmbException {
+        Trans2QueryFSInformationResponse response =
+                new Trans2QueryFSInformationResponse(level);
+        file.send(new Trans2QueryFSInformation(level), response);
+        return response.info;
+    }
+
+}
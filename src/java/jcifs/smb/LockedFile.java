@@ -2,11 +2,6 @@ package jcifs.smb;
 
 import java.io.IOException;
 
-import java.util.Timer;
-import java.util.TimerTask;
-
-import jcifs.Config;
-
 import smbdav.LockException;
 import smbdav.Log;
 import smbdav.MethodHandler;
@@ -25,15 +20,9 @@ import smbdav.MethodHandler;
  */
 public class LockedFile extends SmbFile {
 
-    private static final long SMB_TIMEOUT =
-            Config.getLong("jcifs.smb.client.soTimeout", 300000l);
-
-    private static final Timer TIMER = new Timer(true);
 
     private static final int WRITE_OPTIONS = 0x0842;
 
-    private TimerTask task;
-
     /**
      * Creates a <code>LockedFile</code> from the specified target resource.
      *
@@ -53,23 +42,11 @@ public class LockedFile extends SmbFile {
             }
             throw ex;
         }
-        if (SMB_TIMEOUT < 20000l) {
-            Log.log(Log.DEBUG, "SMB timeout is {0}; too short to refresh lock.",
-                    new Long(SMB_TIMEOUT));
+        if (!TransportKeepAlive.isEnabled()) {
+            Log.log(Log.DEBUG, "SMB timeout is too short to refresh lock.");
             return;
         }
-        task = new TimerTask() {
-            public void run() {
-                try {
-                    refresh();
-                } catch (Exception ex) {
-                    Log.log(Log.DEBUG, "Unable to refresh SMB lock on {0}: {1}",
-                            new Object[] { LockedFile.this, ex });
-                }
-            }
-        };
-        // give 10 seconds leeway.
-        TIMER.schedule(task, SMB_TIMEOUT - 10000l, SMB_TIMEOUT - 10000l);
+        TransportKeepAlive.register(this);
     }
 
     /**
@@ -77,11 +54,8 @@ public class LockedFile extends SmbFile {
      *
      * @throws IOException If an IO error occurs.
      */ 
-    public void unlock() throws IOException {
-        synchronized (this) {
-            if (task != null) task.cancel();
-            task = null;
-        }
+    public synchronized void unlock() throws IOException {
+        TransportKeepAlive.unregister(this);
         if (isOpen() == false) return;
         send(new SmbComClose(fid, 0l), new SmbComBlankResponse());
         opened = false;
@@ -93,7 +67,7 @@ public class LockedFile extends SmbFile {
 
     void close() throws SmbException { }
 
-    private void refresh() throws IOException {
+    void refresh() throws IOException {
         open(SmbFile.O_CREAT | SmbFile.O_RDWR | SmbFile.O_APPEND,
                 FILE_WRITE_DATA | FILE_WRITE_ATTRIBUTES, SmbFile.ATTR_NORMAL,
                         WRITE_OPTIONS);
@@ -0,0 +1,73 @@
+package jcifs.smb;
+
+/**
+ * The NT_TRANSACT_NOTIFY_CHANGE request, which asks the server to report
+ * changes within a directory opened with the specified file id.
+ *
+ * @author Eric Glass
+ */
+class NtTransNotifyChange extends SmbComNtTransaction {
+
+    static final int NT_TRANSACT_NOTIFY_CHANGE = 0x04;
+
+    int fid;
+
+    int completionFilter;
+
+    boolean watchTree;
+
+    NtTransNotifyChange(int fid, int completionFilter, boolean watchTree,
+            int bufferSize) {
+        this.fid = fid;
+        this.completionFilter = completionFilter;
+        this.watchTree = watchTree;
+        command = SMB_COM_NT_TRANSACT;
+        function = NT_TRANSACT_NOTIFY_CHANGE;
+        timeout = 0;
+        setupCount = 4;
+        totalParameterCount = 0;
+        totalDataCount = 0;
+        maxParameterCount = bufferSize;
+        maxDataCount = 0;
+        maxSetupCount = (byte) 0x00;
+    }
+
+    int writeSetupWireFormat(byte[] dst, int dstIndex) {
+        int start = dstIndex;
+        writeInt4(completionFilter, dst, dstIndex);
+        dstIndex += 4;
+        writeInt2(fid, dst, dstIndex);
+        dstIndex += 2;
+        dst[dstIndex++] = (byte) (watchTree ? 0x01 : 0x00);
+        dst[dstIndex++] = (byte) 0x00;
+        return dstIndex - start;
+    }
+
+    int writeParametersWireFormat(byte[] dst, int dstIndex) {
+        return 0;
+    }
+
+    int writeDataWireFormat(byte[] dst, int dstIndex) {
+        return 0;
+    }
+
+    int readSetupWireFormat(byte[] buffer, int bufferIndex, int len) {
+        return 0;
+    }
+
+    int readParametersWireFormat(byte[] buffer, int bufferIndex, int len) {
+        return 0;
+    }
+
+    int readDataWireFormat(byte[] buffer, int bufferIndex, int len) {
+        return 0;
+    }
+
+    public String toString() {
+        return "NtTransNotifyChange[" + super.toString() + ",fid=0x" +
+                Integer.toHexString(fid) + ",completionFilter=0x" +
+                        Integer.toHexString(completionFilter) +
+                                ",watchTree=" + watchTree + "]";
+    }
+
+}
@@ -0,0 +1,65 @@
+package jcifs.smb;
+
+import java.io.UnsupportedEncodingException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The response to an NT_TRANSACT_NOTIFY_CHANGE request.  The parameter
+ * block contains a chain of FILE_NOTIFY_INFORMATION structures, each
+ * naming a changed entry relative to the watched directory.
+ *
+ * @author Eric Glass
+ */
+class NtTransNotifyChangeResponse extends SmbComNtTransactionResponse {
+
+    String[] names = new String[0];
+
+    int writeSetupWireFormat(byte[] dst, int dstIndex) {
+        return 0;
+    }
+
+    int writeParametersWireFormat(byte[] dst, int dstIndex) {
+        return 0;
+    }
+
+    int writeDataWireFormat(byte[] dst, int dstIndex) {
+        return 0;
+    }
+
+    int readSetupWireFormat(byte[] buffer, int bufferIndex, int len) {
+        return 0;
+    }
+
+    int readParametersWireFormat(byte[] buffer, int bufferIndex, int len) {
+        List names = new ArrayList();
+        int end = bufferIndex + len;
+        int offset = bufferIndex;
+        while (offset + 12 <= end) {
+            int next = readInt4(buffer, offset);
+            int length = readInt4(buffer, offset + 8);
+            if (length < 0 || offset + 12 + length > end) break;
+            try {
+                names.add(new String(buffer, offset + 12, length,
+                        "UTF-16LE"));
+            } catch (UnsupportedEncodingException ex) {
+                break;
+            }
+            if (next <= 0) break;
+            offset += next;
+        }
+        this.names = (String[]) names.toArray(new String[names.size()]);
+        return len;
+    }
+
+    int readDataWireFormat(byte[] buffer, int bufferIndex, int len) {
+        return 0;
+    }
+
+    public String toString() {
+        return "NtTransNotifyChangeResponse[" + super.toString() +
+                ",names=" + names.length + "]";
+    }
+
+}
@@ -0,0 +1,28 @@
+package jcifs.smb;
+
+/**
+ * Provides the name of the share containing a resource without allocating.
+ * <code>SmbFile.getShare()</code> returns the name only once jCIFS has
+ * resolved the resource's path, which it does lazily; this resolves the
+ * path first.  Both are cached by the <code>SmbFile</code>, so repeated
+ * calls for the same resource are inexpensive.
+ *
+ * @author Eric Glass
+ */
+public class SharePath {
+
+    private SharePath() { }
+
+    /**
+     * Returns the name of the share containing the specified resource.
+     *
+     * @param file The resource.
+     * @return A <code>String</code> containing the share name, or
+     * <code>null</code> if the resource is a workgroup or server.
+     */
+    public static String getShare(SmbFile file) {
+        file.getUncPath0();
+        return file.getShare();
+    }
+
+}
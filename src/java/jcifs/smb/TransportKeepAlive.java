@@ -0,0 +1,163 @@
+package jcifs.smb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import jcifs.Config;
+
+import smbdav.Log;
+import smbdav.TimerWheel;
+
+/**
+ * Keeps the transports carrying <code>LockedFile</code> handles alive.
+ * jCIFS closes a transport which has been idle for the socket timeout,
+ * releasing every handle open over it.  Rather than re-opening each
+ * handle on its own timer, the registered handles are grouped by
+ * transport once per interval, and a single inexpensive request is sent
+ * over each transport.  Only those handles found to be closed (i.e.,
+ * because the transport was lost and has since been re-established) are
+ * re-opened.
+ *
+ * @author Eric Glass
+ */
+public class TransportKeepAlive {
+
+    private static final long SMB_TIMEOUT =
+            Config.getLong("jcifs.smb.client.soTimeout", 300000l);
+
+    private static final int LEVEL =
+            Trans2QueryFSInformationResponse.SMB_INFO_ALLOCATION;
+
+    private static final Map HANDLES = new IdentityHashMap();
+
+    private static TimerWheel.Timeout task;
+
+    private TransportKeepAlive() { }
+
+    /**
+     * Indicates whether handles require keepalive.  If the socket timeout
+     * is too short to allow a keepalive to be sent, none is performed.
+     *
+     * @return <code>true</code> if keepalive is supported.
+     */
+    public static boolean isEnabled() {
+        return SMB_TIMEOUT >= 20000l;
+    }
+
+    /**
+     * Returns the number of handles currently held on each server.
+     *
+     * @return A <code>Map</code> of <code>Integer</code> counts, keyed by
+     * server name.
+     */
+    public static Map getHandleCounts() {
+        LockedFile[] handles;
+        synchronized (HANDLES) {
+            handles = (LockedFile[]) HANDLES.keySet().toArray(
+                    new LockedFile[HANDLES.size()]);
+        }
+        return count(handles);
+    }
+
+    private static Map count(LockedFile[] handles) {
+        Map counts = new HashMap();
+        for (int i = handles.length - 1; i >= 0; i--) {
+            String server = handles[i].getServer().toLowerCase();
+            Integer count = (Integer) counts.get(server);
+            counts.put(server, new Integer((count != null) ?
+                    count.intValue() + 1 : 1));
+        }
+        return counts;
+    }
+
+    static void register(LockedFile handle) {
+        if (!isEnabled()) return;
+        synchronized (HANDLES) {
+            HANDLES.put(handle, handle);
+            if (task != null) return;
+            // give 10 seconds leeway.
+            task = TimerWheel.getInstance().schedule(null, new Runnable() {
+                public void run() {
+                    cycle();
+                }
+            }, SMB_TIMEOUT - 10000l, SMB_TIMEOUT - 10000l);
+        }
+    }
+
+    static void unregister(LockedFile handle) {
+        synchronized (HANDLES) {
+            HANDLES.remove(handle);
+            if (!HANDLES.isEmpty() || task == null) return;
+            task.cancel();
+            task = null;
+        }
+    }
+
+    private static void cycle() {
+        LockedFile[] handles;
+        synchronized (HANDLES) {
+            handles = (LockedFile[]) HANDLES.keySet().toArray(
+                    new LockedFile[HANDLES.size()]);
+        }
+        Map groups = new HashMap();
+        for (int i = handles.length - 1; i >= 0; i--) {
+            SmbTree tree = handles[i].tree;
+            Object transport = (tree != null && tree.session != null) ?
+                    (Object) tree.session.transport : handles[i].getServer();
+            List group = (List) groups.get(transport);
+            if (group == null) groups.put(transport, group = new ArrayList());
+            group.add(handles[i]);
+        }
+        Iterator iterator = count(handles).entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry entry = (Map.Entry) iterator.next();
+            Log.log(Log.DEBUG, "Keeping alive {0} handles on {1}.",
+                    new Object[] { entry.getValue(), entry.getKey() });
+        }
+        iterator = groups.values().iterator();
+        while (iterator.hasNext()) {
+            final List group = (List) iterator.next();
+            LockedFile first = (LockedFile) group.get(0);
+            TimerWheel.getInstance().schedule(
+                    first.getServer().toLowerCase(), new Runnable() {
+                public void run() {
+                    keepAlive(group);
+                }
+            }, 0l);
+        }
+    }
+
+    private static void keepAlive(List group) {
+        LockedFile first = (LockedFile) group.get(0);
+        try {
+            first.send(new Trans2QueryFSInformation(LEVEL),
+                    new Trans2QueryFSInformationResponse(LEVEL));
+        } catch (SmbException ex) {
+            Log.log(Log.DEBUG, "Keepalive failed on {0}: {1}",
+                    new Object[] { first.getServer(), ex });
+        }
+        for (int i = group.size() - 1; i >= 0; i--) {
+            LockedFile handle = (LockedFile) group.get(i);
+            if (handle.isOpen()) continue;
+            // serialized with unlock, so a released handle is not re-opened
+            synchronized (handle) {
+                synchronized (HANDLES) {
+                    if (!HANDLES.containsKey(handle)) continue;
+                }
+                try {
+                    Log.log(Log.DEBUG, "Re-opening SMB lock on {0}.", handle);
+                    handle.refresh();
+                } catch (Exception ex) {
+                    Log.log(Log.DEBUG,
+                            "Unable to refresh SMB lock on {0}: {1}",
+                                    new Object[] { handle, ex });
+                }
+            }
+        }
+    }
+
+}
@@ -259,6 +259,247 @@ public abstract class AbstractHandler implements MethodHandler {
                         Davenport.RESOURCE_FILTER);
     }
 
+    /**
+     * Returns the <code>WriteBehindQueue</code> holding uploaded content
+     * which has not yet been written to the server.
+     *
+     * @return The installed write-behind queue.  Returns <code>null</code>
+     * if write-behind uploads are not enabled.
+     */
+    protected WriteBehindQueue getWriteBehindQueue() {
+        ServletConfig config = getServletConfig();
+        return (config == null) ? null : (WriteBehindQueue)
+                config.getServletContext().getAttribute(
+                        Davenport.WRITE_BEHIND_QUEUE);
+    }
+
+    /**
+     * Returns the worker pool shared by handlers which issue concurrent
+     * SMB requests.
+     *
+     * @return A <code>WorkerPool</code>, or <code>null</code> if requests
+     * are to be processed serially.
+     */
+    protected WorkerPool getWorkerPool() {
+        ServletConfig config = getServletConfig();
+        return (config == null) ? null : (WorkerPool)
+                config.getServletContext().getAttribute(Davenport.WORKER_POOL);
+    }
+
+    /**
+     * Returns the cache holding recent PROPFIND results.
+     *
+     * @return A <code>PropfindCache</code>, or <code>null</code> if
+     * PROPFIND results are not cached.
+     */
+    protected PropfindCache getPropfindCache() {
+        ServletConfig config = getServletConfig();
+        return (config == null) ? null : (PropfindCache)
+                config.getServletContext().getAttribute(
+                        Davenport.PROPFIND_CACHE);
+    }
+
+    /**
+     * Returns the monitor watching frequently accessed directories for
+     * changes made on the server.
+     *
+     * @return A <code>ChangeMonitor</code>, or <code>null</code> if
+     * directories are not watched.
+     */
+    protected ChangeMonitor getChangeMonitor() {
+        ServletConfig config = getServletConfig();
+        return (config == null) ? null : (ChangeMonitor)
+                config.getServletContext().getAttribute(
+                        Davenport.CHANGE_MONITOR);
+    }
+
+    /**
+     * Returns the feed publishing changes to subscribed clients.
+     *
+     * @return A <code>ChangeFeed</code>, or <code>null</code> if change
+     * subscriptions are not supported.
+     */
+    protected ChangeFeed getChangeFeed() {
+        ServletConfig config = getServletConfig();
+        return (config == null) ? null : (ChangeFeed)
+                config.getServletContext().getAttribute(
+                        Davenport.CHANGE_FEED);
+    }
+
+    /**
+     * Returns the store holding dead properties set via PROPPATCH.
+     *
+     * @return A <code>DeadPropertyStore</code>, or <code>null</code> if
+     * dead properties are not supported.
+     */
+    protected DeadPropertyStore getDeadPropertyStore() {
+        ServletConfig config = getServletConfig();
+        return (config == null) ? null : (DeadPropertyStore)
+                config.getServletContext().getAttribute(
+                        Davenport.DEAD_PROPERTY_STORE);
+    }
+
+    /**
+     * Returns the registry tracking the progress of long-running
+     * operations.
+     *
+     * @return A <code>ProgressRegistry</code>, or <code>null</code> if
+     * progress is not tracked.
+     */
+    protected ProgressRegistry getProgressRegistry() {
+        ServletConfig config = getServletConfig();
+        return (config == null) ? null : (ProgressRegistry)
+                config.getServletContext().getAttribute(
+                        Davenport.PROGRESS_REGISTRY);
+    }
+
+    /**
+     * Registers the progress of a long-running operation, if the client
+     * has supplied an identifier in the "X-Progress-ID" header.
+     *
+     * @param request The request being serviced.
+     * @param href The HTTP URL of the target resource.
+     * @return A <code>Progress</code> to be updated as the operation
+     * proceeds, or <code>null</code> if progress is not tracked.
+     * @throws IOException If an IO error occurs.
+     */
+    protected ProgressRegistry.Progress startProgress(
+            HttpServletRequest request, String href) throws IOException {
+        ProgressRegistry registry = getProgressRegistry();
+        if (registry == null) return null;
+        String id = request.getHeader("X-Progress-ID");
+        if (id == null || (id = id.trim()).equals("")) return null;
+        return registry.register(getPrincipal(request), id,
+                request.getMethod(), href);
+    }
+
+    /**
+     * Starts the keep-alive output for a long-running operation, if
+     * enabled.
+     *
+     * @param response The servlet response.
+     * @return A <code>KeepAlive</code> which must be stopped once the
+     * operation completes, or <code>null</code> if keep-alive output is
+     * disabled.
+     */
+    protected KeepAlive startKeepAlive(HttpServletResponse response) {
+        ProgressRegistry registry = getProgressRegistry();
+        if (registry == null || registry.getKeepAliveInterval() <= 0) {
+            return null;
+        }
+        KeepAlive keepAlive = new KeepAlive(response);
+        keepAlive.setTimeout(registry.schedule(keepAlive));
+        return keepAlive;
+    }
+
+    /**
+     * Sends the outcome of an operation which may have reported failures
+     * for individual members.  If no members failed and no early response
+     * was committed, the given status is sent; otherwise, the failures are
+     * written in a multistatus response (followed by the status of the
+     * operation itself, if an early response was committed).
+     *
+     * @param response The servlet response.
+     * @param keepAlive The keep-alive started for the operation, or
+     * <code>null</code>.
+     * @param progress The progress of the operation, or <code>null</code>.
+     * @param href The HTTP URL of the target resource.
+     * @param status The status of the operation.
+     * @param hrefs The HTTP URLs of the failed members.
+     * @param statuses The status of each failed member.
+     * @throws IOException If an IO error occurs.
+     */
+    protected void sendResult(HttpServletResponse response,
+            KeepAlive keepAlive, ProgressRegistry.Progress progress,
+                    String href, int status, String[] hrefs, int[] statuses)
+                            throws IOException {
+        MultistatusWriter writer = (keepAlive != null) ? keepAlive.stop() :
+                null;
+        boolean committed = (writer != null);
+        if (progress != null) {
+            progress.finish((hrefs.length == 0) ? status : SC_MULTISTATUS);
+        }
+        if (!committed && hrefs.length == 0) {
+            response.setStatus(status);
+            response.flushBuffer();
+            return;
+        }
+        if (!committed) {
+            response.setStatus(SC_MULTISTATUS);
+            response.setContentType("text/xml; charset=\"utf-8\"");
+            writer = new MultistatusWriter(response.getOutputStream());
+        }
+        for (int i = 0; i < hrefs.length; i++) {
+            writer.writeStatus(hrefs[i], statuses[i], null);
+        }
+        if (committed && hrefs.length == 0) {
+            writer.writeStatus(href, status, null);
+        }
+        writer.finish();
+        response.flushBuffer();
+    }
+
+    /**
+     * Reports an error which terminated an operation.  If an early
+     * response has been committed, the error is written as the status of
+     * the target resource; otherwise, the caller is expected to rethrow
+     * the error.
+     *
+     * @param response The servlet response.
+     * @param keepAlive The keep-alive started for the operation, or
+     * <code>null</code>.
+     * @param progress The progress of the operation, or <code>null</code>.
+     * @param href The HTTP URL of the target resource.
+     * @param error The error.
+     * @return <code>true</code> if the error was reported to the client.
+     * @throws IOException If an IO error occurs.
+     */
+    protected boolean sendFailure(HttpServletResponse response,
+            KeepAlive keepAlive, ProgressRegistry.Progress progress,
+                    String href, IOException error) throws IOException {
+        int status = (error instanceof SmbException) ?
+                SmbDAVUtilities.getStatus((SmbException) error) :
+                        HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+        if (progress != null) progress.finish(status);
+        MultistatusWriter writer = (keepAlive != null) ? keepAlive.stop() :
+                null;
+        if (writer == null) return false;
+        Log.log(Log.DEBUG, "Operation failed after early response: {0}",
+                error);
+        writer.writeStatus(href, status, null);
+        writer.finish();
+        response.flushBuffer();
+        return true;
+    }
+
+    /**
+     * Notifies interested parties that the specified resource (or its
+     * properties or locks) has been modified.  Handlers which change
+     * a resource invoke this before responding to the client.
+     *
+     * @param file The resource which has been modified.
+     */
+    protected void resourceChanged(SmbFile file) {
+        if (file == null) return;
+        PropfindCache cache = getPropfindCache();
+        if (cache != null) cache.invalidate(file);
+        ChangeFeed feed = getChangeFeed();
+        if (feed != null) feed.resourceChanged(file);
+    }
+
+    /**
+     * Writes any content for the specified resource (and its members)
+     * held in the write-behind queue to the server.  Handlers invoke this
+     * before acting directly upon the server copy of a resource.
+     *
+     * @param file The resource whose pending content is to be written.
+     * @throws IOException If the pending content could not be written.
+     */
+    protected void flushPending(SmbFile file) throws IOException {
+        WriteBehindQueue queue = getWriteBehindQueue();
+        if (queue != null) queue.flush(file);
+    }
+
     /**
      * Convenience method to retrieve the <code>SmbFile</code> that
      * is the target of the given request.  This will attempt to obtain
@@ -329,7 +570,9 @@ public abstract class AbstractHandler implements MethodHandler {
      * from a specified SMB URL and authentication information.
      * The <code>SmbFile</code> returned will automatically be adjusted
      * to include a trailing slash ("/") in the event that it refers to a
-     * directory, share, server, or workgroup.
+     * directory, share, server, or workgroup.  If the resource has content
+     * pending in the write-behind queue, a view reflecting the pending
+     * content is returned.
      *
      * @param smbUrl The SMB URL from which the <code>SmbFile</code> object
      * will be created.
@@ -366,6 +609,9 @@ public abstract class AbstractHandler implements MethodHandler {
                 Log.log(Log.INFORMATION, "Filter blocked access to \"{0}\".",
                         smbFile);
                 smbFile = new BlockedFile(smbFile);
+            } else {
+                WriteBehindQueue queue = getWriteBehindQueue();
+                if (queue != null) smbFile = queue.resolve(smbFile);
             }
             Log.log(Log.DEBUG, "Created SMB file \"{0}\".", smbFile);
             return smbFile;
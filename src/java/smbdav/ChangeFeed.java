@@ -0,0 +1,602 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2007  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.io.IOException;
+
+import java.security.Principal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import jcifs.smb.SmbFile;
+import jcifs.smb.SmbFileFilter;
+
+/**
+ * Publishes the changes to collections to subscribed clients.  Each
+ * watched collection is represented by a single channel, shared by all
+ * subscriptions from the same user; the channel holds a snapshot of the
+ * collection's members and a bounded backlog of events.  When the
+ * collection may have changed, the channel lists it once and compares
+ * the listing against its snapshot, producing "create", "modify" and
+ * "delete" events which are then read by each subscriber.  The cost of
+ * detecting changes is therefore independent of the number of
+ * subscribers.
+ * <p>
+ * Channels are refreshed when a change is made through Davenport (via
+ * <code>resourceChanged</code>), when the <code>ChangeMonitor</code>
+ * reports a change on the server, and at the polling interval for
+ * collections which are not covered by a watch.  Subscribed collections
+ * are reported to the monitor as accessed, so that they become
+ * candidates for watching.
+ * <p>
+ * A channel is retained for a grace period after its last subscriber
+ * leaves, so that a client which reconnects (supplying the identifier of
+ * the last event it saw) resumes from the backlog rather than being
+ * forced to reload the collection.
+ *
+ * @author Eric Glass
+ */
+public class ChangeFeed implements ChangeListener {
+
+    /**
+     * The event type for an added member.
+     */
+    public static final String CREATED = "create";
+
+    /**
+     * The event type for a modified member.
+     */
+    public static final String MODIFIED = "modify";
+
+    /**
+     * The event type for a removed member.
+     */
+    public static final String DELETED = "delete";
+
+    private static final int BACKLOG = 256;
+
+    private static final long GRACE_PERIOD = 60000l;
+
+    private final Map channels = new HashMap();
+
+    private final Map paths = new HashMap();
+
+    private final TimerWheel.Timeout polling;
+
+    private final int maximumSubscribers;
+
+    private final WorkerPool workerPool;
+
+    private final ChangeMonitor monitor;
+
+    private int subscribers;
+
+    private long sequence;
+
+    private boolean running = true;
+
+    /**
+     * Creates a change feed.
+     *
+     * @param maximumSubscribers The maximum number of concurrent
+     * subscriptions.
+     * @param pollInterval The interval, in milliseconds, at which
+     * unwatched collections are listed.
+     * @param workerPool The pool used to refresh channels, or
+     * <code>null</code> to refresh them using the polling thread.
+     * @param monitor The change monitor, or <code>null</code>.
+     */
+    public ChangeFeed(int maximumSubscribers, long pollInterval,
+            WorkerPool workerPool, ChangeMonitor monitor) {
+        this.maximumSubscribers = maximumSubscribers;
+        this.workerPool = workerPool;
+        this.monitor = monitor;
+        pollInterval = Math.max(pollInterval, 1000l);
+        polling = TimerWheel.getInstance().schedule(this, new Runnable() {
+            public void run() {
+                poll();
+            }
+        }, pollInterval, pollInterval);
+    }
+
+    /**
+     * Subscribes to the changes in the specified collection.
+     *
+     * @param directory The collection.
+     * @param filter The filter applied to the collection's members, or
+     * <code>null</code>.
+     * @param since The identifier of the last event seen by the client,
+     * or -1 to receive only subsequent events.
+     * @return A <code>Subscription</code>, or <code>null</code> if the
+     * maximum number of subscriptions has been reached.
+     * @throws IOException If the collection cannot be listed.
+     */
+    public Subscription subscribe(SmbFile directory, SmbFileFilter filter,
+            long since) throws IOException {
+        String path = getPath(directory);
+        Principal principal = directory.getPrincipal();
+        String key = ((principal != null) ? principal.getName() : "") + "|" +
+                path;
+        Channel channel;
+        boolean created = false;
+        synchronized (this) {
+            if (!running || subscribers >= maximumSubscribers) return null;
+            channel = (Channel) channels.get(key);
+            if (channel != null && channel.expiry != null) {
+                channel.expiry.cancel();
+                channel.expiry = null;
+            }
+            if (channel == null) {
+                channel = new Channel(key, path, directory, filter);
+                channels.put(key, channel);
+                List list = (List) paths.get(path);
+                if (list == null) paths.put(path, list = new ArrayList());
+                list.add(channel);
+                created = true;
+            }
+            channel.subscribers++;
+            subscribers++;
+        }
+        if (monitor != null) monitor.recordAccess(directory);
+        try {
+            if (created) {
+                channel.initialize();
+            } else {
+                channel.awaitInitialized();
+            }
+        } catch (IOException ex) {
+            release(channel);
+            throw ex;
+        }
+        return new Subscription(channel, since);
+    }
+
+    public void resourceChanged(SmbFile file) {
+        String path = getPath(file);
+        List targets = new ArrayList();
+        synchronized (this) {
+            List list = (List) paths.get(path);
+            if (list != null) targets.addAll(list);
+            int index = path.lastIndexOf('/');
+            if (index > 0 && path.charAt(index - 1) != '/') {
+                list = (List) paths.get(path.substring(0, index));
+                if (list != null) targets.addAll(list);
+            }
+        }
+        for (int i = targets.size() - 1; i >= 0; i--) {
+            ((Channel) targets.get(i)).request();
+        }
+    }
+
+    /**
+     * Stops the feed, ending all subscriptions.
+     */
+    public void destroy() {
+        List closed = new ArrayList();
+        synchronized (this) {
+            running = false;
+            polling.cancel();
+            closed.addAll(channels.values());
+            for (int i = closed.size() - 1; i >= 0; i--) {
+                Channel channel = (Channel) closed.get(i);
+                if (channel.expiry != null) channel.expiry.cancel();
+            }
+            channels.clear();
+            paths.clear();
+        }
+        for (int i = closed.size() - 1; i >= 0; i--) {
+            ((Channel) closed.get(i)).close();
+        }
+    }
+
+    private void poll() {
+        List targets;
+        synchronized (this) {
+            targets = new ArrayList(channels.values());
+        }
+        for (int i = targets.size() - 1; i >= 0; i--) {
+            Channel channel = (Channel) targets.get(i);
+            if (monitor != null) {
+                monitor.recordAccess(channel.directory);
+                if (monitor.covers(channel.directory,
+                        SmbDAVUtilities.CHILDREN_DEPTH)) {
+                    continue;
+                }
+            }
+            channel.request();
+        }
+    }
+
+    private synchronized long nextSequence() {
+        return ++sequence;
+    }
+
+    private void release(final Channel channel) {
+        boolean retained = channel.isRetained();
+        synchronized (this) {
+            subscribers--;
+            if (--channel.subscribers > 0) return;
+            if (channels.get(channel.key) != channel) return;
+            if (running && retained) {
+                channel.expiry = TimerWheel.getInstance().schedule(null,
+                        new Runnable() {
+                            public void run() {
+                                expire(channel);
+                            }
+                        }, GRACE_PERIOD);
+                return;
+            }
+            remove(channel);
+        }
+        channel.close();
+    }
+
+    private void expire(Channel channel) {
+        synchronized (this) {
+            if (channel.subscribers > 0 || channel.expiry == null) return;
+            channel.expiry = null;
+            if (channels.get(channel.key) != channel) return;
+            remove(channel);
+        }
+        channel.close();
+    }
+
+    private void remove(Channel channel) {
+        channels.remove(channel.key);
+        List list = (List) paths.get(channel.path);
+        if (list != null) {
+            list.remove(channel);
+            if (list.isEmpty()) paths.remove(channel.path);
+        }
+    }
+
+    private static String getPath(SmbFile file) {
+        String path = file.getCanonicalPath().toLowerCase();
+        while (path.endsWith("/") && !path.endsWith("//")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path;
+    }
+
+    /**
+     * A change to a member of a collection.
+     */
+    public static class Event {
+
+        private final long id;
+
+        private final String type;
+
+        private final String name;
+
+        Event(long id, String type, String name) {
+            this.id = id;
+            this.type = type;
+            this.name = name;
+        }
+
+        /**
+         * Returns the event identifier.  Identifiers increase with each
+         * event.
+         *
+         * @return A <code>long</code> containing the identifier.
+         */
+        public long getId() {
+            return id;
+        }
+
+        /**
+         * Returns the event type.
+         *
+         * @return One of <code>CREATED</code>, <code>MODIFIED</code> or
+         * <code>DELETED</code>.
+         */
+        public String getType() {
+            return type;
+        }
+
+        /**
+         * Returns the name of the member (with a trailing "/" for
+         * collections).
+         *
+         * @return A <code>String</code> containing the member name.
+         */
+        public String getName() {
+            return name;
+        }
+
+    }
+
+    /**
+     * A client's subscription to a collection.  Subscriptions must be
+     * closed once the client has disconnected.
+     */
+    public class Subscription {
+
+        private final Channel channel;
+
+        private long cursor;
+
+        private boolean reset;
+
+        private boolean closed;
+
+        Subscription(Channel channel, long since) {
+            this.channel = channel;
+            synchronized (channel) {
+                cursor = channel.last;
+                reset = (since != -1) && (since < channel.floor ||
+                        since > channel.last);
+                if (since != -1 && !reset) cursor = since;
+            }
+        }
+
+        /**
+         * Indicates whether the events since the client's last event are
+         * no longer available; the client must then reload the collection.
+         *
+         * @return <code>true</code> if the client must reload.
+         */
+        public boolean isReset() {
+            return reset;
+        }
+
+        /**
+         * Returns the identifier of the last event delivered.
+         *
+         * @return A <code>long</code> containing the event identifier.
+         */
+        public long getLastEventId() {
+            return cursor;
+        }
+
+        /**
+         * Waits for events.
+         *
+         * @param timeout The maximum time to wait, in milliseconds.
+         * @return An array of events, which is empty if none occurred
+         * before the timeout expired, or <code>null</code> if the feed
+         * has been stopped.
+         */
+        public Event[] await(long timeout) {
+            return channel.read(this, timeout);
+        }
+
+        /**
+         * Ends the subscription.
+         */
+        public void close() {
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+            }
+            release(channel);
+        }
+
+    }
+
+    private class Channel implements Runnable {
+
+        final String key;
+
+        final String path;
+
+        final SmbFile directory;
+
+        final SmbFileFilter filter;
+
+        final Event[] backlog = new Event[BACKLOG];
+
+        int subscribers;
+
+        TimerWheel.Timeout expiry;
+
+        long floor;
+
+        long last;
+
+        private int head;
+
+        private int count;
+
+        private Map members;
+
+        private boolean initialized;
+
+        private boolean refreshing;
+
+        private boolean dirty;
+
+        private boolean closed;
+
+        private IOException failure;
+
+        public Channel(String key, String path, SmbFile directory,
+                SmbFileFilter filter) {
+            this.key = key;
+            this.path = path;
+            this.directory = directory;
+            this.filter = filter;
+        }
+
+        public void initialize() throws IOException {
+            Map members = null;
+            IOException failure = null;
+            try {
+                members = list();
+            } catch (IOException ex) {
+                failure = ex;
+            }
+            synchronized (this) {
+                this.members = members;
+                this.failure = failure;
+                floor = nextSequence();
+                last = floor;
+                initialized = true;
+                notifyAll();
+            }
+            if (failure != null) throw failure;
+        }
+
+        public synchronized void awaitInitialized() throws IOException {
+            while (!initialized && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    throw new IOException(ex.getMessage());
+                }
+            }
+            if (failure != null) throw failure;
+        }
+
+        public void request() {
+            synchronized (this) {
+                if (closed || !initialized || failure != null) return;
+                if (refreshing) {
+                    dirty = true;
+                    return;
+                }
+                refreshing = true;
+            }
+            if (workerPool != null) {
+                workerPool.execute(directory.getServer().toLowerCase(), this);
+            } else {
+                run();
+            }
+        }
+
+        public void run() {
+            try {
+                boolean again = true;
+                while (again) {
+                    synchronized (this) {
+                        dirty = false;
+                        if (closed) break;
+                    }
+                    try {
+                        update(list());
+                    } catch (IOException ex) {
+                        Log.log(Log.DEBUG, "Unable to list {0}: {1}",
+                                new Object[] { directory, ex });
+                    }
+                    synchronized (this) {
+                        again = dirty;
+                    }
+                }
+            } finally {
+                synchronized (this) {
+                    refreshing = false;
+                }
+            }
+        }
+
+        public synchronized Event[] read(Subscription subscription,
+                long timeout) {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (!closed && last <= subscription.cursor) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) return new Event[0];
+                try {
+                    wait(remaining);
+                } catch (InterruptedException ex) {
+                    return null;
+                }
+            }
+            if (closed) return null;
+            List events = new ArrayList();
+            for (int i = 0; i < count; i++) {
+                Event event = backlog[(head + i) % BACKLOG];
+                if (event.getId() > subscription.cursor) events.add(event);
+            }
+            subscription.cursor = last;
+            return (Event[]) events.toArray(new Event[events.size()]);
+        }
+
+        public synchronized boolean isRetained() {
+            return initialized && failure == null && !closed;
+        }
+
+        public synchronized void close() {
+            closed = true;
+            members = null;
+            notifyAll();
+        }
+
+        private Map list() throws IOException {
+            SmbFile[] children = ListedFile.listFiles(directory, filter);
+            Map members = new HashMap();
+            for (int i = 0; i < children.length; i++) {
+                members.put(children[i].getName(), new long[] {
+                        children[i].isDirectory() ? 0l : children[i].length(),
+                                children[i].lastModified() });
+            }
+            return members;
+        }
+
+        private void update(Map current) {
+            List events = new ArrayList();
+            synchronized (this) {
+                if (closed) return;
+                Iterator iterator = current.entrySet().iterator();
+                while (iterator.hasNext()) {
+                    Map.Entry entry = (Map.Entry) iterator.next();
+                    long[] previous = (long[]) members.get(entry.getKey());
+                    long[] value = (long[]) entry.getValue();
+                    if (previous == null) {
+                        events.add(new String[] { CREATED,
+                                (String) entry.getKey() });
+                    } else if (previous[0] != value[0] ||
+                            previous[1] != value[1]) {
+                        events.add(new String[] { MODIFIED,
+                                (String) entry.getKey() });
+                    }
+                }
+                iterator = members.keySet().iterator();
+                while (iterator.hasNext()) {
+                    String name = (String) iterator.next();
+                    if (!current.containsKey(name)) {
+                        events.add(new String[] { DELETED, name });
+                    }
+                }
+                members = current;
+                int added = events.size();
+                for (int i = 0; i < added; i++) {
+                    String[] event = (String[]) events.get(i);
+                    last = nextSequence();
+                    Event entry = new Event(last, event[0], event[1]);
+                    if (count < BACKLOG) {
+                        backlog[(head + count++) % BACKLOG] = entry;
+                    } else {
+                        // the client must reload if it missed this event
+                        floor = backlog[head].getId();
+                        backlog[head] = entry;
+                        head = (head + 1) % BACKLOG;
+                    }
+                }
+                if (added > 0) notifyAll();
+            }
+        }
+
+    }
+
+}
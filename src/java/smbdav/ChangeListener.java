@@ -0,0 +1,39 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2007  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import jcifs.smb.SmbFile;
+
+/**
+ * Receives notification of changes to resources, including changes made
+ * on the server by means other than Davenport.
+ *
+ * @author Eric Glass
+ */
+public interface ChangeListener {
+
+    /**
+     * Notifies the listener that the specified resource (and, if it is a
+     * collection, any of its members) may have changed.
+     *
+     * @param file The resource which may have changed.
+     */
+    public void resourceChanged(SmbFile file);
+
+}
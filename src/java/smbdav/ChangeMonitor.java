@@ -0,0 +1,378 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2007  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.io.IOException;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+import jcifs.smb.DirectoryWatch;
+import jcifs.smb.SmbFile;
+
+/**
+ * Watches frequently accessed directories for changes made on the server,
+ * and notifies registered <code>ChangeListener</code>s.  This allows
+ * caches to retain entries covered by a watch for longer than would be
+ * safe otherwise.
+ * <p>
+ * Handlers report accesses to collections via <code>recordAccess</code>.
+ * Each directory accumulates a score which is halved at each sweep
+ * interval; a directory whose score reaches the configured threshold is
+ * watched, provided the per-server watch budget allows.  If the budget is
+ * exhausted, the coldest existing watch on the server is replaced if the
+ * new directory is substantially hotter; watches whose score decays to
+ * zero are stopped.  Each watch uses a dedicated thread waiting on an SMB
+ * change notification.
+ * <p>
+ * A change to a member is reported for the member; if the server reports
+ * more changes than can be listed, or a watch is interrupted and must be
+ * re-established, the directory itself is reported.  When a watch stops,
+ * the directory is reported, so that listeners relying on the watch
+ * discard what it covered.  Directories for which the server refuses
+ * change notification are not retried until the following sweep; entries
+ * for such directories remain subject to ordinary expiration.
+ *
+ * @author Eric Glass
+ */
+public class ChangeMonitor {
+
+    private static final long SWEEP_INTERVAL = 60000l;
+
+    private static final int MAXIMUM_FAILURES = 3;
+
+    private final List listeners = new Vector();
+
+    private final Map candidates = new HashMap();
+
+    private final Map watchers = new HashMap();
+
+    private final Map servers = new HashMap();
+
+    private final Map refused = new HashMap();
+
+    private final TimerWheel.Timeout sweep;
+
+    private final int watchesPerServer;
+
+    private final int threshold;
+
+    private boolean running = true;
+
+    /**
+     * Creates a change monitor.
+     *
+     * @param watchesPerServer The maximum number of directories watched
+     * on any single server.
+     * @param threshold The score at which a directory is watched.
+     */
+    public ChangeMonitor(int watchesPerServer, int threshold) {
+        this.watchesPerServer = Math.max(watchesPerServer, 1);
+        this.threshold = Math.max(threshold, 1);
+        sweep = TimerWheel.getInstance().schedule(this, new Runnable() {
+            public void run() {
+                sweep();
+            }
+        }, SWEEP_INTERVAL, SWEEP_INTERVAL);
+    }
+
+    /**
+     * Registers a listener to receive change notifications.
+     *
+     * @param listener The listener.
+     */
+    public void addChangeListener(ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Unregisters a listener.
+     *
+     * @param listener The listener.
+     */
+    public void removeChangeListener(ChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Records an access to the members of the specified collection.
+     *
+     * @param directory The collection.
+     */
+    public void recordAccess(SmbFile directory) {
+        if (directory.getShare() == null) return;
+        String path = getPath(directory);
+        String server = directory.getServer().toLowerCase();
+        Watcher evicted = null;
+        synchronized (this) {
+            if (!running) return;
+            Watcher watcher = (Watcher) watchers.get(path);
+            if (watcher != null) {
+                watcher.score++;
+                return;
+            }
+            Candidate candidate = (Candidate) candidates.get(path);
+            if (candidate == null) {
+                candidates.put(path, candidate = new Candidate());
+            }
+            candidate.file = directory;
+            if (++candidate.score < threshold || refused.containsKey(path)) {
+                return;
+            }
+            int[] count = (int[]) servers.get(server);
+            if (count == null) servers.put(server, count = new int[1]);
+            if (count[0] >= watchesPerServer) {
+                Watcher coldest = null;
+                Iterator iterator = watchers.values().iterator();
+                while (iterator.hasNext()) {
+                    Watcher other = (Watcher) iterator.next();
+                    if (!other.server.equals(server)) continue;
+                    if (coldest == null || other.score < coldest.score) {
+                        coldest = other;
+                    }
+                }
+                if (coldest == null || coldest.score * 2 >= candidate.score) {
+                    return;
+                }
+                release(coldest);
+                evicted = coldest;
+            }
+            candidates.remove(path);
+            watcher = new Watcher(path, server, directory, candidate.score);
+            watchers.put(path, watcher);
+            count[0]++;
+            Thread thread = new Thread(watcher, "Davenport-Watch-" + path);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        if (evicted != null) evicted.stop();
+    }
+
+    /**
+     * Indicates whether a result for the specified resource at the given
+     * depth is covered by an active watch.  A resource alone is covered if
+     * its parent is watched; a resource and its members are covered if the
+     * resource itself is watched.  Results of infinite depth are never
+     * covered.
+     *
+     * @param file The resource.
+     * @param depth The depth of the result.
+     * @return <code>true</code> if changes to the result will be reported.
+     */
+    public boolean covers(SmbFile file, int depth) {
+        if (depth == SmbDAVUtilities.INFINITE_DEPTH) return false;
+        String path = getPath(file);
+        if (depth == SmbDAVUtilities.RESOURCE_ONLY_DEPTH) {
+            int index = path.lastIndexOf('/');
+            if (index <= 0 || path.charAt(index - 1) == '/') return false;
+            path = path.substring(0, index);
+        }
+        synchronized (this) {
+            Watcher watcher = (Watcher) watchers.get(path);
+            return watcher != null && watcher.armed;
+        }
+    }
+
+    /**
+     * Stops all watches.
+     */
+    public void destroy() {
+        List stopped = new Vector();
+        synchronized (this) {
+            running = false;
+            sweep.cancel();
+            stopped.addAll(watchers.values());
+            watchers.clear();
+            servers.clear();
+            candidates.clear();
+            refused.clear();
+        }
+        for (int i = stopped.size() - 1; i >= 0; i--) {
+            ((Watcher) stopped.get(i)).stop();
+        }
+        listeners.clear();
+    }
+
+    private void sweep() {
+        List stopped = new Vector();
+        synchronized (this) {
+            refused.clear();
+            Iterator iterator = candidates.values().iterator();
+            while (iterator.hasNext()) {
+                Candidate candidate = (Candidate) iterator.next();
+                if ((candidate.score >>= 1) == 0) iterator.remove();
+            }
+            iterator = watchers.values().iterator();
+            while (iterator.hasNext()) {
+                Watcher watcher = (Watcher) iterator.next();
+                if ((watcher.score >>= 1) > 0) continue;
+                iterator.remove();
+                int[] count = (int[]) servers.get(watcher.server);
+                if (count != null && --count[0] <= 0) {
+                    servers.remove(watcher.server);
+                }
+                stopped.add(watcher);
+            }
+        }
+        for (int i = stopped.size() - 1; i >= 0; i--) {
+            ((Watcher) stopped.get(i)).stop();
+        }
+    }
+
+    private synchronized void release(Watcher watcher) {
+        if (watchers.get(watcher.path) != watcher) return;
+        watchers.remove(watcher.path);
+        int[] count = (int[]) servers.get(watcher.server);
+        if (count != null && --count[0] <= 0) servers.remove(watcher.server);
+    }
+
+    private synchronized void refuse(String path) {
+        refused.put(path, Boolean.TRUE);
+    }
+
+    private void fire(SmbFile file) {
+        Object[] listeners = this.listeners.toArray();
+        for (int i = 0; i < listeners.length; i++) {
+            try {
+                ((ChangeListener) listeners[i]).resourceChanged(file);
+            } catch (Throwable throwable) {
+                Log.log(Log.WARNING, "Uncaught error in change listener: {0}",
+                        throwable);
+            }
+        }
+    }
+
+    private static String getPath(SmbFile file) {
+        String path = file.getCanonicalPath().toLowerCase();
+        while (path.endsWith("/") && !path.endsWith("//")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path;
+    }
+
+    private static class Candidate {
+
+        SmbFile file;
+
+        int score;
+
+    }
+
+    private class Watcher implements Runnable {
+
+        final String path;
+
+        final String server;
+
+        final SmbFile directory;
+
+        int score;
+
+        volatile boolean armed;
+
+        private volatile boolean stopped;
+
+        private DirectoryWatch watch;
+
+        public Watcher(String path, String server, SmbFile directory,
+                int score) {
+            this.path = path;
+            this.server = server;
+            this.directory = directory;
+            this.score = score;
+        }
+
+        public void run() {
+            int failures = 0;
+            try {
+                while (!stopped) {
+                    try {
+                        DirectoryWatch watch;
+                        synchronized (this) {
+                            if (stopped) break;
+                            watch = this.watch;
+                        }
+                        if (watch == null) {
+                            watch = open();
+                            if (watch == null) break;
+                            // report changes made before the watch was armed
+                            fire(directory);
+                        }
+                        String[] names = watch.next();
+                        if (names == null) break;
+                        failures = 0;
+                        if (names.length == 0) {
+                            fire(directory);
+                            continue;
+                        }
+                        for (int i = 0; i < names.length; i++) {
+                            fire(new SmbFile(directory,
+                                    names[i].replace('\\', '/')));
+                        }
+                    } catch (IOException ex) {
+                        if (stopped) break;
+                        Log.log(Log.DEBUG, "Watch on {0} failed: {1}",
+                                new Object[] { directory, ex });
+                        armed = false;
+                        close();
+                        fire(directory);
+                        if (++failures >= MAXIMUM_FAILURES) {
+                            refuse(path);
+                            break;
+                        }
+                    }
+                }
+            } finally {
+                armed = false;
+                close();
+                release(this);
+                fire(directory);
+                Log.log(Log.DEBUG, "Stopped watching {0}.", directory);
+            }
+        }
+
+        public void stop() {
+            stopped = true;
+            armed = false;
+            close();
+        }
+
+        private synchronized DirectoryWatch open() throws IOException {
+            if (stopped) return null;
+            watch = new DirectoryWatch(directory);
+            armed = true;
+            Log.log(Log.DEBUG, "Watching {0}.", directory);
+            return watch;
+        }
+
+        private void close() {
+            DirectoryWatch watch;
+            synchronized (this) {
+                watch = this.watch;
+                this.watch = null;
+            }
+            if (watch != null) watch.close();
+        }
+
+    }
+
+}
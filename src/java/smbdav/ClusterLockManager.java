@@ -0,0 +1,346 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2007  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.io.IOException;
+
+import java.security.Principal;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletResponse;
+
+import jcifs.smb.SmbFile;
+
+import smbdav.LockStore.Record;
+
+/**
+ * A lock manager which keeps its locks in a <code>LockStore</code> shared
+ * by several gateway instances, so that a client may be served by any
+ * instance behind a load balancer.  Locks are application server locks
+ * (as with <code>DefaultLockManager</code>); conflicts are detected by
+ * the store.
+ * <p>
+ * Each lock is held under a lease, renewed periodically by the instance
+ * which created or last refreshed it.  Should that instance fail, the
+ * lease lapses and the lock is released.
+ * <p>
+ * Most resources are never locked, so lock discovery (i.e., the
+ * <code>lockdiscovery</code> property reported for each member of a
+ * PROPFIND) answers from a short-lived cache of lookups which found no
+ * locks, sparing a round trip to the store for each resource.  A lock
+ * created through another instance may therefore go unreported for up to
+ * the cache lifetime.  The lookups used to authorize requests
+ * (<code>getActiveLocks</code> and <code>getDescendantLocks</code>)
+ * always consult the store, as does lock creation.
+ *
+ * @author Eric Glass
+ */
+public class ClusterLockManager implements DavenportLockManager {
+
+    private static final int NEGATIVE_CACHE_LIMIT = 10000;
+
+    private final LockStore store;
+
+    private final long leaseTime;
+
+    private final long negativeCacheTime;
+
+    private final Set held = new HashSet();
+
+    private final Map absent = new HashMap();
+
+    private final TimerWheel.Timeout renewal;
+
+    private long defaultTimeout = SmbDAVUtilities.INFINITE_TIMEOUT;
+
+    private long maximumTimeout = SmbDAVUtilities.INFINITE_TIMEOUT;
+
+    /**
+     * Creates a lock manager.
+     *
+     * @param store The shared lock store.
+     * @param defaultTimeout The default lock timeout.
+     * @param maximumTimeout The maximum lock timeout.
+     * @param leaseTime The lease duration (in milliseconds); leases are
+     * renewed at half this interval.
+     * @param negativeCacheTime The time (in milliseconds) for which a
+     * lookup finding no locks is cached; if zero, such lookups are not
+     * cached.
+     */
+    public ClusterLockManager(LockStore store, long defaultTimeout,
+            long maximumTimeout, long leaseTime, long negativeCacheTime) {
+        this.store = store;
+        this.defaultTimeout = defaultTimeout;
+        this.maximumTimeout = maximumTimeout;
+        this.leaseTime = Math.max(leaseTime, 2000l);
+        this.negativeCacheTime = Math.max(negativeCacheTime, 0l);
+        renewal = TimerWheel.getInstance().schedule(null, new Runnable() {
+            public void run() {
+                renew();
+            }
+        }, this.leaseTime / 2, this.leaseTime / 2);
+    }
+
+    public long getDefaultTimeout() {
+        return defaultTimeout;
+    }
+
+    public long getMaximumTimeout() {
+        return maximumTimeout;
+    }
+
+    public int getLockSupport(SmbFile resource) throws IOException {
+        return SHARED_LOCK_SUPPORT | EXCLUSIVE_LOCK_SUPPORT;
+    }
+
+    public boolean isLocked(SmbFile resource, String lockToken)
+            throws IOException {
+        if (lockToken == null) return false;
+        Record record = store.get(lockToken);
+        return record != null && record.covers(resource.getCanonicalPath());
+    }
+
+    public Lock[] getActiveLocks(SmbFile resource) throws IOException {
+        String path = Record.trim(resource.getCanonicalPath());
+        Record[] records = store.getActiveLocks(path);
+        if (records == null) {
+            setAbsent(path);
+            return null;
+        }
+        return toLocks(records);
+    }
+
+    public Lock[] getDescendantLocks(SmbFile resource) throws IOException {
+        Record[] records = store.getDescendantLocks(
+                resource.getCanonicalPath());
+        return (records != null) ? toLocks(records) : null;
+    }
+
+    public Lock[] getDiscoveredLocks(SmbFile resource) throws IOException {
+        String path = Record.trim(resource.getCanonicalPath());
+        if (isAbsent(path)) return null;
+        return getActiveLocks(resource);
+    }
+
+    public SmbFile getLockedResource(SmbFile resource, Principal principal)
+            throws IOException {
+        return resource;
+    }
+
+    public String lock(SmbFile resource, Principal principal, LockInfo lockInfo)
+            throws LockException, IOException {
+        Log.log(Log.DEBUG, "Locking \"{0}\" for \"{1}\" -- {2}", new Object[] {
+                resource, principal, lockInfo });
+        String lockToken = "opaquelocktoken:" +
+                SmbDAVUtilities.generateUuid();
+        String owner = DefaultLockManager.formatOwner(lockInfo.getOwner());
+        long timeout = getTimeout(lockInfo.getTimeout());
+        Record record = new Record(lockToken, resource.getCanonicalPath(),
+                (principal != null) ? principal.getName() : null,
+                        lockInfo.isExclusive(), lockInfo.getDepth(), owner,
+                                timeout, leaseTime);
+        Record conflict = store.lock(record);
+        if (conflict != null) {
+            Log.log(Log.DEBUG, "Cannot obtain lock -- conflicting lock " +
+                    "exists:\n{0}", conflict);
+            throw new LockException(MethodHandler.SC_LOCKED);
+        }
+        clearAbsent();
+        try {
+            if (!resource.exists()) resource.createNewFile();
+        } catch (IOException ex) {
+            store.unlock(lockToken);
+            throw ex;
+        }
+        synchronized (held) {
+            held.add(lockToken);
+        }
+        Log.log(Log.DEBUG, "Locked resource \"{0}\":\n{1}", new Object[] {
+                resource, record });
+        return lockToken;
+    }
+
+    public void refresh(SmbFile resource, Principal principal,
+            String[] lockTokens, long timeout) throws LockException,
+                    IOException {
+        String path = resource.getCanonicalPath();
+        Record[] records = new Record[lockTokens.length];
+        for (int i = lockTokens.length - 1; i >= 0; i--) {
+            records[i] = store.get(lockTokens[i]);
+            if (records[i] == null || !records[i].covers(path)) {
+                Log.log(Log.DEBUG, "Unable to find matching lock for {0}.",
+                        lockTokens[i]);
+                throw new LockException(
+                        HttpServletResponse.SC_PRECONDITION_FAILED);
+            }
+        }
+        timeout = getTimeout(timeout);
+        for (int i = lockTokens.length - 1; i >= 0; i--) {
+            if (!store.refresh(lockTokens[i], timeout, leaseTime)) {
+                throw new LockException(
+                        HttpServletResponse.SC_PRECONDITION_FAILED);
+            }
+            // this instance now renews the lease
+            synchronized (held) {
+                held.add(lockTokens[i]);
+            }
+        }
+    }
+
+    public void unlock(SmbFile resource, Principal principal, String lockToken)
+            throws LockException, IOException {
+        Log.log(Log.DEBUG, "Unlocking \"{0}\" for \"{1}\" with token {2}",
+                new Object[] { resource, principal, lockToken });
+        Record record = store.get(lockToken);
+        if (record == null || !record.covers(resource.getCanonicalPath()) ||
+                !store.unlock(lockToken)) {
+            Log.log(Log.DEBUG,
+                    "Resource \"{0}\" is not covered by lock {1}",
+                            new Object[] { resource, lockToken });
+            throw new LockException(
+                    HttpServletResponse.SC_PRECONDITION_FAILED);
+        }
+        synchronized (held) {
+            held.remove(lockToken);
+        }
+    }
+
+    /**
+     * Stops renewing leases and closes the store.  Leases held by this
+     * instance lapse unless the locks are refreshed through another.
+     */
+    public void destroy() {
+        renewal.cancel();
+        store.close();
+    }
+
+    private long getTimeout(long timeout) {
+        if (timeout == SmbDAVUtilities.UNSPECIFIED_TIMEOUT) {
+            timeout = defaultTimeout;
+        }
+        if (maximumTimeout != SmbDAVUtilities.INFINITE_TIMEOUT) {
+            if (timeout == SmbDAVUtilities.INFINITE_TIMEOUT) {
+                timeout = maximumTimeout;
+            }
+            if (timeout <= 0) timeout = defaultTimeout;
+            timeout = Math.min(timeout, maximumTimeout);
+        } else if (timeout != SmbDAVUtilities.INFINITE_TIMEOUT) {
+            if (timeout <= 0) timeout = defaultTimeout;
+        }
+        return timeout;
+    }
+
+    private void renew() {
+        String[] tokens;
+        synchronized (held) {
+            if (held.isEmpty()) return;
+            tokens = (String[]) held.toArray(new String[held.size()]);
+        }
+        // the store accepts at most MAXIMUM_RECORDS tokens per request
+        for (int offset = 0; offset < tokens.length;
+                offset += LockStoreServer.MAXIMUM_RECORDS) {
+            int count = Math.min(tokens.length - offset,
+                    LockStoreServer.MAXIMUM_RECORDS);
+            String[] chunk = tokens;
+            if (count != tokens.length) {
+                chunk = new String[count];
+                System.arraycopy(tokens, offset, chunk, 0, count);
+            }
+            boolean[] renewed;
+            try {
+                renewed = store.renew(chunk, leaseTime);
+            } catch (IOException ex) {
+                Log.log(Log.WARNING, "Unable to renew lock leases: {0}", ex);
+                return;
+            }
+            synchronized (held) {
+                for (int i = chunk.length - 1; i >= 0; i--) {
+                    if (!renewed[i]) held.remove(chunk[i]);
+                }
+            }
+        }
+    }
+
+    private boolean isAbsent(String path) {
+        if (negativeCacheTime == 0) return false;
+        synchronized (absent) {
+            Long expiration = (Long) absent.get(path);
+            if (expiration == null) return false;
+            if (expiration.longValue() > System.currentTimeMillis()) {
+                return true;
+            }
+            absent.remove(path);
+            return false;
+        }
+    }
+
+    private void setAbsent(String path) {
+        if (negativeCacheTime == 0) return;
+        synchronized (absent) {
+            if (absent.size() >= NEGATIVE_CACHE_LIMIT) absent.clear();
+            absent.put(path, new Long(System.currentTimeMillis() +
+                    negativeCacheTime));
+        }
+    }
+
+    private void clearAbsent() {
+        synchronized (absent) {
+            absent.clear();
+        }
+    }
+
+    private Lock[] toLocks(Record[] records) throws IOException {
+        Lock[] locks = new Lock[records.length];
+        for (int i = records.length - 1; i >= 0; i--) {
+            locks[i] = new SharedLock(records[i]);
+        }
+        return locks;
+    }
+
+    private static class SharedLock extends Lock {
+
+        private final String token;
+
+        private final Principal principal;
+
+        public SharedLock(Record record) throws IOException {
+            token = record.getToken();
+            principal = (record.getPrincipal() != null) ?
+                    new NamedPrincipal(record.getPrincipal()) : null;
+            setExclusive(record.isExclusive());
+            setDepth(record.getDepth());
+            setOwner(DefaultLockManager.parseOwner(record.getOwner()));
+            setTimeout(record.getTimeout());
+        }
+
+        public String getToken() {
+            return token;
+        }
+
+        public Principal getPrincipal() {
+            return principal;
+        }
+
+    }
+
+}
@@ -0,0 +1,220 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2007  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.io.IOException;
+
+import java.net.InetAddress;
+
+import java.util.Properties;
+
+/**
+ * Vends <code>ClusterLockManager</code> instances backed by a shared lock
+ * store.  The store is selected by the "store" property, giving the
+ * "host:port" of a <code>LockStoreServer</code>, or by the "storeClass"
+ * property, naming a <code>LockStore</code> implementation with a
+ * no-argument constructor.  If neither is given, a store held in memory
+ * in this process is used; setting the "listen" property ("port" or
+ * "address:port") serves that store to other instances.  A bare port
+ * listens on the loopback address only.  Serving or connecting to a
+ * store requires the "secret" property, shared by all instances.
+ * <p>
+ * The local store (and its server) is shared by the lock managers created
+ * in this process, and is closed when the last of them is destroyed.
+ *
+ * @author Eric Glass
+ */
+public class ClusterLockManagerFactory extends LockManagerFactory {
+
+    private static LockStore localStore;
+
+    private static LockStoreServer server;
+
+    private static int references;
+
+    private long defaultTimeout = SmbDAVUtilities.INFINITE_TIMEOUT;
+
+    private long maximumTimeout = SmbDAVUtilities.INFINITE_TIMEOUT;
+
+    private long leaseTime = 60000l;
+
+    private long negativeCacheTime = 1000l;
+
+    private int storeTimeout = 10000;
+
+    private int maximumConnections = 64;
+
+    private String store;
+
+    private String storeClass;
+
+    private String listen;
+
+    private String secret;
+
+    public void setProperties(Properties properties) {
+        String defaultTimeout = properties.getProperty("defaultTimeout");
+        if (defaultTimeout != null) {
+            this.defaultTimeout = Long.parseLong(defaultTimeout);
+        }
+        String maximumTimeout = properties.getProperty("maximumTimeout");
+        if (maximumTimeout != null) {
+            this.maximumTimeout = Long.parseLong(maximumTimeout);
+        }
+        String leaseTime = properties.getProperty("leaseTime");
+        if (leaseTime != null) this.leaseTime = Long.parseLong(leaseTime);
+        String negativeCacheTime =
+                properties.getProperty("negativeCacheTime");
+        if (negativeCacheTime != null) {
+            this.negativeCacheTime = Long.parseLong(negativeCacheTime);
+        }
+        String storeTimeout = properties.getProperty("storeTimeout");
+        if (storeTimeout != null) {
+            this.storeTimeout = Integer.parseInt(storeTimeout);
+        }
+        String maximumConnections =
+                properties.getProperty("maximumConnections");
+        if (maximumConnections != null) {
+            this.maximumConnections = Integer.parseInt(maximumConnections);
+        }
+        secret = properties.getProperty("secret");
+        store = properties.getProperty("store");
+        storeClass = properties.getProperty("storeClass");
+        listen = properties.getProperty("listen");
+    }
+
+    public LockManager newLockManager() {
+        try {
+            return new ClusterLockManager(getStore(), defaultTimeout,
+                    maximumTimeout, leaseTime, negativeCacheTime);
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new IllegalStateException(ex.getMessage());
+        }
+    }
+
+    private LockStore getStore() throws Exception {
+        if (store != null) {
+            int index = store.lastIndexOf(':');
+            if (index == -1) {
+                throw new IllegalArgumentException(
+                        SmbDAVUtilities.getResource(
+                                ClusterLockManagerFactory.class,
+                                        "invalidStore", new Object[] { store },
+                                                null));
+            }
+            if (secret == null || secret.length() == 0) {
+                throw new IllegalArgumentException(
+                        SmbDAVUtilities.getResource(LockStoreServer.class,
+                                "secretRequired", null, null));
+            }
+            return new SocketLockStore(store.substring(0, index),
+                    Integer.parseInt(store.substring(index + 1)),
+                            storeTimeout, secret);
+        }
+        if (storeClass != null) {
+            return (LockStore) Class.forName(storeClass).newInstance();
+        }
+        return getLocalStore(listen, secret, maximumConnections);
+    }
+
+    private static synchronized LockStore getLocalStore(String listen,
+            String secret, int maximumConnections) throws IOException {
+        LockStore store = (localStore != null) ? localStore :
+                new MemoryLockStore();
+        if (listen != null && server == null) {
+            int index = listen.lastIndexOf(':');
+            InetAddress address = InetAddress.getByName((index != -1) ?
+                    listen.substring(0, index) : "127.0.0.1");
+            server = new LockStoreServer(store, address,
+                    Integer.parseInt(listen.substring(index + 1)), secret,
+                            maximumConnections);
+        }
+        localStore = store;
+        references++;
+        return new LocalStore(store);
+    }
+
+    private static synchronized void releaseLocalStore() {
+        if (--references > 0) return;
+        if (server != null) {
+            server.close();
+            server = null;
+        }
+        if (localStore != null) {
+            localStore.close();
+            localStore = null;
+        }
+    }
+
+    /**
+     * A reference to the local store held by a single lock manager.
+     */
+    private static class LocalStore implements LockStore {
+
+        private final LockStore store;
+
+        private boolean closed;
+
+        public LocalStore(LockStore store) {
+            this.store = store;
+        }
+
+        public Record lock(Record record) throws IOException {
+            return store.lock(record);
+        }
+
+        public boolean refresh(String token, long timeout, long lease)
+                throws IOException {
+            return store.refresh(token, timeout, lease);
+        }
+
+        public boolean[] renew(String[] tokens, long lease)
+                throws IOException {
+            return store.renew(tokens, lease);
+        }
+
+        public boolean unlock(String token) throws IOException {
+            return store.unlock(token);
+        }
+
+        public Record get(String token) throws IOException {
+            return store.get(token);
+        }
+
+        public Record[] getActiveLocks(String path) throws IOException {
+            return store.getActiveLocks(path);
+        }
+
+        public Record[] getDescendantLocks(String path) throws IOException {
+            return store.getDescendantLocks(path);
+        }
+
+        public void close() {
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+            }
+            releaseLocalStore();
+        }
+
+    }
+
+}
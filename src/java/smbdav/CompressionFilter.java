@@ -18,12 +18,15 @@
 
 package smbdav;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 
 import java.util.Enumeration;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Set;
 import java.util.StringTokenizer;
 
@@ -45,7 +48,17 @@ import javax.servlet.http.HttpServletResponseWrapper;
 
 /**
  * Implements GZIP and Deflate compression filters for clients that support
- * compression.
+ * compression.  Compression is applied selectively: responses whose
+ * content is already compressed (images, archives, media and Office
+ * documents, identified by content type or, for GET requests, by the
+ * extension of the requested resource) are sent as-is, as are responses
+ * too small to benefit or too large to be worth the processor time.  The
+ * decision is made before the first byte of the body is written; where
+ * the length is not declared, the body is buffered until it reaches the
+ * minimum size (or is completed or flushed).  A response flushed before
+ * any of its body has been written is sent uncompressed, as are event
+ * streams (whose events would otherwise be held in the compressor
+ * until enough data accumulated).
  *
  * @author Eric Glass
  */ 
@@ -53,12 +66,38 @@ public class CompressionFilter implements Filter {
 
     private static final String DEFAULT_METHODS = "GET LOCK POST PROPFIND";
 
+    private static final String DEFAULT_EXCLUDED_TYPES =
+            "image/gif image/jpeg image/png image/webp audio/* video/* " +
+            "application/zip application/x-zip-compressed " +
+            "application/gzip application/x-gzip application/x-compress " +
+            "application/x-bzip2 application/x-7z-* application/x-rar* " +
+            "application/java-archive application/vnd.openxmlformats-* " +
+            "application/vnd.oasis.opendocument.* application/vnd.ms-cab*";
+
+    private static final String DEFAULT_EXCLUDED_EXTENSIONS =
+            "gif jpg jpeg png webp mp3 m4a ogg mp4 m4v mov avi mkv wmv " +
+            "zip gz tgz bz2 7z rar jar cab docx xlsx pptx odt ods odp";
+
+    private static final String EVENT_STREAM_TYPE = "text/event-stream";
+
     private static final int GZIP_COMPRESSION = 0;
 
     private static final int DEFLATE_COMPRESSION = 1;
 
     private final Set methods = new HashSet();
 
+    private final Set includedTypes = new HashSet();
+
+    private final Set excludedTypes = new HashSet();
+
+    private final Set includedExtensions = new HashSet();
+
+    private final Set excludedExtensions = new HashSet();
+
+    private int minimumSize = 256;
+
+    private long maximumSize = -1;
+
     private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
 
     private boolean gzipEnabled = true;
@@ -85,6 +124,26 @@ public class CompressionFilter implements Filter {
         while (tokenizer.hasMoreTokens()) {
             this.methods.add(tokenizer.nextToken().toUpperCase());
         }
+        String excludedTypes = config.getInitParameter("excludeTypes");
+        if (excludedTypes == null) excludedTypes = DEFAULT_EXCLUDED_TYPES;
+        addTokens(this.excludedTypes, excludedTypes);
+        addTokens(includedTypes, config.getInitParameter("includeTypes"));
+        String excludedExtensions =
+                config.getInitParameter("excludeExtensions");
+        if (excludedExtensions == null) {
+            excludedExtensions = DEFAULT_EXCLUDED_EXTENSIONS;
+        }
+        addTokens(this.excludedExtensions, excludedExtensions);
+        addTokens(includedExtensions,
+                config.getInitParameter("includeExtensions"));
+        String minimumSize = config.getInitParameter("minimumSize");
+        if (minimumSize != null) {
+            this.minimumSize = Math.max(Integer.parseInt(minimumSize), 0);
+        }
+        String maximumSize = config.getInitParameter("maximumSize");
+        if (maximumSize != null) {
+            this.maximumSize = Long.parseLong(maximumSize);
+        }
     }
 
     public void destroy() { }
@@ -107,7 +166,9 @@ public class CompressionFilter implements Filter {
         HttpServletRequest request = (HttpServletRequest) req;
         HttpServletResponse response = (HttpServletResponse) resp;
         String method = request.getMethod().toUpperCase();
-        if (!methods.contains(method)) {
+        // only a GET body is the content of the requested resource
+        if (!methods.contains(method) || ("GET".equals(method) &&
+                !isCompressible(request.getRequestURI()))) {
             chain.doFilter(request, response);
             return;
         }
@@ -172,6 +233,52 @@ public class CompressionFilter implements Filter {
         }
     }
 
+    private boolean isCompressible(String uri) {
+        if (uri == null) return true;
+        int slash = uri.lastIndexOf('/');
+        int dot = uri.lastIndexOf('.');
+        if (dot <= slash) return true;  // no extension (i.e., a collection)
+        String extension = uri.substring(dot + 1).toLowerCase();
+        if (excludedExtensions.contains(extension)) return false;
+        return includedExtensions.isEmpty() ||
+                includedExtensions.contains(extension);
+    }
+
+    private boolean isCompressible(String contentType, long length) {
+        if (length != -1) {
+            if (length < minimumSize) return false;
+            if (maximumSize != -1 && length > maximumSize) return false;
+        }
+        if (contentType == null) return includedTypes.isEmpty();
+        int index = contentType.indexOf(';');
+        if (index != -1) contentType = contentType.substring(0, index);
+        contentType = contentType.trim().toLowerCase();
+        if (EVENT_STREAM_TYPE.equals(contentType)) return false;
+        if (matches(excludedTypes, contentType)) return false;
+        return includedTypes.isEmpty() || matches(includedTypes, contentType);
+    }
+
+    private static boolean matches(Set patterns, String contentType) {
+        if (patterns.contains(contentType)) return true;
+        Iterator iterator = patterns.iterator();
+        while (iterator.hasNext()) {
+            String pattern = (String) iterator.next();
+            if (pattern.endsWith("*") && contentType.startsWith(
+                    pattern.substring(0, pattern.length() - 1))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void addTokens(Set set, String value) {
+        if (value == null) return;
+        StringTokenizer tokenizer = new StringTokenizer(value);
+        while (tokenizer.hasMoreTokens()) {
+            set.add(tokenizer.nextToken().toLowerCase());
+        }
+    }
+
     private class CompressedResponse extends HttpServletResponseWrapper {
 
         private ServletOutputStream output;
@@ -180,21 +287,20 @@ public class CompressionFilter implements Filter {
 
         private final int type;
 
+        private long contentLength = -1;
+
         public CompressedResponse(HttpServletResponse response, int type) {
             super(response);
             this.type = type;
-            if (type == GZIP_COMPRESSION) {
-                response.setHeader("Content-Encoding", "gzip");
-            } else if (type == DEFLATE_COMPRESSION) {
-                response.setHeader("Content-Encoding", "deflate");
-            }
+            response.addHeader("Vary", "Accept-Encoding");
         }
 
         public ServletOutputStream getOutputStream() throws IOException {
             if (writer != null) {
                 throw new IllegalStateException("getWriter already called.");
             }
-            return (output != null) ? output : (output = wrapOutputStream());
+            return (output != null) ? output :
+                    (output = new PolicyOutputStream(this));
         }
 
         public PrintWriter getWriter() throws IOException {
@@ -204,34 +310,45 @@ public class CompressionFilter implements Filter {
                         "getOutputStream already called.");
             }
             return (writer = new PrintWriter(new OutputStreamWriter(
-                    output = wrapOutputStream(), getCharacterEncoding())));
+                    output = new PolicyOutputStream(this),
+                            getCharacterEncoding())));
         }
 
         public void addHeader(String header, String value) {
-            if (!"Content-Length".equalsIgnoreCase(header)) {
+            if ("Content-Length".equalsIgnoreCase(header)) {
+                setContentLength(value);
+            } else {
                 super.addHeader(header, value);
             }
         }
 
         public void addIntHeader(String header, int value) {
-            if (!"Content-Length".equalsIgnoreCase(header)) {
+            if ("Content-Length".equalsIgnoreCase(header)) {
+                setContentLength(value);
+            } else {
                 super.addIntHeader(header, value);
             }
         }
 
         public void setHeader(String header, String value) {
-            if (!"Content-Length".equalsIgnoreCase(header)) {
+            if ("Content-Length".equalsIgnoreCase(header)) {
+                setContentLength(value);
+            } else {
                 super.setHeader(header, value);
             }
         }
 
         public void setIntHeader(String header, int value) {
-            if (!"Content-Length".equalsIgnoreCase(header)) {
+            if ("Content-Length".equalsIgnoreCase(header)) {
+                setContentLength(value);
+            } else {
                 super.setIntHeader(header, value);
             }
         }
 
-        public void setContentLength(int contentLength) { }
+        public void setContentLength(int contentLength) {
+            this.contentLength = contentLength;
+        }
 
         public void flushBuffer() throws IOException {
             if (writer != null) {
@@ -249,49 +366,122 @@ public class CompressionFilter implements Filter {
             }
         }
 
-        private ServletOutputStream wrapOutputStream() throws IOException {
+        /**
+         * Applies the compression policy, and returns the stream to which
+         * the body is to be written.
+         *
+         * @param length The length of the body written so far, or -1 if
+         * more is expected.
+         * @param complete Whether the body has been completed within the
+         * buffer (so that <code>length</code> is its final length).
+         */
+        OutputStream decide(long length, boolean complete)
+                throws IOException {
+            if (contentLength != -1) {
+                length = contentLength;
+                complete = true;
+            }
+            HttpServletResponse response =
+                    (HttpServletResponse) getResponse();
+            if (!isCompressible(getContentType(), length)) {
+                if (complete) {
+                    response.setHeader("Content-Length",
+                            Long.toString(length));
+                }
+                return response.getOutputStream();
+            }
             if (type == GZIP_COMPRESSION) {
-                return new WrappedOutputStream(new GZIPOutputStream(
-                        super.getOutputStream()));
-            } else if (type == DEFLATE_COMPRESSION) {
-                return new WrappedOutputStream(new DeflaterOutputStream(
-                        super.getOutputStream(),
-                                new Deflater(compressionLevel, true)));
-            } else {
-                return super.getOutputStream();
+                response.setHeader("Content-Encoding", "gzip");
+                return new GZIPOutputStream(response.getOutputStream());
+            }
+            response.setHeader("Content-Encoding", "deflate");
+            return new DeflaterOutputStream(response.getOutputStream(),
+                    new Deflater(compressionLevel, true));
+        }
+
+        private void setContentLength(String value) {
+            try {
+                contentLength = Long.parseLong(value.trim());
+            } catch (NumberFormatException ex) {
+                contentLength = -1;
             }
         }
 
     }
 
-    private static class WrappedOutputStream extends ServletOutputStream {
+    /**
+     * Holds the start of the body until the compression policy has been
+     * applied.  If the length was declared, the policy is applied on the
+     * first write; otherwise, the body is buffered until it reaches the
+     * minimum size, is flushed, or is completed (in which case its length
+     * is known).
+     */
+    private class PolicyOutputStream extends ServletOutputStream {
 
-        private final DeflaterOutputStream output;
+        private final CompressedResponse response;
 
-        public WrappedOutputStream(DeflaterOutputStream output) {
-            this.output = output;
+        private ByteArrayOutputStream buffer;
+
+        private OutputStream output;
+
+        private boolean closed;
+
+        public PolicyOutputStream(CompressedResponse response) {
+            this.response = response;
         }
 
         public void close() throws IOException {
-            output.finish();
+            if (closed) return;
+            closed = true;
+            if (output == null) {
+                decide((buffer != null) ? buffer.size() : 0, true);
+            }
+            if (output instanceof DeflaterOutputStream) {
+                ((DeflaterOutputStream) output).finish();
+            }
             output.close();
         }
 
         public void flush() throws IOException {
+            if (output == null) {
+                // flushing commits the headers; an empty body (e.g., that
+                // of a 204 response) must not acquire a compression trailer
+                int size = (buffer != null) ? buffer.size() : 0;
+                decide((size == 0) ? 0 : -1, false);
+            }
             output.flush();
         }
 
         public void write(byte[] b) throws IOException {
-            output.write(b);
+            write(b, 0, b.length);
         }
 
         public void write(byte[] b, int offset, int length)
                 throws IOException {
-            output.write(b, offset, length);
+            if (output != null) {
+                output.write(b, offset, length);
+                return;
+            }
+            if (response.contentLength != -1) {
+                decide(-1, false);
+                output.write(b, offset, length);
+                return;
+            }
+            if (buffer == null) buffer = new ByteArrayOutputStream();
+            buffer.write(b, offset, length);
+            if (buffer.size() >= minimumSize) decide(-1, false);
         }
 
         public void write(int b) throws IOException {
-            output.write(b);
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        private void decide(long length, boolean complete)
+                throws IOException {
+            output = response.decide(length, complete);
+            if (buffer == null) return;
+            buffer.writeTo(output);
+            buffer = null;
         }
 
     }
@@ -0,0 +1,284 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2007  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.io.InterruptedIOException;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jcifs.smb.SmbAuthException;
+import jcifs.smb.SmbException;
+import jcifs.smb.SmbFile;
+import jcifs.smb.SmbFileFilter;
+
+/**
+ * Copies a resource tree, transferring the members of each collection
+ * concurrently on a <code>WorkerPool</code>.  Each collection is created
+ * at the destination before its members are scheduled; files are copied
+ * using the pipelined transfer provided by <code>SmbFile.copyTo</code>.
+ * The failure of an individual member does not abort the copy; instead,
+ * the member (and, for a collection, its subtree) is skipped and the
+ * failure is recorded for reporting in a multistatus response.
+ * <p>
+ * As with the <code>PropertiesDirector</code>, the requesting thread
+ * waits on the tasks in tree order and runs any which have not yet been
+ * started by the pool itself, so that the copy progresses even when the
+ * pool is saturated or unavailable.  At most <code>READ_AHEAD</code>
+ * members of each collection are dispatched ahead of the member being
+ * awaited, bounding the number of tasks queued for a large collection.
+ *
+ * @author Eric Glass
+ */
+public class CopyEngine {
+
+    private static final int READ_AHEAD = 64;
+
+    private static final int QUEUED = 0;
+
+    private static final int RUNNING = 1;
+
+    private static final int DONE = 2;
+
+    private final SmbFileFilter filter;
+
+    private final WorkerPool pool;
+
+    private final List failures = new ArrayList();
+
+    private ProgressRegistry.Progress progress;
+
+    /**
+     * Creates a copy engine.
+     *
+     * @param filter The filter applied to collection members, or
+     * <code>null</code>.
+     * @param pool The pool used to copy members concurrently, or
+     * <code>null</code> to copy them in the requesting thread.
+     */
+    public CopyEngine(SmbFileFilter filter, WorkerPool pool) {
+        this.filter = filter;
+        this.pool = (pool != null && pool.isRunning()) ? pool : null;
+    }
+
+    /**
+     * Sets the progress updated as each resource is copied.
+     *
+     * @param progress The <code>Progress</code> of the operation, or
+     * <code>null</code>.
+     */
+    public void setProgress(ProgressRegistry.Progress progress) {
+        this.progress = progress;
+    }
+
+    /**
+     * Copies the source resource to the destination.  The destination must
+     * not exist.  Errors copying the source itself are thrown; errors
+     * copying its members are recorded and can be retrieved via
+     * <code>getFailures</code>.
+     *
+     * @param source The resource to copy.
+     * @param destination The destination location.
+     * @param depth The depth of the copy; either
+     * <code>SmbDAVUtilities.RESOURCE_ONLY_DEPTH</code> (copying only the
+     * collection itself) or <code>SmbDAVUtilities.INFINITE_DEPTH</code>.
+     * @throws IOException If the source could not be copied.
+     */
+    public void copy(SmbFile source, SmbFile destination, int depth)
+            throws IOException {
+        Task root = new Task(source, destination, "",
+                depth != SmbDAVUtilities.RESOURCE_ONLY_DEPTH);
+        root.claim();
+        root.evaluate();
+        if (root.error instanceof IOException) throw (IOException) root.error;
+        if (root.error instanceof RuntimeException) {
+            throw (RuntimeException) root.error;
+        }
+        if (root.error instanceof Error) throw (Error) root.error;
+        await(root);
+    }
+
+    /**
+     * Returns the members which could not be copied, in tree order.
+     *
+     * @return An array of failures, which is empty if all members were
+     * copied.
+     */
+    public Failure[] getFailures() {
+        return (Failure[]) failures.toArray(new Failure[failures.size()]);
+    }
+
+    private void await(Task task) throws IOException {
+        Task[] children = task.children;
+        if (children == null) return;
+        task.children = null;
+        for (int i = 0; i < children.length; i++) {
+            if (i + READ_AHEAD < children.length) {
+                submit(children[i + READ_AHEAD]);
+            }
+            Task child = children[i];
+            children[i] = null;
+            if (child.claim()) {
+                child.evaluate();
+            } else {
+                child.await();
+            }
+            if (child.error instanceof SmbAuthException) {
+                throw (SmbAuthException) child.error;
+            }
+            if (child.error instanceof SmbException) {
+                failures.add(new Failure(child.path,
+                        SmbDAVUtilities.getStatus((SmbException) child.error)));
+            } else if (child.error instanceof RuntimeException) {
+                throw (RuntimeException) child.error;
+            } else if (child.error instanceof Error) {
+                throw (Error) child.error;
+            } else if (child.error != null) {
+                failures.add(new Failure(child.path, 500));
+            }
+            await(child);
+        }
+    }
+
+    private void submit(Task task) {
+        if (pool == null) return;
+        String server = task.destination.getServer();
+        pool.execute((server != null) ? server.toLowerCase() : null, task);
+    }
+
+    /**
+     * A member which could not be copied.
+     */
+    public static class Failure {
+
+        private final String path;
+
+        private final int status;
+
+        Failure(String path, int status) {
+            this.path = path;
+            this.status = status;
+        }
+
+        /**
+         * Returns the path of the member relative to the root of the copy.
+         *
+         * @return A <code>String</code> containing the relative path, with
+         * "/" separating (and terminating) collection names.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Returns the HTTP status describing the failure.
+         *
+         * @return An <code>int</code> containing the status code.
+         */
+        public int getStatus() {
+            return status;
+        }
+
+    }
+
+    private class Task implements Runnable {
+
+        private final SmbFile source;
+
+        private final SmbFile destination;
+
+        private final String path;
+
+        private final boolean recursive;
+
+        private int state = QUEUED;
+
+        private Task[] children;
+
+        private Throwable error;
+
+        public Task(SmbFile source, SmbFile destination, String path,
+                boolean recursive) {
+            this.source = source;
+            this.destination = destination;
+            this.path = path;
+            this.recursive = recursive;
+        }
+
+        public void run() {
+            if (claim()) evaluate();
+        }
+
+        public synchronized boolean claim() {
+            if (state != QUEUED) return false;
+            state = RUNNING;
+            return true;
+        }
+
+        public void evaluate() {
+            try {
+                evaluate0();
+            } catch (Throwable throwable) {
+                error = throwable;
+            } finally {
+                synchronized (this) {
+                    state = DONE;
+                    notifyAll();
+                }
+            }
+        }
+
+        public synchronized void await() throws IOException {
+            while (state != DONE) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+
+        private void evaluate0() throws IOException {
+            if (source.isFile()) {
+                source.copyTo(destination);
+                if (progress != null) progress.add(source.length());
+                return;
+            }
+            destination.mkdir();
+            if (progress != null) progress.add(0l);
+            if (!recursive) return;
+            SmbFile[] members = ListedFile.listFiles(source, filter);
+            if (members == null || members.length == 0) return;
+            Task[] children = new Task[members.length];
+            for (int i = 0; i < members.length; i++) {
+                String name = members[i].getName();
+                children[i] = new Task(members[i],
+                        new SmbFile(destination, name), path + name, true);
+            }
+            this.children = children;
+            int count = Math.min(children.length, READ_AHEAD);
+            for (int i = 0; i < count; i++) {
+                submit(children[i]);
+            }
+        }
+
+    }
+
+}
@@ -20,6 +20,7 @@
 package smbdav;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 
@@ -167,6 +168,57 @@ public class Davenport extends HttpServlet {
      */
     public static final String LOCK_MANAGER = "davenport.lockManager";
 
+    /**
+     * The name of the servlet context attribute containing the
+     * <code>WriteBehindQueue</code> used for write-behind uploads.
+     */
+    public static final String WRITE_BEHIND_QUEUE =
+            "davenport.writeBehindQueue";
+
+    /**
+     * The name of the servlet context attribute containing the
+     * <code>WorkerPool</code> shared by handlers issuing concurrent
+     * SMB requests.
+     */
+    public static final String WORKER_POOL = "davenport.workerPool";
+
+    /**
+     * The name of the servlet context attribute containing the
+     * <code>PropfindCache</code> holding recent PROPFIND results.
+     */
+    public static final String PROPFIND_CACHE = "davenport.propfindCache";
+
+    /**
+     * The name of the servlet context attribute containing the
+     * <code>DeadPropertyStore</code> holding properties set via PROPPATCH.
+     */
+    public static final String DEAD_PROPERTY_STORE =
+            "davenport.deadPropertyStore";
+
+    /**
+     * The name of the servlet context attribute containing the
+     * <code>ChangeMonitor</code> watching directories for changes.
+     */
+    public static final String CHANGE_MONITOR = "davenport.changeMonitor";
+
+    /**
+     * The name of the servlet context attribute containing the
+     * <code>ChangeFeed</code> publishing changes to subscribed clients.
+     */
+    public static final String CHANGE_FEED = "davenport.changeFeed";
+
+    /**
+     * The name of the servlet context attribute containing the
+     * <code>QuotaCache</code> holding share allocation information.
+     */
+    public static final String QUOTA_CACHE = "davenport.quotaCache";
+
+    /**
+     * The name of the servlet context attribute containing the
+     * <code>ProgressRegistry</code> tracking long-running operations.
+     */
+    public static final String PROGRESS_REGISTRY = "davenport.progress";
+
     /**
      * The name of the servlet context attribute containing the charset used
      * to interpret request URIs.
@@ -193,6 +245,22 @@ public class Davenport extends HttpServlet {
 
     private ResourceFilter filter;
 
+    private WriteBehindQueue writeBehindQueue;
+
+    private WorkerPool workerPool;
+
+    private PropfindCache propfindCache;
+
+    private ChangeMonitor changeMonitor;
+
+    private ChangeFeed changeFeed;
+
+    private DeadPropertyStore deadPropertyStore;
+
+    private QuotaCache quotaCache;
+
+    private ProgressRegistry progressRegistry;
+
     private UniAddress defaultServer;
 
     private NtlmPasswordAuthentication anonymousCredentials;
@@ -324,6 +392,14 @@ public class Davenport extends HttpServlet {
                     new NtlmPasswordAuthentication(domain, user, password);
         }
         initLockManager(config);
+        initWriteBehindQueue(config);
+        initWorkerPool(config);
+        initPropfindCache(config);
+        initChangeMonitor(config);
+        initChangeFeed(config);
+        initDeadPropertyStore(config);
+        initQuotaCache(config);
+        initProgressRegistry(config);
         initFilter(config);
         initHandlers(config);
         initErrorHandlers(config);
@@ -346,7 +422,52 @@ public class Davenport extends HttpServlet {
             filter.destroy();
             filter = null;
         }
+        if (writeBehindQueue != null) {
+            writeBehindQueue.destroy();
+            writeBehindQueue = null;
+        }
+        if (workerPool != null) {
+            workerPool.destroy();
+            workerPool = null;
+        }
+        if (changeFeed != null) {
+            changeFeed.destroy();
+            changeFeed = null;
+        }
+        if (changeMonitor != null) {
+            changeMonitor.destroy();
+            changeMonitor = null;
+        }
+        if (propfindCache != null) {
+            propfindCache.clear();
+            propfindCache = null;
+        }
+        if (deadPropertyStore != null) {
+            deadPropertyStore.close();
+            deadPropertyStore = null;
+        }
+        if (quotaCache != null) {
+            quotaCache.clear();
+            quotaCache = null;
+        }
+        if (progressRegistry != null) {
+            progressRegistry.destroy();
+            progressRegistry = null;
+        }
         ServletContext context = getServletContext();
+        LockManager lockManager =
+                (LockManager) context.getAttribute(LOCK_MANAGER);
+        if (lockManager instanceof DavenportLockManager) {
+            ((DavenportLockManager) lockManager).destroy();
+        }
+        context.removeAttribute(PROGRESS_REGISTRY);
+        context.removeAttribute(QUOTA_CACHE);
+        context.removeAttribute(DEAD_PROPERTY_STORE);
+        context.removeAttribute(CHANGE_FEED);
+        context.removeAttribute(CHANGE_MONITOR);
+        context.removeAttribute(PROPFIND_CACHE);
+        context.removeAttribute(WORKER_POOL);
+        context.removeAttribute(WRITE_BEHIND_QUEUE);
         context.removeAttribute(LOCK_MANAGER);
         context.removeAttribute(RESOURCE_FILTER);
         context.removeAttribute(REQUEST_URI_CHARSET);
@@ -661,6 +782,161 @@ public class Davenport extends HttpServlet {
         }
     }
 
+    private void initWriteBehindQueue(ServletConfig config)
+            throws ServletException {
+        String directory = config.getInitParameter("writeBehind.directory");
+        if (directory == null) return;
+        String threads = config.getInitParameter("writeBehind.threads");
+        String serverConcurrency =
+                config.getInitParameter("writeBehind.serverConcurrency");
+        String retryDelay = config.getInitParameter("writeBehind.retryDelay");
+        String maximumRetryDelay =
+                config.getInitParameter("writeBehind.maximumRetryDelay");
+        String flushTimeout =
+                config.getInitParameter("writeBehind.flushTimeout");
+        String maximumAttempts =
+                config.getInitParameter("writeBehind.maximumAttempts");
+        try {
+            writeBehindQueue = new WriteBehindQueue(new File(directory),
+                    (threads != null) ? Integer.parseInt(threads) : 4,
+                    (serverConcurrency != null) ?
+                            Integer.parseInt(serverConcurrency) : 2,
+                    (retryDelay != null) ? Long.parseLong(retryDelay) : 5000,
+                    (maximumRetryDelay != null) ?
+                            Long.parseLong(maximumRetryDelay) : 300000,
+                    (flushTimeout != null) ?
+                            Long.parseLong(flushTimeout) : 60000,
+                    (maximumAttempts != null) ?
+                            Integer.parseInt(maximumAttempts) : 5,
+                    anonymousCredentials);
+        } catch (Exception ex) {
+            String message = SmbDAVUtilities.getResource(Davenport.class,
+                    "cantCreateWriteBehindQueue",
+                            new Object[] { directory, ex }, null);
+            Log.log(Log.CRITICAL, message + "\n{0}", ex);
+            throw new UnavailableException(message);
+        }
+        writeBehindQueue.setLockManager((LockManager)
+                config.getServletContext().getAttribute(LOCK_MANAGER));
+        writeBehindQueue.start();
+        config.getServletContext().setAttribute(WRITE_BEHIND_QUEUE,
+                writeBehindQueue);
+        Log.log(Log.DEBUG, "Installed write-behind queue using \"{0}\".",
+                directory);
+    }
+
+    private void initWorkerPool(ServletConfig config) throws ServletException {
+        String threads = config.getInitParameter("workerPool.threads");
+        String serverConcurrency =
+                config.getInitParameter("workerPool.serverConcurrency");
+        int count = (threads != null) ? Integer.parseInt(threads) : 8;
+        if (count <= 0) return;
+        workerPool = new WorkerPool("Davenport-Worker", count,
+                (serverConcurrency != null) ?
+                        Integer.parseInt(serverConcurrency) : 4);
+        config.getServletContext().setAttribute(WORKER_POOL, workerPool);
+        Log.log(Log.DEBUG, "Installed worker pool with {0} threads.",
+                new Integer(count));
+    }
+
+    private void initPropfindCache(ServletConfig config) {
+        String timeToLive = config.getInitParameter("propfindCache.timeToLive");
+        if (timeToLive == null) return;
+        long ttl = Long.parseLong(timeToLive);
+        if (ttl <= 0) return;
+        String maximumSize =
+                config.getInitParameter("propfindCache.maximumSize");
+        propfindCache = new PropfindCache(ttl, (maximumSize != null) ?
+                Long.parseLong(maximumSize) : 4194304l);
+        config.getServletContext().setAttribute(PROPFIND_CACHE, propfindCache);
+        Object lockManager =
+                config.getServletContext().getAttribute(LOCK_MANAGER);
+        if (lockManager instanceof DefaultLockManager) {
+            ((DefaultLockManager) lockManager).addChangeListener(
+                    propfindCache);
+        }
+        Log.log(Log.DEBUG, "Installed PROPFIND cache.");
+    }
+
+    private void initChangeMonitor(ServletConfig config) {
+        String watchesPerServer =
+                config.getInitParameter("changeMonitor.watchesPerServer");
+        if (watchesPerServer == null) return;
+        int watches = Integer.parseInt(watchesPerServer);
+        if (watches <= 0) return;
+        String threshold = config.getInitParameter("changeMonitor.threshold");
+        changeMonitor = new ChangeMonitor(watches, (threshold != null) ?
+                Integer.parseInt(threshold) : 3);
+        if (propfindCache != null) {
+            String timeToLive = config.getInitParameter(
+                    "propfindCache.watchedTimeToLive");
+            propfindCache.setChangeMonitor(changeMonitor,
+                    (timeToLive != null) ? Long.parseLong(timeToLive) :
+                            300000l);
+            changeMonitor.addChangeListener(propfindCache);
+        }
+        config.getServletContext().setAttribute(CHANGE_MONITOR, changeMonitor);
+        Log.log(Log.DEBUG, "Installed change monitor watching {0} " +
+                "directories per server.", new Integer(watches));
+    }
+
+    private void initChangeFeed(ServletConfig config) {
+        String maximumSubscribers =
+                config.getInitParameter("changeFeed.maximumSubscribers");
+        if (maximumSubscribers == null) return;
+        int subscribers = Integer.parseInt(maximumSubscribers);
+        if (subscribers <= 0) return;
+        String pollInterval =
+                config.getInitParameter("changeFeed.pollInterval");
+        changeFeed = new ChangeFeed(subscribers, (pollInterval != null) ?
+                Long.parseLong(pollInterval) : 10000l, workerPool,
+                        changeMonitor);
+        if (changeMonitor != null) changeMonitor.addChangeListener(changeFeed);
+        Object lockManager =
+                config.getServletContext().getAttribute(LOCK_MANAGER);
+        if (lockManager instanceof DefaultLockManager) {
+            ((DefaultLockManager) lockManager).addChangeListener(changeFeed);
+        }
+        config.getServletContext().setAttribute(CHANGE_FEED, changeFeed);
+        Log.log(Log.DEBUG, "Installed change feed for {0} subscribers.",
+                new Integer(subscribers));
+    }
+
+    private void initDeadPropertyStore(ServletConfig config)
+            throws ServletException {
+        String directory = config.getInitParameter("deadProperties.directory");
+        if (directory == null) return;
+        try {
+            deadPropertyStore = new DeadPropertyStore(new File(directory));
+        } catch (Exception ex) {
+            String message = SmbDAVUtilities.getResource(Davenport.class,
+                    "cantCreateDeadPropertyStore",
+                            new Object[] { directory, ex }, null);
+            Log.log(Log.CRITICAL, message + "\n{0}", ex);
+            throw new UnavailableException(message);
+        }
+        config.getServletContext().setAttribute(DEAD_PROPERTY_STORE,
+                deadPropertyStore);
+        Log.log(Log.DEBUG, "Installed dead property store using \"{0}\".",
+                directory);
+    }
+
+    private void initQuotaCache(ServletConfig config) {
+        String timeToLive = config.getInitParameter("quotaCache.timeToLive");
+        quotaCache = new QuotaCache((timeToLive != null) ?
+                Long.parseLong(timeToLive) : 30000l, workerPool);
+        config.getServletContext().setAttribute(QUOTA_CACHE, quotaCache);
+    }
+
+    private void initProgressRegistry(ServletConfig config) {
+        String keepAliveInterval =
+                config.getInitParameter("progress.keepAliveInterval");
+        progressRegistry = new ProgressRegistry((keepAliveInterval != null) ?
+                Long.parseLong(keepAliveInterval) : 0l);
+        config.getServletContext().setAttribute(PROGRESS_REGISTRY,
+                progressRegistry);
+    }
+
     private void initHandlers(ServletConfig config) throws ServletException {
         handlers.clear();
         handlers.put("OPTIONS", new DefaultOptionsHandler());
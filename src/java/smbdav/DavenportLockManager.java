@@ -0,0 +1,68 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2007  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.io.IOException;
+
+import jcifs.smb.SmbFile;
+
+/**
+ * This extends the <code>LockManager</code> interface with optional
+ * operations used by Davenport when the provider supports them.  Providers
+ * implementing only <code>LockManager</code> remain usable; Davenport
+ * falls back to examining each resource individually, and does not
+ * release the provider when the gateway is taken out of service.
+ *
+ * @author Eric Glass
+ */
+public interface DavenportLockManager extends LockManager {
+
+    /**
+     * Returns the set of locks held on the members of the specified
+     * resource, at any depth (excluding the locks on the resource itself).
+     *
+     * @param resource The resource.
+     * @return A <code>Lock[]</code> representing the locks held within
+     * the resource's subtree, or <code>null</code> if there are none.
+     * @throws IOException If an IO error occurs. 
+     */
+    public Lock[] getDescendantLocks(SmbFile resource) throws IOException;
+
+    /**
+     * Returns the active locks on the specified resource for lock
+     * discovery (i.e., the <code>lockdiscovery</code> property).  Unlike
+     * <code>getActiveLocks</code>, the result may be answered from a
+     * cache and so may omit recently created locks; this must not be
+     * used to authorize requests.
+     *
+     * @param resource The resource.
+     * @return A <code>Lock[]</code> containing the active locks, or
+     * <code>null</code> if there are none.
+     * @throws IOException If an IO error occurs.
+     */
+    public Lock[] getDiscoveredLocks(SmbFile resource) throws IOException;
+
+    /**
+     * Releases the resources held by the lock manager (timers, journals,
+     * connections and the like).  This is called when the gateway is
+     * taken out of service; the lock manager is not used afterwards.
+     */
+    public void destroy();
+
+}
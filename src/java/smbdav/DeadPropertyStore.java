@@ -0,0 +1,559 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2007  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import jcifs.smb.SmbFile;
+
+/**
+ * Stores WebDAV dead properties (arbitrary client-defined properties set
+ * via PROPPATCH) in a local append-only log.  The complete set of
+ * properties is held in memory, indexed by the canonical SMB path of the
+ * resource; each modification is appended to the log and synchronized to
+ * disk before it is applied.  When the log grows to several times the
+ * size of the live data, it is compacted by writing a snapshot to a
+ * temporary file which then replaces the log.
+ * <p>
+ * Property values are held as serialized XML elements, keyed by
+ * "<code>{namespace}name</code>".  Paths are compared case-insensitively,
+ * matching the behavior of SMB servers.  The properties of a collection's
+ * members can be obtained in a single index scan via <code>attach</code>.
+ *
+ * @author Eric Glass
+ */
+public class DeadPropertyStore {
+
+    private static final String LOG_FILE = "properties.log";
+
+    private static final String TEMPORARY_FILE = "properties.tmp";
+
+    private static final int SET = 1;
+
+    private static final int REMOVE = 2;
+
+    private static final int DELETE = 3;
+
+    private static final int MOVE = 4;
+
+    private static final int COPY = 5;
+
+    private static final int MINIMUM_COMPACTION = 1000;
+
+    private final SortedMap index = new TreeMap();
+
+    private final File directory;
+
+    private FileOutputStream log;
+
+    private int records;
+
+    private int properties;
+
+    /**
+     * Opens the store in the specified directory, replaying any existing
+     * log.
+     *
+     * @param directory The directory holding the property log.
+     * @throws IOException If the log cannot be read or created.
+     */
+    public DeadPropertyStore(File directory) throws IOException {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException(SmbDAVUtilities.getResource(
+                    DeadPropertyStore.class, "cantCreateLog",
+                            new Object[] { directory }, null));
+        }
+        File file = new File(directory, LOG_FILE);
+        File temporary = new File(directory, TEMPORARY_FILE);
+        if (!file.exists() && temporary.exists()) temporary.renameTo(file);
+        if (file.exists()) replay(file);
+        log = new FileOutputStream(file, true);
+        Log.log(Log.DEBUG, "Loaded {0} dead properties from \"{1}\".",
+                new Object[] { new Integer(properties), file });
+    }
+
+    /**
+     * Closes the property log.
+     */
+    public synchronized void close() {
+        if (log == null) return;
+        try {
+            log.close();
+        } catch (IOException ex) {
+            Log.log(Log.WARNING, "Unable to close property log: {0}", ex);
+        }
+        log = null;
+    }
+
+    /**
+     * Returns the dead properties of the specified resource.
+     *
+     * @param file The resource.
+     * @return An unmodifiable <code>Map</code> of serialized property
+     * elements, keyed by "<code>{namespace}name</code>".
+     */
+    public Map getProperties(SmbFile file) {
+        if (file instanceof ListedFile) {
+            Map properties = ((ListedFile) file).deadProperties;
+            if (properties != null) return properties;
+        }
+        Map properties;
+        synchronized (this) {
+            properties = (Map) index.get(getPath(file));
+        }
+        return (properties != null) ? properties : Collections.EMPTY_MAP;
+    }
+
+    /**
+     * Attaches the dead properties of each of the given members of a
+     * collection, obtained in a single scan of the index.  Subsequent
+     * calls to <code>getProperties</code> for the members are answered
+     * without consulting the index.
+     *
+     * @param directory The collection.
+     * @param children The members of the collection, as returned by
+     * <code>ListedFile.listFiles</code>.
+     */
+    public void attach(SmbFile directory, SmbFile[] children) {
+        if (children == null || children.length == 0) return;
+        String parent = getPath(directory) + "/";
+        Map found = new HashMap();
+        synchronized (this) {
+            Iterator entries = index.subMap(parent,
+                    parent + "\uffff").entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry entry = (Map.Entry) entries.next();
+                String path = (String) entry.getKey();
+                if (path.indexOf('/', parent.length()) != -1) continue;
+                found.put(path, entry.getValue());
+            }
+        }
+        for (int i = children.length - 1; i >= 0; i--) {
+            if (!(children[i] instanceof ListedFile)) continue;
+            Map properties = (Map) found.get(getPath(children[i]));
+            ((ListedFile) children[i]).deadProperties = (properties != null) ?
+                    properties : Collections.EMPTY_MAP;
+        }
+    }
+
+    /**
+     * Applies a set of property changes to the specified resource.
+     * The changes are applied in order, and are committed atomically.
+     *
+     * @param file The resource.
+     * @param names The keys ("<code>{namespace}name</code>") of the
+     * properties to be changed.
+     * @param values The corresponding serialized property elements, or
+     * <code>null</code> for properties which are to be removed.
+     * @throws IOException If the changes could not be committed.
+     */
+    public synchronized void update(SmbFile file, String[] names,
+            String[] values) throws IOException {
+        String path = getPath(file);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(buffer);
+        for (int i = 0; i < names.length; i++) {
+            record.writeInt((values[i] != null) ? SET : REMOVE);
+            writeString(record, path);
+            writeString(record, names[i]);
+            if (values[i] != null) writeString(record, values[i]);
+        }
+        commit(buffer.toByteArray());
+        for (int i = 0; i < names.length; i++) {
+            if (values[i] != null) {
+                set(path, names[i], values[i]);
+            } else {
+                remove(path, names[i]);
+            }
+        }
+        records += names.length;
+        compact();
+    }
+
+    /**
+     * Removes the dead properties of the specified resource and its
+     * members.
+     *
+     * @param file The resource which has been deleted.
+     * @throws IOException If the change could not be committed.
+     */
+    public synchronized void delete(SmbFile file) throws IOException {
+        String path = getPath(file);
+        if (!contains(path)) return;
+        log(DELETE, path, null);
+        delete(path);
+        compact();
+    }
+
+    /**
+     * Moves the dead properties of a resource and its members to a new
+     * location, replacing any properties held for the destination.
+     *
+     * @param source The resource which has been moved.
+     * @param destination The new location.
+     * @throws IOException If the change could not be committed.
+     */
+    public synchronized void move(SmbFile source, SmbFile destination)
+            throws IOException {
+        String from = getPath(source);
+        String to = getPath(destination);
+        if (!contains(from) && !contains(to)) return;
+        log(MOVE, from, to);
+        transfer(from, to, true);
+        compact();
+    }
+
+    /**
+     * Copies the dead properties of a resource and its members to a new
+     * location, replacing any properties held for the destination.
+     *
+     * @param source The resource which has been copied.
+     * @param destination The location of the copy.
+     * @throws IOException If the change could not be committed.
+     */
+    public synchronized void copy(SmbFile source, SmbFile destination)
+            throws IOException {
+        String from = getPath(source);
+        String to = getPath(destination);
+        if (!contains(from) && !contains(to)) return;
+        log(COPY, from, to);
+        transfer(from, to, false);
+        compact();
+    }
+
+    private void log(int operation, String path, String destination)
+            throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(buffer);
+        record.writeInt(operation);
+        writeString(record, path);
+        if (destination != null) writeString(record, destination);
+        commit(buffer.toByteArray());
+        records++;
+    }
+
+    /**
+     * Appends a record to the log.  If the write fails, the log is
+     * truncated to its previous length, so that a partial record does not
+     * precede (and so hide, when the log is replayed) those written after
+     * it.  If that is not possible, the log is closed.
+     */
+    private void commit(byte[] record) throws IOException {
+        if (log == null) {
+            throw new IOException(SmbDAVUtilities.getResource(
+                    DeadPropertyStore.class, "closed", null, null));
+        }
+        long length = log.getChannel().size();
+        try {
+            DataOutputStream output = new DataOutputStream(log);
+            output.writeInt(record.length);
+            output.write(record);
+            output.flush();
+            log.getFD().sync();
+        } catch (IOException ex) {
+            try {
+                log.getChannel().truncate(length);
+            } catch (IOException failure) {
+                Log.log(Log.WARNING, "Unable to truncate property log; " +
+                        "closing: {0}", failure);
+                close();
+            }
+            throw ex;
+        }
+    }
+
+    private boolean contains(String path) {
+        if (index.containsKey(path)) return true;
+        return !index.subMap(path + "/", path + "/\uffff").isEmpty();
+    }
+
+    private void set(String path, String name, String value) {
+        Map current = (Map) index.get(path);
+        Map properties = (current != null) ? new HashMap(current) :
+                new HashMap();
+        if (properties.put(name, value) == null) this.properties++;
+        index.put(path, Collections.unmodifiableMap(properties));
+    }
+
+    private void remove(String path, String name) {
+        Map current = (Map) index.get(path);
+        if (current == null || !current.containsKey(name)) return;
+        Map properties = new HashMap(current);
+        properties.remove(name);
+        this.properties--;
+        if (properties.isEmpty()) {
+            index.remove(path);
+        } else {
+            index.put(path, Collections.unmodifiableMap(properties));
+        }
+    }
+
+    private void delete(String path) {
+        Map current = (Map) index.remove(path);
+        if (current != null) properties -= current.size();
+        Iterator values = index.subMap(path + "/",
+                path + "/\uffff").values().iterator();
+        while (values.hasNext()) {
+            properties -= ((Map) values.next()).size();
+            values.remove();
+        }
+    }
+
+    private void transfer(String from, String to, boolean move) {
+        Map moved = new HashMap();
+        Map current = (Map) index.get(from);
+        if (current != null) moved.put(to, current);
+        Iterator entries = index.subMap(from + "/",
+                from + "/\uffff").entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry entry = (Map.Entry) entries.next();
+            moved.put(to + ((String) entry.getKey()).substring(from.length()),
+                    entry.getValue());
+        }
+        if (move) delete(from);
+        delete(to);
+        Iterator iterator = moved.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry entry = (Map.Entry) iterator.next();
+            index.put(entry.getKey(), entry.getValue());
+            properties += ((Map) entry.getValue()).size();
+        }
+    }
+
+    /**
+     * Compacts the log if it has grown sufficiently.  A failure is logged
+     * rather than reported, as the change which prompted the compaction
+     * has already been committed; the store continues with the previous
+     * log.
+     */
+    private void compact() {
+        if (records < MINIMUM_COMPACTION || records < properties * 2) return;
+        try {
+            snapshot();
+        } catch (IOException ex) {
+            Log.log(Log.WARNING, "Unable to compact property log: {0}", ex);
+            // defer the next attempt
+            records = properties;
+        }
+    }
+
+    private void snapshot() throws IOException {
+        File file = new File(directory, LOG_FILE);
+        File temporary = new File(directory, TEMPORARY_FILE);
+        FileOutputStream snapshot = new FileOutputStream(temporary);
+        int count = 0;
+        try {
+            DataOutputStream output = new DataOutputStream(snapshot);
+            Iterator entries = index.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry entry = (Map.Entry) entries.next();
+                String path = (String) entry.getKey();
+                Iterator values = ((Map) entry.getValue()).entrySet(
+                        ).iterator();
+                while (values.hasNext()) {
+                    Map.Entry value = (Map.Entry) values.next();
+                    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                    DataOutputStream record = new DataOutputStream(buffer);
+                    record.writeInt(SET);
+                    writeString(record, path);
+                    writeString(record, (String) value.getKey());
+                    writeString(record, (String) value.getValue());
+                    output.writeInt(buffer.size());
+                    buffer.writeTo(output);
+                    count++;
+                }
+            }
+            output.flush();
+            snapshot.getFD().sync();
+        } finally {
+            snapshot.close();
+        }
+        log.close();
+        log = null;
+        try {
+            if (!file.delete() || !temporary.renameTo(file)) {
+                throw new IOException(SmbDAVUtilities.getResource(
+                        DeadPropertyStore.class, "cantCompactLog",
+                                new Object[] { file }, null));
+            }
+        } finally {
+            if (!file.exists()) {
+                // the previous log is gone; the snapshot replaces it
+                temporary.renameTo(file);
+            }
+            log = new FileOutputStream(file, true);
+        }
+        records = count;
+        Log.log(Log.DEBUG, "Compacted property log to {0} records.",
+                new Integer(count));
+    }
+
+    /**
+     * Replays the log.  A record which is incomplete or corrupt (i.e.,
+     * left by a write interrupted by a crash) marks the end of the valid
+     * data; it and anything following it are truncated.
+     */
+    private void replay(File file) throws IOException {
+        long size = file.length();
+        long valid = 0;
+        DataInputStream input = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            while (true) {
+                int length;
+                byte[] record;
+                try {
+                    length = input.readInt();
+                    if (length < 0 || length > size - valid - 4) break;
+                    record = new byte[length];
+                    input.readFully(record);
+                } catch (EOFException ex) {
+                    break;
+                }
+                try {
+                    apply(record);
+                } catch (IOException ex) {
+                    Log.log(Log.WARNING, "Corrupt record in property log " +
+                            "\"{0}\": {1}", new Object[] { file, ex });
+                    break;
+                }
+                valid += 4 + length;
+            }
+        } finally {
+            input.close();
+        }
+        if (valid < size) {
+            Log.log(Log.WARNING, "Discarding incomplete record at the end " +
+                    "of property log \"{0}\".", file);
+            RandomAccessFile truncate = new RandomAccessFile(file, "rw");
+            try {
+                truncate.setLength(valid);
+            } finally {
+                truncate.close();
+            }
+        }
+    }
+
+    private void apply(byte[] data) throws IOException {
+        // decode the whole record first, so that a corrupt record is not
+        // partially applied
+        DataInputStream record = new DataInputStream(
+                new ByteArrayInputStream(data));
+        List operations = new ArrayList();
+        while (record.available() > 0) {
+            int operation = record.readInt();
+            String path = readString(record);
+            String first = null;
+            String second = null;
+            switch (operation) {
+            case SET:
+                first = readString(record);
+                second = readString(record);
+                break;
+            case REMOVE:
+            case MOVE:
+            case COPY:
+                first = readString(record);
+                break;
+            case DELETE:
+                break;
+            default:
+                throw new IOException(SmbDAVUtilities.getResource(
+                        DeadPropertyStore.class, "corruptLog",
+                                new Object[] { new Integer(operation) },
+                                        null));
+            }
+            operations.add(new Object[] { new Integer(operation), path,
+                    first, second });
+        }
+        Iterator iterator = operations.iterator();
+        while (iterator.hasNext()) {
+            Object[] operation = (Object[]) iterator.next();
+            String path = (String) operation[1];
+            String first = (String) operation[2];
+            switch (((Integer) operation[0]).intValue()) {
+            case SET:
+                set(path, first, (String) operation[3]);
+                break;
+            case REMOVE:
+                remove(path, first);
+                break;
+            case DELETE:
+                delete(path);
+                break;
+            case MOVE:
+                transfer(path, first, true);
+                break;
+            case COPY:
+                transfer(path, first, false);
+                break;
+            }
+            records++;
+        }
+    }
+
+    private static void writeString(DataOutputStream output, String value)
+            throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(DataInputStream input)
+            throws IOException {
+        // records are read from memory, so the remainder is known
+        int length = input.readInt();
+        if (length < 0 || length > input.available()) {
+            throw new EOFException();
+        }
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static String getPath(SmbFile file) {
+        String path = file.getCanonicalPath().toLowerCase(Locale.ENGLISH);
+        while (path.endsWith("/") && !path.endsWith("//")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path;
+    }
+
+}
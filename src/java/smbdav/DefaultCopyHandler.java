@@ -39,6 +39,10 @@ public class DefaultCopyHandler extends AbstractHandler {
     /**
      * Services requests which use the WebDAV COPY method.
      * This implementation copies the source file to the destination.
+     * The members of collections are copied concurrently (using the
+     * <code>WorkerPool</code>, if available).  A "Depth" header of "0"
+     * copies only the collection itself; a depth of "1" is not permitted,
+     * and results in a 400 (Bad Request) error.
      * <br>
      * If the source file does not exist, a 404 (Not Found) error is sent
      * to the client.
@@ -53,6 +57,10 @@ public class DefaultCopyHandler extends AbstractHandler {
      * "Overwrite" request header with a value of "T", then the request
      * succeeds and the file is overwritten.  If the "Overwrite" header is
      * not provided, a 412 (Precondition Failed) error is sent to the client.
+     * <br>
+     * If some members of a collection could not be copied, the remainder
+     * of the collection is still copied, and a 207 (Multi-Status) response
+     * listing the failed members is sent to the client.
      *
      * @param request The request being serviced.
      * @param response The servlet response.
@@ -74,6 +82,11 @@ public class DefaultCopyHandler extends AbstractHandler {
             response.sendError(HttpServletResponse.SC_BAD_REQUEST);
             return;
         }
+        int depth = SmbDAVUtilities.parseDepth(request.getHeader("Depth"));
+        if (depth == SmbDAVUtilities.CHILDREN_DEPTH) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
         SmbFile destinationFile = createSmbFile(destination, auth);
         if (destinationFile.equals(file)) {
             response.sendError(HttpServletResponse.SC_FORBIDDEN,
@@ -91,6 +104,8 @@ public class DefaultCopyHandler extends AbstractHandler {
             response.sendError(result);
             return;
         }
+        flushPending(file);
+        flushPending(destinationFile);
         LockManager lockManager = getLockManager();
         if (lockManager != null) {
             destinationFile =lockManager.getLockedResource(destinationFile,
@@ -106,10 +121,47 @@ public class DefaultCopyHandler extends AbstractHandler {
                 return;
             }
         }
-        file.copyTo(destinationFile);
-        response.setStatus(overwritten ? HttpServletResponse.SC_NO_CONTENT :
-                HttpServletResponse.SC_CREATED);
-        response.flushBuffer();
+        String href = request.getHeader("Destination");
+        ProgressRegistry.Progress progress = startProgress(request, href);
+        KeepAlive keepAlive = startKeepAlive(response);
+        try {
+            CopyEngine engine = new CopyEngine(getFilter(), getWorkerPool());
+            engine.setProgress(progress);
+            try {
+                engine.copy(file, destinationFile, depth);
+            } catch (IOException ex) {
+                if (sendFailure(response, keepAlive, progress, href, ex)) {
+                    return;
+                }
+                throw ex;
+            } finally {
+                resourceChanged(destinationFile);
+            }
+            DeadPropertyStore store = getDeadPropertyStore();
+            if (store != null) store.copy(file, destinationFile);
+            CopyEngine.Failure[] failures = engine.getFailures();
+            String[] hrefs = new String[failures.length];
+            int[] statuses = new int[failures.length];
+            if (failures.length != 0) {
+                Log.log(Log.DEBUG, "{0} members could not be copied.",
+                        new Integer(failures.length));
+                PropertiesDirector director = new PropertiesDirector(null,
+                        getFilter());
+                for (int i = 0; i < failures.length; i++) {
+                    hrefs[i] = director.getDescendantHref(destinationFile, href,
+                            failures[i].getPath());
+                    statuses[i] = failures[i].getStatus();
+                }
+            }
+            sendResult(response, keepAlive, progress, href, overwritten ?
+                    HttpServletResponse.SC_NO_CONTENT :
+                            HttpServletResponse.SC_CREATED, hrefs, statuses);
+        } finally {
+            if (keepAlive != null) keepAlive.stop();
+            if (progress != null) {
+                progress.finish(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            }
+        }
     }
 
 }
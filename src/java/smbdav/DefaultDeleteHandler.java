@@ -26,7 +26,6 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import jcifs.smb.NtlmPasswordAuthentication;
-import jcifs.smb.SmbException;
 import jcifs.smb.SmbFile;
 
 /**
@@ -39,10 +38,18 @@ public class DefaultDeleteHandler extends AbstractHandler {
 
     /**
      * Services requests which use the HTTP DELETE method.
-     * This implementation deletes the specified file
+     * This implementation deletes the specified file.  The members of
+     * collections are deleted concurrently (using the
+     * <code>WorkerPool</code>, if available), and each collection is
+     * removed once its members have been deleted.
      * <br>
      * If the specified file does not exist, a 404 (Not Found) error is
      * sent to the client.
+     * <br>
+     * Members which are locked by another principal, or which cannot be
+     * deleted, are left in place along with their ancestors; the rest of
+     * the collection is deleted, and a 207 (Multi-Status) response listing
+     * the failed members is sent to the client.
      *
      * @param request The request being serviced.
      * @param response The servlet response.
@@ -68,13 +75,53 @@ public class DefaultDeleteHandler extends AbstractHandler {
             response.sendError(result);
             return;
         }
-        LockManager lockManager = getLockManager();
-        if (lockManager != null) {
-            file = lockManager.getLockedResource(file, auth);
+        flushPending(file);
+        String href = getRequestURL(request);
+        ProgressRegistry.Progress progress = startProgress(request, href);
+        KeepAlive keepAlive = startKeepAlive(response);
+        try {
+            DeleteEngine engine = new DeleteEngine(getLockManager(), auth,
+                    getWorkerPool());
+            engine.setProgress(progress);
+            try {
+                engine.delete(file);
+            } catch (IOException ex) {
+                if (sendFailure(response, keepAlive, progress, href, ex)) {
+                    return;
+                }
+                throw ex;
+            } finally {
+                resourceChanged(file);
+            }
+            DeadPropertyStore store = getDeadPropertyStore();
+            if (store != null) {
+                SmbFile[] removed = engine.getRemoved();
+                for (int i = 0; i < removed.length; i++) {
+                    store.delete(removed[i]);
+                }
+            }
+            DeleteEngine.Failure[] failures = engine.getFailures();
+            String[] hrefs = new String[failures.length];
+            int[] statuses = new int[failures.length];
+            if (failures.length != 0) {
+                Log.log(Log.DEBUG, "{0} members could not be deleted.",
+                        new Integer(failures.length));
+                PropertiesDirector director = new PropertiesDirector(null,
+                        getFilter());
+                for (int i = 0; i < failures.length; i++) {
+                    hrefs[i] = director.getDescendantHref(file, href,
+                            failures[i].getPath());
+                    statuses[i] = failures[i].getStatus();
+                }
+            }
+            sendResult(response, keepAlive, progress, href,
+                    HttpServletResponse.SC_NO_CONTENT, hrefs, statuses);
+        } finally {
+            if (keepAlive != null) keepAlive.stop();
+            if (progress != null) {
+                progress.finish(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            }
         }
-        file.delete();
-        response.setStatus(HttpServletResponse.SC_NO_CONTENT);
-        response.flushBuffer();
     }
 
 }
@@ -45,7 +45,6 @@ import javax.servlet.http.HttpSession;
 import javax.xml.transform.Source;
 import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.TransformerException;
 
 import javax.xml.transform.dom.DOMSource;
@@ -55,9 +54,9 @@ import javax.xml.transform.stream.StreamSource;
 
 import jcifs.smb.NtlmPasswordAuthentication;
 import jcifs.smb.SmbFile;
-import jcifs.smb.SmbFileInputStream;
 
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 
 /**
  * Default implementation of a handler for requests using the HTTP GET
@@ -154,8 +153,16 @@ public class DefaultGetHandler extends AbstractHandler {
 
     private PropertiesBuilder propertiesBuilder;
 
+    private long feedTimeout;
+
+    private long streamTimeout;
+
     public void init(ServletConfig config) throws ServletException {
         super.init(config);
+        String timeout = config.getInitParameter("changeFeed.timeout");
+        feedTimeout = (timeout != null) ? Long.parseLong(timeout) : 30000l;
+        timeout = config.getInitParameter("changeFeed.streamTimeout");
+        streamTimeout = (timeout != null) ? Long.parseLong(timeout) : 300000l;
         propertiesBuilder = new DefaultPropertiesBuilder();
         propertiesBuilder.init(config);
         stylesheetLocation = config.getInitParameter("directory.xsl");
@@ -192,6 +199,19 @@ public class DefaultGetHandler extends AbstractHandler {
      * directory listing stylesheet is applied to the resultant XML
      * document.
      * <br>
+     * If a change feed is installed, passing "watch" as a URL parameter
+     * on a collection subscribes to the changes in the collection.  The
+     * response is a <code>text/event-stream</code> document; clients
+     * which accept that type receive events as they occur, while other
+     * clients are answered as soon as an event is available (or the
+     * timeout expires).  The last event seen is passed via the
+     * "Last-Event-ID" header or as the value of the "watch" parameter.
+     * <br>
+     * Passing "progress" as a URL parameter, with the identifier supplied
+     * in the "X-Progress-ID" header of a COPY, MOVE or DELETE request,
+     * retrieves the progress of that request.  If no such request is
+     * known, a 404 (Not Found) error is sent to the client.
+     * <br>
      * If the specified file does not exist, a 404 (Not Found) error is
      * sent to the client.
      *
@@ -205,6 +225,13 @@ public class DefaultGetHandler extends AbstractHandler {
     public void service(HttpServletRequest request,
             HttpServletResponse response, NtlmPasswordAuthentication auth)
                     throws ServletException, IOException {
+        ProgressRegistry registry = getProgressRegistry();
+        String id = request.getParameter("progress");
+        if (registry != null && id != null) {
+            showProgress(registry.get(getPrincipal(request), id.trim()),
+                    response);
+            return;
+        }
         SmbFile file = getSmbFile(request, auth);
         Log.log(Log.DEBUG, "GET Request for resource \"{0}\".", file);
         if (!file.exists()) {
@@ -228,6 +255,11 @@ public class DefaultGetHandler extends AbstractHandler {
                 showConfiguration(request, response);
                 return;
             }
+            ChangeFeed feed = getChangeFeed();
+            if (feed != null && request.getParameter("watch") != null) {
+                watch(feed, file, requestUrl, request, response);
+                return;
+            }
             String view = request.getParameter("view");
             if (view == null) {
                 Cookie[] cookies = request.getCookies();
@@ -265,8 +297,7 @@ public class DefaultGetHandler extends AbstractHandler {
                     }
                     if (templates == null) {
                         Source source = getStylesheet(view, false, locale);
-                        templates = TransformerFactory.newInstance(
-                                ).newTemplates(source);
+                        templates = XmlSupport.newTemplates(source);
                         if (session == null) session = request.getSession(true);
                         setTemplates(session, templates);
                     }
@@ -280,7 +311,8 @@ public class DefaultGetHandler extends AbstractHandler {
                 }
             }
             PropertiesDirector director = new PropertiesDirector(
-                    getPropertiesBuilder(), getFilter());
+                    getPropertiesBuilder(), getFilter(),
+                            getWriteBehindQueue());
             Document properties = null;
             properties = director.getAllProperties(file, requestUrl, 1);
             try {
@@ -345,7 +377,7 @@ public class DefaultGetHandler extends AbstractHandler {
         response.setContentType((contentType != null) ? contentType :
                 "application/octet-stream");
         response.setContentLength((int) file.length());
-        SmbFileInputStream input = new SmbFileInputStream(file);
+        InputStream input = file.getInputStream();
         ServletOutputStream output = response.getOutputStream();
         byte[] buf = new byte[8192];
         int count;
@@ -367,6 +399,117 @@ public class DefaultGetHandler extends AbstractHandler {
         return propertiesBuilder;
     }
 
+    private void watch(ChangeFeed feed, SmbFile file, String requestUrl,
+            HttpServletRequest request, HttpServletResponse response)
+                    throws IOException {
+        String since = request.getHeader("Last-Event-ID");
+        if (since == null) since = request.getParameter("watch");
+        long lastEventId = -1;
+        if (since != null && !(since = since.trim()).equals("")) {
+            try {
+                lastEventId = Long.parseLong(since);
+            } catch (NumberFormatException ex) {
+                Log.log(Log.DEBUG, "Ignoring invalid event ID: {0}", since);
+            }
+        }
+        String accept = request.getHeader("Accept");
+        boolean stream = (accept != null) &&
+                accept.toLowerCase().indexOf("text/event-stream") != -1;
+        ChangeFeed.Subscription subscription =
+                feed.subscribe(file, getFilter(), lastEventId);
+        if (subscription == null) {
+            Log.log(Log.DEBUG, "Change feed subscriptions exhausted.");
+            response.setHeader("Retry-After",
+                    String.valueOf(feedTimeout / 1000));
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+        Log.log(Log.DEBUG, "Subscribed to changes in \"{0}\".", file);
+        PropertiesDirector director = new PropertiesDirector(
+                getPropertiesBuilder(), getFilter(), getWriteBehindQueue());
+        try {
+            response.setContentType("text/event-stream; charset=\"utf-8\"");
+            response.setHeader("Cache-Control", "no-cache");
+            OutputStream output = response.getOutputStream();
+            StringBuffer buffer = new StringBuffer();
+            buffer.append("retry: ").append(feedTimeout / 10).append("\n");
+            if (subscription.isReset()) {
+                buffer.append("id: ").append(subscription.getLastEventId());
+                buffer.append("\nevent: reset\ndata: ").append(requestUrl);
+                buffer.append("\n\n");
+                if (!stream) {
+                    output.write(buffer.toString().getBytes("UTF-8"));
+                    response.flushBuffer();
+                    return;
+                }
+            }
+            long expiration = System.currentTimeMillis() +
+                    (stream ? streamTimeout : feedTimeout);
+            long remaining;
+            while ((remaining = expiration - System.currentTimeMillis()) > 0) {
+                ChangeFeed.Event[] events = subscription.await(stream ?
+                        Math.min(remaining, 15000l) : remaining);
+                if (events == null) break;
+                for (int i = 0; i < events.length; i++) {
+                    buffer.append("id: ").append(events[i].getId());
+                    buffer.append("\nevent: ").append(events[i].getType());
+                    buffer.append("\ndata: ").append(director.getMemberHref(
+                            file, requestUrl, events[i].getName()));
+                    buffer.append("\n\n");
+                }
+                if (events.length == 0 && stream) buffer.append(":\n\n");
+                output.write(buffer.toString().getBytes("UTF-8"));
+                buffer.setLength(0);
+                response.flushBuffer();
+                if (events.length != 0 && !stream) break;
+            }
+            // a reconnecting client resumes from here, even if nothing changed
+            buffer.append("id: ").append(subscription.getLastEventId());
+            buffer.append("\n\n");
+            output.write(buffer.toString().getBytes("UTF-8"));
+            response.flushBuffer();
+        } finally {
+            subscription.close();
+            Log.log(Log.DEBUG, "Closed subscription to \"{0}\".", file);
+        }
+    }
+
+    private void showProgress(ProgressRegistry.Progress progress,
+            HttpServletResponse response) throws IOException {
+        if (progress == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        Document document = XmlSupport.newDocument();
+        Element element = document.createElementNS(
+                ProgressRegistry.PROGRESS_NAMESPACE, "progress");
+        append(element, "method", progress.getMethod());
+        append(element, "href", progress.getHref());
+        append(element, "items", String.valueOf(progress.getItems()));
+        append(element, "bytes", String.valueOf(progress.getBytes()));
+        append(element, "elapsed", String.valueOf(progress.getElapsed()));
+        int status = progress.getStatus();
+        if (status != 0) {
+            append(element, "status",
+                    MultistatusWriter.getStatusLine(status));
+        }
+        byte[] content = ("<?xml version=\"1.0\" encoding=\"utf-8\"?>" +
+                MultistatusWriter.serialize(element)).getBytes("UTF-8");
+        response.setContentType("text/xml; charset=\"utf-8\"");
+        response.setHeader("Cache-Control", "no-cache");
+        response.setContentLength(content.length);
+        response.getOutputStream().write(content);
+        response.flushBuffer();
+    }
+
+    private void append(Element parent, String name, String value) {
+        if (value == null) return;
+        Element child = parent.getOwnerDocument().createElementNS(
+                ProgressRegistry.PROGRESS_NAMESPACE, name);
+        child.appendChild(parent.getOwnerDocument().createTextNode(value));
+        parent.appendChild(child);
+    }
+
     private void showConfiguration(HttpServletRequest request,
             HttpServletResponse response) throws ServletException, IOException {
         response.setContentType("text/html");
@@ -441,8 +584,7 @@ public class DefaultGetHandler extends AbstractHandler {
             if (templates != null) return templates;
             try {
                 Source source = getStylesheet(stylesheetLocation, true, locale);
-                templates = TransformerFactory.newInstance().newTemplates(
-                        source);
+                templates = XmlSupport.newTemplates(source);
                 defaultTemplates.put(locale, templates);
                 return templates;
             } catch (Exception ex) {
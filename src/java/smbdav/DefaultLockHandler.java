@@ -34,11 +34,7 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.DocumentBuilder;
-
 import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.TransformerException;
 
 import javax.xml.transform.dom.DOMSource;
@@ -118,15 +114,7 @@ public class DefaultLockHandler extends AbstractHandler {
             Log.log(Log.DEBUG, "Received LOCK request body:\n{0}", line);
             Document lockRequest = null;
             try {
-                DocumentBuilderFactory factory =
-                        DocumentBuilderFactory.newInstance();
-                factory.setNamespaceAware(true);
-                factory.setExpandEntityReferences(false);
-                factory.setIgnoringComments(true);
-                factory.setCoalescing(true);
-                DocumentBuilder builder = factory.newDocumentBuilder();
-                builder.setEntityResolver(BlockedEntityResolver.INSTANCE);
-                lockRequest = builder.parse(
+                lockRequest = XmlSupport.parse(
                         new InputSource(new StringReader(line)));
             } catch (IOException ex) {
                 throw ex;
@@ -176,6 +164,7 @@ public class DefaultLockHandler extends AbstractHandler {
             LockManager lockManager = getLockManager();
             String lockToken = lockManager.lock(resource,
                     getPrincipal(request), lockInfo);
+            resourceChanged(resource);
             output = createDocument();
             Element prop = output.createElementNS(Property.DAV_NAMESPACE,
                     "prop");
@@ -203,6 +192,7 @@ public class DefaultLockHandler extends AbstractHandler {
                     parseLockTokens(request.getHeader("If")),
                             SmbDAVUtilities.parseTimeout(
                                     request.getHeader("Timeout")));
+            resourceChanged(resource);
             output = createDocument();
             Element prop = output.createElementNS(Property.DAV_NAMESPACE,
                     "prop");
@@ -229,9 +219,7 @@ public class DefaultLockHandler extends AbstractHandler {
     private void outputDocument(Document output, HttpServletResponse response)
             throws ServletException, IOException {
         try {
-            Transformer transformer =
-                    TransformerFactory.newInstance().newTransformer();
-            transformer.setOutputProperty("encoding", "UTF-8");
+            Transformer transformer = XmlSupport.getTransformer();
             ByteArrayOutputStream collector = new ByteArrayOutputStream();
             transformer.transform(new DOMSource(output),
                     new StreamResult(collector));
@@ -248,14 +236,7 @@ public class DefaultLockHandler extends AbstractHandler {
 
     private Document createDocument() throws ServletException {
         try {
-            DocumentBuilderFactory builderFactory =
-                    DocumentBuilderFactory.newInstance();
-            builderFactory.setNamespaceAware(true);
-            builderFactory.setExpandEntityReferences(false);
-            DocumentBuilder builder = builderFactory.newDocumentBuilder();
-            builder.setEntityResolver(BlockedEntityResolver.INSTANCE);
-            Document document = builder.newDocument();
-            return document;
+            return XmlSupport.newDocument();
         } catch (Exception ex) {
             throw new ServletException(ex);
         }
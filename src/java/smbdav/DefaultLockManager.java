@@ -18,32 +18,55 @@
 
 package smbdav;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.StringReader;
 
 import java.security.Principal;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Vector;
 
 import javax.servlet.http.HttpServletResponse;
 
+import javax.xml.transform.TransformerException;
+
+import javax.xml.transform.dom.DOMSource;
+
+import javax.xml.transform.stream.StreamResult;
+
+import jcifs.smb.SharePath;
 import jcifs.smb.SmbFile;
 
-public class DefaultLockManager implements LockManager {
+import org.w3c.dom.Document;
+import org.w3c.dom.DocumentFragment;
+import org.w3c.dom.Element;
+
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+public class DefaultLockManager implements DavenportLockManager {
+
+    protected static final TimerWheel TIMER = TimerWheel.getInstance();
+
+    private final StripedMap tokens = new StripedMap(32);
 
-    protected static final Timer TIMER = new Timer(true);
+    private final List listeners = new Vector();
 
-    protected final Map locks = new HashMap();
+    private volatile SegmentMap servers = SegmentMap.EMPTY;
 
     private long defaultTimeout = SmbDAVUtilities.INFINITE_TIMEOUT;
 
     private long maximumTimeout = SmbDAVUtilities.INFINITE_TIMEOUT;
 
+    private LockJournal journal;
+
     public DefaultLockManager() {
         this(SmbDAVUtilities.INFINITE_TIMEOUT,
                 SmbDAVUtilities.INFINITE_TIMEOUT);
@@ -58,6 +81,22 @@ public class DefaultLockManager implements LockManager {
         setMaximumTimeout(maximumTimeout);
     }
 
+    /**
+     * Creates a lock manager which records its locks in the specified
+     * journal.  The locks held in the journal are restored.
+     *
+     * @param defaultTimeout The default lock timeout.
+     * @param maximumTimeout The maximum lock timeout.
+     * @param journal The journal in which locks are recorded.
+     * @throws IOException If the journaled locks cannot be restored.
+     */
+    public DefaultLockManager(long defaultTimeout, long maximumTimeout,
+            LockJournal journal) throws IOException {
+        this(defaultTimeout, maximumTimeout);
+        this.journal = journal;
+        restore(journal.getEntries());
+    }
+
     public long getDefaultTimeout() {
         return defaultTimeout;
     }
@@ -80,24 +119,28 @@ public class DefaultLockManager implements LockManager {
 
     public boolean isLocked(SmbFile resource, String lockToken)
             throws IOException {
-        BasicLock lock;
-        synchronized (locks) {
-            lock = (BasicLock) locks.get(lockToken);
-        }
-        return coveredBy(resource, lock);
+        return coveredBy(resource, (BasicLock) tokens.get(lockToken));
     }
 
     public Lock[] getActiveLocks(SmbFile resource) throws IOException {
-        Set activeLocks = new HashSet();
-        synchronized (locks) {
-            Iterator lockIterator = locks.values().iterator();
-            while (lockIterator.hasNext()) {
-                BasicLock lock = (BasicLock) lockIterator.next();
-                if (coveredBy(resource, lock)) activeLocks.add(lock);
-            }
-        }
-        return activeLocks.isEmpty() ? null :
-                (BasicLock[]) activeLocks.toArray(new BasicLock[0]);
+        // most shares hold no locks; answer without examining the path
+        Share share = getShare(resource, false);
+        if (share == null) return null;
+        LockIndex index = share.index;
+        if (index.isEmpty()) return null;
+        return filter(index.getActiveLocks(resource.getCanonicalPath()));
+    }
+
+    public Lock[] getDescendantLocks(SmbFile resource) throws IOException {
+        Share share = getShare(resource, false);
+        if (share == null) return null;
+        LockIndex index = share.index;
+        if (index.isEmpty()) return null;
+        return filter(index.getDescendantLocks(resource.getCanonicalPath()));
+    }
+
+    public Lock[] getDiscoveredLocks(SmbFile resource) throws IOException {
+        return getActiveLocks(resource);
     }
 
     public SmbFile getLockedResource(SmbFile resource, Principal principal)
@@ -109,8 +152,26 @@ public class DefaultLockManager implements LockManager {
             throws LockException, IOException {
         Log.log(Log.DEBUG, "Locking \"{0}\" for \"{1}\" -- {2}", new Object[] {
                 resource, principal, lockInfo });
-        synchronized (locks) {
-            BasicLock[] activeLocks = (BasicLock[]) getActiveLocks(resource);
+        String path = resource.getCanonicalPath();
+        Share share = getShare(resource, true);
+        Lock reservation = new Reservation(principal, lockInfo);
+        synchronized (share) {
+            LockIndex index = share.index;
+            Lock[] activeLocks = index.getActiveLocks(path);
+            if (lockInfo.getDepth() == SmbDAVUtilities.INFINITE_DEPTH) {
+                Lock[] descendantLocks = index.getDescendantLocks(path);
+                if (activeLocks == null) {
+                    activeLocks = descendantLocks;
+                } else if (descendantLocks != null) {
+                    Lock[] combined = new Lock[activeLocks.length +
+                            descendantLocks.length];
+                    System.arraycopy(activeLocks, 0, combined, 0,
+                            activeLocks.length);
+                    System.arraycopy(descendantLocks, 0, combined,
+                            activeLocks.length, descendantLocks.length);
+                    activeLocks = combined;
+                }
+            }
             if (activeLocks != null && activeLocks.length > 0) {
                 if (lockInfo.isExclusive()) {
                     Log.log(Log.DEBUG,
@@ -127,14 +188,41 @@ public class DefaultLockManager implements LockManager {
                     }
                 }
             }
-            String lockToken = "opaquelocktoken:" +
-                    SmbDAVUtilities.generateUuid();
-            Lock lock = createLock(resource, principal, lockToken, lockInfo);
-            locks.put(lockToken, lock);
-            Log.log(Log.DEBUG, "Locked resource \"{0}\":\n{1}", new Object[] {
-                    resource, lock });
-            return lockToken;
+            // hold the path while the lock is created outside the monitor
+            share.index = index.add(path, reservation);
+        }
+        String lockToken = "opaquelocktoken:" +
+                SmbDAVUtilities.generateUuid();
+        BasicLock lock = null;
+        try {
+            lock = createLock(resource, principal, lockToken, lockInfo);
+        } finally {
+            synchronized (share) {
+                LockIndex index = share.index.remove(path, reservation);
+                if (lock != null && !lock.isReleased()) {
+                    index = index.add(path, lock);
+                    tokens.put(lockToken, lock);
+                }
+                share.index = index;
+            }
+        }
+        if (journal != null) {
+            try {
+                journal.lock(new LockJournal.Entry(lockToken, path,
+                        (principal != null) ? principal.getName() : null,
+                                lock.isExclusive(), lock.getDepth(),
+                                        formatOwner(lock.getOwner()),
+                                                lock.getExpiration()));
+            } catch (IOException ex) {
+                lock.unlock();
+                throw ex;
+            }
+            // an expiry racing the entry would otherwise leave it behind
+            if (lock.isReleased()) journal.unlock(lockToken);
         }
+        Log.log(Log.DEBUG, "Locked resource \"{0}\":\n{1}", new Object[] {
+                resource, lock });
+        return lockToken;
     }
 
     public void refresh(SmbFile resource, Principal principal,
@@ -150,56 +238,94 @@ public class DefaultLockManager implements LockManager {
                     "Timeout {2}:\n{3}", new Object[] { resource, principal,
                             SmbDAVUtilities.formatTimeout(timeout), tokens });
         }
-        synchronized (locks) {
-            BasicLock[] activeLocks = (BasicLock[]) getActiveLocks(resource);
-            if (activeLocks == null || activeLocks.length == 0) {
-                Log.log(Log.DEBUG, "No active locks on \"{0}\"", resource);
-                throw new LockException(
-                        HttpServletResponse.SC_PRECONDITION_FAILED);
-            }
-            Set currentLocks = new HashSet();
-            for (int i = lockTokens.length - 1; i >= 0; i--) {
-                String lockToken = lockTokens[i];
-                boolean found = false;
-                for (int j = activeLocks.length - 1; j >= 0; j--) {
-                    BasicLock activeLock = activeLocks[j];
-                    if (lockToken.equals(activeLock.getToken())) {
-                        found = true;
-                        currentLocks.add(activeLock);
-                        Log.log(Log.DEBUG, "Found matching lock -- {0}",
-                                activeLock);
-                        break;
-                    }
-                }
-                if (!found) {
-                    Log.log(Log.DEBUG, "Unable to find matching lock.");
-                    throw new LockException(
-                            HttpServletResponse.SC_PRECONDITION_FAILED);
+        BasicLock[] activeLocks = (BasicLock[]) getActiveLocks(resource);
+        if (activeLocks == null || activeLocks.length == 0) {
+            Log.log(Log.DEBUG, "No active locks on \"{0}\"", resource);
+            throw new LockException(
+                    HttpServletResponse.SC_PRECONDITION_FAILED);
+        }
+        Set currentLocks = new HashSet();
+        for (int i = lockTokens.length - 1; i >= 0; i--) {
+            String lockToken = lockTokens[i];
+            boolean found = false;
+            for (int j = activeLocks.length - 1; j >= 0; j--) {
+                BasicLock activeLock = activeLocks[j];
+                if (lockToken.equals(activeLock.getToken())) {
+                    found = true;
+                    currentLocks.add(activeLock);
+                    Log.log(Log.DEBUG, "Found matching lock -- {0}",
+                            activeLock);
+                    break;
                 }
             }
-            Iterator lockIterator = currentLocks.iterator();
-            while (lockIterator.hasNext()) {
-                ((BasicLock) lockIterator.next()).refresh(timeout);
+            if (!found) {
+                Log.log(Log.DEBUG, "Unable to find matching lock.");
+                throw new LockException(
+                        HttpServletResponse.SC_PRECONDITION_FAILED);
             }
         }
+        Iterator lockIterator = currentLocks.iterator();
+        while (lockIterator.hasNext()) {
+            ((BasicLock) lockIterator.next()).refresh(timeout);
+        }
     }
 
     public void unlock(SmbFile resource, Principal principal, String lockToken)
             throws LockException, IOException {
         Log.log(Log.DEBUG, "Unlocking \"{0}\" for \"{1}\" with token {2}",
                 new Object[] { resource, principal, lockToken });
-        synchronized (locks) {
-            BasicLock lock = (BasicLock) locks.get(lockToken);
-            if (!coveredBy(resource, lock)) {
-                Log.log(Log.DEBUG,
-                        "Resource \"{0}\" is not covered by lock -- {1}",
-                                new Object[] { resource, lock });
-                throw new LockException(
-                        HttpServletResponse.SC_PRECONDITION_FAILED);
+        BasicLock lock = (BasicLock) tokens.get(lockToken);
+        if (!coveredBy(resource, lock)) {
+            Log.log(Log.DEBUG,
+                    "Resource \"{0}\" is not covered by lock -- {1}",
+                            new Object[] { resource, lock });
+            throw new LockException(
+                    HttpServletResponse.SC_PRECONDITION_FAILED);
+        }
+        Log.log(Log.DEBUG, "Unlocking resource \"{0}\" -- {1}",
+                new Object[] { resource, lock });
+        lock.unlock();
+    }
+
+    /**
+     * Registers a listener to be notified when a lock expires.  Locks
+     * released by a client are reported by the handler servicing the
+     * request.
+     *
+     * @param listener The listener.
+     */
+    public void addChangeListener(ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Unregisters a listener.
+     *
+     * @param listener The listener.
+     */
+    public void removeChangeListener(ChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Stops the expiry of locks and closes the journal.  The locks remain
+     * recorded in the journal, and are restored by the next instance.
+     */
+    public void destroy() {
+        Iterator iterator = tokens.values().iterator();
+        while (iterator.hasNext()) ((BasicLock) iterator.next()).cancel();
+        if (journal != null) journal.close();
+    }
+
+    private void fire(SmbFile file) {
+        Object[] listeners = this.listeners.toArray();
+        for (int i = 0; i < listeners.length; i++) {
+            try {
+                ((ChangeListener) listeners[i]).resourceChanged(file);
+            } catch (Throwable throwable) {
+                Log.log(Log.WARNING, "Uncaught error in change listener: {0}",
+                        throwable);
             }
-            Log.log(Log.DEBUG, "Unlocking resource \"{0}\" -- {1}",
-                    new Object[] { resource, lock });
-            lock.unlock();
         }
     }
 
@@ -209,6 +335,75 @@ public class DefaultLockManager implements LockManager {
         return new BasicLock(resource, principal, lockToken, lockInfo);
     }
 
+    private void restore(LockJournal.Entry[] entries) throws IOException {
+        Map restored = new HashMap();
+        for (int i = 0; i < entries.length; i++) {
+            BasicLock lock = new BasicLock(entries[i]);
+            Share share = getShare(lock.resource, true);
+            List locks = (List) restored.get(share);
+            if (locks == null) restored.put(share, locks = new ArrayList());
+            locks.add(lock);
+            tokens.put(lock.getToken(), lock);
+        }
+        Iterator iterator = restored.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry entry = (Map.Entry) iterator.next();
+            List locks = (List) entry.getValue();
+            String[] paths = new String[locks.size()];
+            for (int i = paths.length - 1; i >= 0; i--) {
+                paths[i] = ((BasicLock) locks.get(i)).path;
+            }
+            synchronized (entry.getKey()) {
+                ((Share) entry.getKey()).index = LockIndex.build(paths,
+                        (Lock[]) locks.toArray(new Lock[locks.size()]));
+            }
+        }
+        // only now that the locks are indexed can they safely expire
+        iterator = restored.values().iterator();
+        while (iterator.hasNext()) {
+            Iterator locks = ((List) iterator.next()).iterator();
+            while (locks.hasNext()) ((BasicLock) locks.next()).resume();
+        }
+        Log.log(Log.DEBUG, "Restored {0} locks from journal.",
+                new Integer(entries.length));
+    }
+
+    private Share getShare(SmbFile resource, boolean create) {
+        String server = resource.getServer();
+        if (server == null) server = "";
+        String name = SharePath.getShare(resource);
+        if (name == null) name = "";
+        SegmentMap shares = (SegmentMap) servers.get(server);
+        Share share = (shares != null) ? (Share) shares.get(name) : null;
+        if (share != null || !create) return share;
+        synchronized (this) {
+            shares = (SegmentMap) servers.get(server);
+            if (shares == null) shares = SegmentMap.EMPTY;
+            share = (Share) shares.get(name);
+            if (share == null) {
+                share = new Share();
+                servers = servers.put(server, shares.put(name, share));
+            }
+            return share;
+        }
+    }
+
+    private Lock[] filter(Lock[] locks) {
+        if (locks == null) return null;
+        int count = 0;
+        for (int i = locks.length - 1; i >= 0; i--) {
+            if (locks[i] instanceof BasicLock) count++;
+        }
+        if (count == 0) return null;
+        BasicLock[] result = new BasicLock[count];
+        for (int i = locks.length - 1; i >= 0; i--) {
+            if (locks[i] instanceof BasicLock) {
+                result[--count] = (BasicLock) locks[i];
+            }
+        }
+        return result;
+    }
+
     private boolean coveredBy(SmbFile resource, BasicLock lock)
             throws IOException {
         if (lock == null || resource == null) return false;
@@ -222,6 +417,44 @@ public class DefaultLockManager implements LockManager {
         return (lock.getDepth() == SmbDAVUtilities.INFINITE_DEPTH);
     }
 
+    static String formatOwner(DocumentFragment owner)
+            throws IOException {
+        if (owner == null) return null;
+        Document document = XmlSupport.newDocument();
+        Element element = document.createElementNS(Property.DAV_NAMESPACE,
+                "D:owner");
+        element.setAttributeNS("http://www.w3.org/2000/xmlns/", "xmlns:D",
+                Property.DAV_NAMESPACE);
+        element.appendChild(document.importNode(owner, true));
+        document.appendChild(element);
+        try {
+            ByteArrayOutputStream collector = new ByteArrayOutputStream();
+            XmlSupport.getTransformer().transform(new DOMSource(document),
+                    new StreamResult(collector));
+            return collector.toString("UTF-8");
+        } catch (TransformerException ex) {
+            throw new IOException(ex.getMessage());
+        }
+    }
+
+    static DocumentFragment parseOwner(String owner)
+            throws IOException {
+        if (owner == null) return null;
+        Document document;
+        try {
+            document = XmlSupport.parse(new InputSource(
+                    new StringReader(owner)));
+        } catch (SAXException ex) {
+            throw new IOException(ex.getMessage());
+        }
+        Element element = document.getDocumentElement();
+        DocumentFragment fragment = document.createDocumentFragment();
+        while (element.hasChildNodes()) {
+            fragment.appendChild(element.removeChild(element.getFirstChild()));
+        }
+        return fragment;
+    }
+
     protected class BasicLock extends Lock {
 
         private final SmbFile resource;
@@ -230,18 +463,38 @@ public class DefaultLockManager implements LockManager {
 
         private final String token;
 
-        private TimerTask task;
+        private final String path;
+
+        private TimerWheel.Timeout task;
+
+        private long expiration = -1;
+
+        private boolean released;
 
         public BasicLock(SmbFile resource, Principal principal, String token,
                 LockInfo lockInfo) throws IOException {
             this.resource = resource;
             this.principal = principal;
             this.token = token;
+            this.path = resource.getCanonicalPath();
             if (!resource.exists()) resource.createNewFile();
             setExclusive(lockInfo.isExclusive());
             setOwner(lockInfo.getOwner());
             setDepth(lockInfo.getDepth());
-            refresh(lockInfo.getTimeout());
+            schedule(lockInfo.getTimeout());
+        }
+
+        BasicLock(LockJournal.Entry entry) throws IOException {
+            this.resource = new SmbFile(entry.getPath());
+            this.principal = (entry.getPrincipal() != null) ?
+                    new NamedPrincipal(entry.getPrincipal()) : null;
+            this.token = entry.getToken();
+            this.path = resource.getCanonicalPath();
+            setExclusive(entry.isExclusive());
+            setOwner(parseOwner(entry.getOwner()));
+            setDepth(entry.getDepth());
+            // the expiry is scheduled by resume(), once the lock is indexed
+            expiration = entry.getExpiration();
         }
 
         public SmbFile getResource() {
@@ -272,13 +525,38 @@ public class DefaultLockManager implements LockManager {
         }
 
         public void refresh(long timeout) throws IOException {
+            schedule(timeout);
+            if (journal != null) journal.refresh(token, getExpiration());
+        }
+
+        synchronized long getExpiration() {
+            return expiration;
+        }
+
+        /**
+         * Schedules the expiry of a lock restored from the journal.
+         */
+        void resume() {
+            long expiration = getExpiration();
+            schedule((expiration == -1) ? SmbDAVUtilities.INFINITE_TIMEOUT :
+                    Math.max(expiration - System.currentTimeMillis(), 1l));
+        }
+
+        private void schedule(long timeout) {
             // apply timeout bounds checking
             setTimeout(timeout);
             timeout = getTimeout();
             synchronized (this) {
                 if (task != null) task.cancel();
-                if (timeout == SmbDAVUtilities.INFINITE_TIMEOUT) return;
-                task = new TimerTask() {
+                if (released) return;
+                if (timeout == SmbDAVUtilities.INFINITE_TIMEOUT) {
+                    expiration = -1;
+                    return;
+                }
+                expiration = System.currentTimeMillis() + timeout;
+                String server = getResource().getServer();
+                task = TIMER.schedule((server != null) ?
+                        server.toLowerCase() : null, new Runnable() {
                     public void run() {
                         try {
                             unlock();
@@ -286,10 +564,11 @@ public class DefaultLockManager implements LockManager {
                             Log.log(Log.INFORMATION, "Unable to unlock {0} " +
                                     "on {1}: {2}", new Object[] { getToken(),
                                             getResource(), ex });
+                        } finally {
+                            fire(getResource());
                         }
                     }
-                };
-                TIMER.schedule(task, timeout);
+                }, timeout);
             }
             Log.log(Log.DEBUG, "Established/renewed lock on \"{0}\" -- {1}",
                     new Object[] { getResource(), this });
@@ -297,18 +576,75 @@ public class DefaultLockManager implements LockManager {
 
         public void unlock() throws IOException {
             synchronized (this) {
+                released = true;
                 if (task != null) {
                     task.cancel();
                     task = null;
                 }
             }
-            synchronized (locks) {
-                locks.remove(getToken());
+            tokens.remove(getToken(), this);
+            Share share = getShare(resource, false);
+            if (share != null) {
+                synchronized (share) {
+                    share.index = share.index.remove(path, this);
+                }
             }
+            if (journal != null) journal.unlock(token);
             Log.log(Log.DEBUG, "Released lock on \"{0}\" -- {1}",
                     new Object[] { getResource(), this });
         }
 
+        synchronized boolean isReleased() {
+            return released;
+        }
+
+        /**
+         * Cancels the expiry of the lock without releasing it, when the
+         * lock manager is destroyed.
+         */
+        synchronized void cancel() {
+            released = true;
+            if (task != null) {
+                task.cancel();
+                task = null;
+            }
+        }
+
+    }
+
+    /**
+     * The locks held within a single share.  The index is replaced (under
+     * the share's monitor) on each change, and read without
+     * synchronization.
+     */
+    private static class Share {
+
+        volatile LockIndex index = LockIndex.EMPTY;
+
+    }
+
+    /**
+     * Holds a path against conflicting requests while a lock is being
+     * created.  Reservations are never returned to callers.
+     */
+    private static class Reservation extends Lock {
+
+        private final Principal principal;
+
+        public Reservation(Principal principal, LockInfo lockInfo) {
+            this.principal = principal;
+            setExclusive(lockInfo.isExclusive());
+            setDepth(lockInfo.getDepth());
+        }
+
+        public String getToken() {
+            return null;
+        }
+
+        public Principal getPrincipal() {
+            return principal;
+        }
+
     }
 
 }
@@ -76,6 +76,7 @@ public class DefaultMkcolHandler extends AbstractHandler {
         }
         try {
             file.mkdir();
+            resourceChanged(file);
             response.setStatus(HttpServletResponse.SC_CREATED);
         } catch (SmbAuthException ex) {
             throw ex;
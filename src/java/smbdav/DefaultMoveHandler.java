@@ -41,6 +41,9 @@ public class DefaultMoveHandler extends AbstractHandler {
     /**
      * Services requests which use the WebDAV MOVE method.
      * This implementation moves the source file to the destination location.
+     * When the source and destination are on the same share, the resource
+     * is renamed on the server; otherwise, it is copied to the destination
+     * and then removed.
      * <br>
      * If the source file does not exist, a 404 (Not Found) error is sent
      * to the client.
@@ -52,6 +55,13 @@ public class DefaultMoveHandler extends AbstractHandler {
      * "Overwrite" request header with a value of "T", then the request
      * succeeds and the file is overwritten.  If the "Overwrite" header is
      * not provided, a 412 (Precondition Failed) error is sent to the client.
+     * When renaming, the existing destination is first renamed aside and
+     * is only removed once the move has succeeded (and restored if it
+     * fails).
+     * <br>
+     * If some members could not be copied to another share, the source
+     * is retained and a 207 (Multi-Status) response listing the failed
+     * members is sent to the client.
      * <br>
      * If the destination was created, but the source could not be removed,
      * a 403 (Forbidden) error is sent to the client.
@@ -98,35 +108,165 @@ public class DefaultMoveHandler extends AbstractHandler {
             response.sendError(result);
             return;
         }
+        flushPending(file);
+        flushPending(destinationFile);
         LockManager lockManager = getLockManager();
         if (lockManager != null) {
             file = lockManager.getLockedResource(file, auth);
             destinationFile = lockManager.getLockedResource(destinationFile,
                     auth);
         }
-        boolean overwritten = false;
-        if (destinationFile.exists()) {
-            if ("T".equalsIgnoreCase(request.getHeader("Overwrite"))) {
-                destinationFile.delete();
-                overwritten = true;
-            } else {
-                response.sendError(HttpServletResponse.SC_PRECONDITION_FAILED);
-                return;
-            }
+        boolean overwritten = destinationFile.exists();
+        if (overwritten &&
+                !"T".equalsIgnoreCase(request.getHeader("Overwrite"))) {
+            response.sendError(HttpServletResponse.SC_PRECONDITION_FAILED);
+            return;
         }
-        file.copyTo(destinationFile);
-        try {
-            file.delete();
+        DeadPropertyStore store = getDeadPropertyStore();
+        if (isSameShare(file, destinationFile) &&
+                rename(file, destinationFile, overwritten, auth)) {
+            resourceChanged(file);
+            resourceChanged(destinationFile);
+            if (store != null) store.move(file, destinationFile);
             response.setStatus(overwritten ? HttpServletResponse.SC_NO_CONTENT :
                     HttpServletResponse.SC_CREATED);
             response.flushBuffer();
-        } catch (SmbAuthException ex) {
-            throw ex;
+            return;
+        }
+        if (overwritten) destinationFile.delete();
+        String href = request.getHeader("Destination");
+        ProgressRegistry.Progress progress = startProgress(request, href);
+        KeepAlive keepAlive = startKeepAlive(response);
+        try {
+            CopyEngine engine = new CopyEngine(getFilter(), getWorkerPool());
+            engine.setProgress(progress);
+            try {
+                engine.copy(file, destinationFile,
+                        SmbDAVUtilities.INFINITE_DEPTH);
+            } catch (IOException ex) {
+                if (sendFailure(response, keepAlive, progress, href, ex)) {
+                    return;
+                }
+                throw ex;
+            } finally {
+                resourceChanged(destinationFile);
+            }
+            int status = overwritten ? HttpServletResponse.SC_NO_CONTENT :
+                    HttpServletResponse.SC_CREATED;
+            CopyEngine.Failure[] failures = engine.getFailures();
+            if (failures.length != 0) {
+                Log.log(Log.DEBUG, "{0} members could not be copied; " +
+                        "source retained.", new Integer(failures.length));
+                if (store != null) store.copy(file, destinationFile);
+                PropertiesDirector director = new PropertiesDirector(null,
+                        getFilter());
+                String[] hrefs = new String[failures.length];
+                int[] statuses = new int[failures.length];
+                for (int i = 0; i < failures.length; i++) {
+                    hrefs[i] = director.getDescendantHref(destinationFile, href,
+                            failures[i].getPath());
+                    statuses[i] = failures[i].getStatus();
+                }
+                sendResult(response, keepAlive, progress, href, status, hrefs,
+                        statuses);
+                return;
+            }
+            try {
+                file.delete();
+                resourceChanged(file);
+                if (store != null) store.move(file, destinationFile);
+                sendResult(response, keepAlive, progress, href, status,
+                        new String[0], new int[0]);
+            } catch (SmbAuthException ex) {
+                if (sendFailure(response, keepAlive, progress, href, ex)) {
+                    return;
+                }
+                throw ex;
+            } catch (SmbException ex) {
+                resourceChanged(file);
+                if (store != null) store.copy(file, destinationFile);
+                if (sendFailure(response, keepAlive, progress, href, ex)) {
+                    return;
+                }
+                response.sendError(HttpServletResponse.SC_FORBIDDEN,
+                        SmbDAVUtilities.getResource(DefaultMoveHandler.class,
+                                "cantDeleteSource", null, request.getLocale()));
+            }
+        } finally {
+            if (keepAlive != null) keepAlive.stop();
+            if (progress != null) {
+                progress.finish(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            }
+        }
+    }
+
+    static boolean isSameShare(SmbFile file, SmbFile destination) {
+        String share = file.getShare();
+        String server = file.getServer();
+        return share != null && server != null &&
+                share.equalsIgnoreCase(destination.getShare()) &&
+                        server.equalsIgnoreCase(destination.getServer());
+    }
+
+    /**
+     * Renames the source to the destination.  An existing destination is
+     * renamed aside first, so that it can be restored if the rename
+     * fails; it is removed once the source is in place.
+     *
+     * @return <code>true</code> if the source was renamed;
+     * <code>false</code> if the move should be performed by copying.
+     */
+    static boolean rename(SmbFile file, SmbFile destination,
+            boolean overwrite, NtlmPasswordAuthentication auth)
+                    throws IOException {
+        SmbFile displaced = null;
+        if (overwrite) {
+            String name = destination.getName();
+            boolean directory = name.endsWith("/");
+            if (directory) name = name.substring(0, name.length() - 1);
+            String url = destination.getParent() + "." + name + "." +
+                    Long.toString(System.currentTimeMillis(), 36) +
+                            ".moving" + (directory ? "/" : "");
+            displaced = (auth != null) ? new SmbFile(url, auth) :
+                    new SmbFile(url);
+            try {
+                destination.renameTo(displaced);
+            } catch (SmbAuthException ex) {
+                throw ex;
+            } catch (SmbException ex) {
+                Log.log(Log.DEBUG, "Unable to rename \"{0}\" aside: {1}",
+                        new Object[] { destination, ex });
+                return false;
+            }
+        }
+        try {
+            file.renameTo(destination);
         } catch (SmbException ex) {
-            response.sendError(HttpServletResponse.SC_FORBIDDEN,
-                    SmbDAVUtilities.getResource(DefaultMoveHandler.class,
-                            "cantDeleteSource", null, request.getLocale()));
+            Log.log(Log.DEBUG, "Unable to rename \"{0}\" to \"{1}\": {2}",
+                    new Object[] { file, destination, ex });
+            if (displaced != null) {
+                try {
+                    displaced.renameTo(destination);
+                } catch (SmbException restore) {
+                    Log.log(Log.WARNING,
+                            "Unable to restore \"{0}\" from \"{1}\": {2}",
+                                    new Object[] { destination, displaced,
+                                            restore });
+                    throw restore;
+                }
+            }
+            if (ex instanceof SmbAuthException) throw ex;
+            return false;
+        }
+        if (displaced != null) {
+            try {
+                displaced.delete();
+            } catch (SmbException ex) {
+                Log.log(Log.WARNING, "Unable to remove \"{0}\": {1}",
+                        new Object[] { displaced, ex });
+            }
         }
+        return true;
     }
 
 }
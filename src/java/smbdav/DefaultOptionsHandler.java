@@ -27,6 +27,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import jcifs.smb.NtlmPasswordAuthentication;
 import jcifs.smb.SmbFile;
+import jcifs.smb.TransportKeepAlive;
 
 /**
  * Default implementation of a handler for requests using the HTTP OPTIONS
@@ -39,7 +40,9 @@ public class DefaultOptionsHandler extends AbstractHandler {
     /**
      * Services requests which use the HTTP OPTIONS method.
      * This implementation provides the list of supported methods for
-     * the target resource.
+     * the target resource.  When locking is supported, the number of SMB
+     * lock handles currently held open on the target's server is reported
+     * in the "X-Lock-Handles" header.
      *
      * @param request The request being serviced.
      * @param response The servlet response.
@@ -64,6 +67,14 @@ public class DefaultOptionsHandler extends AbstractHandler {
         }
         if (lockSupport) allow.append(", LOCK, UNLOCK");
         response.setHeader("Allow", allow.toString());
+        String server = file.getServer();
+        if (lockSupport && server != null) {
+            Integer handles = (Integer)
+                    TransportKeepAlive.getHandleCounts().get(
+                            server.toLowerCase());
+            response.setHeader("X-Lock-Handles", (handles != null) ?
+                    handles.toString() : "0");
+        }
     }
 
 }
@@ -18,14 +18,32 @@
 
 package smbdav;
 
+import java.io.InterruptedIOException;
 import java.io.IOException;
 
+import java.net.URL;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
 
 import jcifs.smb.NtlmPasswordAuthentication;
+import jcifs.smb.SmbException;
+import jcifs.smb.SmbFile;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 
 /**
  * Default implementation of a handler for requests using the HTTP POST
@@ -35,10 +53,67 @@ import jcifs.smb.NtlmPasswordAuthentication;
  */
 public class DefaultPostHandler extends AbstractHandler {
 
+    /**
+     * The namespace of batch request documents.
+     */
+    public static final String BATCH_NAMESPACE = "urn:x-davenport:batch";
+
+    private static final int QUEUED = 0;
+
+    private static final int RUNNING = 1;
+
+    private static final int DONE = 2;
+
+    private static final String[] CONDITIONAL_HEADERS = { "If",
+            "If-Match", "If-None-Match", "If-Modified-Since",
+                    "If-Unmodified-Since" };
+
+    private int maximumOperations;
+
+    public void init(ServletConfig config) throws ServletException {
+        super.init(config);
+        String maximumOperations =
+                config.getInitParameter("batch.maximumOperations");
+        this.maximumOperations = (maximumOperations != null) ?
+                Integer.parseInt(maximumOperations) : 1000;
+    }
+
     /**
      * Services requests which use the HTTP POST method.
-     * This may, at some point, implement some sort of useful behavior.
-     * Right now it doesn't do anything.
+     * This implementation executes batches of operations posted to a
+     * collection.  The request body is an XML document of the form:
+     * <p>
+     * <pre>
+     * &lt;batch xmlns="urn:x-davenport:batch"&gt;
+     *     &lt;mkcol href="new/"/&gt;
+     *     &lt;delete href="old.txt"/&gt;
+     *     &lt;move href="a.txt" destination="b.txt" overwrite="T"/&gt;
+     *     &lt;copy href="dir/" destination="copy/" depth="infinity"/&gt;
+     * &lt;/batch&gt;
+     * </pre>
+     * <p>
+     * URLs are resolved against the collection's URL.  Each operation
+     * behaves as the corresponding WebDAV request would.  Operations are
+     * performed in document order, except that consecutive operations on
+     * unrelated resources are run concurrently (using the
+     * <code>WorkerPool</code>, if available).  The result is a 207
+     * (Multi-Status) response containing the status of each operation;
+     * operations which partially fail report a 424 (Failed Dependency)
+     * status, preceded by the status of each failed member.  The
+     * request's conditional headers (including the <code>If</code> header
+     * supplying lock tokens) are applied to each operation.
+     * <br>
+     * Requests which do not contain an XML document are ignored.
+     * <br>
+     * If the specified resource does not exist, a 404 (Not Found) error
+     * is sent to the client; if it is not a collection, a 405 (Method
+     * Not Allowed) error is sent to the client.
+     * <br>
+     * If the document is not a batch, a 415 (Unsupported Media Type)
+     * error is sent to the client.  If it is not properly formed, a 400
+     * (Bad Request) error is sent to the client; if it contains more than
+     * the permitted number of operations, a 413 (Request Entity Too Large)
+     * error is sent to the client.
      *
      * @param request The request being serviced.
      * @param response The servlet response.
@@ -48,6 +123,471 @@ public class DefaultPostHandler extends AbstractHandler {
      */
     public void service(HttpServletRequest request,
             HttpServletResponse response, NtlmPasswordAuthentication auth)
-                    throws ServletException, IOException { }
+                    throws ServletException, IOException {
+        String contentType = request.getContentType();
+        if (contentType == null ||
+                contentType.toLowerCase().indexOf("xml") == -1) {
+            return;
+        }
+        SmbFile file = getSmbFile(request, auth);
+        if (!file.exists()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        if (file.isFile()) {
+            response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+            return;
+        }
+        Document document = null;
+        try {
+            document = XmlSupport.parse(new LimitInputStream(
+                    request.getInputStream(), maximumOperations * 1024l));
+        } catch (Exception ex) {
+            Log.log(Log.DEBUG, "Unable to parse POST request: {0}", ex);
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        Element batch = document.getDocumentElement();
+        if (!BATCH_NAMESPACE.equals(batch.getNamespaceURI()) ||
+                !"batch".equals(batch.getLocalName())) {
+            response.sendError(
+                    HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE);
+            return;
+        }
+        String requestUrl = getRequestURL(request);
+        URL base = new URL(requestUrl.endsWith("/") ? requestUrl :
+                requestUrl + "/");
+        // operations may run on pool threads, which must not use the request
+        request = new RequestSnapshot(request);
+        List operations = new ArrayList();
+        for (Node node = batch.getFirstChild(); node != null;
+                node = node.getNextSibling()) {
+            if (!(node instanceof Element)) continue;
+            Operation operation = createOperation((Element) node, base,
+                    request, auth);
+            if (operation == null) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+                return;
+            }
+            if (operations.size() == maximumOperations) {
+                response.sendError(
+                        HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+                return;
+            }
+            operations.add(operation);
+        }
+        Log.log(Log.DEBUG, "Executing batch of {0} operations.",
+                new Integer(operations.size()));
+        response.setStatus(SC_MULTISTATUS);
+        response.setContentType("text/xml; charset=\"utf-8\"");
+        MultistatusWriter writer = new MultistatusWriter(
+                response.getOutputStream());
+        writer.start();
+        List wave = new ArrayList();
+        int count = operations.size();
+        for (int i = 0; i < count; i++) {
+            Operation operation = (Operation) operations.get(i);
+            for (int j = wave.size() - 1; j >= 0; j--) {
+                if (!operation.overlaps((Operation) wave.get(j))) continue;
+                execute(wave, writer);
+                break;
+            }
+            wave.add(operation);
+        }
+        execute(wave, writer);
+        writer.finish();
+        response.flushBuffer();
+    }
+
+    private Operation createOperation(Element element, URL base,
+            HttpServletRequest request, NtlmPasswordAuthentication auth) {
+        if (!BATCH_NAMESPACE.equals(element.getNamespaceURI())) return null;
+        String type = element.getLocalName();
+        if (!"mkcol".equals(type) && !"delete".equals(type) &&
+                !"copy".equals(type) && !"move".equals(type)) {
+            return null;
+        }
+        String href = element.getAttribute("href");
+        String destination = element.getAttribute("destination");
+        boolean transfer = "copy".equals(type) || "move".equals(type);
+        if (href.equals("") || (transfer && destination.equals(""))) {
+            return null;
+        }
+        int depth = SmbDAVUtilities.INFINITE_DEPTH;
+        if ("copy".equals(type)) {
+            String value = element.getAttribute("depth");
+            if ("0".equals(value)) {
+                depth = SmbDAVUtilities.RESOURCE_ONLY_DEPTH;
+            } else if (!value.equals("") &&
+                    !"infinity".equalsIgnoreCase(value)) {
+                return null;
+            }
+        }
+        try {
+            href = new URL(base, href).toString();
+            destination = transfer ? new URL(base, destination).toString() :
+                    null;
+            return new Operation(type, href, getSmbURL(request, href),
+                    destination, transfer ? getSmbURL(request, destination) :
+                            null, depth, "T".equalsIgnoreCase(
+                                    element.getAttribute("overwrite")),
+                                            request, auth);
+        } catch (IOException ex) {
+            Log.log(Log.DEBUG, "Invalid URL in batch: {0}", ex);
+            return null;
+        }
+    }
+
+    private void execute(List wave, MultistatusWriter writer)
+            throws IOException {
+        int count = wave.size();
+        if (count == 0) return;
+        WorkerPool pool = getWorkerPool();
+        if (count > 1 && pool != null && pool.isRunning()) {
+            for (int i = 0; i < count; i++) {
+                pool.execute(null, (Operation) wave.get(i));
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            Operation operation = (Operation) wave.get(i);
+            if (operation.claim()) {
+                operation.evaluate();
+            } else {
+                operation.await();
+            }
+            operation.write(writer);
+        }
+        writer.flush();
+        wave.clear();
+    }
+
+    private static String normalize(String href) {
+        if (href == null) return null;
+        href = href.toLowerCase();
+        return href.endsWith("/") ? href.substring(0, href.length() - 1) :
+                href;
+    }
+
+    private static boolean overlaps(String path, String other) {
+        if (path == null || other == null) return false;
+        return path.equals(other) || path.startsWith(other + "/") ||
+                other.startsWith(path + "/");
+    }
+
+    private class Operation implements Runnable {
+
+        private final List hrefs = new ArrayList();
+
+        private final List statuses = new ArrayList();
+
+        private final String type;
+
+        private final String href;
+
+        private final String destination;
+
+        private final String sourceUrl;
+
+        private final String destinationUrl;
+
+        private final int depth;
+
+        private final boolean overwrite;
+
+        private final HttpServletRequest request;
+
+        private final NtlmPasswordAuthentication auth;
+
+        private int state = QUEUED;
+
+        public Operation(String type, String href, String sourceUrl,
+                String destination, String destinationUrl, int depth,
+                        boolean overwrite, HttpServletRequest request,
+                                NtlmPasswordAuthentication auth) {
+            this.type = type;
+            this.href = href;
+            this.sourceUrl = sourceUrl;
+            this.destination = destination;
+            this.destinationUrl = destinationUrl;
+            this.depth = depth;
+            this.overwrite = overwrite;
+            this.request = request;
+            this.auth = auth;
+        }
+
+        public boolean overlaps(Operation other) {
+            String source = normalize(href);
+            String target = normalize(destination);
+            String otherSource = normalize(other.href);
+            String otherTarget = normalize(other.destination);
+            return DefaultPostHandler.overlaps(source, otherSource) ||
+                    DefaultPostHandler.overlaps(source, otherTarget) ||
+                            DefaultPostHandler.overlaps(target, otherSource) ||
+                                    DefaultPostHandler.overlaps(target,
+                                            otherTarget);
+        }
+
+        public void run() {
+            if (claim()) evaluate();
+        }
+
+        public synchronized boolean claim() {
+            if (state != QUEUED) return false;
+            state = RUNNING;
+            return true;
+        }
+
+        public void evaluate() {
+            int status;
+            try {
+                if ("mkcol".equals(type)) {
+                    status = mkcol();
+                } else if ("delete".equals(type)) {
+                    status = delete();
+                } else {
+                    status = transfer("move".equals(type));
+                }
+            } catch (SmbException ex) {
+                Log.log(Log.DEBUG, "Batch {0} of \"{1}\" failed: {2}",
+                        new Object[] { type, href, ex });
+                status = SmbDAVUtilities.getStatus(ex);
+            } catch (Throwable throwable) {
+                Log.log(Log.WARNING, "Batch {0} of \"{1}\" failed: {2}",
+                        new Object[] { type, href, throwable });
+                status = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+            }
+            synchronized (this) {
+                hrefs.add(href);
+                statuses.add(new Integer(status));
+                state = DONE;
+                notifyAll();
+            }
+        }
+
+        public synchronized void await() throws IOException {
+            while (state != DONE) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+
+        public void write(MultistatusWriter writer) throws IOException {
+            for (int i = 0; i < hrefs.size(); i++) {
+                writer.writeStatus((String) hrefs.get(i),
+                        ((Integer) statuses.get(i)).intValue(), null);
+            }
+        }
+
+        private SmbFile resolve(String url) throws IOException {
+            return (url != null) ? createSmbFile(url, auth) : null;
+        }
+
+        private int mkcol() throws IOException {
+            SmbFile file = resolve(sourceUrl);
+            if (file == null) return HttpServletResponse.SC_BAD_REQUEST;
+            if (file.exists()) {
+                return HttpServletResponse.SC_METHOD_NOT_ALLOWED;
+            }
+            int result = checkLockOwnership(request, file);
+            if (result == HttpServletResponse.SC_OK) {
+                result = checkConditionalRequest(request, file);
+            }
+            if (result != HttpServletResponse.SC_OK) return result;
+            try {
+                file.mkdir();
+            } catch (SmbException ex) {
+                Log.log(Log.DEBUG, "Unable to create \"{0}\": {1}",
+                        new Object[] { file, ex });
+                return HttpServletResponse.SC_CONFLICT;
+            }
+            resourceChanged(file);
+            return HttpServletResponse.SC_CREATED;
+        }
+
+        private int delete() throws IOException {
+            SmbFile file = resolve(sourceUrl);
+            if (file == null) return HttpServletResponse.SC_BAD_REQUEST;
+            if (!file.exists()) return HttpServletResponse.SC_NOT_FOUND;
+            int result = checkLockOwnership(request, file);
+            if (result == HttpServletResponse.SC_OK) {
+                result = checkConditionalRequest(request, file);
+            }
+            if (result != HttpServletResponse.SC_OK) return result;
+            flushPending(file);
+            DeleteEngine engine = new DeleteEngine(getLockManager(), auth,
+                    getWorkerPool());
+            boolean deleted;
+            try {
+                deleted = engine.delete(file);
+            } finally {
+                resourceChanged(file);
+            }
+            DeadPropertyStore store = getDeadPropertyStore();
+            if (store != null) {
+                SmbFile[] removed = engine.getRemoved();
+                for (int i = 0; i < removed.length; i++) {
+                    store.delete(removed[i]);
+                }
+            }
+            if (deleted) return HttpServletResponse.SC_NO_CONTENT;
+            DeleteEngine.Failure[] failures = engine.getFailures();
+            PropertiesDirector director = new PropertiesDirector(null,
+                    getFilter());
+            for (int i = 0; i < failures.length; i++) {
+                hrefs.add(director.getDescendantHref(file, href,
+                        failures[i].getPath()));
+                statuses.add(new Integer(failures[i].getStatus()));
+            }
+            return SC_FAILED_DEPENDENCY;
+        }
+
+        private int transfer(boolean move) throws IOException {
+            SmbFile file = resolve(sourceUrl);
+            SmbFile destinationFile = resolve(destinationUrl);
+            if (file == null || destinationFile == null) {
+                return HttpServletResponse.SC_BAD_REQUEST;
+            }
+            if (!file.exists()) return HttpServletResponse.SC_NOT_FOUND;
+            if (destinationFile.equals(file)) {
+                return HttpServletResponse.SC_FORBIDDEN;
+            }
+            int result = move ? checkLockOwnership(request, file) :
+                    HttpServletResponse.SC_OK;
+            if (result == HttpServletResponse.SC_OK) {
+                result = checkLockOwnership(request, destinationFile);
+            }
+            if (result == HttpServletResponse.SC_OK && move) {
+                result = checkConditionalRequest(request, file);
+            }
+            if (result == HttpServletResponse.SC_OK) {
+                result = checkConditionalRequest(request, destinationFile);
+            }
+            if (result != HttpServletResponse.SC_OK) return result;
+            flushPending(file);
+            flushPending(destinationFile);
+            LockManager lockManager = getLockManager();
+            if (lockManager != null) {
+                if (move) file = lockManager.getLockedResource(file, auth);
+                destinationFile = lockManager.getLockedResource(
+                        destinationFile, auth);
+            }
+            boolean overwritten = destinationFile.exists();
+            if (overwritten && !overwrite) {
+                return HttpServletResponse.SC_PRECONDITION_FAILED;
+            }
+            int success = overwritten ? HttpServletResponse.SC_NO_CONTENT :
+                    HttpServletResponse.SC_CREATED;
+            DeadPropertyStore store = getDeadPropertyStore();
+            if (move && DefaultMoveHandler.isSameShare(file,
+                    destinationFile) && DefaultMoveHandler.rename(file,
+                            destinationFile, overwritten, auth)) {
+                resourceChanged(file);
+                resourceChanged(destinationFile);
+                if (store != null) store.move(file, destinationFile);
+                return success;
+            }
+            if (overwritten) destinationFile.delete();
+            CopyEngine engine = new CopyEngine(getFilter(), getWorkerPool());
+            try {
+                engine.copy(file, destinationFile, depth);
+            } finally {
+                resourceChanged(destinationFile);
+            }
+            CopyEngine.Failure[] failures = engine.getFailures();
+            if (failures.length != 0) {
+                if (store != null) store.copy(file, destinationFile);
+                PropertiesDirector director = new PropertiesDirector(null,
+                        getFilter());
+                for (int i = 0; i < failures.length; i++) {
+                    hrefs.add(director.getDescendantHref(destinationFile,
+                            destination, failures[i].getPath()));
+                    statuses.add(new Integer(failures[i].getStatus()));
+                }
+                return SC_FAILED_DEPENDENCY;
+            }
+            if (!move) {
+                if (store != null) store.copy(file, destinationFile);
+                return success;
+            }
+            try {
+                file.delete();
+            } finally {
+                resourceChanged(file);
+            }
+            if (store != null) store.move(file, destinationFile);
+            return success;
+        }
+
+    }
+
+    /**
+     * A copy of the parts of the request consulted by the operations in a
+     * batch, taken on the request thread so that operations running on
+     * pool threads never touch the request itself.
+     */
+    private static class RequestSnapshot extends HttpServletRequestWrapper {
+
+        private final Map headers = new HashMap();
+
+        private final Map dates = new HashMap();
+
+        private final Map attributes = new HashMap();
+
+        private final String contextPath;
+
+        private final String servletPath;
+
+        public RequestSnapshot(HttpServletRequest request) {
+            super(request);
+            contextPath = request.getContextPath();
+            servletPath = request.getServletPath();
+            for (int i = 0; i < CONDITIONAL_HEADERS.length; i++) {
+                String name = CONDITIONAL_HEADERS[i];
+                List values = Collections.list(request.getHeaders(name));
+                if (values.isEmpty()) continue;
+                headers.put(name.toLowerCase(), values);
+                if (name.endsWith("-Since")) {
+                    dates.put(name.toLowerCase(),
+                            new Long(request.getDateHeader(name)));
+                }
+            }
+            Object value = request.getAttribute(Davenport.CONTEXT_BASE);
+            if (value != null) attributes.put(Davenport.CONTEXT_BASE, value);
+            value = request.getAttribute(Davenport.PRINCIPAL);
+            if (value != null) attributes.put(Davenport.PRINCIPAL, value);
+        }
+
+        public String getContextPath() {
+            return contextPath;
+        }
+
+        public String getServletPath() {
+            return servletPath;
+        }
+
+        public Object getAttribute(String name) {
+            return attributes.get(name);
+        }
+
+        public String getHeader(String name) {
+            List values = (List) headers.get(name.toLowerCase());
+            return (values != null) ? (String) values.get(0) : null;
+        }
+
+        public Enumeration getHeaders(String name) {
+            List values = (List) headers.get(name.toLowerCase());
+            return Collections.enumeration((values != null) ? values :
+                    Collections.EMPTY_LIST);
+        }
+
+        public long getDateHeader(String name) {
+            Long value = (Long) dates.get(name.toLowerCase());
+            return (value != null) ? value.longValue() : -1;
+        }
+
+    }
 
 }
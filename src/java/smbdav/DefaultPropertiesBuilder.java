@@ -20,6 +20,7 @@
 package smbdav;
 
 import java.io.IOException;
+import java.io.StringReader;
 
 import java.util.Enumeration;
 import java.util.HashMap;
@@ -29,6 +30,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
+import java.util.WeakHashMap;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -36,14 +38,14 @@ import javax.servlet.UnavailableException;
 
 import javax.servlet.http.HttpServletResponse;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-
 import jcifs.smb.SmbFile;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
 import smbdav.properties.CreationDateProperty;
 import smbdav.properties.DisplayNameProperty;
 import smbdav.properties.GetContentLengthProperty;
@@ -54,12 +56,29 @@ import smbdav.properties.IsCollectionProperty;
 import smbdav.properties.IsHiddenProperty;
 import smbdav.properties.IsReadOnlyProperty;
 import smbdav.properties.LockDiscoveryProperty;
+import smbdav.properties.QuotaAvailableBytesProperty;
+import smbdav.properties.QuotaUsedBytesProperty;
 import smbdav.properties.ResourceTypeProperty;
 import smbdav.properties.SupportedLockProperty;
 
 /**
  * Default builder for the PROPFIND result XML document.  This builder
  * supports retrieval for most of the basic WebDAV properties.
+ * <p>
+ * The property list supplied to <code>addProps</code> is compiled into a
+ * plan the first time it is seen; the plan resolves each requested
+ * property by qualified name, prepares the elements for unsupported
+ * properties and lists the required namespace declarations.  As the same
+ * array is supplied for every resource in a PROPFIND request, the plan is
+ * then reused for each resource.
+ * <p>
+ * If a <code>DeadPropertyStore</code> is installed, dead properties are
+ * included in "allprop" and "propname" results, and requested properties
+ * which are not supported by a <code>Property</code> are retrieved from
+ * the store.
+ * <p>
+ * Properties implementing <code>ExplicitProperty</code> (such as the
+ * quota properties) are omitted from "allprop" results.
  *
  * @author Eric Glass
  */
@@ -70,15 +89,25 @@ public class DefaultPropertiesBuilder implements PropertiesBuilder {
 
     private final Set properties = new HashSet();
 
+    private final Map index = new HashMap();
+
+    private final Map plans = new WeakHashMap();
+
     private ServletConfig config;
 
+    private DeadPropertyStore deadProperties;
+
     public void init(ServletConfig config) throws ServletException {
         this.config = config;
+        deadProperties = (DeadPropertyStore)
+                config.getServletContext().getAttribute(
+                        Davenport.DEAD_PROPERTY_STORE);
         initProperties(config);
     }
 
     public void destroy() {
         clearProperties();
+        deadProperties = null;
         this.config = null;
     }
 
@@ -102,37 +131,83 @@ public class DefaultPropertiesBuilder implements PropertiesBuilder {
                     file);
             if (prop != null) propstat.appendChild(prop);
         }
+        if (deadProperties != null) {
+            iterator = deadProperties.getProperties(file).values().iterator();
+            while (iterator.hasNext()) {
+                Element prop = parseDeadProperty(document,
+                        (String) iterator.next(), false);
+                if (prop != null) propstat.appendChild(prop);
+            }
+        }
         response.appendChild(propstat);
         document.getDocumentElement().appendChild(response);
     }
 
     public void addAllProps(Document document, SmbFile file, String href)
             throws IOException {
-        List list = new Vector();
+        List elements = new Vector();
+        List resolved = new Vector();
         Iterator iterator = properties.iterator();
         while (iterator.hasNext()) {
-            Element prop = ((Property) iterator.next()).createElement(document,
-                    file);
-            if (prop != null) list.add(prop);
+            Property property = (Property) iterator.next();
+            if (property instanceof ExplicitProperty) continue;
+            Element prop = property.createElement(document, file);
+            if (prop == null) continue;
+            elements.add(prop);
+            resolved.add(property);
         }
-        addProps0(document, file, href,
-                (Element[]) list.toArray(new Element[0]));
+        if (deadProperties != null) {
+            iterator = deadProperties.getProperties(file).keySet().iterator();
+            while (iterator.hasNext()) {
+                String key = (String) iterator.next();
+                if (index.containsKey(key)) continue;
+                int end = key.indexOf('}');
+                String namespace = key.substring(1, end);
+                if (namespace.length() == 0) namespace = null;
+                elements.add(document.createElementNS(namespace,
+                        key.substring(end + 1)));
+                resolved.add(null);
+            }
+        }
+        Element[] props = (Element[]) elements.toArray(new Element[0]);
+        Element documentElement = document.getDocumentElement();
+        for (int i = props.length - 1; i >= 0; i--) {
+            String prefix = props[i].getPrefix();
+            if (prefix != null) {
+                declare(documentElement, prefix, props[i].getNamespaceURI());
+            }
+        }
+        addProps0(document, file, href, props,
+                (Property[]) resolved.toArray(new Property[0]));
     }
 
     public void addProps(Document document, SmbFile file, String href,
             Element[] props) throws IOException {
-        addProps0(document, file, href, props);
+        if (props == null || props.length == 0) {
+            addProps0(document, file, href, null, null);
+            return;
+        }
+        Plan plan = getPlan(props);
+        Element[] templates = plan.templates;
+        int count = templates.length;
+        Element[] elements = new Element[count];
+        synchronized (plan.document) {
+            for (int i = 0; i < count; i++) {
+                elements[i] = (Element) document.importNode(templates[i],
+                        false);
+            }
+        }
+        Element documentElement = document.getDocumentElement();
+        String[] declarations = plan.declarations;
+        for (int i = 0; i < declarations.length; i += 2) {
+            declare(documentElement, declarations[i], declarations[i + 1]);
+        }
+        addProps0(document, file, href, elements, plan.properties);
     }
 
     public Document createDocument() {
-        DocumentBuilderFactory builderFactory =
-                DocumentBuilderFactory.newInstance();
-        builderFactory.setNamespaceAware(true);
-        builderFactory.setExpandEntityReferences(false);
         try {
-            DocumentBuilder builder = builderFactory.newDocumentBuilder();
-            builder.setEntityResolver(BlockedEntityResolver.INSTANCE);
-            Document document = builder.newDocument();
+            Document document = XmlSupport.newDocument();
             Element multistatus = document.createElementNS(
                     Property.DAV_NAMESPACE, "multistatus");
             multistatus.setAttributeNS(XMLNS_NAMESPACE, "xmlns",
@@ -159,7 +234,7 @@ public class DefaultPropertiesBuilder implements PropertiesBuilder {
     }
 
     private void addProps0(Document document, SmbFile file, String href,
-            Element[] props) throws IOException {
+            Element[] props, Property[] resolved) throws IOException {
         Element response = document.createElementNS(Property.DAV_NAMESPACE,
                 "response");
         Element hrefElem = document.createElementNS(Property.DAV_NAMESPACE,
@@ -177,62 +252,90 @@ public class DefaultPropertiesBuilder implements PropertiesBuilder {
             document.getDocumentElement().appendChild(response);
             return;
         }
-        Map results = new HashMap();
-        for (int i = props.length - 1; i >= 0; i--) {
-            Element prop;
-            if (document != props[i].getOwnerDocument()) {
-                prop = (Element) document.importNode(props[i], false);
-            } else {
-                prop = (Element) props[i].cloneNode(false);
-            }
-            Iterator iterator = properties.iterator();
+        int count = props.length;
+        int[] results = new int[count];
+        int[] codes = new int[count];
+        int distinct = 0;
+        Map dead = null;
+        for (int i = 0; i < count; i++) {
             int result = HttpServletResponse.SC_NOT_FOUND;
-            while (iterator.hasNext()) {
-                Property property = (Property) iterator.next();
-                String name = property.getName();
-                String namespace = property.getNamespace();
-                if (namespace == null) namespace = Property.DAV_NAMESPACE;
-                if (!prop.getLocalName().equals(name)) continue;
-                if (!prop.getNamespaceURI().equals(namespace)) continue;
-                result = property.retrieve(file, prop);
-                break;
-            }
-            Integer resultCode = new Integer(result);
-            List resultList = (List) results.get(resultCode);
-            if (resultList == null) {
-                results.put(resultCode, resultList = new Vector());
+            if (resolved[i] != null) {
+                result = resolved[i].retrieve(file, props[i]);
+            } else if (deadProperties != null) {
+                if (dead == null) dead = deadProperties.getProperties(file);
+                String name = props[i].getLocalName();
+                String namespace = props[i].getNamespaceURI();
+                String value = (String) dead.get("{" + ((namespace != null) ?
+                        namespace : "") + "}" + ((name != null) ? name :
+                                props[i].getNodeName()));
+                Element prop = (value != null) ?
+                        parseDeadProperty(document, value, true) : null;
+                if (prop != null) {
+                    props[i] = prop;
+                    result = HttpServletResponse.SC_OK;
+                }
             }
-            resultList.add(prop);
+            results[i] = result;
+            int j = 0;
+            while (j < distinct && codes[j] != result) j++;
+            if (j == distinct) codes[distinct++] = result;
         }
-        Iterator entries = results.entrySet().iterator();
-        Element documentElement = document.getDocumentElement();
-        while (entries.hasNext()) {
-            Map.Entry entry = (Map.Entry) entries.next();
-            int result = ((Integer) entry.getKey()).intValue();
+        for (int j = 0; j < distinct; j++) {
             Element propstat = document.createElementNS(Property.DAV_NAMESPACE,
                     "propstat");
             Element status = document.createElementNS(Property.DAV_NAMESPACE,
                     "status");
-            status.appendChild(document.createTextNode("HTTP/1.1 " + result +
-                    " MultiStatus"));
+            status.appendChild(document.createTextNode("HTTP/1.1 " +
+                    codes[j] + " MultiStatus"));
             propstat.appendChild(status);
             response.appendChild(propstat);
             Element prop = document.createElementNS(Property.DAV_NAMESPACE,
                     "prop");
             propstat.appendChild(prop);
-            Iterator resultProps = ((List) entry.getValue()).iterator();
-            while (resultProps.hasNext()) {
-                Element element = (Element) resultProps.next();
-                prop.appendChild(element);
-                String prefix = element.getPrefix();
-                if (prefix != null && !documentElement.hasAttributeNS(
-                        XMLNS_NAMESPACE, "xmlns:" + prefix)) {
-                    documentElement.setAttributeNS(XMLNS_NAMESPACE,
-                            "xmlns:" + prefix, element.getNamespaceURI());
-                }
+            for (int i = 0; i < count; i++) {
+                if (results[i] == codes[j]) prop.appendChild(props[i]);
             }
         }
-        documentElement.appendChild(response);
+        document.getDocumentElement().appendChild(response);
+    }
+
+    private Element parseDeadProperty(Document document, String value,
+            boolean deep) {
+        try {
+            Element element = XmlSupport.parse(new InputSource(
+                    new StringReader(value))).getDocumentElement();
+            return (Element) document.importNode(element, deep);
+        } catch (SAXException ex) {
+            Log.log(Log.WARNING, "Unable to parse stored property: {0}", ex);
+        } catch (IOException ex) {
+            Log.log(Log.WARNING, "Unable to parse stored property: {0}", ex);
+        }
+        return null;
+    }
+
+    private Plan getPlan(Element[] props) {
+        synchronized (plans) {
+            Plan plan = (Plan) plans.get(props);
+            if (plan == null) {
+                plan = new Plan(props);
+                plans.put(props, plan);
+            }
+            return plan;
+        }
+    }
+
+    private void declare(Element documentElement, String prefix,
+            String namespace) {
+        if (!documentElement.hasAttributeNS(XMLNS_NAMESPACE,
+                "xmlns:" + prefix)) {
+            documentElement.setAttributeNS(XMLNS_NAMESPACE, "xmlns:" + prefix,
+                    namespace);
+        }
+    }
+
+    private static String getKey(String namespace, String name) {
+        return "{" + ((namespace != null) ? namespace :
+                Property.DAV_NAMESPACE) + "}" + name;
     }
 
     private void initProperties(ServletConfig config) throws ServletException {
@@ -252,6 +355,9 @@ public class DefaultPropertiesBuilder implements PropertiesBuilder {
             propertyMap.put("supportedlock", SupportedLockProperty.class);
         }
         propertyMap.put("resourcetype", ResourceTypeProperty.class);
+        propertyMap.put("quota-available-bytes",
+                QuotaAvailableBytesProperty.class);
+        propertyMap.put("quota-used-bytes", QuotaUsedBytesProperty.class);
         Enumeration parameters = config.getInitParameterNames();
         while (parameters.hasMoreElements()) {
             String name = (String) parameters.nextElement();
@@ -290,6 +396,20 @@ public class DefaultPropertiesBuilder implements PropertiesBuilder {
                                 new Object[] { name, ex }, null));
             }
         }
+        index();
+    }
+
+    private void index() {
+        synchronized (plans) {
+            plans.clear();
+        }
+        index.clear();
+        Iterator iterator = properties.iterator();
+        while (iterator.hasNext()) {
+            Property property = (Property) iterator.next();
+            index.put(getKey(property.getNamespace(), property.getName()),
+                    property);
+        }
     }
 
     private void replace(Property property) {
@@ -311,6 +431,51 @@ public class DefaultPropertiesBuilder implements PropertiesBuilder {
             ((Property) iterator.next()).destroy();
             iterator.remove();
         }
+        index();
+    }
+
+    /**
+     * The resolved form of a set of requested properties.  The request's
+     * property elements are copied into a document owned by the plan when
+     * it is created, so that responses built concurrently never read the
+     * request document; the plan for a PROPFIND is created by the thread
+     * evaluating the requested resource, before any member is dispatched
+     * to a worker thread.
+     */
+    private class Plan {
+
+        final Document document;
+
+        final Element[] templates;
+
+        final Property[] properties;
+
+        final String[] declarations;
+
+        public Plan(Element[] props) {
+            int count = props.length;
+            document = XmlSupport.newDocument();
+            templates = new Element[count];
+            properties = new Property[count];
+            List declarations = new Vector();
+            Set prefixes = new HashSet();
+            for (int i = 0; i < count; i++) {
+                String namespace = props[i].getNamespaceURI();
+                String name = props[i].getLocalName();
+                if (name == null) name = props[i].getNodeName();
+                templates[i] = (Element) document.importNode(props[i], true);
+                properties[i] = (Property) index.get("{" +
+                        ((namespace != null) ? namespace : "") + "}" + name);
+                String prefix = props[i].getPrefix();
+                if (prefix != null && prefixes.add(prefix)) {
+                    declarations.add(prefix);
+                    declarations.add(namespace);
+                }
+            }
+            this.declarations =
+                    (String[]) declarations.toArray(new String[0]);
+        }
+
     }
 
 }
@@ -19,10 +19,12 @@
 
 package smbdav;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 
 import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.Vector;
 
 import javax.servlet.ServletConfig;
@@ -31,17 +33,6 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-
-import javax.xml.transform.dom.DOMSource;
-
-import javax.xml.transform.stream.StreamResult;
-
 import jcifs.smb.NtlmPasswordAuthentication;
 import jcifs.smb.SmbFile;
 
@@ -60,10 +51,18 @@ public class DefaultPropfindHandler extends AbstractHandler {
 
     private static final String DAV_NAMESPACE = "DAV:";
 
+    private static final int PROPERTY_NAMES = 0;
+
+    private static final int ALL_PROPERTIES = 1;
+
+    private static final int PROPERTIES = 2;
+
     private PropertiesBuilder propertiesBuilder;
 
     private long maximumXmlRequest;
 
+    private int maximumResources;
+
     public void init(ServletConfig config) throws ServletException {
         super.init(config);
         propertiesBuilder = new DefaultPropertiesBuilder();
@@ -71,6 +70,10 @@ public class DefaultPropfindHandler extends AbstractHandler {
         String maximumXmlRequest = config.getInitParameter("maximumXmlRequest");
         this.maximumXmlRequest = (maximumXmlRequest != null) ?
                 Long.parseLong(maximumXmlRequest) : 20000l;
+        String maximumResources =
+                config.getInitParameter("maximumPropfindResources");
+        this.maximumResources = (maximumResources != null) ?
+                Integer.parseInt(maximumResources) : 10000;
     }
 
     public void destroy() {
@@ -81,8 +84,20 @@ public class DefaultPropfindHandler extends AbstractHandler {
 
     /**
      * Services requests which use the WebDAV PROPFIND method.
-     * This implementation builds and returns an XML document
-     * containing an appropriate PROPFIND result.
+     * This implementation returns an XML document containing an
+     * appropriate PROPFIND result, which is streamed to the client
+     * as each resource is processed.  Child resources are evaluated
+     * concurrently using the shared worker pool (if available); responses
+     * are nonetheless written in traversal order.  If the number of
+     * resources exceeds the configured maximum, the remaining members are
+     * omitted and a 507 (Insufficient Storage) response is included for
+     * each collection whose listing was truncated.
+     * <br>
+     * If a PROPFIND cache is installed, a current cached result for the
+     * same principal, URL, depth and property set is returned without
+     * contacting the server.  Requests for the members of a collection
+     * are reported to the change monitor (if installed), so that
+     * frequently listed collections are watched for changes.
      * <br>
      * If the specified resource does not exist, a 404 (Not Found) error
      * is sent to the client.
@@ -100,27 +115,13 @@ public class DefaultPropfindHandler extends AbstractHandler {
             HttpServletResponse response, NtlmPasswordAuthentication auth)
                     throws ServletException, IOException {
         int depth = SmbDAVUtilities.parseDepth(request.getHeader("Depth"));
-        SmbFile file = getSmbFile(request, auth);
-        if (!file.exists()) {
-            response.sendError(HttpServletResponse.SC_NOT_FOUND);
-            return;
-        }
         String requestUrl = getRequestURL(request);
-        PropertiesDirector director = new PropertiesDirector(
-                getPropertiesBuilder(), getFilter());
-        Document properties = null;
+        int mode = ALL_PROPERTIES;
+        Element[] props = null;
         if (request.getContentLength() > 0) {
-            DocumentBuilderFactory builderFactory =
-                    DocumentBuilderFactory.newInstance();
-            builderFactory.setNamespaceAware(true);
-            builderFactory.setExpandEntityReferences(false);
-            builderFactory.setIgnoringComments(true);
-            builderFactory.setCoalescing(true);
             Document document = null;
             try {
-                DocumentBuilder builder = builderFactory.newDocumentBuilder();
-                builder.setEntityResolver(BlockedEntityResolver.INSTANCE);
-                document = builder.parse(
+                document = XmlSupport.parse(
                         new LimitInputStream(request.getInputStream(),
                                 maximumXmlRequest));
             } catch (Exception ex) {
@@ -141,10 +142,11 @@ public class DefaultPropfindHandler extends AbstractHandler {
             }
             String name = (child != null) ? child.getLocalName() : null;
             if (child == null || "allprop".equals(name)) {
-                properties = director.getAllProperties(file, requestUrl, depth);
+                mode = ALL_PROPERTIES;
             } else if ("propname".equals(name)) {
-                properties = director.getPropertyNames(file, requestUrl, depth);
+                mode = PROPERTY_NAMES;
             } else if ("prop".equals(name)) {
+                mode = PROPERTIES;
                 List propList = new Vector();
                 nodes = child.getChildNodes();
                 int count = nodes.getLength();
@@ -152,30 +154,79 @@ public class DefaultPropfindHandler extends AbstractHandler {
                     Node node = nodes.item(i);
                     if (node instanceof Element) propList.add(node);
                 }
-                Element[] props = (Element[]) propList.toArray(new Element[0]);
-                properties = director.getProperties(file, requestUrl, props,
-                        depth);
+                props = (Element[]) propList.toArray(new Element[0]);
             } else  {
                 response.sendError(HttpServletResponse.SC_BAD_REQUEST);
                 return;
             }
-        } else {
-            properties = director.getAllProperties(file, requestUrl, depth);
         }
-        try {
-            Transformer transformer =
-                    TransformerFactory.newInstance().newTransformer();
-            transformer.setOutputProperty("encoding", "UTF-8");
-            ByteArrayOutputStream collector = new ByteArrayOutputStream();
-            transformer.transform(new DOMSource(properties),
-                    new StreamResult(collector));
-            response.setStatus(SC_MULTISTATUS);
-            response.setContentType("text/xml; charset=\"utf-8\"");
-            collector.writeTo(response.getOutputStream());
-            response.flushBuffer();
-        } catch (TransformerException ex) {
-            throw new IOException(ex.getMessage());
+        PropfindCache cache = getPropfindCache();
+        String key = null;
+        long generation = 0;
+        if (cache != null) {
+            key = PropfindCache.createKey(auth, requestUrl, depth,
+                    getSignature(mode, props));
+            byte[] content = cache.get(key);
+            if (content != null) {
+                Log.log(Log.DEBUG, "Serving cached PROPFIND result for " +
+                        "\"{0}\".", requestUrl);
+                response.setStatus(SC_MULTISTATUS);
+                response.setContentType("text/xml; charset=\"utf-8\"");
+                response.setContentLength(content.length);
+                response.getOutputStream().write(content);
+                response.flushBuffer();
+                return;
+            }
+            generation = cache.getGeneration();
+        }
+        SmbFile file = getSmbFile(request, auth);
+        if (!file.exists()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        ChangeMonitor monitor = getChangeMonitor();
+        if (monitor != null && depth != SmbDAVUtilities.RESOURCE_ONLY_DEPTH &&
+                file.isDirectory()) {
+            monitor.recordAccess(file);
+        }
+        PropertiesDirector director = new PropertiesDirector(
+                getPropertiesBuilder(), getFilter(), getWriteBehindQueue());
+        director.setWorkerPool(getWorkerPool());
+        director.setDeadPropertyStore(getDeadPropertyStore());
+        // a listing of a single collection is returned in full
+        if (depth == SmbDAVUtilities.INFINITE_DEPTH) {
+            director.setMaximumResources(maximumResources);
+        }
+        response.setStatus(SC_MULTISTATUS);
+        response.setContentType("text/xml; charset=\"utf-8\"");
+        OutputStream output = response.getOutputStream();
+        if (cache != null) output = cache.record(output);
+        MultistatusWriter writer = new MultistatusWriter(output);
+        switch (mode) {
+        case PROPERTY_NAMES:
+            director.writePropertyNames(file, requestUrl, depth, writer);
+            break;
+        case PROPERTIES:
+            director.writeProperties(file, requestUrl, props, depth, writer);
+            break;
+        default:
+            director.writeAllProperties(file, requestUrl, depth, writer);
+        }
+        if (cache != null) cache.put(key, file, depth, output, generation);
+        response.flushBuffer();
+    }
+
+    private String getSignature(int mode, Element[] props) {
+        if (mode == PROPERTY_NAMES) return "propname";
+        if (mode == ALL_PROPERTIES) return "allprop";
+        Set names = new TreeSet();
+        for (int i = 0; i < props.length; i++) {
+            String namespace = props[i].getNamespaceURI();
+            String name = props[i].getLocalName();
+            names.add("{" + ((namespace != null) ? namespace : "") + "}" +
+                    ((name != null) ? name : props[i].getNodeName()));
         }
+        return names.toString();
     }
 
     /**
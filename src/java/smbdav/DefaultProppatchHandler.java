@@ -20,12 +20,21 @@ package smbdav;
 
 import java.io.IOException;
 
+import java.util.List;
+import java.util.Vector;
+
+import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import jcifs.smb.NtlmPasswordAuthentication;
+import jcifs.smb.SmbFile;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 
 /**
  * Default implementation of a handler for requests using the WebDAV
@@ -35,9 +44,31 @@ import jcifs.smb.NtlmPasswordAuthentication;
  */
 public class DefaultProppatchHandler extends AbstractHandler {
 
+    private long maximumXmlRequest;
+
+    public void init(ServletConfig config) throws ServletException {
+        super.init(config);
+        String maximumXmlRequest = config.getInitParameter("maximumXmlRequest");
+        this.maximumXmlRequest = (maximumXmlRequest != null) ?
+                Long.parseLong(maximumXmlRequest) : 20000l;
+    }
+
     /**
      * Services requests which use the WebDAV PROPPATCH method.
-     * This implementation doesn't currently do anything.
+     * This implementation stores dead properties in the installed
+     * <code>DeadPropertyStore</code>.  Properties in the DAV namespace
+     * are protected, and cannot be set or removed; if any instruction in
+     * the request fails, no changes are made.  A multistatus response
+     * reporting the result for each property is returned.
+     * <br>
+     * If no dead property store is installed, the request is accepted
+     * but has no effect.
+     * <br>
+     * If the specified resource does not exist, a 404 (Not Found) error
+     * is sent to the client.
+     * <br>
+     * If the PROPPATCH request is not properly formed, a 400 (Bad Request)
+     * error is sent to the client.
      *
      * @param request The request being serviced.
      * @param response The servlet response.
@@ -47,6 +78,130 @@ public class DefaultProppatchHandler extends AbstractHandler {
      */
     public void service(HttpServletRequest request,
             HttpServletResponse response, NtlmPasswordAuthentication auth)
-                    throws ServletException, IOException { }
+                    throws ServletException, IOException {
+        DeadPropertyStore store = getDeadPropertyStore();
+        if (store == null) return;
+        SmbFile file = getSmbFile(request, auth);
+        if (!file.exists()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        int result = checkLockOwnership(request, file);
+        if (result != HttpServletResponse.SC_OK) {
+            response.sendError(result);
+            return;
+        }
+        result = checkConditionalRequest(request, file);
+        if (result != HttpServletResponse.SC_OK) {
+            response.sendError(result);
+            return;
+        }
+        Document document = null;
+        try {
+            document = XmlSupport.parse(new LimitInputStream(
+                    request.getInputStream(), maximumXmlRequest));
+        } catch (Exception ex) {
+            Log.log(Log.DEBUG, "Unable to parse PROPPATCH request: {0}", ex);
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        Element update = document.getDocumentElement();
+        if (!isDAV(update, "propertyupdate")) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        List elements = new Vector();
+        List values = new Vector();
+        for (Node instruction = update.getFirstChild(); instruction != null;
+                instruction = instruction.getNextSibling()) {
+            boolean set = isDAV(instruction, "set");
+            if (!set && !isDAV(instruction, "remove")) continue;
+            for (Node prop = instruction.getFirstChild(); prop != null;
+                    prop = prop.getNextSibling()) {
+                if (!isDAV(prop, "prop")) continue;
+                for (Node property = prop.getFirstChild(); property != null;
+                        property = property.getNextSibling()) {
+                    if (!(property instanceof Element)) continue;
+                    elements.add(property);
+                    values.add(set ? MultistatusWriter.serialize(
+                            (Element) property) : null);
+                }
+            }
+        }
+        int count = elements.size();
+        String[] names = new String[count];
+        int[] results = new int[count];
+        boolean failed = false;
+        for (int i = 0; i < count; i++) {
+            Element property = (Element) elements.get(i);
+            String namespace = property.getNamespaceURI();
+            String name = property.getLocalName();
+            names[i] = "{" + ((namespace != null) ? namespace : "") + "}" +
+                    ((name != null) ? name : property.getNodeName());
+            if (Property.DAV_NAMESPACE.equals(namespace)) {
+                results[i] = HttpServletResponse.SC_FORBIDDEN;
+                failed = true;
+            } else {
+                results[i] = HttpServletResponse.SC_OK;
+            }
+        }
+        if (failed) {
+            for (int i = 0; i < count; i++) {
+                if (results[i] == HttpServletResponse.SC_OK) {
+                    results[i] = SC_FAILED_DEPENDENCY;
+                }
+            }
+        } else if (count > 0) {
+            store.update(file, names,
+                    (String[]) values.toArray(new String[count]));
+            resourceChanged(file);
+        }
+        Document output = XmlSupport.newDocument();
+        Element multistatus = output.createElementNS(Property.DAV_NAMESPACE,
+                "multistatus");
+        output.appendChild(multistatus);
+        Element responseElement = output.createElementNS(
+                Property.DAV_NAMESPACE, "response");
+        multistatus.appendChild(responseElement);
+        Element href = output.createElementNS(Property.DAV_NAMESPACE, "href");
+        href.appendChild(output.createTextNode(getRequestURL(request)));
+        responseElement.appendChild(href);
+        for (int i = 0; i < count; i++) {
+            Element propstat = output.createElementNS(Property.DAV_NAMESPACE,
+                    "propstat");
+            Element prop = output.createElementNS(Property.DAV_NAMESPACE,
+                    "prop");
+            prop.appendChild(output.importNode((Element) elements.get(i),
+                    false));
+            propstat.appendChild(prop);
+            Element status = output.createElementNS(Property.DAV_NAMESPACE,
+                    "status");
+            status.appendChild(output.createTextNode(
+                    MultistatusWriter.getStatusLine(results[i])));
+            propstat.appendChild(status);
+            if (results[i] == HttpServletResponse.SC_FORBIDDEN) {
+                Element error = output.createElementNS(
+                        Property.DAV_NAMESPACE, "error");
+                error.appendChild(output.createElementNS(
+                        Property.DAV_NAMESPACE,
+                                "cannot-modify-protected-property"));
+                propstat.appendChild(error);
+            }
+            responseElement.appendChild(propstat);
+        }
+        response.setStatus(SC_MULTISTATUS);
+        response.setContentType("text/xml; charset=\"utf-8\"");
+        MultistatusWriter writer = new MultistatusWriter(
+                response.getOutputStream());
+        writer.writeResponses(output);
+        writer.finish();
+        response.flushBuffer();
+    }
+
+    private boolean isDAV(Node node, String name) {
+        return (node instanceof Element) &&
+                Property.DAV_NAMESPACE.equals(node.getNamespaceURI()) &&
+                        name.equals(node.getLocalName());
+    }
 
 }
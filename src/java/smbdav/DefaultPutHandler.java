@@ -51,6 +51,10 @@ public class DefaultPutHandler extends AbstractHandler {
      * <br>
      * If the parent collection does not exist, a 409 (Conflict) error is
      * sent to the client.
+     * <br>
+     * If write-behind uploads are enabled, the content is committed to the
+     * local journal and the response is sent immediately; the content is
+     * written to the server in the background.
      *
      * @param request The request being serviced.
      * @param response The servlet response.
@@ -90,19 +94,25 @@ public class DefaultPutHandler extends AbstractHandler {
             response.flushBuffer();
             return;
         }
+        InputStream input = request.getInputStream();
         LockManager lockManager = getLockManager();
         if (lockManager != null) {
             file = lockManager.getLockedResource(file, auth);
         }
-        InputStream input = request.getInputStream();
-        OutputStream output = new SmbFileOutputStream(file);
-        byte[] buf = new byte[8192];
-        int count;
-        while ((count = input.read(buf)) != -1) {
-            output.write(buf, 0, count);
+        WriteBehindQueue queue = getWriteBehindQueue();
+        if (queue != null) {
+            queue.accept(file, auth, input);
+        } else {
+            OutputStream output = new SmbFileOutputStream(file);
+            byte[] buf = new byte[8192];
+            int count;
+            while ((count = input.read(buf)) != -1) {
+                output.write(buf, 0, count);
+            }
+            output.flush();
+            output.close();
         }
-        output.flush();
-        output.close();
+        resourceChanged(file);
         response.setStatus(HttpServletResponse.SC_CREATED);
         response.setHeader("Location", getRequestURL(request));
         response.setHeader("Allow", "OPTIONS, HEAD, GET, DELETE, PROPFIND, " +
@@ -0,0 +1,272 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2007  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.io.IOException;
+
+import java.util.List;
+import java.util.Vector;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import jcifs.smb.NtlmPasswordAuthentication;
+import jcifs.smb.SmbFile;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Default implementation of a handler for requests using the WebDAV
+ * REPORT method.  This supports the RFC 6578 "sync-collection" report,
+ * which allows clients to retrieve only the members of a collection which
+ * have changed (or been removed) since a previous synchronization.
+ * <p>
+ * This handler is not installed by default; it is enabled by specifying
+ * "<code>handler.REPORT</code>" as "<code>smbdav.DefaultReportHandler</code>"
+ * in the servlet configuration.  Membership snapshots are maintained by a
+ * <code>SyncSnapshotStore</code>; only a sync level of "1" is supported.
+ *
+ * @author Eric Glass
+ */
+public class DefaultReportHandler extends AbstractHandler {
+
+    private PropertiesBuilder propertiesBuilder;
+
+    private SyncSnapshotStore store;
+
+    private long maximumXmlRequest;
+
+    public void init(ServletConfig config) throws ServletException {
+        super.init(config);
+        propertiesBuilder = new DefaultPropertiesBuilder();
+        propertiesBuilder.init(config);
+        String maximumXmlRequest = config.getInitParameter("maximumXmlRequest");
+        this.maximumXmlRequest = (maximumXmlRequest != null) ?
+                Long.parseLong(maximumXmlRequest) : 20000l;
+        String maximumCollections =
+                config.getInitParameter("syncCollection.maximumCollections");
+        String maximumTombstones =
+                config.getInitParameter("syncCollection.maximumTombstones");
+        store = new SyncSnapshotStore((maximumCollections != null) ?
+                Integer.parseInt(maximumCollections) : 1000,
+                        (maximumTombstones != null) ?
+                                Integer.parseInt(maximumTombstones) : 1000);
+    }
+
+    public void destroy() {
+        store.clear();
+        store = null;
+        propertiesBuilder.destroy();
+        propertiesBuilder = null;
+        super.destroy();
+    }
+
+    /**
+     * Services requests which use the WebDAV REPORT method.
+     * This implementation supports the "sync-collection" report.  The
+     * collection is listed and compared against the stored snapshot;
+     * the requested properties of each member added or modified since
+     * the client's sync token are returned, along with a 404 (Not Found)
+     * response for each member removed since the token.  The result
+     * includes a new sync token reflecting the current state.
+     * <br>
+     * If the specified resource does not exist, a 404 (Not Found) error
+     * is sent to the client.
+     * <br>
+     * If the report is not supported for the resource, the sync token is
+     * not valid, or a sync level of "infinite" is requested, a
+     * 403 (Forbidden) error is sent to the client, identifying the
+     * failed precondition.
+     * <br>
+     * If the number of changes exceeds the limit requested by the client,
+     * a 507 (Insufficient Storage) error is sent to the client.
+     * <br>
+     * If the REPORT request is not properly formed, a 400 (Bad Request)
+     * error is sent to the client.
+     *
+     * @param request The request being serviced.
+     * @param response The servlet response.
+     * @param auth The user's authentication information.
+     * @throws ServletException If an application error occurs.
+     * @throws IOException If an IO error occurs while handling the request.
+     */
+    public void service(HttpServletRequest request,
+            HttpServletResponse response, NtlmPasswordAuthentication auth)
+                    throws ServletException, IOException {
+        String depth = request.getHeader("Depth");
+        if (depth != null && !"0".equals(depth.trim())) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        SmbFile file = getSmbFile(request, auth);
+        if (!file.exists()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        Document document = null;
+        try {
+            document = XmlSupport.parse(new LimitInputStream(
+                    request.getInputStream(), maximumXmlRequest));
+        } catch (Exception ex) {
+            Log.log(Log.DEBUG, "Unable to parse REPORT request: {0}", ex);
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        Element report = document.getDocumentElement();
+        if (!isDAV(report, "sync-collection") || file.isFile()) {
+            sendError(response, HttpServletResponse.SC_FORBIDDEN,
+                    "supported-report");
+            return;
+        }
+        String token = null;
+        String level = null;
+        int limit = 0;
+        List props = new Vector();
+        for (Node node = report.getFirstChild(); node != null;
+                node = node.getNextSibling()) {
+            if (isDAV(node, "sync-token")) {
+                token = getText(node);
+            } else if (isDAV(node, "sync-level")) {
+                level = getText(node);
+            } else if (isDAV(node, "prop")) {
+                for (Node prop = node.getFirstChild(); prop != null;
+                        prop = prop.getNextSibling()) {
+                    if (prop instanceof Element) props.add(prop);
+                }
+            } else if (isDAV(node, "limit")) {
+                for (Node nresults = node.getFirstChild(); nresults != null;
+                        nresults = nresults.getNextSibling()) {
+                    if (!isDAV(nresults, "nresults")) continue;
+                    try {
+                        limit = Integer.parseInt(getText(nresults));
+                    } catch (NumberFormatException ex) {
+                        response.sendError(
+                                HttpServletResponse.SC_BAD_REQUEST);
+                        return;
+                    }
+                }
+            }
+        }
+        if ("infinite".equals(level)) {
+            sendError(response, HttpServletResponse.SC_FORBIDDEN,
+                    "sync-traversal-supported");
+            return;
+        }
+        if (!"1".equals(level)) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        long since = -1;
+        if (token != null && token.length() > 0) {
+            since = store.parseToken(token);
+            if (since == -1) {
+                sendError(response, HttpServletResponse.SC_FORBIDDEN,
+                        "valid-sync-token");
+                return;
+            }
+        }
+        PropertiesDirector director = new PropertiesDirector(
+                getPropertiesBuilder(), getFilter(), getWriteBehindQueue());
+        director.setDeadPropertyStore(getDeadPropertyStore());
+        SmbFile[] members = director.getMembers(file);
+        if (members == null) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+        SyncSnapshotStore.Changes changes = store.update(file, members, since);
+        if (changes == null) {
+            sendError(response, HttpServletResponse.SC_FORBIDDEN,
+                    "valid-sync-token");
+            return;
+        }
+        SmbFile[] changed = changes.getChanged();
+        String[] removed = changes.getRemoved();
+        if (limit > 0 && changed.length + removed.length > limit) {
+            sendError(response, SC_INSUFFICIENT_STORAGE,
+                    "number-of-matches-within-limits");
+            return;
+        }
+        String requestUrl = getRequestURL(request);
+        response.setStatus(SC_MULTISTATUS);
+        response.setContentType("text/xml; charset=\"utf-8\"");
+        MultistatusWriter writer = new MultistatusWriter(
+                response.getOutputStream());
+        writer.start();
+        director.writeMembers(file, requestUrl, changed,
+                (Element[]) props.toArray(new Element[0]), writer);
+        for (int i = 0; i < removed.length; i++) {
+            writer.writeStatus(director.getMemberHref(file, requestUrl,
+                    removed[i]), HttpServletResponse.SC_NOT_FOUND, null);
+        }
+        Element syncToken = document.createElementNS(Property.DAV_NAMESPACE,
+                "sync-token");
+        syncToken.appendChild(document.createTextNode(
+                store.getToken(changes.getRevision())));
+        writer.write(syncToken);
+        writer.finish();
+        response.flushBuffer();
+    }
+
+    /**
+     * Returns the <code>PropertiesBuilder</code> that will be used
+     * to build the responses for changed members.
+     *
+     * @return The <code>PropertiesBuilder</code> that is used
+     * to build the responses.
+     */
+    protected PropertiesBuilder getPropertiesBuilder() {
+        return propertiesBuilder;
+    }
+
+    private void sendError(HttpServletResponse response, int status,
+            String condition) throws IOException {
+        byte[] content = ("<?xml version=\"1.0\" encoding=\"utf-8\"?>" +
+                "<error xmlns=\"" + Property.DAV_NAMESPACE + "\"><" +
+                        condition + "/></error>").getBytes("UTF-8");
+        response.setStatus(status);
+        response.setContentType("text/xml; charset=\"utf-8\"");
+        response.setContentLength(content.length);
+        response.getOutputStream().write(content);
+        response.flushBuffer();
+    }
+
+    private String getText(Node node) {
+        StringBuffer text = new StringBuffer();
+        for (Node child = node.getFirstChild(); child != null;
+                child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.TEXT_NODE ||
+                    child.getNodeType() == Node.CDATA_SECTION_NODE) {
+                text.append(child.getNodeValue());
+            }
+        }
+        return text.toString().trim();
+    }
+
+    private boolean isDAV(Node node, String name) {
+        return (node instanceof Element) &&
+                Property.DAV_NAMESPACE.equals(node.getNamespaceURI()) &&
+                        name.equals(node.getLocalName());
+    }
+
+}
@@ -79,8 +79,11 @@ public class DefaultUnlockHandler extends AbstractHandler {
             return;
         }
         lockToken = lockToken.substring(1, lockToken.length() - 1);
+        WriteBehindQueue queue = getWriteBehindQueue();
+        if (queue != null) queue.flush(file);
         try {
             lockManager.unlock(file, getPrincipal(request), lockToken);
+            resourceChanged(file);
             response.setStatus(HttpServletResponse.SC_NO_CONTENT);
         } catch (LockException ex) {
             response.setStatus(ex.getStatus());
@@ -0,0 +1,359 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2007  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.io.InterruptedIOException;
+import java.io.IOException;
+
+import java.security.Principal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jcifs.smb.SmbAuthException;
+import jcifs.smb.SmbException;
+import jcifs.smb.SmbFile;
+
+/**
+ * Deletes a resource tree, removing the members of each collection
+ * concurrently on a <code>WorkerPool</code>.  Collections are listed and
+ * their files deleted in parallel; each collection is removed once all of
+ * its members have been removed.  Members locked by a principal other
+ * than the requester are left in place (along with their ancestors), as
+ * are members which cannot be deleted; these are recorded for reporting
+ * in a multistatus response, while the remainder of the tree is deleted.
+ * <p>
+ * As with the <code>CopyEngine</code>, the requesting thread waits on the
+ * tasks in tree order and runs any which have not yet been started by the
+ * pool itself, dispatching at most <code>READ_AHEAD</code> members of each
+ * collection ahead of the member being awaited.
+ *
+ * @author Eric Glass
+ */
+public class DeleteEngine {
+
+    private static final int READ_AHEAD = 64;
+
+    private static final int QUEUED = 0;
+
+    private static final int RUNNING = 1;
+
+    private static final int DONE = 2;
+
+    private final LockManager lockManager;
+
+    private final Principal principal;
+
+    private final WorkerPool pool;
+
+    private final List failures = new ArrayList();
+
+    private final List removed = new ArrayList();
+
+    private ProgressRegistry.Progress progress;
+
+    private boolean checkMembers;
+
+    /**
+     * Creates a delete engine.
+     *
+     * @param lockManager The lock manager consulted for locks on members,
+     * or <code>null</code>.
+     * @param principal The requesting principal.
+     * @param pool The pool used to delete members concurrently, or
+     * <code>null</code> to delete them in the requesting thread.
+     */
+    public DeleteEngine(LockManager lockManager, Principal principal,
+            WorkerPool pool) {
+        this.lockManager = lockManager;
+        this.principal = principal;
+        this.pool = (pool != null && pool.isRunning()) ? pool : null;
+    }
+
+    /**
+     * Sets the progress updated as each resource is deleted.
+     *
+     * @param progress The <code>Progress</code> of the operation, or
+     * <code>null</code>.
+     */
+    public void setProgress(ProgressRegistry.Progress progress) {
+        this.progress = progress;
+    }
+
+    /**
+     * Deletes the specified resource.  Errors deleting the resource itself
+     * (when all of its members were removed) are thrown; members which
+     * could not be deleted can be retrieved via <code>getFailures</code>.
+     *
+     * @param file The resource to delete.
+     * @return <code>true</code> if the resource was deleted entirely;
+     * <code>false</code> if some members remain.
+     * @throws IOException If the resource could not be deleted.
+     */
+    public boolean delete(SmbFile file) throws IOException {
+        if (lockManager instanceof DavenportLockManager) {
+            Lock[] locks = ((DavenportLockManager)
+                    lockManager).getDescendantLocks(file);
+            checkMembers = (locks != null && locks.length > 0);
+        } else {
+            // the provider cannot report subtree locks; check each member
+            checkMembers = (lockManager != null);
+        }
+        Task root = new Task(file, "", false);
+        root.claim();
+        root.evaluate();
+        rethrow(root.error);
+        if (root.children == null) {
+            removed.add(file);
+            return true;
+        }
+        if (!await(root)) return false;
+        root.remove();
+        removed.add(file);
+        return true;
+    }
+
+    /**
+     * Returns the members which could not be deleted, in tree order.
+     *
+     * @return An array of failures, which is empty if the entire tree
+     * was deleted.
+     */
+    public Failure[] getFailures() {
+        return (Failure[]) failures.toArray(new Failure[failures.size()]);
+    }
+
+    /**
+     * Returns the roots of the removed subtrees.  If the entire tree was
+     * deleted, this contains only the requested resource.
+     *
+     * @return An array of the removed resources.
+     */
+    public SmbFile[] getRemoved() {
+        return (SmbFile[]) removed.toArray(new SmbFile[removed.size()]);
+    }
+
+    private boolean await(Task task) throws IOException {
+        Task[] children = task.children;
+        task.children = null;
+        List subtrees = new ArrayList();
+        boolean complete = true;
+        for (int i = 0; i < children.length; i++) {
+            if (i + READ_AHEAD < children.length) {
+                submit(children[i + READ_AHEAD]);
+            }
+            Task child = children[i];
+            children[i] = null;
+            if (child.claim()) {
+                child.evaluate();
+            } else {
+                child.await();
+            }
+            if (child.error != null) {
+                fail(child, child.error);
+                complete = false;
+            } else if (child.blocked) {
+                failures.add(new Failure(child.path, MethodHandler.SC_LOCKED));
+                complete = false;
+            } else if (child.children == null) {
+                subtrees.add(child.file);
+            } else if (await(child)) {
+                try {
+                    child.remove();
+                    subtrees.add(child.file);
+                } catch (IOException ex) {
+                    fail(child, ex);
+                    complete = false;
+                }
+            } else {
+                complete = false;
+            }
+        }
+        if (!complete) removed.addAll(subtrees);
+        return complete;
+    }
+
+    private void fail(Task task, Throwable error) throws IOException {
+        if (error instanceof SmbAuthException) throw (SmbAuthException) error;
+        if (error instanceof SmbException) {
+            failures.add(new Failure(task.path,
+                    SmbDAVUtilities.getStatus((SmbException) error)));
+            return;
+        }
+        rethrow(error);
+        failures.add(new Failure(task.path, 500));
+    }
+
+    private void rethrow(Throwable error) throws IOException {
+        if (error instanceof IOException) throw (IOException) error;
+        if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        }
+        if (error instanceof Error) throw (Error) error;
+    }
+
+    private void submit(Task task) {
+        if (pool == null) return;
+        String server = task.file.getServer();
+        pool.execute((server != null) ? server.toLowerCase() : null, task);
+    }
+
+    /**
+     * A member which could not be deleted.
+     */
+    public static class Failure {
+
+        private final String path;
+
+        private final int status;
+
+        Failure(String path, int status) {
+            this.path = path;
+            this.status = status;
+        }
+
+        /**
+         * Returns the path of the member relative to the deleted resource.
+         *
+         * @return A <code>String</code> containing the relative path, with
+         * "/" separating (and terminating) collection names.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Returns the HTTP status describing the failure.
+         *
+         * @return An <code>int</code> containing the status code.
+         */
+        public int getStatus() {
+            return status;
+        }
+
+    }
+
+    private class Task implements Runnable {
+
+        private final SmbFile file;
+
+        private final String path;
+
+        private final boolean checkLocks;
+
+        private int state = QUEUED;
+
+        private SmbFile resource;
+
+        private Task[] children;
+
+        private boolean blocked;
+
+        private Throwable error;
+
+        public Task(SmbFile file, String path, boolean checkLocks) {
+            this.file = file;
+            this.path = path;
+            this.checkLocks = checkLocks;
+        }
+
+        public void run() {
+            if (claim()) evaluate();
+        }
+
+        public synchronized boolean claim() {
+            if (state != QUEUED) return false;
+            state = RUNNING;
+            return true;
+        }
+
+        public void evaluate() {
+            try {
+                evaluate0();
+            } catch (Throwable throwable) {
+                error = throwable;
+            } finally {
+                synchronized (this) {
+                    state = DONE;
+                    notifyAll();
+                }
+            }
+        }
+
+        public synchronized void await() throws IOException {
+            while (state != DONE) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+
+        public void remove() throws IOException {
+            resource.delete();
+            if (progress != null) progress.add(0l);
+        }
+
+        private void evaluate0() throws IOException {
+            resource = file;
+            if (lockManager != null) {
+                if (checkLocks && isBlocked()) {
+                    blocked = true;
+                    return;
+                }
+                resource = lockManager.getLockedResource(file, principal);
+            }
+            SmbFile[] members = file.isFile() ? null :
+                    ListedFile.listFiles(file, null);
+            if (members == null || members.length == 0) {
+                remove();
+                return;
+            }
+            Task[] children = new Task[members.length];
+            for (int i = 0; i < members.length; i++) {
+                children[i] = new Task(members[i],
+                        path + members[i].getName(), checkMembers);
+            }
+            this.children = children;
+            int count = Math.min(children.length, READ_AHEAD);
+            for (int i = 0; i < count; i++) {
+                submit(children[i]);
+            }
+        }
+
+        private boolean isBlocked() throws IOException {
+            Lock[] locks = lockManager.getActiveLocks(file);
+            if (locks == null || locks.length == 0) return false;
+            if (principal == null) return true;
+            String name = principal.getName();
+            for (int i = locks.length - 1; i >= 0; i--) {
+                Principal owner = locks[i].getPrincipal();
+                if (owner != null && name.equals(owner.getName())) {
+                    return false;
+                }
+            }
+            Log.log(Log.DEBUG, "Skipping \"{0}\" (locked by another user).",
+                    file);
+            return true;
+        }
+
+    }
+
+}
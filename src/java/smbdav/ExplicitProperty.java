@@ -0,0 +1,31 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2007  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package smbdav;
+
+/**
+ * Marks a <code>Property</code> which is reported only when requested by
+ * name.  Such properties are listed in "propname" results, but are omitted
+ * from "allprop" results; this is used for properties which are expensive
+ * to compute or which the specification excludes from "allprop" (such as
+ * the RFC 4331 quota properties).
+ *
+ * @author Eric Glass
+ */
+public interface ExplicitProperty extends Property {
+
+}
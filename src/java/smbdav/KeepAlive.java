@@ -0,0 +1,116 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2007  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Keeps the connection for a long-running operation active.  The Servlet
+ * API provides no means of sending interim 102 (Processing) responses;
+ * instead, once the operation has run for the keep-alive interval, a 207
+ * (Multi-Status) response is committed and whitespace is written within
+ * the multistatus element at each subsequent interval, so that clients
+ * and intermediaries do not time out (and retry) the request.  When the
+ * operation completes, the handler writes the outcome into the committed
+ * multistatus response if one was started, or sends an ordinary response
+ * otherwise.
+ *
+ * @author Eric Glass
+ */
+public class KeepAlive implements Runnable {
+
+    private static final byte[] PADDING;
+
+    static {
+        try {
+            PADDING = "\n".getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex.getMessage());
+        }
+    }
+
+    private final HttpServletResponse response;
+
+    private MultistatusWriter writer;
+
+    private TimerWheel.Timeout timeout;
+
+    private boolean stopped;
+
+    /**
+     * Creates a keep-alive for the specified response.
+     *
+     * @param response The response to keep active.
+     */
+    public KeepAlive(HttpServletResponse response) {
+        this.response = response;
+    }
+
+    public synchronized void run() {
+        if (stopped) return;
+        try {
+            if (writer == null) {
+                Log.log(Log.DEBUG, "Committing early multistatus response.");
+                response.setStatus(MethodHandler.SC_MULTISTATUS);
+                response.setContentType("text/xml; charset=\"utf-8\"");
+                writer = new MultistatusWriter(response.getOutputStream());
+                writer.start();
+            } else {
+                writer.write(PADDING);
+            }
+            writer.flush();
+            response.flushBuffer();
+        } catch (IOException ex) {
+            Log.log(Log.DEBUG, "Keep-alive failed: {0}", ex);
+            stopped = true;
+            cancel();
+        }
+    }
+
+    /**
+     * Sets the timeout under which the keep-alive output is scheduled.
+     *
+     * @param timeout The <code>Timeout</code> returned when the keep-alive
+     * was scheduled.
+     */
+    public synchronized void setTimeout(TimerWheel.Timeout timeout) {
+        this.timeout = timeout;
+        if (stopped) cancel();
+    }
+
+    /**
+     * Stops the keep-alive output.
+     *
+     * @return The <code>MultistatusWriter</code> for the committed
+     * response, or <code>null</code> if no response has been committed.
+     */
+    public synchronized MultistatusWriter stop() {
+        stopped = true;
+        cancel();
+        return writer;
+    }
+
+    private void cancel() {
+        if (timeout != null) timeout.cancel();
+    }
+
+}
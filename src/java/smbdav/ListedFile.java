@@ -0,0 +1,168 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2007  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.io.IOException;
+
+import java.net.MalformedURLException;
+import java.net.UnknownHostException;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import jcifs.smb.SmbException;
+import jcifs.smb.SmbFile;
+import jcifs.smb.SmbFileFilter;
+
+/**
+ * Presents a resource obtained from a directory listing, answering
+ * attribute queries from the values returned in the listing itself.
+ * <p>
+ * jCIFS retains listed attributes only for a short period; when a large
+ * collection is traversed, later members would otherwise be queried
+ * individually.  A <code>ListedFile</code> captures the attributes of
+ * each member as it is received from the server, while the listing is
+ * still in progress, and never contacts the server to satisfy
+ * <code>exists</code>, <code>isFile</code>, <code>isDirectory</code>,
+ * <code>isHidden</code>, <code>canWrite</code>, <code>length</code>,
+ * <code>lastModified</code> or <code>createTime</code>.  Other
+ * operations are passed to the server as usual.  Instances should
+ * therefore be discarded once the request which obtained the listing has
+ * been serviced.
+ *
+ * @author Eric Glass
+ */
+public class ListedFile extends SmbFile {
+
+    private final int attributes;
+
+    private final long createTime;
+
+    private final long lastModified;
+
+    private final long length;
+
+    Map deadProperties;
+
+    private ListedFile(SmbFile file) throws MalformedURLException,
+            UnknownHostException, SmbException {
+        super(file, "");
+        attributes = file.getAttributes();
+        createTime = file.createTime();
+        lastModified = file.lastModified();
+        length = file.length();
+    }
+
+    /**
+     * Lists the members of the specified directory, capturing each
+     * filesystem resource's attributes in a <code>ListedFile</code> as
+     * the member is received from the server.
+     *
+     * @param directory The directory to list.
+     * @param filter The filter to apply, or <code>null</code> to list
+     * all members.
+     * @return An array of the members.
+     * @throws SmbException If the directory could not be listed.
+     */
+    public static SmbFile[] listFiles(SmbFile directory,
+            SmbFileFilter filter) throws SmbException {
+        Capture capture = new Capture(filter);
+        SmbFile[] files = directory.listFiles(capture);
+        if (files == null) return null;
+        for (int i = files.length - 1; i >= 0; i--) {
+            SmbFile file = (SmbFile) capture.captured.get(files[i]);
+            if (file != null) files[i] = file;
+        }
+        return files;
+    }
+
+    public boolean exists() {
+        return true;
+    }
+
+    public boolean isFile() {
+        return (attributes & ATTR_DIRECTORY) == 0;
+    }
+
+    public boolean isDirectory() {
+        return (attributes & ATTR_DIRECTORY) != 0;
+    }
+
+    public boolean isHidden() {
+        return (attributes & ATTR_HIDDEN) != 0;
+    }
+
+    public boolean canWrite() {
+        return (attributes & ATTR_READONLY) == 0;
+    }
+
+    public int getAttributes() {
+        return attributes;
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public long lastModified() {
+        return lastModified;
+    }
+
+    public long createTime() {
+        return createTime;
+    }
+
+    public int getContentLength() {
+        return (int) (length & 0xffffffffl);
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public long getDate() {
+        return lastModified;
+    }
+
+    private static class Capture implements SmbFileFilter {
+
+        final Map captured = new IdentityHashMap();
+
+        private final SmbFileFilter filter;
+
+        public Capture(SmbFileFilter filter) {
+            this.filter = filter;
+        }
+
+        public boolean accept(SmbFile file) throws SmbException {
+            if (filter != null && !filter.accept(file)) return false;
+            try {
+                if (file.getType() == SmbFile.TYPE_FILESYSTEM) {
+                    captured.put(file, new ListedFile(file));
+                }
+            } catch (IOException ex) {
+                Log.log(Log.DEBUG, "Unable to capture listed attributes " +
+                        "for \"{0}\": {1}", new Object[] { file, ex });
+            }
+            return true;
+        }
+
+    }
+
+}
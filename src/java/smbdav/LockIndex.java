@@ -0,0 +1,298 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2007  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+/**
+ * Indexes locks by the path of the locked resource.  Paths are held in a
+ * trie with one node per path segment; each node records the locks held
+ * on its resource and the number of locks held within its subtree.  The
+ * locks applying to a resource (those on the resource itself, and those
+ * on its ancestors with a depth of infinity) are found by walking the
+ * resource's path, and the locks within a subtree by visiting only those
+ * branches which hold locks; neither depends on the total number of
+ * locks.
+ * <p>
+ * Instances are immutable; <code>add</code> and <code>remove</code>
+ * return a new index sharing all unmodified branches with the original.
+ * Each node's children are held in a <code>SegmentMap</code>, so only
+ * O(log n) of a node's children are copied for each level of the path,
+ * however many siblings the modified branch has.
+ * An index may therefore be read by any number of threads without
+ * synchronization while a replacement is being built.
+ *
+ * @author Eric Glass
+ */
+class LockIndex {
+
+    private static final Lock[] NO_LOCKS = new Lock[0];
+
+    /**
+     * The empty index.
+     */
+    public static final LockIndex EMPTY = new LockIndex(new Node(null, null,
+            0));
+
+    private final Node root;
+
+    private LockIndex(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * Builds an index holding the specified locks.  This is equivalent to
+     * adding each lock to the empty index in turn, but avoids copying a
+     * node's members once for every lock beneath it.
+     *
+     * @param paths The canonical paths of the locked resources.
+     * @param locks The corresponding locks.
+     * @return The new index.
+     */
+    public static LockIndex build(String[] paths, Lock[] locks) {
+        Builder root = new Builder();
+        for (int i = 0; i < paths.length; i++) {
+            String[] segments = getSegments(paths[i]);
+            Builder node = root;
+            node.count++;
+            for (int j = 0; j < segments.length; j++) {
+                Builder child = (Builder) node.children.get(segments[j]);
+                if (child == null) {
+                    child = new Builder();
+                    node.children.put(segments[j], child);
+                }
+                node = child;
+                node.count++;
+            }
+            node.locks.add(locks[i]);
+        }
+        return new LockIndex(root.toNode());
+    }
+
+    /**
+     * Returns an index containing the specified lock in addition to the
+     * contents of this index.
+     *
+     * @param path The canonical path of the locked resource.
+     * @param lock The lock.
+     * @return The new index.
+     */
+    public LockIndex add(String path, Lock lock) {
+        return new LockIndex(add(root, getSegments(path), 0, lock));
+    }
+
+    /**
+     * Returns an index containing the contents of this index, less the
+     * specified lock.
+     *
+     * @param path The canonical path of the locked resource.
+     * @param lock The lock.
+     * @return The new index, or this index if the lock was not present.
+     */
+    public LockIndex remove(String path, Lock lock) {
+        Node node = remove(root, getSegments(path), 0, lock);
+        return (node == null) ? this : new LockIndex(node);
+    }
+
+    /**
+     * Returns the locks applying to the specified resource; that is, the
+     * locks on the resource itself and the depth-infinity locks on its
+     * ancestors.
+     *
+     * @param path The canonical path of the resource.
+     * @return An array of locks, or <code>null</code> if there are none.
+     */
+    public Lock[] getActiveLocks(String path) {
+        Node node = root;
+        if (node.count == 0) return null;
+        List result = null;
+        int start = getStart(path);
+        while (true) {
+            int end = path.indexOf('/', start);
+            while (end == start) end = path.indexOf('/', ++start);
+            boolean last = (start == path.length());
+            for (int i = node.locks.length - 1; i >= 0; i--) {
+                Lock lock = node.locks[i];
+                if (!last && lock.getDepth() !=
+                        SmbDAVUtilities.INFINITE_DEPTH) {
+                    continue;
+                }
+                if (result == null) result = new ArrayList();
+                result.add(lock);
+            }
+            // stop once no locks remain below this node
+            if (last || node.count == node.locks.length) break;
+            if (end == -1) end = path.length();
+            node = (Node) node.children.get(path, start, end);
+            if (node == null) break;
+            start = Math.min(end + 1, path.length());
+        }
+        return (result == null) ? null :
+                (Lock[]) result.toArray(new Lock[result.size()]);
+    }
+
+    /**
+     * Returns the locks held on the members of the specified resource
+     * (at any depth), excluding those on the resource itself.
+     *
+     * @param path The canonical path of the resource.
+     * @return An array of locks, or <code>null</code> if there are none.
+     */
+    public Lock[] getDescendantLocks(String path) {
+        Node node = root;
+        int start = getStart(path);
+        while (node.count != node.locks.length) {
+            int end = path.indexOf('/', start);
+            while (end == start) end = path.indexOf('/', ++start);
+            if (start == path.length()) {
+                List result = new ArrayList(node.count - node.locks.length);
+                collect(node.children, result);
+                return (Lock[]) result.toArray(new Lock[result.size()]);
+            }
+            if (end == -1) end = path.length();
+            node = (Node) node.children.get(path, start, end);
+            if (node == null) return null;
+            start = Math.min(end + 1, path.length());
+        }
+        return null;
+    }
+
+    /**
+     * Indicates whether the index holds any locks.
+     *
+     * @return <code>true</code> if the index is empty.
+     */
+    public boolean isEmpty() {
+        return root.count == 0;
+    }
+
+    private static Node add(Node node, String[] segments, int index,
+            Lock lock) {
+        if (index == segments.length) {
+            Lock[] locks = new Lock[node.locks.length + 1];
+            System.arraycopy(node.locks, 0, locks, 0, node.locks.length);
+            locks[node.locks.length] = lock;
+            return new Node(node.children, locks, node.count + 1);
+        }
+        Node child = (Node) node.children.get(segments[index]);
+        if (child == null) child = EMPTY.root;
+        return new Node(node.children.put(segments[index],
+                add(child, segments, index + 1, lock)), node.locks,
+                        node.count + 1);
+    }
+
+    private static Node remove(Node node, String[] segments, int index,
+            Lock lock) {
+        if (index == segments.length) {
+            for (int i = node.locks.length - 1; i >= 0; i--) {
+                if (node.locks[i] != lock) continue;
+                Lock[] locks = NO_LOCKS;
+                if (node.locks.length > 1) {
+                    locks = new Lock[node.locks.length - 1];
+                    System.arraycopy(node.locks, 0, locks, 0, i);
+                    System.arraycopy(node.locks, i + 1, locks, i,
+                            locks.length - i);
+                }
+                return new Node(node.children, locks, node.count - 1);
+            }
+            return null;
+        }
+        Node child = (Node) node.children.get(segments[index]);
+        if (child == null) return null;
+        child = remove(child, segments, index + 1, lock);
+        if (child == null) return null;
+        SegmentMap children = (child.count == 0) ?
+                node.children.remove(segments[index]) :
+                        node.children.put(segments[index], child);
+        return new Node(children, node.locks, node.count - 1);
+    }
+
+    private static void collect(SegmentMap children, List result) {
+        if (children.isEmpty()) return;
+        List nodes = new ArrayList(children.size());
+        children.values(nodes);
+        for (int i = nodes.size() - 1; i >= 0; i--) {
+            Node node = (Node) nodes.get(i);
+            for (int j = 0; j < node.locks.length; j++) {
+                result.add(node.locks[j]);
+            }
+            collect(node.children, result);
+        }
+    }
+
+    private static int getStart(String path) {
+        int index = path.indexOf("://");
+        return (index != -1) ? index + 3 : 0;
+    }
+
+    private static String[] getSegments(String path) {
+        int index = path.indexOf("://");
+        StringTokenizer tokens = new StringTokenizer((index != -1) ?
+                path.substring(index + 3) : path, "/");
+        String[] segments = new String[tokens.countTokens()];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = tokens.nextToken();
+        }
+        return segments;
+    }
+
+    private static class Builder {
+
+        final Map children = new HashMap(2);
+
+        final List locks = new ArrayList(1);
+
+        int count;
+
+        Node toNode() {
+            SegmentMap nodes = SegmentMap.EMPTY;
+            Iterator entries = children.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry entry = (Map.Entry) entries.next();
+                nodes = nodes.put((String) entry.getKey(),
+                        ((Builder) entry.getValue()).toNode());
+            }
+            return new Node(nodes, locks.isEmpty() ? null :
+                    (Lock[]) locks.toArray(new Lock[locks.size()]), count);
+        }
+
+    }
+
+    private static class Node {
+
+        final SegmentMap children;
+
+        final Lock[] locks;
+
+        final int count;
+
+        Node(SegmentMap children, Lock[] locks, int count) {
+            this.children = (children != null) ? children : SegmentMap.EMPTY;
+            this.locks = (locks != null) ? locks : NO_LOCKS;
+            this.count = count;
+        }
+
+    }
+
+}
@@ -0,0 +1,592 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2007  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records the locks held by a lock manager in a local append-only
+ * journal, so that they survive a restart of the gateway.  Each lock,
+ * refresh and unlock is appended to the journal and synchronized to disk
+ * before the operation completes.  Concurrent operations are committed
+ * as a group: records appended while a synchronization is in progress
+ * are written together by the next committing thread, so that a burst of
+ * lock requests costs a single <code>fsync</code> rather than one each.
+ * A change takes effect in memory only once its batch has been committed;
+ * if the write fails, the journal is truncated to discard the partial
+ * batch, so that the journal and the live locks remain consistent.
+ * <p>
+ * The live locks are held in memory; when the journal grows to several
+ * times their number, it is compacted by writing a snapshot to a
+ * temporary file which then replaces the journal.  Locks which have
+ * expired are discarded when the journal is replayed.
+ *
+ * @author Eric Glass
+ */
+public class LockJournal {
+
+    private static final String LOG_FILE = "locks.log";
+
+    private static final String TEMPORARY_FILE = "locks.tmp";
+
+    private static final int LOCK = 1;
+
+    private static final int REFRESH = 2;
+
+    private static final int UNLOCK = 3;
+
+    private static final int MINIMUM_COMPACTION = 1000;
+
+    private final Map entries = new HashMap();
+
+    private final File directory;
+
+    private FileOutputStream log;
+
+    private Batch batch = new Batch();
+
+    private boolean syncing;
+
+    private int records;
+
+    /**
+     * Opens the journal in the specified directory, replaying any existing
+     * log and discarding expired locks.
+     *
+     * @param directory The directory holding the lock journal.
+     * @throws IOException If the journal cannot be read or created.
+     */
+    public LockJournal(File directory) throws IOException {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException(SmbDAVUtilities.getResource(
+                    LockJournal.class, "cantCreateLog",
+                            new Object[] { directory }, null));
+        }
+        File file = new File(directory, LOG_FILE);
+        File temporary = new File(directory, TEMPORARY_FILE);
+        if (!file.exists() && temporary.exists()) temporary.renameTo(file);
+        if (file.exists()) replay(file);
+        int replayed = records;
+        long now = System.currentTimeMillis();
+        Iterator iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            if (((Entry) iterator.next()).isExpired(now)) iterator.remove();
+        }
+        log = new FileOutputStream(file, true);
+        synchronized (this) {
+            compact();
+        }
+        Log.log(Log.DEBUG, "Loaded {0} locks from {1} records in \"{2}\".",
+                new Object[] { new Integer(entries.size()),
+                        new Integer(replayed), file });
+    }
+
+    /**
+     * Returns the locks recorded in the journal when it was opened,
+     * excluding those which had expired.
+     *
+     * @return An <code>Entry[]</code> containing the live locks.
+     */
+    public synchronized Entry[] getEntries() {
+        return (Entry[]) entries.values().toArray(new Entry[entries.size()]);
+    }
+
+    /**
+     * Closes the journal.
+     */
+    public synchronized void close() {
+        while (syncing) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                break;
+            }
+        }
+        if (log == null) return;
+        try {
+            log.close();
+        } catch (IOException ex) {
+            Log.log(Log.WARNING, "Unable to close lock journal: {0}", ex);
+        }
+        log = null;
+    }
+
+    /**
+     * Records a new lock.
+     *
+     * @param entry The lock.
+     * @throws IOException If the lock could not be committed.
+     */
+    public void lock(Entry entry) throws IOException {
+        byte[] record = encode(entry);
+        Batch target;
+        synchronized (this) {
+            target = append(record, entry.token, entry);
+        }
+        commit(target);
+    }
+
+    /**
+     * Records the renewal of a lock.
+     *
+     * @param token The lock token.
+     * @param expiration The new expiration time (in milliseconds since the
+     * epoch), or -1 if the lock does not expire.
+     * @throws IOException If the refresh could not be committed.
+     */
+    public void refresh(String token, long expiration) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(buffer);
+        record.writeInt(REFRESH);
+        writeString(record, token);
+        record.writeLong(expiration);
+        Batch target;
+        synchronized (this) {
+            Entry entry = (Entry) entries.get(token);
+            if (entry == null) return;
+            target = append(buffer.toByteArray(), token,
+                    entry.renew(expiration));
+        }
+        commit(target);
+    }
+
+    /**
+     * Records the removal of a lock.
+     *
+     * @param token The lock token.
+     * @throws IOException If the removal could not be committed.
+     */
+    public void unlock(String token) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(buffer);
+        record.writeInt(UNLOCK);
+        writeString(record, token);
+        Batch target;
+        synchronized (this) {
+            if (!entries.containsKey(token)) return;
+            target = append(buffer.toByteArray(), token, null);
+        }
+        commit(target);
+    }
+
+    private Batch append(byte[] record, String token, Entry entry)
+            throws IOException {
+        if (log == null) {
+            throw new IOException(SmbDAVUtilities.getResource(
+                    LockJournal.class, "closed", null, null));
+        }
+        batch.add(record, token, entry);
+        records++;
+        return batch;
+    }
+
+    private void commit(Batch target) throws IOException {
+        synchronized (this) {
+            while (!target.done && syncing) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if (target.done) {
+                if (target.error != null) throw target.error;
+                return;
+            }
+            // no commit in progress; this thread writes the pending batch
+            syncing = true;
+            batch = new Batch();
+        }
+        IOException error = null;
+        long length = -1;
+        try {
+            length = log.getChannel().size();
+            target.writeTo(log);
+            log.getFD().sync();
+        } catch (IOException ex) {
+            Log.log(Log.WARNING, "Unable to commit lock journal: {0}", ex);
+            error = ex;
+        }
+        synchronized (this) {
+            if (error == null) {
+                target.apply(entries);
+            } else {
+                records -= target.size();
+                if (length != -1) discard(length);
+            }
+            target.done = true;
+            target.error = error;
+            syncing = false;
+            notifyAll();
+            if (error != null) throw error;
+            compact();
+        }
+    }
+
+    /**
+     * Truncates the journal to the specified length, discarding a batch
+     * which could not be committed; a partial record would otherwise hide
+     * the records written after it when the journal is replayed.  If the
+     * journal cannot be truncated, it is closed.
+     */
+    private void discard(long length) {
+        try {
+            log.getChannel().truncate(length);
+        } catch (IOException ex) {
+            Log.log(Log.WARNING, "Unable to truncate lock journal; " +
+                    "closing: {0}", ex);
+            try {
+                log.close();
+            } catch (IOException ignore) { }
+            log = null;
+        }
+    }
+
+    /**
+     * Compacts the journal if it has grown sufficiently.  A failure is
+     * logged rather than reported, as the records which prompted the
+     * compaction have already been committed; the journal continues with
+     * the previous log.
+     */
+    private void compact() {
+        if (records < MINIMUM_COMPACTION || records < entries.size() * 2) {
+            return;
+        }
+        while (syncing) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                return;
+            }
+        }
+        if (log == null) return;
+        try {
+            snapshot();
+        } catch (IOException ex) {
+            Log.log(Log.WARNING, "Unable to compact lock journal: {0}", ex);
+            // defer the next attempt
+            records = entries.size();
+        }
+    }
+
+    private void snapshot() throws IOException {
+        File file = new File(directory, LOG_FILE);
+        File temporary = new File(directory, TEMPORARY_FILE);
+        // the snapshot includes any records not yet written
+        Map current = new HashMap(entries);
+        batch.apply(current);
+        FileOutputStream snapshot = new FileOutputStream(temporary);
+        try {
+            DataOutputStream output = new DataOutputStream(
+                    new BufferedOutputStream(snapshot, 65536));
+            Iterator iterator = current.values().iterator();
+            while (iterator.hasNext()) {
+                byte[] record = encode((Entry) iterator.next());
+                output.writeInt(record.length);
+                output.write(record);
+            }
+            output.flush();
+            snapshot.getFD().sync();
+        } finally {
+            snapshot.close();
+        }
+        log.close();
+        log = null;
+        try {
+            if (!file.delete() || !temporary.renameTo(file)) {
+                throw new IOException(SmbDAVUtilities.getResource(
+                        LockJournal.class, "cantCompactLog",
+                                new Object[] { file }, null));
+            }
+        } finally {
+            if (!file.exists()) {
+                // the previous log is gone; the snapshot replaces it
+                temporary.renameTo(file);
+            }
+            log = new FileOutputStream(file, true);
+        }
+        batch.apply(entries);
+        batch.done = true;
+        batch = new Batch();
+        notifyAll();
+        records = entries.size();
+        Log.log(Log.DEBUG, "Compacted lock journal to {0} records.",
+                new Integer(records));
+    }
+
+    /**
+     * Replays the log.  A record which is incomplete or corrupt (i.e.,
+     * left by a write interrupted by a crash) marks the end of the valid
+     * data; it and anything following it are truncated.
+     */
+    private void replay(File file) throws IOException {
+        long size = file.length();
+        long valid = 0;
+        DataInputStream input = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file), 65536));
+        try {
+            while (true) {
+                int length;
+                byte[] record;
+                try {
+                    length = input.readInt();
+                    if (length < 0 || length > size - valid - 4) break;
+                    record = new byte[length];
+                    input.readFully(record);
+                } catch (EOFException ex) {
+                    break;
+                }
+                try {
+                    apply(new DataInputStream(new ByteArrayInputStream(
+                            record)));
+                } catch (IOException ex) {
+                    Log.log(Log.WARNING, "Corrupt record in lock journal " +
+                            "\"{0}\": {1}", new Object[] { file, ex });
+                    break;
+                }
+                valid += 4 + length;
+                records++;
+            }
+        } finally {
+            input.close();
+        }
+        if (valid < size) {
+            Log.log(Log.WARNING, "Discarding incomplete record at the end " +
+                    "of lock journal \"{0}\".", file);
+            RandomAccessFile truncate = new RandomAccessFile(file, "rw");
+            try {
+                truncate.setLength(valid);
+            } finally {
+                truncate.close();
+            }
+        }
+    }
+
+    private void apply(DataInputStream record) throws IOException {
+        int operation = record.readInt();
+        String token = readString(record);
+        switch (operation) {
+        case LOCK:
+            String path = readString(record);
+            String principal = readString(record);
+            boolean exclusive = record.readBoolean();
+            int depth = record.readInt();
+            String owner = readString(record);
+            entries.put(token, new Entry(token, path,
+                    (principal.length() != 0) ? principal : null, exclusive,
+                            depth, (owner.length() != 0) ? owner : null,
+                                    record.readLong()));
+            break;
+        case REFRESH:
+            long expiration = record.readLong();
+            Entry entry = (Entry) entries.get(token);
+            if (entry != null) entries.put(token, entry.renew(expiration));
+            break;
+        case UNLOCK:
+            entries.remove(token);
+            break;
+        default:
+            throw new IOException(SmbDAVUtilities.getResource(
+                    LockJournal.class, "corruptLog",
+                            new Object[] { new Integer(operation) }, null));
+        }
+    }
+
+    private static byte[] encode(Entry entry) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(buffer);
+        record.writeInt(LOCK);
+        writeString(record, entry.token);
+        writeString(record, entry.path);
+        writeString(record, (entry.principal != null) ? entry.principal : "");
+        record.writeBoolean(entry.exclusive);
+        record.writeInt(entry.depth);
+        writeString(record, (entry.owner != null) ? entry.owner : "");
+        record.writeLong(entry.expiration);
+        return buffer.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream output, String value)
+            throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(DataInputStream input)
+            throws IOException {
+        // records are read from memory, so the remainder is known
+        int length = input.readInt();
+        if (length < 0 || length > input.available()) {
+            throw new EOFException();
+        }
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * A lock recorded in the journal.
+     */
+    public static class Entry {
+
+        private final String token;
+
+        private final String path;
+
+        private final String principal;
+
+        private final boolean exclusive;
+
+        private final int depth;
+
+        private final String owner;
+
+        private final long expiration;
+
+        /**
+         * Creates a journal entry.
+         *
+         * @param token The lock token.
+         * @param path The canonical path of the locked resource.
+         * @param principal The name of the lock holder, or
+         * <code>null</code>.
+         * @param exclusive Whether the lock is exclusive.
+         * @param depth The depth of the lock.
+         * @param owner The serialized owner information, or
+         * <code>null</code>.
+         * @param expiration The expiration time (in milliseconds since the
+         * epoch), or -1 if the lock does not expire.
+         */
+        public Entry(String token, String path, String principal,
+                boolean exclusive, int depth, String owner, long expiration) {
+            this.token = token;
+            this.path = path;
+            this.principal = principal;
+            this.exclusive = exclusive;
+            this.depth = depth;
+            this.owner = owner;
+            this.expiration = expiration;
+        }
+
+        public String getToken() {
+            return token;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getPrincipal() {
+            return principal;
+        }
+
+        public boolean isExclusive() {
+            return exclusive;
+        }
+
+        public int getDepth() {
+            return depth;
+        }
+
+        public String getOwner() {
+            return owner;
+        }
+
+        public long getExpiration() {
+            return expiration;
+        }
+
+        boolean isExpired(long now) {
+            return expiration != -1 && expiration <= now;
+        }
+
+        Entry renew(long expiration) {
+            return new Entry(token, path, principal, exclusive, depth, owner,
+                    expiration);
+        }
+
+    }
+
+    private static class Batch {
+
+        private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+        private final List tokens = new ArrayList();
+
+        private final List changes = new ArrayList();
+
+        boolean done;
+
+        IOException error;
+
+        void add(byte[] record, String token, Entry entry)
+                throws IOException {
+            DataOutputStream output = new DataOutputStream(data);
+            output.writeInt(record.length);
+            output.write(record);
+            tokens.add(token);
+            changes.add(entry);
+        }
+
+        int size() {
+            return tokens.size();
+        }
+
+        void writeTo(FileOutputStream log) throws IOException {
+            data.writeTo(log);
+        }
+
+        /**
+         * Applies the batch's changes to the specified map of live locks,
+         * in the order in which they were appended.
+         */
+        void apply(Map entries) {
+            for (int i = 0; i < tokens.size(); i++) {
+                Entry entry = (Entry) changes.get(i);
+                if (entry != null) {
+                    entries.put(tokens.get(i), entry);
+                } else {
+                    entries.remove(tokens.get(i));
+                }
+            }
+        }
+
+    }
+
+}
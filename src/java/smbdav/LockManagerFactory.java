@@ -18,6 +18,8 @@
 
 package smbdav;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 
 import java.util.Enumeration;
@@ -108,6 +110,8 @@ public abstract class LockManagerFactory {
 
         private long maximumTimeout = SmbDAVUtilities.INFINITE_TIMEOUT;
 
+        private String journal;
+
         public void setProperties(Properties properties) {
             String defaultTimeout = properties.getProperty("defaultTimeout");
             if (defaultTimeout != null) {
@@ -117,10 +121,19 @@ public abstract class LockManagerFactory {
             if (maximumTimeout != null) {
                 this.maximumTimeout = Long.parseLong(maximumTimeout);
             }
+            journal = properties.getProperty("journal");
         }
 
         public LockManager newLockManager() {
-            return new DefaultLockManager(defaultTimeout, maximumTimeout);
+            if (journal == null) {
+                return new DefaultLockManager(defaultTimeout, maximumTimeout);
+            }
+            try {
+                return new DefaultLockManager(defaultTimeout, maximumTimeout,
+                        new LockJournal(new File(journal)));
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex.getMessage());
+            }
         }
 
     }
@@ -0,0 +1,253 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2007  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.io.IOException;
+
+/**
+ * A lock store shared by several gateway instances.  The store is the
+ * authority on which locks exist; it performs conflict detection
+ * atomically, so that two instances cannot grant conflicting locks on
+ * the same resource.
+ * <p>
+ * Each lock is held under a lease as well as its timeout.  The instance
+ * which created (or last refreshed) a lock renews the lease periodically;
+ * if that instance fails, the lease lapses and the lock is released,
+ * rather than remaining until its (possibly infinite) timeout.  All times
+ * are exchanged as durations relative to the store's clock, so that
+ * the instances' clocks need not agree.
+ *
+ * @author Eric Glass
+ */
+public interface LockStore {
+
+    /**
+     * Records a lock, unless it conflicts with an existing lock.
+     *
+     * @param record The lock to be created.
+     * @return <code>null</code> if the lock was created, or the existing
+     * lock with which it conflicts.
+     * @throws IOException If the store cannot be reached.
+     */
+    public Record lock(Record record) throws IOException;
+
+    /**
+     * Refreshes a lock, resetting its timeout and lease.
+     *
+     * @param token The lock token.
+     * @param timeout The new timeout (in milliseconds), or
+     * <code>SmbDAVUtilities.INFINITE_TIMEOUT</code>.
+     * @param lease The new lease duration (in milliseconds).
+     * @return <code>true</code> if the lock was refreshed;
+     * <code>false</code> if it no longer exists.
+     * @throws IOException If the store cannot be reached.
+     */
+    public boolean refresh(String token, long timeout, long lease)
+            throws IOException;
+
+    /**
+     * Renews the leases on a set of locks, leaving their timeouts
+     * unchanged.
+     *
+     * @param tokens The lock tokens.
+     * @param lease The new lease duration (in milliseconds).
+     * @return A <code>boolean[]</code> indicating, for each token, whether
+     * the lock still exists.
+     * @throws IOException If the store cannot be reached.
+     */
+    public boolean[] renew(String[] tokens, long lease) throws IOException;
+
+    /**
+     * Removes a lock.
+     *
+     * @param token The lock token.
+     * @return <code>true</code> if the lock was removed;
+     * <code>false</code> if it did not exist.
+     * @throws IOException If the store cannot be reached.
+     */
+    public boolean unlock(String token) throws IOException;
+
+    /**
+     * Returns the lock with the specified token.
+     *
+     * @param token The lock token.
+     * @return The lock, or <code>null</code> if it does not exist.
+     * @throws IOException If the store cannot be reached.
+     */
+    public Record get(String token) throws IOException;
+
+    /**
+     * Returns the locks applying to the specified resource; that is, the
+     * locks on the resource itself and the depth-infinity locks on its
+     * ancestors.
+     *
+     * @param path The canonical path of the resource.
+     * @return The locks, or <code>null</code> if there are none.
+     * @throws IOException If the store cannot be reached.
+     */
+    public Record[] getActiveLocks(String path) throws IOException;
+
+    /**
+     * Returns the locks held on the members of the specified resource,
+     * at any depth.
+     *
+     * @param path The canonical path of the resource.
+     * @return The locks, or <code>null</code> if there are none.
+     * @throws IOException If the store cannot be reached.
+     */
+    public Record[] getDescendantLocks(String path) throws IOException;
+
+    /**
+     * Releases any resources held by this store client.
+     */
+    public void close();
+
+    /**
+     * A lock held in the store.
+     */
+    public static class Record {
+
+        private final String token;
+
+        private final String path;
+
+        private final String principal;
+
+        private final boolean exclusive;
+
+        private final int depth;
+
+        private final String owner;
+
+        private final long timeout;
+
+        private final long lease;
+
+        /**
+         * Creates a lock record.
+         *
+         * @param token The lock token.
+         * @param path The canonical path of the locked resource.
+         * @param principal The name of the lock holder, or
+         * <code>null</code>.
+         * @param exclusive Whether the lock is exclusive.
+         * @param depth The depth of the lock.
+         * @param owner The serialized owner information, or
+         * <code>null</code>.
+         * @param timeout The time (in milliseconds) remaining until the
+         * lock expires, or <code>SmbDAVUtilities.INFINITE_TIMEOUT</code>.
+         * @param lease The time (in milliseconds) remaining on the lease.
+         */
+        public Record(String token, String path, String principal,
+                boolean exclusive, int depth, String owner, long timeout,
+                        long lease) {
+            this.token = token;
+            this.path = path;
+            this.principal = principal;
+            this.exclusive = exclusive;
+            this.depth = depth;
+            this.owner = owner;
+            this.timeout = timeout;
+            this.lease = lease;
+        }
+
+        public String getToken() {
+            return token;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getPrincipal() {
+            return principal;
+        }
+
+        public boolean isExclusive() {
+            return exclusive;
+        }
+
+        public int getDepth() {
+            return depth;
+        }
+
+        public String getOwner() {
+            return owner;
+        }
+
+        public long getTimeout() {
+            return timeout;
+        }
+
+        public long getLease() {
+            return lease;
+        }
+
+        /**
+         * Indicates whether this lock applies to the specified resource.
+         *
+         * @param path The canonical path of the resource.
+         * @return <code>true</code> if the resource is the locked resource,
+         * or a member of it and the lock has a depth of infinity.
+         */
+        public boolean covers(String path) {
+            String locked = trim(this.path);
+            path = trim(path);
+            if (path.equals(locked)) return true;
+            if (depth != SmbDAVUtilities.INFINITE_DEPTH) return false;
+            return path.startsWith(locked + "/");
+        }
+
+        /**
+         * Indicates whether this lock conflicts with the specified lock.
+         *
+         * @param other The other lock.
+         * @return <code>true</code> if either lock is exclusive and
+         * either covers the other's resource.
+         */
+        public boolean conflicts(Record other) {
+            if (!exclusive && !other.exclusive) return false;
+            return covers(other.path) || other.covers(path);
+        }
+
+        /**
+         * Removes the trailing slash from a collection path, so that a
+         * collection is identified by the same key whether or not it was
+         * addressed with one.
+         *
+         * @param path The canonical path of a resource.
+         * @return The path without any trailing slash.
+         */
+        public static String trim(String path) {
+            while (path.endsWith("/") && !path.endsWith("//")) {
+                path = path.substring(0, path.length() - 1);
+            }
+            return path;
+        }
+
+        public String toString() {
+            return "token: " + token + "; path: " + path + "; principal: " +
+                    principal + "; exclusive: " + exclusive + "; depth: " +
+                            depth + "; timeout: " + timeout + "; lease: " +
+                                    lease;
+        }
+
+    }
+
+}
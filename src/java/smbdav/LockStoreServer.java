@@ -0,0 +1,414 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2007  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import javax.crypto.Mac;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import smbdav.LockStore.Record;
+
+/**
+ * Serves a <code>LockStore</code> to other gateway instances over a
+ * socket.  Requests and responses use a compact binary encoding: each
+ * request is an operation code followed by its arguments, and each
+ * response a status code followed by the result.  Strings are encoded as
+ * modified UTF-8 (absent values as empty strings), and lock times as
+ * durations relative to the store's clock.  Each connection is served by
+ * its own thread, and may carry any number of requests in sequence.
+ * <p>
+ * Connections are authenticated with a shared secret: the server sends a
+ * random challenge, which the client answers with an HMAC-SHA1 of the
+ * challenge keyed by the secret.  The secret itself is never sent.  The
+ * number of concurrent connections, and the number of records in any
+ * request, are bounded.
+ *
+ * @author Eric Glass
+ * @see SocketLockStore
+ */
+public class LockStoreServer {
+
+    static final int LOCK = 1;
+
+    static final int REFRESH = 2;
+
+    static final int RENEW = 3;
+
+    static final int UNLOCK = 4;
+
+    static final int GET = 5;
+
+    static final int ACTIVE = 6;
+
+    static final int DESCENDANTS = 7;
+
+    static final int OK = 0;
+
+    static final int FAILED = 1;
+
+    static final int CHALLENGE_LENGTH = 16;
+
+    static final int MAXIMUM_RECORDS = 65536;
+
+    private static final int AUTHENTICATION_TIMEOUT = 10000;
+
+    private final SecureRandom random = new SecureRandom();
+
+    private final Set connections = new HashSet();
+
+    private final LockStore store;
+
+    private final String secret;
+
+    private final int maximumConnections;
+
+    private final ServerSocket serverSocket;
+
+    private boolean closed;
+
+    /**
+     * Creates a server and begins accepting connections.
+     *
+     * @param store The store to be served.
+     * @param address The local address on which to listen, or
+     * <code>null</code> to listen on all addresses.
+     * @param port The port on which to listen, or 0 for any free port.
+     * @param secret The secret shared with the clients.
+     * @param maximumConnections The maximum number of concurrent
+     * connections.
+     * @throws IOException If the server socket cannot be created.
+     */
+    public LockStoreServer(LockStore store, InetAddress address, int port,
+            String secret, int maximumConnections) throws IOException {
+        if (secret == null || secret.length() == 0) {
+            throw new IllegalArgumentException(SmbDAVUtilities.getResource(
+                    LockStoreServer.class, "secretRequired", null, null));
+        }
+        this.store = store;
+        this.secret = secret;
+        this.maximumConnections = Math.max(maximumConnections, 1);
+        serverSocket = new ServerSocket(port, 50, address);
+        Thread acceptor = new Thread(new Acceptor(),
+                "Davenport-LockStoreServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        Log.log(Log.DEBUG, "Serving lock store on {0}.",
+                serverSocket.getLocalSocketAddress());
+    }
+
+    /**
+     * Returns the port on which the server is listening.
+     *
+     * @return An <code>int</code> containing the port.
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Stops accepting connections, and closes those which are open.
+     */
+    public void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException ex) {
+            Log.log(Log.DEBUG, "Unable to close lock store server: {0}", ex);
+        }
+        List open;
+        synchronized (connections) {
+            closed = true;
+            open = new ArrayList(connections);
+        }
+        Iterator iterator = open.iterator();
+        while (iterator.hasNext()) {
+            try {
+                ((Socket) iterator.next()).close();
+            } catch (IOException ignore) { }
+        }
+    }
+
+    /**
+     * Computes the response to an authentication challenge.
+     *
+     * @param secret The shared secret.
+     * @param challenge The challenge sent by the server.
+     * @return A <code>byte[]</code> containing the response.
+     * @throws IOException If the response cannot be computed.
+     */
+    static byte[] respond(String secret, byte[] challenge)
+            throws IOException {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA1");
+            mac.init(new SecretKeySpec(secret.getBytes("UTF-8"), "HmacSHA1"));
+            return mac.doFinal(challenge);
+        } catch (GeneralSecurityException ex) {
+            throw new IOException(ex.getMessage());
+        }
+    }
+
+    /**
+     * Reads a record count, rejecting counts which are out of bounds.
+     */
+    static int readCount(DataInputStream input) throws IOException {
+        int count = input.readInt();
+        if (count < 0 || count > MAXIMUM_RECORDS) {
+            throw new IOException(SmbDAVUtilities.getResource(
+                    LockStoreServer.class, "badCount",
+                            new Object[] { new Integer(count) }, null));
+        }
+        return count;
+    }
+
+    static void writeRecord(DataOutputStream output, Record record)
+            throws IOException {
+        output.writeUTF(record.getToken());
+        output.writeUTF(record.getPath());
+        writeString(output, record.getPrincipal());
+        output.writeBoolean(record.isExclusive());
+        output.writeInt(record.getDepth());
+        writeString(output, record.getOwner());
+        output.writeLong(record.getTimeout());
+        output.writeLong(record.getLease());
+    }
+
+    static Record readRecord(DataInputStream input) throws IOException {
+        String token = input.readUTF();
+        String path = input.readUTF();
+        String principal = readString(input);
+        boolean exclusive = input.readBoolean();
+        int depth = input.readInt();
+        String owner = readString(input);
+        long timeout = input.readLong();
+        return new Record(token, path, principal, exclusive, depth, owner,
+                timeout, input.readLong());
+    }
+
+    static void writeRecords(DataOutputStream output, Record[] records)
+            throws IOException {
+        if (records == null) {
+            output.writeInt(0);
+            return;
+        }
+        output.writeInt(records.length);
+        for (int i = 0; i < records.length; i++) {
+            writeRecord(output, records[i]);
+        }
+    }
+
+    static Record[] readRecords(DataInputStream input) throws IOException {
+        int count = readCount(input);
+        if (count == 0) return null;
+        Record[] records = new Record[count];
+        for (int i = 0; i < count; i++) records[i] = readRecord(input);
+        return records;
+    }
+
+    static void writeString(DataOutputStream output, String value)
+            throws IOException {
+        output.writeUTF((value != null) ? value : "");
+    }
+
+    static String readString(DataInputStream input) throws IOException {
+        String value = input.readUTF();
+        return (value.length() != 0) ? value : null;
+    }
+
+    private void serve(DataInputStream input, DataOutputStream output)
+            throws IOException {
+        int operation = input.read();
+        if (operation == -1) throw new EOFException();
+        Record record;
+        switch (operation) {
+        case LOCK:
+            record = store.lock(readRecord(input));
+            output.write(OK);
+            output.writeBoolean(record != null);
+            if (record != null) writeRecord(output, record);
+            break;
+        case REFRESH:
+            String token = input.readUTF();
+            long timeout = input.readLong();
+            boolean refreshed = store.refresh(token, timeout,
+                    input.readLong());
+            output.write(OK);
+            output.writeBoolean(refreshed);
+            break;
+        case RENEW:
+            String[] tokens = new String[readCount(input)];
+            for (int i = 0; i < tokens.length; i++) {
+                tokens[i] = input.readUTF();
+            }
+            boolean[] renewed = store.renew(tokens, input.readLong());
+            output.write(OK);
+            for (int i = 0; i < renewed.length; i++) {
+                output.writeBoolean(renewed[i]);
+            }
+            break;
+        case UNLOCK:
+            boolean unlocked = store.unlock(input.readUTF());
+            output.write(OK);
+            output.writeBoolean(unlocked);
+            break;
+        case GET:
+            record = store.get(input.readUTF());
+            output.write(OK);
+            output.writeBoolean(record != null);
+            if (record != null) writeRecord(output, record);
+            break;
+        case ACTIVE:
+            Record[] active = store.getActiveLocks(input.readUTF());
+            output.write(OK);
+            writeRecords(output, active);
+            break;
+        case DESCENDANTS:
+            Record[] descendants = store.getDescendantLocks(input.readUTF());
+            output.write(OK);
+            writeRecords(output, descendants);
+            break;
+        default:
+            throw new IOException(SmbDAVUtilities.getResource(
+                    LockStoreServer.class, "unknownOperation",
+                            new Object[] { new Integer(operation) }, null));
+        }
+    }
+
+    private boolean authenticate(DataInputStream input,
+            DataOutputStream output) throws IOException {
+        byte[] challenge = new byte[CHALLENGE_LENGTH];
+        random.nextBytes(challenge);
+        output.write(challenge);
+        output.flush();
+        byte[] expected = respond(secret, challenge);
+        byte[] response = new byte[expected.length];
+        input.readFully(response);
+        boolean valid = MessageDigest.isEqual(expected, response);
+        output.write(valid ? OK : FAILED);
+        output.flush();
+        return valid;
+    }
+
+    private class Acceptor implements Runnable {
+
+        public void run() {
+            while (!serverSocket.isClosed()) {
+                Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (IOException ex) {
+                    if (!serverSocket.isClosed()) {
+                        Log.log(Log.WARNING, "Lock store server failed: {0}",
+                                ex);
+                    }
+                    return;
+                }
+                synchronized (connections) {
+                    if (closed) {
+                        // accepted while the server was being closed
+                        try {
+                            socket.close();
+                        } catch (IOException ignore) { }
+                        return;
+                    }
+                    if (connections.size() >= maximumConnections) {
+                        Log.log(Log.WARNING, "Refusing lock store " +
+                                "connection from {0}: too many connections.",
+                                        socket.getRemoteSocketAddress());
+                        try {
+                            socket.close();
+                        } catch (IOException ignore) { }
+                        continue;
+                    }
+                    connections.add(socket);
+                }
+                Thread handler = new Thread(new Handler(socket),
+                        "Davenport-LockStoreServer-" +
+                                socket.getRemoteSocketAddress());
+                handler.setDaemon(true);
+                handler.start();
+            }
+        }
+
+    }
+
+    private class Handler implements Runnable {
+
+        private final Socket socket;
+
+        Handler(Socket socket) {
+            this.socket = socket;
+        }
+
+        public void run() {
+            try {
+                socket.setTcpNoDelay(true);
+                DataInputStream input = new DataInputStream(
+                        new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream output = new DataOutputStream(
+                        new BufferedOutputStream(socket.getOutputStream()));
+                socket.setSoTimeout(AUTHENTICATION_TIMEOUT);
+                if (!authenticate(input, output)) {
+                    Log.log(Log.WARNING, "Rejected lock store connection " +
+                            "from {0}: authentication failed.",
+                                    socket.getRemoteSocketAddress());
+                    return;
+                }
+                socket.setSoTimeout(0);
+                while (true) {
+                    serve(input, output);
+                    output.flush();
+                }
+            } catch (EOFException ex) {
+                // client closed the connection
+            } catch (IOException ex) {
+                Log.log(Log.DEBUG, "Closing lock store connection {0}: {1}",
+                        new Object[] { socket, ex });
+            } finally {
+                synchronized (connections) {
+                    connections.remove(socket);
+                }
+                try {
+                    socket.close();
+                } catch (IOException ignore) { }
+            }
+        }
+
+    }
+
+}
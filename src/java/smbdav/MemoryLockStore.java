@@ -0,0 +1,243 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2007  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * A <code>LockStore</code> held in memory.  This serves as the reference
+ * store: used directly, it shares locks among lock managers within a
+ * single process; served through a <code>LockStoreServer</code>, it
+ * shares them among gateway instances.
+ * <p>
+ * Locks are indexed by token and by path; the locks applying to a
+ * resource are found by looking up each of its ancestors, and those
+ * within a collection by a range scan.  Expired locks are discarded as
+ * they are encountered, and by a periodic sweep as the store grows.
+ *
+ * @author Eric Glass
+ */
+public class MemoryLockStore implements LockStore {
+
+    private static final int MINIMUM_SWEEP = 256;
+
+    private final Map tokens = new HashMap();
+
+    private final SortedMap paths = new TreeMap();
+
+    private int sweepThreshold = MINIMUM_SWEEP;
+
+    public synchronized Record lock(Record record) {
+        long now = System.currentTimeMillis();
+        if (tokens.size() >= sweepThreshold) sweep(now);
+        String path = Record.trim(record.getPath());
+        List candidates = new ArrayList();
+        collectActive(path, now, candidates);
+        if (record.getDepth() == SmbDAVUtilities.INFINITE_DEPTH) {
+            collectDescendants(path, now, candidates);
+        }
+        for (int i = candidates.size() - 1; i >= 0; i--) {
+            Entry entry = (Entry) candidates.get(i);
+            if (entry.record.getToken().equals(record.getToken())) {
+                return null;  // already granted (i.e., a retried request)
+            }
+            if (entry.record.conflicts(record)) return entry.toRecord(now);
+        }
+        Entry entry = new Entry(path, record, now);
+        tokens.put(record.getToken(), entry);
+        List entries = (List) paths.get(path);
+        if (entries == null) paths.put(path, entries = new ArrayList(1));
+        entries.add(entry);
+        return null;
+    }
+
+    public synchronized boolean refresh(String token, long timeout,
+            long lease) {
+        long now = System.currentTimeMillis();
+        Entry entry = getEntry(token, now);
+        if (entry == null) return false;
+        entry.deadline = (timeout == SmbDAVUtilities.INFINITE_TIMEOUT) ? -1 :
+                now + timeout;
+        entry.leaseExpiration = now + lease;
+        return true;
+    }
+
+    public synchronized boolean[] renew(String[] tokens, long lease) {
+        long now = System.currentTimeMillis();
+        boolean[] result = new boolean[tokens.length];
+        for (int i = tokens.length - 1; i >= 0; i--) {
+            Entry entry = getEntry(tokens[i], now);
+            if (entry == null) continue;
+            entry.leaseExpiration = now + lease;
+            result[i] = true;
+        }
+        return result;
+    }
+
+    public synchronized boolean unlock(String token) {
+        long now = System.currentTimeMillis();
+        Entry entry = getEntry(token, now);
+        if (entry == null) return false;
+        remove(entry);
+        return true;
+    }
+
+    public synchronized Record get(String token) {
+        long now = System.currentTimeMillis();
+        Entry entry = getEntry(token, now);
+        return (entry != null) ? entry.toRecord(now) : null;
+    }
+
+    public synchronized Record[] getActiveLocks(String path) {
+        long now = System.currentTimeMillis();
+        List entries = new ArrayList();
+        collectActive(Record.trim(path), now, entries);
+        return toRecords(entries, now);
+    }
+
+    public synchronized Record[] getDescendantLocks(String path) {
+        long now = System.currentTimeMillis();
+        List entries = new ArrayList();
+        collectDescendants(Record.trim(path), now, entries);
+        return toRecords(entries, now);
+    }
+
+    public void close() { }
+
+    private Entry getEntry(String token, long now) {
+        Entry entry = (Entry) tokens.get(token);
+        if (entry == null || !entry.isExpired(now)) return entry;
+        remove(entry);
+        return null;
+    }
+
+    private void collectActive(String path, long now, List result) {
+        String ancestor = path;
+        while (true) {
+            List entries = (List) paths.get(ancestor);
+            if (entries != null) {
+                for (int i = entries.size() - 1; i >= 0; i--) {
+                    Entry entry = (Entry) entries.get(i);
+                    if (entry.isExpired(now)) {
+                        remove(entry);
+                    } else if (entry.record.covers(path)) {
+                        result.add(entry);
+                    }
+                }
+            }
+            int index = ancestor.lastIndexOf('/');
+            if (index <= 0 || ancestor.charAt(index - 1) == '/') break;
+            ancestor = ancestor.substring(0, index);
+        }
+    }
+
+    private void collectDescendants(String path, long now, List result) {
+        List expired = null;
+        Iterator iterator = paths.subMap(path + "/",
+                path + "/\uffff").values().iterator();
+        while (iterator.hasNext()) {
+            List entries = (List) iterator.next();
+            for (int i = entries.size() - 1; i >= 0; i--) {
+                Entry entry = (Entry) entries.get(i);
+                if (!entry.isExpired(now)) {
+                    result.add(entry);
+                    continue;
+                }
+                if (expired == null) expired = new ArrayList();
+                expired.add(entry);
+            }
+        }
+        if (expired == null) return;
+        for (int i = expired.size() - 1; i >= 0; i--) {
+            remove((Entry) expired.get(i));
+        }
+    }
+
+    private void remove(Entry entry) {
+        tokens.remove(entry.record.getToken());
+        List entries = (List) paths.get(entry.path);
+        if (entries == null) return;
+        entries.remove(entry);
+        if (entries.isEmpty()) paths.remove(entry.path);
+    }
+
+    private void sweep(long now) {
+        List expired = new ArrayList();
+        Iterator iterator = tokens.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = (Entry) iterator.next();
+            if (entry.isExpired(now)) expired.add(entry);
+        }
+        for (int i = expired.size() - 1; i >= 0; i--) {
+            remove((Entry) expired.get(i));
+        }
+        sweepThreshold = Math.max(tokens.size() * 2, MINIMUM_SWEEP);
+    }
+
+    private static Record[] toRecords(List entries, long now) {
+        if (entries.isEmpty()) return null;
+        Record[] records = new Record[entries.size()];
+        for (int i = records.length - 1; i >= 0; i--) {
+            records[i] = ((Entry) entries.get(i)).toRecord(now);
+        }
+        return records;
+    }
+
+    private static class Entry {
+
+        final String path;
+
+        final Record record;
+
+        long deadline;
+
+        long leaseExpiration;
+
+        Entry(String path, Record record, long now) {
+            this.path = path;
+            this.record = record;
+            long timeout = record.getTimeout();
+            deadline = (timeout == SmbDAVUtilities.INFINITE_TIMEOUT) ? -1 :
+                    now + timeout;
+            leaseExpiration = now + record.getLease();
+        }
+
+        boolean isExpired(long now) {
+            return now >= leaseExpiration || (deadline != -1 &&
+                    now >= deadline);
+        }
+
+        Record toRecord(long now) {
+            long timeout = (deadline == -1) ?
+                    SmbDAVUtilities.INFINITE_TIMEOUT : deadline - now;
+            return new Record(record.getToken(), record.getPath(),
+                    record.getPrincipal(), record.isExclusive(),
+                            record.getDepth(), record.getOwner(), timeout,
+                                    leaseExpiration - now);
+        }
+
+    }
+
+}
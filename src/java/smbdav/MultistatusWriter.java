@@ -0,0 +1,504 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2007  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Writes a WebDAV multistatus response directly to an output stream as
+ * UTF-8 encoded XML.  Response elements are serialized as they are
+ * supplied, so that only a single resource's properties need to be held
+ * in memory at a time and the client begins receiving the result
+ * immediately.  The enclosing <code>multistatus</code> markup is written
+ * from pre-encoded fragments.  Namespace declarations are emitted on each
+ * element as required; the DAV namespace (as the default namespace) and
+ * the Web Folders namespace (prefix "w") are declared on the root element.
+ *
+ * @author Eric Glass
+ */
+public class MultistatusWriter {
+
+    private static final String XMLNS_NAMESPACE =
+            "http://www.w3.org/2000/xmlns/";
+
+    private static final byte[] PREAMBLE;
+
+    private static final byte[] CLOSING;
+
+    private static final byte[] END_EMPTY = { '/', '>' };
+
+    private static final byte[] END_START = { '>' };
+
+    static {
+        try {
+            PREAMBLE = ("<?xml version=\"1.0\" encoding=\"utf-8\"?>" +
+                    "<multistatus xmlns=\"" + Property.DAV_NAMESPACE +
+                            "\" xmlns:w=\"" + Property.WEB_FOLDERS_NAMESPACE +
+                                    "\">").getBytes("UTF-8");
+            CLOSING = "</multistatus>".getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex.getMessage());
+        }
+    }
+
+    private final Map tags = new HashMap();
+
+    private final List bindings = new ArrayList();
+
+    private final OutputStream output;
+
+    private final byte[] buffer = new byte[8192];
+
+    private int count;
+
+    private boolean started;
+
+    /**
+     * Creates a writer which sends the multistatus response to the given
+     * stream.
+     *
+     * @param output The stream to which the response is written.
+     */
+    public MultistatusWriter(OutputStream output) {
+        this(output, false);
+    }
+
+    /**
+     * Creates a writer which sends multistatus output to the given stream.
+     * A fragment writer omits the enclosing <code>multistatus</code>
+     * markup, producing response elements which can later be inserted
+     * into a complete multistatus response via <code>write(byte[])</code>.
+     *
+     * @param output The stream to which the output is written.
+     * @param fragment Whether this writer produces a fragment.
+     */
+    public MultistatusWriter(OutputStream output, boolean fragment) {
+        this.output = output;
+        if (fragment) {
+            started = true;
+            bindRoot();
+        }
+    }
+
+    /**
+     * Writes the XML declaration and the opening <code>multistatus</code>
+     * tag.
+     *
+     * @throws IOException If an IO error occurs.
+     */
+    public void start() throws IOException {
+        if (started) return;
+        started = true;
+        write(PREAMBLE);
+        bindRoot();
+    }
+
+    /**
+     * Writes the specified <code>response</code> element.
+     *
+     * @param response The response element.
+     * @throws IOException If an IO error occurs.
+     */
+    public void write(Element response) throws IOException {
+        start();
+        writeElement(response);
+    }
+
+    /**
+     * Writes a response element which has already been serialized by a
+     * fragment writer.
+     *
+     * @param fragment The serialized response.
+     * @throws IOException If an IO error occurs.
+     */
+    public void write(byte[] fragment) throws IOException {
+        start();
+        write(fragment, 0, fragment.length);
+    }
+
+    /**
+     * Writes a response element containing only a status for the
+     * specified resource.
+     *
+     * @param href The HTTP URL of the resource.
+     * @param status The HTTP status code.
+     * @param error The local name of a DAV precondition or postcondition
+     * element to report, or <code>null</code>.
+     * @throws IOException If an IO error occurs.
+     */
+    public void writeStatus(String href, int status, String error)
+            throws IOException {
+        start();
+        write(getTag("response", true));
+        write(END_START);
+        write(getTag("href", true));
+        write(END_START);
+        writeText(href, false);
+        write(getTag("href", false));
+        write(getTag("status", true));
+        write(END_START);
+        writeText(getStatusLine(status), false);
+        write(getTag("status", false));
+        if (error != null) {
+            write(getTag("error", true));
+            write(END_START);
+            write(getTag(error, true));
+            write(END_EMPTY);
+            write(getTag("error", false));
+        }
+        write(getTag("response", false));
+    }
+
+    /**
+     * Returns the HTTP status line for the given status code.  Codes
+     * without a specific reason phrase are given the generic phrase for
+     * their class.
+     *
+     * @param status The HTTP status code.
+     * @return A <code>String</code> containing the status line.
+     */
+    public static String getStatusLine(int status) {
+        String reason;
+        switch (status) {
+        case 200:
+            reason = "OK";
+            break;
+        case 201:
+            reason = "Created";
+            break;
+        case 204:
+            reason = "No Content";
+            break;
+        case 207:
+            reason = "Multi-Status";
+            break;
+        case 400:
+            reason = "Bad Request";
+            break;
+        case 401:
+            reason = "Unauthorized";
+            break;
+        case 403:
+            reason = "Forbidden";
+            break;
+        case 404:
+            reason = "Not Found";
+            break;
+        case 405:
+            reason = "Method Not Allowed";
+            break;
+        case 409:
+            reason = "Conflict";
+            break;
+        case 412:
+            reason = "Precondition Failed";
+            break;
+        case 423:
+            reason = "Locked";
+            break;
+        case 424:
+            reason = "Failed Dependency";
+            break;
+        case 500:
+            reason = "Internal Server Error";
+            break;
+        case 502:
+            reason = "Bad Gateway";
+            break;
+        case 503:
+            reason = "Service Unavailable";
+            break;
+        case 507:
+            reason = "Insufficient Storage";
+            break;
+        default:
+            switch (status / 100) {
+            case 1:
+                reason = "Informational";
+                break;
+            case 2:
+                reason = "Success";
+                break;
+            case 3:
+                reason = "Redirection";
+                break;
+            case 4:
+                reason = "Client Error";
+                break;
+            default:
+                reason = "Server Error";
+            }
+        }
+        return "HTTP/1.1 " + status + " " + reason;
+    }
+
+    /**
+     * Writes each of the response elements contained in the given
+     * document's root element, removing them from the document once
+     * they have been written.
+     *
+     * @param document The document containing the responses.
+     * @throws IOException If an IO error occurs.
+     */
+    public void writeResponses(Document document) throws IOException {
+        Element root = document.getDocumentElement();
+        Node child;
+        while ((child = root.getFirstChild()) != null) {
+            root.removeChild(child);
+            if (child instanceof Element) write((Element) child);
+        }
+    }
+
+    /**
+     * Writes the closing <code>multistatus</code> tag and flushes the
+     * underlying stream.
+     *
+     * @throws IOException If an IO error occurs.
+     */
+    public void finish() throws IOException {
+        start();
+        write(CLOSING);
+        flush();
+    }
+
+    /**
+     * Flushes any buffered output to the underlying stream.
+     *
+     * @throws IOException If an IO error occurs.
+     */
+    public void flush() throws IOException {
+        if (count > 0) {
+            output.write(buffer, 0, count);
+            count = 0;
+        }
+        output.flush();
+    }
+
+    /**
+     * Serializes the given element as a self-contained XML fragment,
+     * declaring all namespaces used within it.
+     *
+     * @param element The element to serialize.
+     * @return A <code>String</code> containing the serialized element.
+     * @throws IOException If an IO error occurs.
+     */
+    public static String serialize(Element element) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        MultistatusWriter writer = new MultistatusWriter(buffer, true);
+        writer.bindings.clear();
+        writer.writeElement(element);
+        writer.flush();
+        return buffer.toString("UTF-8");
+    }
+
+    private void bindRoot() {
+        bindings.clear();
+        bindings.add("");
+        bindings.add(Property.DAV_NAMESPACE);
+        bindings.add("w");
+        bindings.add(Property.WEB_FOLDERS_NAMESPACE);
+    }
+
+    private void writeElement(Element element) throws IOException {
+        int scope = bindings.size();
+        String name = element.getLocalName();
+        if (name == null) name = element.getNodeName();
+        String prefix = element.getPrefix();
+        String namespace = element.getNamespaceURI();
+        String qname = (prefix != null) ? prefix + ":" + name : name;
+        write(getTag(qname, true));
+        declare((prefix != null) ? prefix : "",
+                (namespace != null) ? namespace : "");
+        NamedNodeMap attributes = element.getAttributes();
+        int length = attributes.getLength();
+        for (int i = 0; i < length; i++) {
+            Attr attribute = (Attr) attributes.item(i);
+            if (XMLNS_NAMESPACE.equals(attribute.getNamespaceURI())) continue;
+            String attributeName = attribute.getName();
+            if (attributeName.equals("xmlns") ||
+                    attributeName.startsWith("xmlns:")) {
+                continue;
+            }
+            String attributePrefix = attribute.getPrefix();
+            String attributeNamespace = attribute.getNamespaceURI();
+            if (attributePrefix != null && attributeNamespace != null &&
+                    !"xml".equals(attributePrefix)) {
+                declare(attributePrefix, attributeNamespace);
+            }
+            write(' ');
+            writeText(attributeName, true);
+            write('=');
+            write('"');
+            writeText(attribute.getValue(), true);
+            write('"');
+        }
+        Node child = element.getFirstChild();
+        if (child == null) {
+            write(END_EMPTY);
+        } else {
+            write(END_START);
+            for (; child != null; child = child.getNextSibling()) {
+                switch (child.getNodeType()) {
+                case Node.ELEMENT_NODE:
+                    writeElement((Element) child);
+                    break;
+                case Node.TEXT_NODE:
+                case Node.CDATA_SECTION_NODE:
+                    writeText(child.getNodeValue(), false);
+                    break;
+                default:
+                }
+            }
+            write(getTag(qname, false));
+        }
+        while (bindings.size() > scope) {
+            bindings.remove(bindings.size() - 1);
+        }
+    }
+
+    private void declare(String prefix, String namespace) throws IOException {
+        for (int i = bindings.size() - 2; i >= 0; i -= 2) {
+            if (!prefix.equals(bindings.get(i))) continue;
+            if (namespace.equals(bindings.get(i + 1))) return;
+            break;
+        }
+        if (prefix.length() == 0 && namespace.length() == 0 &&
+                !bindings.contains("")) {
+            return;
+        }
+        bindings.add(prefix);
+        bindings.add(namespace);
+        write(' ');
+        writeText((prefix.length() != 0) ? "xmlns:" + prefix : "xmlns", true);
+        write('=');
+        write('"');
+        writeText(namespace, true);
+        write('"');
+    }
+
+    private byte[] getTag(String qname, boolean start) throws IOException {
+        String key = start ? qname : "/" + qname;
+        byte[] tag = (byte[]) tags.get(key);
+        if (tag == null) {
+            tag = (start ? "<" + qname : "</" + qname + ">").getBytes("UTF-8");
+            tags.put(key, tag);
+        }
+        return tag;
+    }
+
+    private void writeText(String text, boolean attribute) throws IOException {
+        if (text == null) return;
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            switch (c) {
+            case '&':
+                write('&'); write('a'); write('m'); write('p'); write(';');
+                break;
+            case '<':
+                write('&'); write('l'); write('t'); write(';');
+                break;
+            case '>':
+                write('&'); write('g'); write('t'); write(';');
+                break;
+            case '"':
+                if (attribute) {
+                    write('&'); write('q'); write('u'); write('o'); write('t');
+                    write(';');
+                } else {
+                    write('"');
+                }
+                break;
+            case '\r':
+                // escaped so that parsers do not normalize it to a newline
+                write('&'); write('#'); write('1'); write('3'); write(';');
+                break;
+            case '\n':
+            case '\t':
+                if (attribute) {
+                    // escaped so that parsers do not normalize it to a space
+                    write('&'); write('#');
+                    if (c == '\n') {
+                        write('1'); write('0');
+                    } else {
+                        write('9');
+                    }
+                    write(';');
+                } else {
+                    write(c);
+                }
+                break;
+            default:
+                if (c < 0x80) {
+                    write(c);
+                } else if (c < 0x800) {
+                    write(0xc0 | (c >> 6));
+                    write(0x80 | (c & 0x3f));
+                } else if (c >= 0xd800 && c <= 0xdbff && i + 1 < length) {
+                    int codePoint = 0x10000 + ((c - 0xd800) << 10) +
+                            (text.charAt(++i) - 0xdc00);
+                    write(0xf0 | (codePoint >> 18));
+                    write(0x80 | ((codePoint >> 12) & 0x3f));
+                    write(0x80 | ((codePoint >> 6) & 0x3f));
+                    write(0x80 | (codePoint & 0x3f));
+                } else {
+                    write(0xe0 | (c >> 12));
+                    write(0x80 | ((c >> 6) & 0x3f));
+                    write(0x80 | (c & 0x3f));
+                }
+            }
+        }
+    }
+
+    private void write(int b) throws IOException {
+        if (count == buffer.length) {
+            output.write(buffer, 0, count);
+            count = 0;
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    private void write(byte[] b, int offset, int length) throws IOException {
+        if (length > buffer.length - count) {
+            output.write(buffer, 0, count);
+            count = 0;
+            if (length > buffer.length) {
+                output.write(b, offset, length);
+                return;
+            }
+        }
+        System.arraycopy(b, offset, buffer, count, length);
+        count += length;
+    }
+
+}
@@ -0,0 +1,55 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2007  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.security.Principal;
+
+/**
+ * Identifies the holder of a lock which was not obtained through this
+ * gateway instance (i.e., restored from a journal or held in a shared
+ * lock store).  Only the name of the principal is known.
+ *
+ * @author Eric Glass
+ */
+class NamedPrincipal implements Principal {
+
+    private final String name;
+
+    public NamedPrincipal(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean equals(Object obj) {
+        return (obj instanceof NamedPrincipal) &&
+                name.equals(((NamedPrincipal) obj).name);
+    }
+
+    public int hashCode() {
+        return name.hashCode();
+    }
+
+    public String toString() {
+        return name;
+    }
+
+}
@@ -0,0 +1,116 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2007  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.io.IOException;
+
+import java.net.MalformedURLException;
+import java.net.UnknownHostException;
+
+import jcifs.smb.SmbException;
+import jcifs.smb.SmbFile;
+
+/**
+ * Presents content held in the write-behind journal which has not yet
+ * been written to the underlying SMB resource.  Once the content has
+ * been written, this behaves as a regular <code>SmbFile</code>.
+ *
+ * @author Eric Glass
+ */
+public class PendingFile extends SmbFile {
+
+    private final WriteBehindQueue.Entry entry;
+
+    PendingFile(SmbFile file, WriteBehindQueue.Entry entry)
+            throws MalformedURLException, UnknownHostException {
+        super(file, "");
+        this.entry = entry;
+    }
+
+    /**
+     * Indicates whether the content is still held in the journal.
+     *
+     * @return <code>true</code> if the content has not yet been written
+     * to the server.
+     */
+    public boolean isPending() {
+        return !entry.flushed;
+    }
+
+    public boolean exists() throws SmbException {
+        return isPending() || super.exists();
+    }
+
+    public boolean isFile() throws SmbException {
+        return isPending() || super.isFile();
+    }
+
+    public boolean isDirectory() throws SmbException {
+        return !isPending() && super.isDirectory();
+    }
+
+    public boolean isHidden() throws SmbException {
+        return !isPending() && super.isHidden();
+    }
+
+    public boolean canRead() throws SmbException {
+        return isPending() || super.canRead();
+    }
+
+    public boolean canWrite() throws SmbException {
+        return isPending() || super.canWrite();
+    }
+
+    public long length() throws SmbException {
+        return isPending() ? entry.length : super.length();
+    }
+
+    public long lastModified() throws SmbException {
+        return isPending() ? entry.timestamp : super.lastModified();
+    }
+
+    public long createTime() throws SmbException {
+        if (isPending() && !super.exists()) return entry.timestamp;
+        return super.createTime();
+    }
+
+    public int getContentLength() {
+        return isPending() ? (int) entry.length : super.getContentLength();
+    }
+
+    public long getLastModified() {
+        return isPending() ? entry.timestamp : super.getLastModified();
+    }
+
+    public InputStream getInputStream() throws IOException {
+        if (isPending()) {
+            try {
+                return new FileInputStream(entry.data);
+            } catch (FileNotFoundException ex) {
+                Log.log(Log.DEBUG, "Journal data for \"{0}\" no longer " +
+                        "available, reading from server.", this);
+            }
+        }
+        return super.getInputStream();
+    }
+
+}
@@ -0,0 +1,263 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2007  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.security.Principal;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Tracks the progress of long-running operations (such as the copy or
+ * deletion of a large collection).  A client which supplies an
+ * identifier for its request in the "X-Progress-ID" header can retrieve
+ * the number of resources and bytes processed by polling with the same
+ * identifier from another connection, rather than retrying a request
+ * which appears to have stalled.  Entries are retained for a short
+ * period after the operation completes, so that the client can observe
+ * its outcome.
+ * <p>
+ * The registry also schedules the keep-alive output for operations
+ * which have committed an early multistatus response.
+ *
+ * @author Eric Glass
+ */
+public class ProgressRegistry {
+
+    /**
+     * The namespace of progress documents.
+     */
+    public static final String PROGRESS_NAMESPACE =
+            "urn:x-davenport:progress";
+
+    private static final long RETENTION = 60000l;
+
+    private final Map entries = new HashMap();
+
+    private final TimerWheel.Timeout sweep;
+
+    private final long keepAliveInterval;
+
+    /**
+     * Creates a progress registry.
+     *
+     * @param keepAliveInterval The interval (in milliseconds) at which
+     * keep-alive output is sent for long-running operations, or 0 if
+     * early responses are disabled.
+     */
+    public ProgressRegistry(long keepAliveInterval) {
+        this.keepAliveInterval = Math.max(keepAliveInterval, 0l);
+        sweep = TimerWheel.getInstance().schedule(this, new Runnable() {
+            public void run() {
+                sweep();
+            }
+        }, RETENTION, RETENTION);
+    }
+
+    /**
+     * Registers an operation.
+     *
+     * @param principal The requesting principal.
+     * @param id The client-supplied identifier.
+     * @param method The request method.
+     * @param href The HTTP URL of the target resource.
+     * @return The <code>Progress</code> for the operation.
+     */
+    public Progress register(Principal principal, String id, String method,
+            String href) {
+        Progress progress = new Progress(getKey(principal, id), method, href);
+        synchronized (entries) {
+            entries.put(progress.key, progress);
+        }
+        return progress;
+    }
+
+    /**
+     * Returns the progress of the identified operation.
+     *
+     * @param principal The requesting principal.
+     * @param id The client-supplied identifier.
+     * @return The <code>Progress</code> for the operation, or
+     * <code>null</code> if no such operation is known.
+     */
+    public Progress get(Principal principal, String id) {
+        synchronized (entries) {
+            return (Progress) entries.get(getKey(principal, id));
+        }
+    }
+
+    /**
+     * Returns the interval at which keep-alive output is sent.
+     *
+     * @return A <code>long</code> containing the interval in milliseconds,
+     * or 0 if early responses are disabled.
+     */
+    public long getKeepAliveInterval() {
+        return keepAliveInterval;
+    }
+
+    /**
+     * Schedules a keep-alive task.
+     *
+     * @param task The task.
+     * @return A <code>Timeout</code> which may be used to cancel the task.
+     */
+    public TimerWheel.Timeout schedule(Runnable task) {
+        return TimerWheel.getInstance().schedule(this, task,
+                keepAliveInterval, keepAliveInterval);
+    }
+
+    /**
+     * Discards all entries and stops the registry's sweep.
+     */
+    public void destroy() {
+        sweep.cancel();
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    private String getKey(Principal principal, String id) {
+        return ((principal != null) ? principal.getName() : "") + "|" + id;
+    }
+
+    private void sweep() {
+        long threshold = System.currentTimeMillis() - RETENTION;
+        synchronized (entries) {
+            Iterator iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                Progress progress = (Progress) iterator.next();
+                if (progress.isExpired(threshold)) iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * The progress of a single operation.
+     */
+    public static class Progress {
+
+        private final String key;
+
+        private final String method;
+
+        private final String href;
+
+        private final long started = System.currentTimeMillis();
+
+        private long finished;
+
+        private int status;
+
+        private int items;
+
+        private long bytes;
+
+        Progress(String key, String method, String href) {
+            this.key = key;
+            this.method = method;
+            this.href = href;
+        }
+
+        /**
+         * Records the completion of a resource.
+         *
+         * @param bytes The number of bytes transferred for the resource.
+         */
+        public synchronized void add(long bytes) {
+            items++;
+            this.bytes += bytes;
+        }
+
+        /**
+         * Records the completion of the operation.
+         *
+         * @param status The HTTP status of the operation.
+         */
+        public synchronized void finish(int status) {
+            if (finished != 0) return;
+            this.status = status;
+            finished = System.currentTimeMillis();
+        }
+
+        /**
+         * Returns the request method.
+         *
+         * @return A <code>String</code> containing the method.
+         */
+        public String getMethod() {
+            return method;
+        }
+
+        /**
+         * Returns the HTTP URL of the target resource.
+         *
+         * @return A <code>String</code> containing the URL.
+         */
+        public String getHref() {
+            return href;
+        }
+
+        /**
+         * Returns the number of resources processed.
+         *
+         * @return An <code>int</code> containing the resource count.
+         */
+        public synchronized int getItems() {
+            return items;
+        }
+
+        /**
+         * Returns the number of bytes transferred.
+         *
+         * @return A <code>long</code> containing the byte count.
+         */
+        public synchronized long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Returns the time for which the operation has run (or ran).
+         *
+         * @return A <code>long</code> containing the elapsed time in
+         * milliseconds.
+         */
+        public synchronized long getElapsed() {
+            return ((finished != 0) ? finished :
+                    System.currentTimeMillis()) - started;
+        }
+
+        /**
+         * Returns the final status of the operation.
+         *
+         * @return An <code>int</code> containing the HTTP status, or 0 if
+         * the operation is still running.
+         */
+        public synchronized int getStatus() {
+            return status;
+        }
+
+        synchronized boolean isExpired(long threshold) {
+            return finished != 0 && finished < threshold;
+        }
+
+    }
+
+}
@@ -18,8 +18,13 @@
 
 package smbdav;
 
+import java.io.ByteArrayOutputStream;
+import java.io.InterruptedIOException;
 import java.io.IOException;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import jcifs.smb.SmbException;
 import jcifs.smb.SmbFile;
 import jcifs.smb.SmbFileFilter;
@@ -30,6 +35,17 @@ import org.w3c.dom.Element;
 /**
  * This class directs a <code>PropertiesBuilder</code> in the creation
  * and retrieval of a PROPFIND result XML document.
+ * <p>
+ * When results are written to a <code>MultistatusWriter</code>, the
+ * traversal may be run in parallel on a <code>WorkerPool</code>; each
+ * resource's response is built (and its children listed) by a pool
+ * thread, while the calling thread writes the completed responses in
+ * the same order as a serial traversal would produce.  The calling thread
+ * evaluates any resource which no pool thread has yet started, so the
+ * traversal completes even when the pool is saturated.  At most
+ * <code>READ_AHEAD</code> members of each collection are dispatched ahead
+ * of the member being written, bounding the number of completed responses
+ * held awaiting their turn.
  *
  * @author Eric Glass
  */
@@ -37,6 +53,20 @@ public class PropertiesDirector {
 
     private static final int INFINITY = 3;
 
+    private static final int READ_AHEAD = 64;
+
+    private static final int PROPERTY_NAMES = 0;
+
+    private static final int ALL_PROPERTIES = 1;
+
+    private static final int PROPERTIES = 2;
+
+    private static final int QUEUED = 0;
+
+    private static final int RUNNING = 1;
+
+    private static final int DONE = 2;
+
     private static final boolean[] ESCAPED;
 
     static {
@@ -74,6 +104,14 @@ public class PropertiesDirector {
 
     private final SmbFileFilter filter;
 
+    private final WriteBehindQueue queue;
+
+    private WorkerPool pool;
+
+    private DeadPropertyStore store;
+
+    private int maximumResources;
+
     /**
      * Creates a <code>PropertiesDirector</code> which uses the specified
      * builder to create the PROPFIND XML document.
@@ -84,8 +122,26 @@ public class PropertiesDirector {
      * child resources.
      */
     public PropertiesDirector(PropertiesBuilder builder, SmbFileFilter filter) {
+        this(builder, filter, null);
+    }
+
+    /**
+     * Creates a <code>PropertiesDirector</code> which uses the specified
+     * builder to create the PROPFIND XML document, reflecting content
+     * held in the provided write-behind queue.
+     * 
+     * @param builder The <code>PropertiesBuilder</code> used to
+     * create the PROPFIND result XML document.
+     * @param filter An <code>SmbFileFilter</code> to apply when obtaining
+     * child resources.
+     * @param queue The <code>WriteBehindQueue</code> containing pending
+     * uploads, or <code>null</code> if write-behind is not enabled.
+     */
+    public PropertiesDirector(PropertiesBuilder builder, SmbFileFilter filter,
+            WriteBehindQueue queue) {
         this.builder = builder;
         this.filter = filter;
+        this.queue = queue;
     }
 
     /**
@@ -109,10 +165,27 @@ public class PropertiesDirector {
             throws IOException {
         if (depth == SmbDAVUtilities.INFINITE_DEPTH) depth = INFINITY;
         Document document = getPropertiesBuilder().createDocument();
-        addPropertyNames(document, file, href, depth);
+        traverse(PROPERTY_NAMES, document, file, href, null, depth, null);
         return document;
     }
 
+    /**
+     * Writes the PROPFIND result for the specified resource containing
+     * the names of all supported properties to the given writer.  Each
+     * resource's response is written as soon as it has been built.
+     *
+     * @param file The resource whose property names are to be retrieved.
+     * @param href The HTTP URL by which the resource was accessed.
+     * @param depth The depth to which the request is applied.
+     * @param writer The writer to which the result is sent.
+     * @throws IOException If an IO error occurs.
+     */
+    public void writePropertyNames(SmbFile file, String href, int depth,
+            MultistatusWriter writer) throws IOException {
+        if (depth == SmbDAVUtilities.INFINITE_DEPTH) depth = INFINITY;
+        new Traversal(PROPERTY_NAMES, null, writer).run(file, href, depth);
+    }
+
     /**
      * Returns the PROPFIND result XML document for the specified resource
      * containing the names and values of all supported properties.
@@ -134,10 +207,28 @@ public class PropertiesDirector {
             throws IOException {
         if (depth == SmbDAVUtilities.INFINITE_DEPTH) depth = INFINITY;
         Document document = getPropertiesBuilder().createDocument();
-        addAllProperties(document, file, href, depth);
+        traverse(ALL_PROPERTIES, document, file, href, null, depth, null);
         return document;
     }
 
+    /**
+     * Writes the PROPFIND result for the specified resource containing
+     * the names and values of all supported properties to the given
+     * writer.  Each resource's response is written as soon as it has
+     * been built.
+     *
+     * @param file The resource whose properties are to be retrieved.
+     * @param href The HTTP URL by which the resource was accessed.
+     * @param depth The depth to which the request is applied.
+     * @param writer The writer to which the result is sent.
+     * @throws IOException If an IO error occurs.
+     */
+    public void writeAllProperties(SmbFile file, String href, int depth,
+            MultistatusWriter writer) throws IOException {
+        if (depth == SmbDAVUtilities.INFINITE_DEPTH) depth = INFINITY;
+        new Traversal(ALL_PROPERTIES, null, writer).run(file, href, depth);
+    }
+
     /**
      * Returns the PROPFIND result XML document for the specified resource
      * containing the values of the specifed properties.
@@ -160,10 +251,135 @@ public class PropertiesDirector {
             int depth) throws IOException {
         if (depth == SmbDAVUtilities.INFINITE_DEPTH) depth = INFINITY;
         Document document= getPropertiesBuilder().createDocument();
-        addProperties(document, file, href, props, depth);
+        traverse(PROPERTIES, document, file, href, props, depth, null);
         return document;
     }
 
+    /**
+     * Writes the PROPFIND result for the specified resource containing
+     * the values of the specified properties to the given writer.  Each
+     * resource's response is written as soon as it has been built.
+     *
+     * @param file The resource whose properties are to be retrieved.
+     * @param href The HTTP URL by which the resource was accessed.
+     * @param props The names of the properties which are to be retrieved.
+     * @param depth The depth to which the request is applied.
+     * @param writer The writer to which the result is sent.
+     * @throws IOException If an IO error occurs.
+     */
+    public void writeProperties(SmbFile file, String href, Element[] props,
+            int depth, MultistatusWriter writer) throws IOException {
+        if (depth == SmbDAVUtilities.INFINITE_DEPTH) depth = INFINITY;
+        new Traversal(PROPERTIES, props, writer).run(file, href, depth);
+    }
+
+    /**
+     * Returns the members of the specified collection, as they would be
+     * included in a PROPFIND result.
+     *
+     * @param file The collection.
+     * @return An array of <code>SmbFile</code>s containing the members,
+     * or <code>null</code> if the collection could not be listed.
+     */
+    public SmbFile[] getMembers(SmbFile file) {
+        return getChildren(file);
+    }
+
+    /**
+     * Returns the HTTP URL of the named member of a collection.
+     *
+     * @param file The collection.
+     * @param href The HTTP URL by which the collection was accessed.
+     * @param name The member name (with a trailing "/" for collections).
+     * @return A <code>String</code> containing the member's URL.
+     * @throws IOException If an IO error occurs.
+     */
+    public String getMemberHref(SmbFile file, String href, String name)
+            throws IOException {
+        return getBase(file, href) + escape(name);
+    }
+
+    /**
+     * Returns the HTTP URL of a descendant of a collection.
+     *
+     * @param file The collection.
+     * @param href The HTTP URL by which the collection was accessed.
+     * @param path The path of the descendant relative to the collection,
+     * with "/" separating (and terminating) collection names.
+     * @return A <code>String</code> containing the descendant's URL.
+     * @throws IOException If an IO error occurs.
+     */
+    public String getDescendantHref(SmbFile file, String href, String path)
+            throws IOException {
+        StringBuffer buffer = new StringBuffer(getBase(file, href));
+        int start = 0;
+        int end;
+        while ((end = path.indexOf('/', start)) != -1) {
+            buffer.append(escape(path.substring(start, end + 1)));
+            start = end + 1;
+        }
+        if (start < path.length()) buffer.append(escape(path.substring(start)));
+        return buffer.toString();
+    }
+
+    /**
+     * Writes a response containing the values of the specified properties
+     * for each of the given members of a collection.
+     *
+     * @param file The collection.
+     * @param href The HTTP URL by which the collection was accessed.
+     * @param members The members whose properties are to be retrieved.
+     * @param props The names of the properties which are to be retrieved.
+     * @param writer The writer to which the result is sent.
+     * @throws IOException If an IO error occurs.
+     */
+    public void writeMembers(SmbFile file, String href, SmbFile[] members,
+            Element[] props, MultistatusWriter writer) throws IOException {
+        Document document = getPropertiesBuilder().createDocument();
+        href = getBase(file, href);
+        for (int i = 0; i < members.length; i++) {
+            build(PROPERTIES, document, members[i],
+                    href + escape(members[i].getName()), props);
+            writer.writeResponses(document);
+        }
+    }
+
+    /**
+     * Sets the worker pool used to evaluate resources concurrently when
+     * writing results to a <code>MultistatusWriter</code>.
+     *
+     * @param pool The <code>WorkerPool</code> to use, or <code>null</code>
+     * to evaluate resources serially in the calling thread.
+     */
+    public void setWorkerPool(WorkerPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Sets the store from which the dead properties of each collection's
+     * members are obtained.  If set, the properties of all members are
+     * retrieved in a single operation when the collection is listed.
+     *
+     * @param store The <code>DeadPropertyStore</code>, or
+     * <code>null</code>.
+     */
+    public void setDeadPropertyStore(DeadPropertyStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Sets the maximum number of resources included in a result written
+     * to a <code>MultistatusWriter</code>.  Once this is reached, further
+     * members are omitted and a 507 (Insufficient Storage) response is
+     * written for each collection whose members were truncated.
+     *
+     * @param maximumResources The maximum number of resources, or
+     * <code>0</code> for no limit.
+     */
+    public void setMaximumResources(int maximumResources) {
+        this.maximumResources = maximumResources;
+    }
+
     /**
      * Returns the builder used to construct the XML document.
      * 
@@ -184,83 +400,59 @@ public class PropertiesDirector {
         return filter;
     }
 
-    private void addPropertyNames(Document document, SmbFile file, String href,
-            int depth) throws IOException {
-        getPropertiesBuilder().addPropNames(document, file, href);
-        if (depth > 0 && !file.isFile()) {
-            SmbFile[] children = null;
-            SmbFileFilter filter = getFilter();
-            try {
-                children = (filter != null) ? file.listFiles(filter) :
-                        file.listFiles();
-            } catch (SmbException ex) { }
-            if (children == null) return;
-            int count = children.length;
-            if (count == 0) return;
-            if (!href.endsWith("/")) href += "/";
-            --depth;
-            if (file.getType() == SmbFile.TYPE_WORKGROUP &&
-                    !"smb://".equals(file.toString())) {
-                int index = href.lastIndexOf(file.getName());
-                if (index != -1) href = href.substring(0, index);
-            }
-            for (int i = 0; i < count; i++) {
-                addPropertyNames(document, children[i],
-                        href + escape(children[i].getName()), depth);
-            }
+    private SmbFile[] getChildren(SmbFile file) {
+        SmbFile[] children = null;
+        SmbFileFilter filter = getFilter();
+        try {
+            children = ListedFile.listFiles(file, filter);
+        } catch (SmbException ex) { }
+        if (children != null && store != null) store.attach(file, children);
+        if (children != null && queue != null) {
+            children = queue.merge(file, children, filter);
         }
+        return children;
     }
 
-    private void addAllProperties(Document document, SmbFile file, String href,
-            int depth) throws IOException {
-        getPropertiesBuilder().addAllProps(document, file, href);
-        if (depth > 0 && !file.isFile()) {
-            SmbFile[] children = null;
-            SmbFileFilter filter = getFilter();
-            try {
-                children = (filter != null) ? file.listFiles(filter) :
-                        file.listFiles();
-            } catch (SmbException ex) { }
-            if (children == null) return;
-            int count = children.length;
-            if (count == 0) return;
-            if (!href.endsWith("/")) href += "/";
-            --depth;
-            if (file.getType() == SmbFile.TYPE_WORKGROUP &&
-                    !"smb://".equals(file.toString())) {
-                int index = href.lastIndexOf(file.getName());
-                if (index != -1) href = href.substring(0, index);
-            }
-            for (int i = 0; i < count; i++) {
-                addAllProperties(document, children[i],
-                        href + escape(children[i].getName()), depth);
-            }
+    private void build(int mode, Document document, SmbFile file,
+            String href, Element[] props) throws IOException {
+        switch (mode) {
+        case PROPERTY_NAMES:
+            getPropertiesBuilder().addPropNames(document, file, href);
+            break;
+        case ALL_PROPERTIES:
+            getPropertiesBuilder().addAllProps(document, file, href);
+            break;
+        default:
+            getPropertiesBuilder().addProps(document, file, href, props);
+        }
+    }
+
+    private String getBase(SmbFile file, String href) throws IOException {
+        if (!href.endsWith("/")) href += "/";
+        if (file.getType() == SmbFile.TYPE_WORKGROUP &&
+                !"smb://".equals(file.toString())) {
+            int index = href.lastIndexOf(file.getName());
+            if (index != -1) href = href.substring(0, index);
         }
+        return href;
     }
 
-    private void addProperties(Document document, SmbFile file, String href,
-            Element[] props, int depth) throws IOException {
-        getPropertiesBuilder().addProps(document, file, href, props);
+    private void traverse(int mode, Document document, SmbFile file,
+            String href, Element[] props, int depth, MultistatusWriter writer)
+                    throws IOException {
+        build(mode, document, file, href, props);
+        if (writer != null) writer.writeResponses(document);
         if (depth > 0 && !file.isFile()) {
-            SmbFile[] children = null;
-            SmbFileFilter filter = getFilter();
-            try {
-                children = (filter != null) ? file.listFiles(filter) :
-                        file.listFiles();
-            } catch (SmbException ex) { }
+            SmbFile[] children = getChildren(file);
             if (children == null) return;
             int count = children.length;
             if (count == 0) return;
-            if (!href.endsWith("/")) href += "/";
+            href = getBase(file, href);
             --depth;
-            if (file.getType() == SmbFile.TYPE_WORKGROUP &&
-                    !"smb://".equals(file.toString())) {
-                int index = href.lastIndexOf(file.getName());
-                if (index != -1) href = href.substring(0, index);
-            }
             for (int i = 0; i < count; i++) {
-                addProperties(document, children[i],
-                        href + escape(children[i].getName()), props, depth);
+                traverse(mode, document, children[i],
+                        href + escape(children[i].getName()), props, depth,
+                                writer);
             }
         }
     }
@@ -287,4 +479,210 @@ public class PropertiesDirector {
         return buffer.toString();
     }
 
+    private class Traversal {
+
+        private final List scratch = new ArrayList();
+
+        private final int mode;
+
+        private final Element[] props;
+
+        private final MultistatusWriter writer;
+
+        private final WorkerPool pool;
+
+        private int remaining;
+
+        private volatile boolean cancelled;
+
+        public Traversal(int mode, Element[] props, MultistatusWriter writer) {
+            this.mode = mode;
+            this.props = props;
+            this.writer = writer;
+            WorkerPool pool = PropertiesDirector.this.pool;
+            this.pool = (pool != null && pool.isRunning()) ? pool : null;
+            this.remaining = (maximumResources > 0) ? maximumResources - 1 :
+                    Integer.MAX_VALUE;
+        }
+
+        public void run(SmbFile file, String href, int depth)
+                throws IOException {
+            try {
+                writer.start();
+                write(new Node(this, file, href, depth));
+                writer.finish();
+            } finally {
+                cancelled = true;
+            }
+        }
+
+        private void write(Node node) throws IOException {
+            if (node.claim()) {
+                node.evaluate();
+            } else {
+                node.await();
+            }
+            Throwable error = node.error;
+            if (error instanceof IOException) throw (IOException) error;
+            if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            }
+            if (error instanceof Error) throw (Error) error;
+            writer.write(node.output);
+            node.output = null;
+            Node[] children = node.children;
+            if (children == null) return;
+            node.children = null;
+            for (int i = 0; i < children.length; i++) {
+                if (i + READ_AHEAD < children.length) {
+                    submit(children[i + READ_AHEAD]);
+                }
+                write(children[i]);
+                children[i] = null;
+            }
+            if (node.truncated) {
+                writer.writeStatus(node.href, 507,
+                        "number-of-matches-within-limits");
+            }
+        }
+
+        private void submit(Node node) {
+            if (pool == null) return;
+            String server = node.file.getServer();
+            pool.execute((server != null) ? server.toLowerCase() : null,
+                    node);
+        }
+
+        private synchronized int reserve(int count) {
+            int granted = Math.min(count, remaining);
+            remaining -= granted;
+            return granted;
+        }
+
+        private Scratch borrow() {
+            synchronized (scratch) {
+                if (!scratch.isEmpty()) {
+                    return (Scratch) scratch.remove(scratch.size() - 1);
+                }
+            }
+            return new Scratch(getPropertiesBuilder().createDocument());
+        }
+
+        private void release(Scratch buffer) {
+            synchronized (scratch) {
+                scratch.add(buffer);
+            }
+        }
+
+    }
+
+    private class Node implements Runnable {
+
+        private final Traversal traversal;
+
+        private final SmbFile file;
+
+        private final String href;
+
+        private final int depth;
+
+        private int state = QUEUED;
+
+        private byte[] output;
+
+        private Node[] children;
+
+        private boolean truncated;
+
+        private Throwable error;
+
+        public Node(Traversal traversal, SmbFile file, String href,
+                int depth) {
+            this.traversal = traversal;
+            this.file = file;
+            this.href = href;
+            this.depth = depth;
+        }
+
+        public void run() {
+            if (claim()) evaluate();
+        }
+
+        public synchronized boolean claim() {
+            if (state != QUEUED) return false;
+            state = RUNNING;
+            return true;
+        }
+
+        public void evaluate() {
+            try {
+                if (!traversal.cancelled) evaluate0();
+            } catch (Throwable throwable) {
+                error = throwable;
+            } finally {
+                synchronized (this) {
+                    state = DONE;
+                    notifyAll();
+                }
+            }
+        }
+
+        public synchronized void await() throws IOException {
+            while (state != DONE) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+
+        private void evaluate0() throws IOException {
+            Scratch buffer = traversal.borrow();
+            build(traversal.mode, buffer.document, file, href,
+                    traversal.props);
+            output = buffer.toByteArray();
+            traversal.release(buffer);
+            if (depth <= 0 || file.isFile()) return;
+            SmbFile[] members = getChildren(file);
+            if (members == null || members.length == 0) return;
+            int count = traversal.reserve(members.length);
+            truncated = (count < members.length);
+            String base = getBase(file, href);
+            Node[] children = new Node[count];
+            for (int i = 0; i < count; i++) {
+                children[i] = new Node(traversal, members[i],
+                        base + escape(members[i].getName()), depth - 1);
+            }
+            this.children = children;
+            count = Math.min(count, READ_AHEAD);
+            for (int i = 0; i < count && !traversal.cancelled; i++) {
+                traversal.submit(children[i]);
+            }
+        }
+
+    }
+
+    private static class Scratch {
+
+        final Document document;
+
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        final MultistatusWriter writer = new MultistatusWriter(buffer, true);
+
+        Scratch(Document document) {
+            this.document = document;
+        }
+
+        byte[] toByteArray() throws IOException {
+            writer.writeResponses(document);
+            writer.flush();
+            byte[] bytes = buffer.toByteArray();
+            buffer.reset();
+            return bytes;
+        }
+
+    }
+
 }
@@ -0,0 +1,355 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2007  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import jcifs.smb.NtlmPasswordAuthentication;
+import jcifs.smb.SmbFile;
+
+/**
+ * Caches serialized PROPFIND results for a short period.  Clients such as
+ * Windows Explorer and Microsoft Office repeatedly issue identical
+ * PROPFIND requests against the same collection; this allows such requests
+ * to be answered without contacting the server.
+ * <p>
+ * Results are keyed by the principal, request URL, depth and the set of
+ * requested properties.  Entries expire after a fixed time to live, and
+ * the least recently used entries are discarded once the total size
+ * exceeds the configured maximum.  Handlers which modify a resource
+ * invalidate any cached result which could include it; this covers the
+ * resource itself, its members, and those ancestors whose result reaches
+ * the resource at the requested depth.  Locks which time out are
+ * reported by the <code>DefaultLockManager</code> in the same way.
+ * Changes made to the server by other means are reflected once the
+ * affected entries expire.
+ * <p>
+ * If a <code>ChangeMonitor</code> is installed, results covered by an
+ * active directory watch are retained for a longer period, as changes
+ * made on the server are then reported as they occur.
+ *
+ * @author Eric Glass
+ */
+public class PropfindCache implements ChangeListener {
+
+    private final Map entries = new LinkedHashMap(16, 0.75f, true);
+
+    private final SortedMap paths = new TreeMap();
+
+    private final long timeToLive;
+
+    private final long maximumSize;
+
+    private final long maximumEntrySize;
+
+    private ChangeMonitor monitor;
+
+    private long watchedTimeToLive;
+
+    private long size;
+
+    private long generation;
+
+    /**
+     * Creates a cache with the specified limits.
+     *
+     * @param timeToLive The time, in milliseconds, for which a result
+     * remains valid.
+     * @param maximumSize The maximum total size, in bytes, of the cached
+     * results.
+     */
+    public PropfindCache(long timeToLive, long maximumSize) {
+        this.timeToLive = timeToLive;
+        this.maximumSize = maximumSize;
+        this.maximumEntrySize = maximumSize / 4;
+    }
+
+    /**
+     * Sets the monitor reporting changes made on the server.  Results
+     * covered by an active watch are retained for the specified time
+     * instead of the ordinary time to live.
+     *
+     * @param monitor The <code>ChangeMonitor</code>, or <code>null</code>.
+     * @param watchedTimeToLive The time, in milliseconds, for which a
+     * result covered by a watch remains valid.
+     */
+    public synchronized void setChangeMonitor(ChangeMonitor monitor,
+            long watchedTimeToLive) {
+        this.monitor = monitor;
+        this.watchedTimeToLive = Math.max(watchedTimeToLive, timeToLive);
+    }
+
+    public void resourceChanged(SmbFile file) {
+        invalidate(file);
+    }
+
+    /**
+     * Creates the key identifying a PROPFIND result.
+     *
+     * @param auth The user's authentication information.
+     * @param href The HTTP URL of the request.
+     * @param depth The depth of the request.
+     * @param properties A canonical description of the requested
+     * properties.
+     * @return A <code>String</code> used to store and retrieve the result.
+     */
+    public static String createKey(NtlmPasswordAuthentication auth,
+            String href, int depth, String properties) {
+        StringBuffer key = new StringBuffer();
+        if (auth != null) key.append(auth.getName());
+        key.append('\n').append(depth).append('\n').append(href);
+        key.append('\n').append(properties);
+        return key.toString();
+    }
+
+    /**
+     * Returns the cached result for the specified key.
+     *
+     * @param key The key identifying the result.
+     * @return The serialized result, or <code>null</code> if no current
+     * result is available.
+     */
+    public synchronized byte[] get(String key) {
+        Entry entry = (Entry) entries.get(key);
+        if (entry == null) return null;
+        if (entry.expiration < System.currentTimeMillis()) {
+            remove(entry);
+            return null;
+        }
+        return entry.content;
+    }
+
+    /**
+     * Returns the current invalidation generation.  This must be obtained
+     * before the result is built, and supplied when the result is stored;
+     * results built while an invalidation was in progress are discarded.
+     *
+     * @return The current generation.
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Returns a stream which records the content written to the given
+     * stream, for subsequent storage via <code>put</code>.  Recording is
+     * abandoned if the content is too large to be cached.
+     *
+     * @param output The stream to which the result is written.
+     * @return An <code>OutputStream</code> which records the result.
+     */
+    public OutputStream record(OutputStream output) {
+        return new Recorder(output, maximumEntrySize);
+    }
+
+    /**
+     * Stores the result recorded by the given stream.
+     *
+     * @param key The key identifying the result.
+     * @param file The resource to which the request was applied.
+     * @param depth The depth of the request.
+     * @param recorder The stream obtained from <code>record</code>.
+     * @param generation The generation obtained before the result was
+     * built.
+     */
+    public void put(String key, SmbFile file, int depth,
+            OutputStream recorder, long generation) {
+        if (!(recorder instanceof Recorder)) return;
+        byte[] content = ((Recorder) recorder).getContent();
+        if (content == null) return;
+        String path = getPath(file);
+        ChangeMonitor monitor;
+        synchronized (this) {
+            monitor = this.monitor;
+        }
+        boolean watched = (monitor != null) && monitor.covers(file, depth);
+        synchronized (this) {
+            if (generation != this.generation) return;
+            Entry entry = (Entry) entries.get(key);
+            if (entry != null) remove(entry);
+            entry = new Entry(key, path, depth, content,
+                    System.currentTimeMillis() +
+                            (watched ? watchedTimeToLive : timeToLive));
+            entries.put(key, entry);
+            List list = (List) paths.get(path);
+            if (list == null) paths.put(path, list = new ArrayList());
+            list.add(entry);
+            size += content.length;
+            Iterator iterator = entries.values().iterator();
+            while (size > maximumSize && iterator.hasNext()) {
+                Entry eldest = (Entry) iterator.next();
+                iterator.remove();
+                unindex(eldest);
+            }
+        }
+    }
+
+    /**
+     * Discards any cached result which may include the specified resource.
+     *
+     * @param file The resource which has been modified.
+     */
+    public void invalidate(SmbFile file) {
+        String path = getPath(file);
+        synchronized (this) {
+            generation++;
+            List list = (List) paths.remove(path);
+            if (list != null) discard(list);
+            Iterator iterator = paths.subMap(path + "/",
+                    path + "/\uffff").values().iterator();
+            while (iterator.hasNext()) {
+                discard((List) iterator.next());
+                iterator.remove();
+            }
+            int distance = 0;
+            int index;
+            while ((index = path.lastIndexOf('/')) > 0 &&
+                    path.charAt(index - 1) != '/') {
+                path = path.substring(0, index);
+                distance++;
+                list = (List) paths.get(path);
+                if (list == null) continue;
+                for (int i = list.size() - 1; i >= 0; i--) {
+                    Entry entry = (Entry) list.get(i);
+                    if (entry.depth == SmbDAVUtilities.INFINITE_DEPTH ||
+                            entry.depth >= distance - 1) {
+                        remove(entry);
+                    }
+                }
+            }
+        }
+        Log.log(Log.DEBUG, "Invalidated cached PROPFIND results for \"{0}\".",
+                file);
+    }
+
+    /**
+     * Discards all cached results.
+     */
+    public synchronized void clear() {
+        generation++;
+        entries.clear();
+        paths.clear();
+        size = 0;
+    }
+
+    private void discard(List list) {
+        for (int i = list.size() - 1; i >= 0; i--) {
+            Entry entry = (Entry) list.get(i);
+            entries.remove(entry.key);
+            size -= entry.content.length;
+        }
+    }
+
+    private void remove(Entry entry) {
+        entries.remove(entry.key);
+        unindex(entry);
+    }
+
+    private void unindex(Entry entry) {
+        size -= entry.content.length;
+        List list = (List) paths.get(entry.path);
+        if (list == null) return;
+        list.remove(entry);
+        if (list.isEmpty()) paths.remove(entry.path);
+    }
+
+    private static String getPath(SmbFile file) {
+        String path = file.getCanonicalPath().toLowerCase();
+        while (path.endsWith("/") && !path.endsWith("//")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path;
+    }
+
+    private static class Entry {
+
+        final String key;
+
+        final String path;
+
+        final int depth;
+
+        final byte[] content;
+
+        final long expiration;
+
+        Entry(String key, String path, int depth, byte[] content,
+                long expiration) {
+            this.key = key;
+            this.path = path;
+            this.depth = depth;
+            this.content = content;
+            this.expiration = expiration;
+        }
+
+    }
+
+    private static class Recorder extends OutputStream {
+
+        private final OutputStream output;
+
+        private final long limit;
+
+        private ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+        Recorder(OutputStream output, long limit) {
+            this.output = output;
+            this.limit = limit;
+        }
+
+        public void write(int b) throws IOException {
+            output.write(b);
+            if (content == null) return;
+            content.write(b);
+            if (content.size() > limit) content = null;
+        }
+
+        public void write(byte[] b, int offset, int length)
+                throws IOException {
+            output.write(b, offset, length);
+            if (content == null) return;
+            content.write(b, offset, length);
+            if (content.size() > limit) content = null;
+        }
+
+        public void flush() throws IOException {
+            output.flush();
+        }
+
+        public void close() throws IOException {
+            output.close();
+        }
+
+        byte[] getContent() {
+            return (content != null) ? content.toByteArray() : null;
+        }
+
+    }
+
+}
@@ -0,0 +1,189 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2007  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.io.IOException;
+
+import java.security.Principal;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import jcifs.smb.DiskAllocation;
+import jcifs.smb.SmbFile;
+
+/**
+ * Caches the allocation information for each share, as seen by each
+ * user.  The first request for a share queries the server; subsequent
+ * requests within the time-to-live are answered from the cache.  Once an
+ * entry has expired, the stale value continues to be returned while a
+ * single refresh is performed in the background (using the
+ * <code>WorkerPool</code>, if available).  Concurrent requests for an
+ * entry which is still loading wait for the pending query rather than
+ * issuing their own, so that a PROPFIND over a collection queries the
+ * share once regardless of the number of members.
+ *
+ * @author Eric Glass
+ */
+public class QuotaCache {
+
+    private static final int SWEEP_THRESHOLD = 256;
+
+    private final Map entries = new HashMap();
+
+    private final long timeToLive;
+
+    private final WorkerPool workerPool;
+
+    /**
+     * Creates a quota cache.
+     *
+     * @param timeToLive The time (in milliseconds) for which an entry
+     * is considered current.
+     * @param workerPool The pool used to refresh expired entries; if
+     * <code>null</code>, entries are refreshed in the requesting thread.
+     */
+    public QuotaCache(long timeToLive, WorkerPool workerPool) {
+        this.timeToLive = Math.max(timeToLive, 0l);
+        this.workerPool = workerPool;
+    }
+
+    /**
+     * Returns the allocation information for the share containing the
+     * specified resource.
+     *
+     * @param file The resource.
+     * @return A <code>DiskAllocation</code> for the resource's share,
+     * or <code>null</code> if the resource is not on a share or the
+     * information could not be retrieved.
+     */
+    public DiskAllocation get(SmbFile file) {
+        String share = file.getShare();
+        if (share == null) return null;
+        Principal principal = file.getPrincipal();
+        String server = file.getServer();
+        String key = ((principal != null) ? principal.getName() : "") +
+                "\\\\" + ((server != null) ? server.toLowerCase() : "") +
+                        "\\" + share.toLowerCase();
+        long now = System.currentTimeMillis();
+        Entry entry;
+        boolean load = false;
+        boolean refresh = false;
+        synchronized (entries) {
+            entry = (Entry) entries.get(key);
+            if (entry == null) {
+                if (entries.size() >= SWEEP_THRESHOLD) sweep(now);
+                entry = new Entry();
+                entries.put(key, entry);
+                load = true;
+            } else {
+                refresh = entry.claim(now);
+            }
+        }
+        if (load) {
+            entry.load(file);
+        } else if (refresh) {
+            final Entry target = entry;
+            final SmbFile resource = file;
+            Runnable task = new Runnable() {
+                public void run() {
+                    target.load(resource);
+                }
+            };
+            if (workerPool != null) {
+                workerPool.execute((server != null) ?
+                        server.toLowerCase() : null, task);
+            } else {
+                task.run();
+            }
+        }
+        return entry.await();
+    }
+
+    /**
+     * Discards all cached entries.
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    private void sweep(long now) {
+        Iterator iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            if (((Entry) iterator.next()).isExpired(now)) iterator.remove();
+        }
+    }
+
+    private class Entry {
+
+        private DiskAllocation allocation;
+
+        private long expiration;
+
+        private boolean loaded;
+
+        private boolean refreshing;
+
+        synchronized boolean claim(long now) {
+            if (!loaded || refreshing || now < expiration) return false;
+            refreshing = true;
+            return true;
+        }
+
+        synchronized boolean isExpired(long now) {
+            return loaded && !refreshing && now >= expiration;
+        }
+
+        void load(SmbFile file) {
+            DiskAllocation allocation = null;
+            try {
+                allocation = DiskAllocation.query(file);
+            } catch (IOException ex) {
+                Log.log(Log.DEBUG, "Unable to query allocation for {0}: {1}",
+                        new Object[] { file, ex });
+            } finally {
+                synchronized (this) {
+                    if (allocation != null || !loaded) {
+                        this.allocation = allocation;
+                    }
+                    expiration = System.currentTimeMillis() + timeToLive;
+                    loaded = true;
+                    refreshing = false;
+                    notifyAll();
+                }
+            }
+        }
+
+        synchronized DiskAllocation await() {
+            while (!loaded) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    return null;
+                }
+            }
+            return allocation;
+        }
+
+    }
+
+}
@@ -0,0 +1,272 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2007  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.util.List;
+
+/**
+ * An immutable map from path segments to values, held as a hash array
+ * mapped trie.  <code>put</code> and <code>remove</code> return a new map
+ * which shares all but the O(log n) entries along the key's branch with
+ * the original, so a modified copy costs the same however many keys the
+ * map holds.
+ * <p>
+ * Keys may be looked up by a region of a larger string, avoiding the
+ * allocation of a substring for each segment of a path.
+ *
+ * @author Eric Glass
+ */
+class SegmentMap {
+
+    private static final int BITS = 5;
+
+    private static final int MASK = (1 << BITS) - 1;
+
+    /**
+     * The empty map.
+     */
+    public static final SegmentMap EMPTY = new SegmentMap(0, new Object[0],
+            0);
+
+    private final int bitmap;
+
+    private final Object[] slots;
+
+    private final int size;
+
+    private SegmentMap(int bitmap, Object[] slots, int size) {
+        this.bitmap = bitmap;
+        this.slots = slots;
+        this.size = size;
+    }
+
+    /**
+     * Returns the value mapped to the specified key.
+     *
+     * @param key The key.
+     * @return The value, or <code>null</code> if the key is not present.
+     */
+    public Object get(String key) {
+        return get(key, 0, key.length());
+    }
+
+    /**
+     * Returns the value mapped to the key formed by the specified region
+     * of a string.
+     *
+     * @param path The string containing the key.
+     * @param start The index of the key's first character.
+     * @param end The index following the key's last character.
+     * @return The value, or <code>null</code> if the key is not present.
+     */
+    public Object get(String path, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) hash = 31 * hash + path.charAt(i);
+        int length = end - start;
+        SegmentMap map = this;
+        for (int shift = 0; ; shift += BITS) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((map.bitmap & bit) == 0) return null;
+            Object slot = map.slots[index(map.bitmap, bit)];
+            if (slot instanceof SegmentMap) {
+                map = (SegmentMap) slot;
+                continue;
+            }
+            for (Entry entry = (Entry) slot; entry != null;
+                    entry = entry.next) {
+                if (entry.hash == hash && entry.key.length() == length &&
+                        path.regionMatches(start, entry.key, 0, length)) {
+                    return entry.value;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Returns a map containing the contents of this map, with the
+     * specified key mapped to the given value.
+     *
+     * @param key The key.
+     * @param value The value.
+     * @return The new map.
+     */
+    public SegmentMap put(String key, Object value) {
+        return put(key.hashCode(), key, value, 0);
+    }
+
+    /**
+     * Returns a map containing the contents of this map, less the
+     * specified key.
+     *
+     * @param key The key.
+     * @return The new map, or this map if the key was not present.
+     */
+    public SegmentMap remove(String key) {
+        SegmentMap map = remove(key.hashCode(), key, 0);
+        return (map != null) ? map : this;
+    }
+
+    /**
+     * Returns the number of keys in the map.
+     *
+     * @return The number of keys.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Indicates whether the map is empty.
+     *
+     * @return <code>true</code> if the map holds no keys.
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Adds the values held in the map to the specified list.
+     *
+     * @param result The list to which the values are added.
+     */
+    public void values(List result) {
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i] instanceof SegmentMap) {
+                ((SegmentMap) slots[i]).values(result);
+                continue;
+            }
+            for (Entry entry = (Entry) slots[i]; entry != null;
+                    entry = entry.next) {
+                result.add(entry.value);
+            }
+        }
+    }
+
+    private SegmentMap put(int hash, String key, Object value, int shift) {
+        int bit = 1 << ((hash >>> shift) & MASK);
+        int index = index(bitmap, bit);
+        if ((bitmap & bit) == 0) {
+            Object[] slots = new Object[this.slots.length + 1];
+            System.arraycopy(this.slots, 0, slots, 0, index);
+            slots[index] = new Entry(hash, key, value, null);
+            System.arraycopy(this.slots, index, slots, index + 1,
+                    this.slots.length - index);
+            return new SegmentMap(bitmap | bit, slots, size + 1);
+        }
+        Object slot = this.slots[index];
+        Object replacement;
+        int added;
+        if (slot instanceof SegmentMap) {
+            SegmentMap child = (SegmentMap) slot;
+            SegmentMap map = child.put(hash, key, value, shift + BITS);
+            replacement = map;
+            added = map.size - child.size;
+        } else {
+            Entry chain = (Entry) slot;
+            if (chain.hash == hash) {
+                added = (chain.find(key) == null) ? 1 : 0;
+                replacement = new Entry(hash, key, value, chain.without(key));
+            } else {
+                // the hashes differ in a later group of bits
+                SegmentMap map = new SegmentMap(0, new Object[0], 0);
+                for (Entry entry = chain; entry != null; entry = entry.next) {
+                    map = map.put(entry.hash, entry.key, entry.value,
+                            shift + BITS);
+                }
+                replacement = map.put(hash, key, value, shift + BITS);
+                added = 1;
+            }
+        }
+        Object[] slots = (Object[]) this.slots.clone();
+        slots[index] = replacement;
+        return new SegmentMap(bitmap, slots, size + added);
+    }
+
+    private SegmentMap remove(int hash, String key, int shift) {
+        int bit = 1 << ((hash >>> shift) & MASK);
+        if ((bitmap & bit) == 0) return null;
+        int index = index(bitmap, bit);
+        Object slot = slots[index];
+        Object replacement;
+        if (slot instanceof SegmentMap) {
+            SegmentMap map = ((SegmentMap) slot).remove(hash, key,
+                    shift + BITS);
+            if (map == null) return null;
+            replacement = map.isEmpty() ? null : map;
+        } else {
+            Entry chain = (Entry) slot;
+            if (chain.hash != hash || chain.find(key) == null) return null;
+            replacement = chain.without(key);
+        }
+        if (replacement != null) {
+            Object[] slots = (Object[]) this.slots.clone();
+            slots[index] = replacement;
+            return new SegmentMap(bitmap, slots, size - 1);
+        }
+        Object[] slots = new Object[this.slots.length - 1];
+        System.arraycopy(this.slots, 0, slots, 0, index);
+        System.arraycopy(this.slots, index + 1, slots, index,
+                slots.length - index);
+        return new SegmentMap(bitmap & ~bit, slots, size - 1);
+    }
+
+    private static int index(int bitmap, int bit) {
+        int bits = bitmap & (bit - 1);
+        bits = bits - ((bits >>> 1) & 0x55555555);
+        bits = (bits & 0x33333333) + ((bits >>> 2) & 0x33333333);
+        bits = (bits + (bits >>> 4)) & 0x0f0f0f0f;
+        return (bits * 0x01010101) >>> 24;
+    }
+
+    private static class Entry {
+
+        final int hash;
+
+        final String key;
+
+        final Object value;
+
+        final Entry next;
+
+        Entry(int hash, String key, Object value, Entry next) {
+            this.hash = hash;
+            this.key = key;
+            this.value = value;
+            this.next = next;
+        }
+
+        Entry find(String key) {
+            for (Entry entry = this; entry != null; entry = entry.next) {
+                if (entry.key.equals(key)) return entry;
+            }
+            return null;
+        }
+
+        Entry without(String key) {
+            if (this.key.equals(key)) return next;
+            if (next == null) return this;
+            Entry rest = next.without(key);
+            return (rest == next) ? this : new Entry(hash, this.key, value,
+                    rest);
+        }
+
+    }
+
+}
@@ -97,6 +97,12 @@ public class SmbDAVUtilities {
 
     private static final char[] HEX = "0123456789abcdef".toCharArray();
 
+    private static final int NT_STATUS_DISK_FULL = 0xc000007f;
+
+    private static final int NT_STATUS_FILE_LOCK_CONFLICT = 0xc0000054;
+
+    private static final int NT_STATUS_DIRECTORY_NOT_EMPTY = 0xc0000101;
+
     private static MessageDigest digest;
 
     static {
@@ -208,6 +214,36 @@ public class SmbDAVUtilities {
         return "1".equals(depth) ? CHILDREN_DEPTH : INFINITE_DEPTH;
     }
 
+    /**
+     * Utility method to determine the HTTP status corresponding to an
+     * SMB error.  This is used when reporting the failure of individual
+     * members in a multistatus response.
+     *
+     * @param ex The SMB error.
+     * @return An <code>int</code> containing the HTTP status code.
+     */
+    public static int getStatus(SmbException ex) {
+        switch (ex.getNtStatus()) {
+        case SmbException.NT_STATUS_ACCESS_DENIED:
+        case SmbException.NT_STATUS_CANNOT_DELETE:
+            return 403;
+        case SmbException.NT_STATUS_OBJECT_NAME_NOT_FOUND:
+            return 404;
+        case SmbException.NT_STATUS_OBJECT_PATH_NOT_FOUND:
+        case NT_STATUS_DIRECTORY_NOT_EMPTY:
+            return 409;
+        case SmbException.NT_STATUS_OBJECT_NAME_COLLISION:
+            return 412;
+        case SmbException.NT_STATUS_SHARING_VIOLATION:
+        case NT_STATUS_FILE_LOCK_CONFLICT:
+            return 423;
+        case NT_STATUS_DISK_FULL:
+            return 507;
+        default:
+            return 500;
+        }
+    }
+
     /**
      * Utility method to format a lock timeout value for use in the
      * "Timeout" header.
@@ -271,7 +307,9 @@ public class SmbDAVUtilities {
     public static void lockDiscovery(SmbFile file, LockManager lockManager,
             Element destination) throws IOException {
         if (file == null || lockManager == null || destination == null) return;
-        Lock[] activeLocks = lockManager.getActiveLocks(file);
+        Lock[] activeLocks = (lockManager instanceof DavenportLockManager) ?
+                ((DavenportLockManager) lockManager).getDiscoveredLocks(file) :
+                        lockManager.getActiveLocks(file);
         if (activeLocks == null || activeLocks.length == 0) return;
         for (int i = activeLocks.length - 1; i >= 0; i--) {
             Lock lock = activeLocks[i];
@@ -22,8 +22,7 @@ import java.io.IOException;
 
 import java.security.Principal;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Iterator;
 
 import javax.servlet.http.HttpServletResponse;
 
@@ -32,7 +31,7 @@ import jcifs.smb.SmbFile;
 
 public class SmbLockManager extends DefaultLockManager {
 
-    private final Map singletons = new HashMap();
+    private final StripedMap singletons = new StripedMap(32);
 
     public SmbLockManager() {
         super();
@@ -52,10 +51,7 @@ public class SmbLockManager extends DefaultLockManager {
 
     public SmbFile getLockedResource(SmbFile resource, Principal principal)
             throws IOException {
-        SmbLock lock;
-        synchronized (singletons) {
-            lock = (SmbLock) singletons.get(resource.getCanonicalPath());
-        }
+        SmbLock lock = (SmbLock) singletons.get(resource.getCanonicalPath());
         if (lock == null || principal == null) {
             Log.log(Log.DEBUG,
                     "No locked resource found for {0} (principal {1}).",
@@ -74,6 +70,25 @@ public class SmbLockManager extends DefaultLockManager {
         return resource;
     }
 
+    /**
+     * Closes the handles held for the locked resources.  SMB locks do not
+     * survive the gateway, so these are released rather than retained.
+     */
+    public void destroy() {
+        super.destroy();
+        Iterator iterator = singletons.values().iterator();
+        while (iterator.hasNext()) {
+            SmbFile resource = ((SmbLock) iterator.next()).getResource();
+            if (!(resource instanceof LockedFile)) continue;
+            try {
+                ((LockedFile) resource).unlock();
+            } catch (IOException ex) {
+                Log.log(Log.DEBUG, "Unable to release {0}: {1}",
+                        new Object[] { resource, ex });
+            }
+        }
+    }
+
     protected BasicLock createLock(SmbFile resource, Principal principal,
             String lockToken, LockInfo lockInfo) throws IOException,
                     LockException {
@@ -91,25 +106,19 @@ public class SmbLockManager extends DefaultLockManager {
             super(resource.isFile() ? new LockedFile(resource) : resource,
                     principal, token, lockInfo);
             String path = resource.getCanonicalPath();
-            synchronized (singletons) {
-                if (singletons.containsKey(path)) {
-                    // already locked? shouldn't be...
-                    Log.log(Log.DEBUG, "Already a lock on {0}?",
-                            resource);
-                    return;
-                }
-                Log.log(Log.DEBUG, "Installing lock instance for {0}.", path);
-                singletons.put(path, this);
+            if (singletons.putIfAbsent(path, this) != null) {
+                // already locked? shouldn't be...
+                Log.log(Log.DEBUG, "Already a lock on {0}?", resource);
+                return;
             }
+            Log.log(Log.DEBUG, "Installing lock instance for {0}.", path);
         }
 
         public void unlock() throws IOException {
             super.unlock();
-            synchronized (singletons) {
-                Log.log(Log.DEBUG, "Removing lock instance for {0}.",
-                        getResource());
-                singletons.remove(getResource().getCanonicalPath());
-            }
+            Log.log(Log.DEBUG, "Removing lock instance for {0}.",
+                    getResource());
+            singletons.remove(getResource().getCanonicalPath(), this);
             SmbFile resource = getResource();
             if (resource instanceof LockedFile) {
                 ((LockedFile) resource).unlock();
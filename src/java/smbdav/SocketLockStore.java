@@ -0,0 +1,312 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2007  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import java.util.LinkedList;
+
+/**
+ * A client for a <code>LockStore</code> served by a
+ * <code>LockStoreServer</code>.  Connections are pooled, so that
+ * concurrent requests do not wait for one another; a request which
+ * fails on a pooled connection (i.e., one closed by the server) is
+ * retried once on a new connection.  Each new connection is
+ * authenticated to the server using the shared secret.
+ *
+ * @author Eric Glass
+ * @see LockStoreServer
+ */
+public class SocketLockStore implements LockStore {
+
+    private static final int MAXIMUM_IDLE = 8;
+
+    private final LinkedList idle = new LinkedList();
+
+    private final String host;
+
+    private final int port;
+
+    private final int timeout;
+
+    private final String secret;
+
+    private boolean closed;
+
+    /**
+     * Creates a store client.
+     *
+     * @param host The host on which the server is running.
+     * @param port The port on which the server is listening.
+     * @param timeout The connect and read timeout (in milliseconds).
+     * @param secret The secret shared with the server.
+     */
+    public SocketLockStore(String host, int port, int timeout,
+            String secret) {
+        this.host = host;
+        this.port = port;
+        this.timeout = timeout;
+        this.secret = secret;
+    }
+
+    public Record lock(Record record) throws IOException {
+        Request request = new Request(LockStoreServer.LOCK);
+        LockStoreServer.writeRecord(request.output, record);
+        Connection connection = send(request);
+        Record conflict;
+        try {
+            conflict = connection.input.readBoolean() ?
+                    LockStoreServer.readRecord(connection.input) : null;
+        } catch (IOException ex) {
+            connection.close();
+            throw ex;
+        }
+        release(connection);
+        return conflict;
+    }
+
+    public boolean refresh(String token, long timeout, long lease)
+            throws IOException {
+        Request request = new Request(LockStoreServer.REFRESH);
+        request.output.writeUTF(token);
+        request.output.writeLong(timeout);
+        request.output.writeLong(lease);
+        Connection connection = send(request);
+        boolean refreshed;
+        try {
+            refreshed = connection.input.readBoolean();
+        } catch (IOException ex) {
+            connection.close();
+            throw ex;
+        }
+        release(connection);
+        return refreshed;
+    }
+
+    public boolean[] renew(String[] tokens, long lease) throws IOException {
+        Request request = new Request(LockStoreServer.RENEW);
+        request.output.writeInt(tokens.length);
+        for (int i = 0; i < tokens.length; i++) {
+            request.output.writeUTF(tokens[i]);
+        }
+        request.output.writeLong(lease);
+        Connection connection = send(request);
+        boolean[] renewed = new boolean[tokens.length];
+        try {
+            for (int i = 0; i < renewed.length; i++) {
+                renewed[i] = connection.input.readBoolean();
+            }
+        } catch (IOException ex) {
+            connection.close();
+            throw ex;
+        }
+        release(connection);
+        return renewed;
+    }
+
+    public boolean unlock(String token) throws IOException {
+        Request request = new Request(LockStoreServer.UNLOCK);
+        request.output.writeUTF(token);
+        Connection connection = send(request);
+        boolean unlocked;
+        try {
+            unlocked = connection.input.readBoolean();
+        } catch (IOException ex) {
+            connection.close();
+            throw ex;
+        }
+        release(connection);
+        return unlocked;
+    }
+
+    public Record get(String token) throws IOException {
+        Request request = new Request(LockStoreServer.GET);
+        request.output.writeUTF(token);
+        Connection connection = send(request);
+        Record record;
+        try {
+            record = connection.input.readBoolean() ?
+                    LockStoreServer.readRecord(connection.input) : null;
+        } catch (IOException ex) {
+            connection.close();
+            throw ex;
+        }
+        release(connection);
+        return record;
+    }
+
+    public Record[] getActiveLocks(String path) throws IOException {
+        return getLocks(LockStoreServer.ACTIVE, path);
+    }
+
+    public Record[] getDescendantLocks(String path) throws IOException {
+        return getLocks(LockStoreServer.DESCENDANTS, path);
+    }
+
+    public void close() {
+        synchronized (idle) {
+            closed = true;
+            while (!idle.isEmpty()) {
+                ((Connection) idle.removeFirst()).close();
+            }
+        }
+    }
+
+    private Record[] getLocks(int operation, String path) throws IOException {
+        Request request = new Request(operation);
+        request.output.writeUTF(path);
+        Connection connection = send(request);
+        Record[] records;
+        try {
+            records = LockStoreServer.readRecords(connection.input);
+        } catch (IOException ex) {
+            connection.close();
+            throw ex;
+        }
+        release(connection);
+        return records;
+    }
+
+    /**
+     * Sends a request and reads the response status, returning the
+     * connection from which the result is to be read.  The caller must
+     * either release the connection once the result has been read, or
+     * close it.  A request is retried on a new connection only if it could
+     * not be written to a pooled one (which the server may have closed);
+     * once written, it may have been applied, so a failure reading the
+     * response is not retried.
+     */
+    private Connection send(Request request) throws IOException {
+        Connection connection = null;
+        synchronized (idle) {
+            if (closed) {
+                throw new IOException(SmbDAVUtilities.getResource(
+                        SocketLockStore.class, "closed", null, null));
+            }
+            if (!idle.isEmpty()) connection = (Connection) idle.removeFirst();
+        }
+        if (connection != null) {
+            try {
+                connection.write(request);
+            } catch (IOException ex) {
+                Log.log(Log.DEBUG, "Retrying lock store request: {0}", ex);
+                connection.close();
+                connection = null;
+            }
+        }
+        try {
+            if (connection == null) {
+                connection = new Connection();
+                connection.write(request);
+            }
+            connection.readStatus();
+            return connection;
+        } catch (IOException ex) {
+            if (connection != null) connection.close();
+            throw ex;
+        }
+    }
+
+    private void release(Connection connection) {
+        synchronized (idle) {
+            if (!closed && idle.size() < MAXIMUM_IDLE) {
+                idle.addLast(connection);
+                return;
+            }
+        }
+        connection.close();
+    }
+
+    private static class Request {
+
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        final DataOutputStream output = new DataOutputStream(buffer);
+
+        Request(int operation) throws IOException {
+            output.write(operation);
+        }
+
+    }
+
+    private class Connection {
+
+        private final Socket socket;
+
+        final DataInputStream input;
+
+        private final DataOutputStream output;
+
+        Connection() throws IOException {
+            socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(host, port), timeout);
+                socket.setSoTimeout(timeout);
+                socket.setTcpNoDelay(true);
+                input = new DataInputStream(new BufferedInputStream(
+                        socket.getInputStream()));
+                output = new DataOutputStream(new BufferedOutputStream(
+                        socket.getOutputStream()));
+                byte[] challenge = new byte[LockStoreServer.CHALLENGE_LENGTH];
+                input.readFully(challenge);
+                output.write(LockStoreServer.respond(secret, challenge));
+                output.flush();
+                if (input.read() != LockStoreServer.OK) {
+                    throw new IOException(SmbDAVUtilities.getResource(
+                            SocketLockStore.class, "authenticationFailed",
+                                    new Object[] { host + ":" + port },
+                                            null));
+                }
+            } catch (IOException ex) {
+                socket.close();
+                throw ex;
+            }
+        }
+
+        void write(Request request) throws IOException {
+            request.buffer.writeTo(output);
+            output.flush();
+        }
+
+        void readStatus() throws IOException {
+            int status = input.read();
+            if (status != LockStoreServer.OK) {
+                throw new IOException(SmbDAVUtilities.getResource(
+                        SocketLockStore.class, "badResponse",
+                                new Object[] { new Integer(status) }, null));
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignore) { }
+        }
+
+    }
+
+}
@@ -0,0 +1,127 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2007  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A map divided into independently synchronized stripes, selected by the
+ * hash of the key.  Operations on keys in different stripes do not
+ * contend with one another.
+ *
+ * @author Eric Glass
+ */
+class StripedMap {
+
+    private final Map[] stripes;
+
+    /**
+     * Creates a striped map.
+     *
+     * @param count The number of stripes; this is rounded up to a power
+     * of two.
+     */
+    public StripedMap(int count) {
+        int size = 1;
+        while (size < count) size <<= 1;
+        stripes = new Map[size];
+        for (int i = 0; i < size; i++) stripes[i] = new HashMap();
+    }
+
+    public Object get(Object key) {
+        Map stripe = getStripe(key);
+        synchronized (stripe) {
+            return stripe.get(key);
+        }
+    }
+
+    public Object put(Object key, Object value) {
+        Map stripe = getStripe(key);
+        synchronized (stripe) {
+            return stripe.put(key, value);
+        }
+    }
+
+    /**
+     * Associates the value with the key, unless the key is already
+     * present.
+     *
+     * @param key The key.
+     * @param value The value.
+     * @return The existing value, or <code>null</code> if the value was
+     * added.
+     */
+    public Object putIfAbsent(Object key, Object value) {
+        Map stripe = getStripe(key);
+        synchronized (stripe) {
+            Object existing = stripe.get(key);
+            if (existing == null) stripe.put(key, value);
+            return existing;
+        }
+    }
+
+    public Object remove(Object key) {
+        Map stripe = getStripe(key);
+        synchronized (stripe) {
+            return stripe.remove(key);
+        }
+    }
+
+    /**
+     * Removes the key only if it is associated with the given value.
+     *
+     * @param key The key.
+     * @param value The expected value.
+     * @return <code>true</code> if the entry was removed.
+     */
+    public boolean remove(Object key, Object value) {
+        Map stripe = getStripe(key);
+        synchronized (stripe) {
+            if (stripe.get(key) != value) return false;
+            stripe.remove(key);
+            return true;
+        }
+    }
+
+    /**
+     * Returns the values in the map.  Each stripe is copied under its own
+     * lock, so the result is not an atomic snapshot of the whole map.
+     *
+     * @return A <code>List</code> containing the values.
+     */
+    public List values() {
+        List values = new ArrayList();
+        for (int i = 0; i < stripes.length; i++) {
+            synchronized (stripes[i]) {
+                values.addAll(stripes[i].values());
+            }
+        }
+        return values;
+    }
+
+    private Map getStripe(Object key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return stripes[hash & (stripes.length - 1)];
+    }
+
+}
@@ -0,0 +1,377 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2007  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.security.Principal;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import jcifs.smb.SmbException;
+import jcifs.smb.SmbFile;
+
+/**
+ * Maintains membership snapshots for collections, used to answer
+ * RFC 6578 "sync-collection" reports.  Each snapshot records the name,
+ * size and modification time of every member, along with the revision
+ * at which the member last changed.  Revisions are drawn from a single
+ * increasing counter; a sync token identifies a revision, so the changes
+ * since a token are those members with a later revision.
+ * <p>
+ * Snapshots are held in sorted parallel arrays; refreshing a snapshot
+ * merges a new listing against it in a single pass, assigning a new
+ * revision only to members which were added, modified or removed.
+ * Removed members are retained as tombstones so that their removal can
+ * be reported.  Once the number of tombstones for a collection exceeds
+ * the configured limit, the oldest are discarded and tokens predating
+ * them are no longer accepted (the client must then perform a full
+ * synchronization).  Snapshots are kept separately for each user, as
+ * the visible membership may differ, and the least recently used
+ * snapshots are discarded once the configured number is exceeded.
+ * <p>
+ * Snapshots are held in memory only; tokens issued before a restart are
+ * rejected.
+ *
+ * @author Eric Glass
+ */
+public class SyncSnapshotStore {
+
+    private static final String TOKEN_PREFIX = "urn:x-davenport:sync:";
+
+    private static final Comparator NAME_ORDER = new Comparator() {
+        public int compare(Object a, Object b) {
+            return ((SmbFile) a).getName().compareTo(((SmbFile) b).getName());
+        }
+    };
+
+    private final Map snapshots;
+
+    private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+
+    private final int maximumTombstones;
+
+    private long revision;
+
+    /**
+     * Creates a snapshot store.
+     *
+     * @param maximumCollections The maximum number of snapshots retained.
+     * @param maximumTombstones The maximum number of removed members
+     * retained for each collection.
+     */
+    public SyncSnapshotStore(final int maximumCollections,
+            int maximumTombstones) {
+        this.maximumTombstones = Math.max(maximumTombstones, 0);
+        snapshots = new LinkedHashMap(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry eldest) {
+                return size() > maximumCollections;
+            }
+        };
+    }
+
+    /**
+     * Returns the sync token corresponding to the given revision.
+     *
+     * @param revision The revision.
+     * @return A <code>String</code> containing the token URI.
+     */
+    public String getToken(long revision) {
+        return TOKEN_PREFIX + epoch + "-" + revision;
+    }
+
+    /**
+     * Parses a sync token issued by this store.
+     *
+     * @param token The token URI.
+     * @return A <code>long</code> containing the revision, or -1 if the
+     * token was not issued by this store.
+     */
+    public long parseToken(String token) {
+        String prefix = TOKEN_PREFIX + epoch + "-";
+        if (token == null || !token.startsWith(prefix)) return -1;
+        try {
+            return Long.parseLong(token.substring(prefix.length()));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Refreshes the snapshot of the specified collection using the given
+     * listing, and returns the changes since the specified revision.
+     *
+     * @param collection The collection.
+     * @param members The current members of the collection.
+     * @param since The revision from the client's sync token, or -1 for
+     * an initial synchronization (in which case all members are reported).
+     * @return The <code>Changes</code> since the given revision, or
+     * <code>null</code> if the revision is no longer (or was never)
+     * valid for the collection.
+     * @throws SmbException If the member attributes cannot be read.
+     */
+    public Changes update(SmbFile collection, SmbFile[] members, long since)
+            throws SmbException {
+        int count = members.length;
+        SmbFile[] sorted = new SmbFile[count];
+        System.arraycopy(members, 0, sorted, 0, count);
+        Arrays.sort(sorted, NAME_ORDER);
+        long[] sizes = new long[count];
+        long[] times = new long[count];
+        for (int i = 0; i < count; i++) {
+            sizes[i] = sorted[i].isDirectory() ? 0l : sorted[i].length();
+            times[i] = sorted[i].lastModified();
+        }
+        String key = getKey(collection);
+        Snapshot snapshot;
+        boolean created = false;
+        synchronized (snapshots) {
+            snapshot = (Snapshot) snapshots.get(key);
+            if (snapshot == null) {
+                snapshot = new Snapshot(nextRevision());
+                snapshots.put(key, snapshot);
+                created = true;
+            }
+        }
+        synchronized (snapshot) {
+            if (!created && since != -1 &&
+                    (since < snapshot.floor || since > snapshot.revision)) {
+                return null;
+            }
+            snapshot.merge(sorted, sizes, times);
+            if (created && since != -1) return null;
+            return snapshot.getChanges(sorted, since);
+        }
+    }
+
+    /**
+     * Discards all snapshots.
+     */
+    public void clear() {
+        synchronized (snapshots) {
+            snapshots.clear();
+        }
+    }
+
+    private synchronized long nextRevision() {
+        return ++revision;
+    }
+
+    private static String getKey(SmbFile file) {
+        Principal principal = file.getPrincipal();
+        String path = file.getCanonicalPath().toLowerCase();
+        if (path.endsWith("/")) path = path.substring(0, path.length() - 1);
+        return ((principal != null) ? principal.getName() : "") + "|" + path;
+    }
+
+    /**
+     * The changes to a collection since a given revision.
+     */
+    public static class Changes {
+
+        private final SmbFile[] changed;
+
+        private final String[] removed;
+
+        private final long revision;
+
+        Changes(SmbFile[] changed, String[] removed, long revision) {
+            this.changed = changed;
+            this.removed = removed;
+            this.revision = revision;
+        }
+
+        /**
+         * Returns the members which have been added or modified.
+         *
+         * @return An array of <code>SmbFile</code>s.
+         */
+        public SmbFile[] getChanged() {
+            return changed;
+        }
+
+        /**
+         * Returns the names of the members which have been removed.
+         *
+         * @return An array of member names.
+         */
+        public String[] getRemoved() {
+            return removed;
+        }
+
+        /**
+         * Returns the current revision of the collection.
+         *
+         * @return A <code>long</code> containing the revision.
+         */
+        public long getRevision() {
+            return revision;
+        }
+
+    }
+
+    private class Snapshot {
+
+        String[] names = new String[0];
+
+        long[] sizes = new long[0];
+
+        long[] times = new long[0];
+
+        // negative for tombstones
+        long[] revisions = new long[0];
+
+        int tombstones;
+
+        long revision;
+
+        long floor;
+
+        Snapshot(long revision) {
+            this.revision = revision;
+            this.floor = revision;
+        }
+
+        void merge(SmbFile[] members, long[] sizes, long[] times) {
+            int count = members.length;
+            int capacity = count + this.names.length;
+            String[] names = new String[capacity];
+            long[] newSizes = new long[capacity];
+            long[] newTimes = new long[capacity];
+            long[] revisions = new long[capacity];
+            long current = 0;
+            int tombstones = 0;
+            int i = 0;
+            int j = 0;
+            int k = 0;
+            while (i < count || j < this.names.length) {
+                int order;
+                if (i == count) {
+                    order = 1;
+                } else if (j == this.names.length) {
+                    order = -1;
+                } else {
+                    order = members[i].getName().compareTo(this.names[j]);
+                }
+                if (order > 0) {
+                    names[k] = this.names[j];
+                    newSizes[k] = this.sizes[j];
+                    newTimes[k] = this.times[j];
+                    revisions[k] = this.revisions[j];
+                    if (revisions[k] > 0) {
+                        if (current == 0) current = nextRevision();
+                        revisions[k] = -current;
+                    }
+                    tombstones++;
+                    j++;
+                } else {
+                    names[k] = members[i].getName();
+                    newSizes[k] = sizes[i];
+                    newTimes[k] = times[i];
+                    if (order == 0 && this.revisions[j] > 0 &&
+                            this.sizes[j] == sizes[i] &&
+                                    this.times[j] == times[i]) {
+                        revisions[k] = this.revisions[j];
+                    } else {
+                        if (current == 0) current = nextRevision();
+                        revisions[k] = current;
+                    }
+                    if (order == 0) j++;
+                    i++;
+                }
+                k++;
+            }
+            if (current != 0) revision = current;
+            if (tombstones > maximumTombstones) {
+                long[] removed = new long[tombstones];
+                int index = 0;
+                for (int n = 0; n < k; n++) {
+                    if (revisions[n] < 0) removed[index++] = -revisions[n];
+                }
+                Arrays.sort(removed);
+                long cutoff = removed[tombstones - maximumTombstones - 1];
+                int n = 0;
+                for (int m = 0; m < k; m++) {
+                    if (revisions[m] < 0 && -revisions[m] <= cutoff) continue;
+                    names[n] = names[m];
+                    newSizes[n] = newSizes[m];
+                    newTimes[n] = newTimes[m];
+                    revisions[n] = revisions[m];
+                    n++;
+                }
+                tombstones -= k - n;
+                k = n;
+                floor = Math.max(floor, cutoff);
+            }
+            this.names = trim(names, k);
+            this.sizes = trim(newSizes, k);
+            this.times = trim(newTimes, k);
+            this.revisions = trim(revisions, k);
+            this.tombstones = tombstones;
+        }
+
+        Changes getChanges(SmbFile[] members, long since) {
+            int changed = 0;
+            int removed = 0;
+            for (int n = 0; n < revisions.length; n++) {
+                long value = revisions[n];
+                if (value > since) {
+                    changed++;
+                } else if (since != -1 && -value > since) {
+                    removed++;
+                }
+            }
+            SmbFile[] changedMembers = new SmbFile[changed];
+            String[] removedNames = new String[removed];
+            changed = 0;
+            removed = 0;
+            int i = 0;
+            for (int n = 0; n < revisions.length; n++) {
+                long value = revisions[n];
+                if (value > 0) {
+                    // live entries appear in the same order as the listing
+                    if (value > since) {
+                        changedMembers[changed++] = members[i];
+                    }
+                    i++;
+                } else if (since != -1 && -value > since) {
+                    removedNames[removed++] = names[n];
+                }
+            }
+            return new Changes(changedMembers, removedNames, revision);
+        }
+
+    }
+
+    private static String[] trim(String[] array, int length) {
+        if (array.length == length) return array;
+        String[] trimmed = new String[length];
+        System.arraycopy(array, 0, trimmed, 0, length);
+        return trimmed;
+    }
+
+    private static long[] trim(long[] array, int length) {
+        if (array.length == length) return array;
+        long[] trimmed = new long[length];
+        System.arraycopy(array, 0, trimmed, 0, length);
+        return trimmed;
+    }
+
+}
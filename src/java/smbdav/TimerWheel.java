@@ -0,0 +1,276 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2007  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hashed timing wheel for scheduling large numbers of timeouts (such as
+ * lock expirations).  Each timeout is placed in the slot corresponding
+ * to the tick on which it expires; scheduling and cancellation are
+ * constant-time list operations, and cancelled timeouts are unlinked
+ * immediately rather than lingering until their expiration.  A single
+ * thread advances the wheel, collecting the expired timeouts in each
+ * slot as a batch; the tasks themselves are run on a small
+ * <code>WorkerPool</code>, so that a slow task (i.e., closing a file on an
+ * unresponsive server) does not delay the expiration of others.  Tasks
+ * sharing a key may occupy at most half of the pool's threads.
+ * <p>
+ * Timeouts are accurate to within one tick; this is intended for
+ * coarse-grained expirations, not precise scheduling.
+ *
+ * @author Eric Glass
+ */
+public class TimerWheel {
+
+    private static final long DEFAULT_TICK = 1000l;
+
+    private static final int DEFAULT_SLOTS = 512;
+
+    private static final int DEFAULT_THREADS = 4;
+
+    private static TimerWheel instance;
+
+    private final Timeout[] slots;
+
+    private final int mask;
+
+    private final long tickDuration;
+
+    private final long startTime;
+
+    private final WorkerPool workerPool;
+
+    private long tick;
+
+    private boolean running;
+
+    /**
+     * Creates and starts a timing wheel.
+     *
+     * @param name The name used for the wheel and worker threads.
+     * @param tickDuration The duration (in milliseconds) of a single tick.
+     * @param slots The number of slots in the wheel; this is rounded up
+     * to a power of two.
+     * @param threads The number of threads used to run expired tasks.
+     */
+    public TimerWheel(String name, long tickDuration, int slots,
+            int threads) {
+        int size = 1;
+        while (size < slots) size <<= 1;
+        this.slots = new Timeout[size];
+        this.mask = size - 1;
+        this.tickDuration = Math.max(tickDuration, 1l);
+        this.startTime = System.currentTimeMillis();
+        this.workerPool = new WorkerPool(name + "-Worker", threads,
+                Math.max(threads / 2, 1));
+        running = true;
+        Thread ticker = new Thread(new Ticker(), name);
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    /**
+     * Returns the timing wheel shared by the lock managers, locked files
+     * and other periodic tasks, creating it if necessary.
+     *
+     * @return The shared <code>TimerWheel</code>.
+     */
+    public static synchronized TimerWheel getInstance() {
+        if (instance == null) {
+            instance = new TimerWheel("Davenport-TimerWheel", DEFAULT_TICK,
+                    DEFAULT_SLOTS, DEFAULT_THREADS);
+        }
+        return instance;
+    }
+
+    /**
+     * Schedules a task to be run once after the specified delay.
+     *
+     * @param key The key used to limit concurrency when the task is run
+     * (i.e., the server name); may be <code>null</code>.
+     * @param task The task to run.
+     * @param delay The delay (in milliseconds) before the task is run.
+     * @return A <code>Timeout</code> which may be used to cancel the task.
+     */
+    public Timeout schedule(Object key, Runnable task, long delay) {
+        return schedule(key, task, delay, 0l);
+    }
+
+    /**
+     * Schedules a task to be run repeatedly.  Each subsequent run is
+     * scheduled once the previous run has completed.
+     *
+     * @param key The key used to limit concurrency when the task is run
+     * (i.e., the server name); may be <code>null</code>.
+     * @param task The task to run.
+     * @param delay The delay (in milliseconds) before the first run.
+     * @param period The delay (in milliseconds) between the completion of
+     * one run and the start of the next; if zero, the task is run once.
+     * @return A <code>Timeout</code> which may be used to cancel the task.
+     */
+    public Timeout schedule(Object key, Runnable task, long delay,
+            long period) {
+        Timeout timeout = new Timeout(key, task, Math.max(period, 0l));
+        insert(timeout, delay);
+        return timeout;
+    }
+
+    /**
+     * Stops the wheel.  Pending timeouts are discarded.
+     */
+    public void destroy() {
+        synchronized (this) {
+            running = false;
+            for (int i = 0; i < slots.length; i++) slots[i] = null;
+            notifyAll();
+        }
+        workerPool.destroy();
+    }
+
+    private synchronized void insert(Timeout timeout, long delay) {
+        if (!running || timeout.cancelled) return;
+        long elapsed = System.currentTimeMillis() - startTime +
+                Math.max(delay, 0l);
+        long deadline = (elapsed + tickDuration - 1) / tickDuration;
+        timeout.deadline = Math.max(deadline, tick + 1);
+        int index = (int) (timeout.deadline & mask);
+        Timeout head = slots[index];
+        timeout.slot = index;
+        timeout.previous = null;
+        timeout.next = head;
+        if (head != null) head.previous = timeout;
+        slots[index] = timeout;
+    }
+
+    private synchronized boolean remove(Timeout timeout) {
+        timeout.cancelled = true;
+        if (timeout.slot == -1) return false;
+        unlink(timeout);
+        return true;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.previous != null) {
+            timeout.previous.next = timeout.next;
+        } else {
+            slots[timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null) timeout.next.previous = timeout.previous;
+        timeout.previous = null;
+        timeout.next = null;
+        timeout.slot = -1;
+    }
+
+    private synchronized List advance() {
+        List expired = null;
+        while (running) {
+            long now = System.currentTimeMillis() - startTime;
+            long next = (tick + 1) * tickDuration;
+            if (now < next) {
+                if (expired != null) return expired;
+                try {
+                    wait(next - now);
+                } catch (InterruptedException ex) {
+                    return null;
+                }
+                continue;
+            }
+            tick++;
+            Timeout timeout = slots[(int) (tick & mask)];
+            while (timeout != null) {
+                Timeout successor = timeout.next;
+                if (timeout.deadline <= tick) {
+                    unlink(timeout);
+                    if (expired == null) expired = new ArrayList();
+                    expired.add(timeout);
+                }
+                timeout = successor;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A handle for a scheduled task.
+     */
+    public class Timeout implements Runnable {
+
+        private final Object key;
+
+        private final Runnable task;
+
+        private final long period;
+
+        private long deadline;
+
+        private int slot = -1;
+
+        private Timeout previous;
+
+        private Timeout next;
+
+        private boolean cancelled;
+
+        Timeout(Object key, Runnable task, long period) {
+            this.key = key;
+            this.task = task;
+            this.period = period;
+        }
+
+        /**
+         * Cancels the task.  A run which is already in progress is not
+         * interrupted, but a repeating task will not be rescheduled.
+         *
+         * @return <code>true</code> if the task was pending and has been
+         * removed from the wheel.
+         */
+        public boolean cancel() {
+            return remove(this);
+        }
+
+        public void run() {
+            synchronized (TimerWheel.this) {
+                if (cancelled) return;
+            }
+            try {
+                task.run();
+            } finally {
+                if (period > 0) insert(this, period);
+            }
+        }
+
+    }
+
+    private class Ticker implements Runnable {
+
+        public void run() {
+            List expired;
+            while ((expired = advance()) != null) {
+                for (int i = 0; i < expired.size(); i++) {
+                    Timeout timeout = (Timeout) expired.get(i);
+                    workerPool.execute(timeout.key, timeout);
+                }
+            }
+        }
+
+    }
+
+}
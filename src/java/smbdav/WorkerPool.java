@@ -0,0 +1,213 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2007  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * A fixed pool of worker threads shared by handlers which issue
+ * independent SMB requests concurrently.  Each task is associated with
+ * a key (normally the target server name); the pool limits the number
+ * of tasks running concurrently for any single key, so that one busy
+ * server cannot monopolize the pool or be overwhelmed by it.
+ * <p>
+ * Tasks are queued per key, and the keys which have queued tasks and are
+ * below their concurrency limit are held in a ready queue; workers take
+ * keys from the ready queue in turn, so that dequeuing a task takes
+ * constant time however many tasks are waiting on saturated keys.
+ * <p>
+ * Tasks must not block waiting for other tasks in the pool.  Callers
+ * waiting on results should be prepared to run an unstarted task
+ * themselves, so that progress is made even when the pool is saturated.
+ *
+ * @author Eric Glass
+ */
+public class WorkerPool {
+
+    private final LinkedList ready = new LinkedList();
+
+    private final Map queues = new HashMap();
+
+    private final int keyConcurrency;
+
+    private boolean running;
+
+    /**
+     * Creates and starts a worker pool.
+     *
+     * @param name The name used for the worker threads.
+     * @param threads The number of worker threads.
+     * @param keyConcurrency The maximum number of tasks which may run
+     * concurrently for a single key.
+     */
+    public WorkerPool(String name, int threads, int keyConcurrency) {
+        this.keyConcurrency = Math.max(keyConcurrency, 1);
+        threads = Math.max(threads, 1);
+        running = true;
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(new Worker(), name + "-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /**
+     * Queues a task for execution.  If the pool has been shut down, the
+     * task is run in the calling thread.
+     *
+     * @param key The key used to limit concurrency (i.e., the server name).
+     * @param task The task to run.
+     */
+    public void execute(Object key, Runnable task) {
+        if (key == null) key = "";
+        synchronized (ready) {
+            if (running) {
+                Queue queue = (Queue) queues.get(key);
+                if (queue == null) {
+                    queues.put(key, queue = new Queue(key));
+                }
+                queue.tasks.addLast(new Task(queue, task));
+                if (schedule(queue)) ready.notify();
+                return;
+            }
+        }
+        task.run();
+    }
+
+    /**
+     * Indicates whether the pool is accepting tasks.
+     *
+     * @return <code>true</code> if the pool is running.
+     */
+    public boolean isRunning() {
+        synchronized (ready) {
+            return running;
+        }
+    }
+
+    /**
+     * Shuts down the pool.  Queued tasks which have not started are
+     * discarded; callers waiting on them are expected to run them
+     * directly.
+     */
+    public void destroy() {
+        synchronized (ready) {
+            running = false;
+            ready.clear();
+            queues.clear();
+            ready.notifyAll();
+        }
+    }
+
+    private boolean schedule(Queue queue) {
+        if (queue.ready || queue.tasks.isEmpty() ||
+                queue.active >= keyConcurrency) {
+            return false;
+        }
+        queue.ready = true;
+        ready.addLast(queue);
+        return true;
+    }
+
+    private Task next() {
+        synchronized (ready) {
+            while (running) {
+                if (!ready.isEmpty()) {
+                    Queue queue = (Queue) ready.removeFirst();
+                    queue.ready = false;
+                    Task task = (Task) queue.tasks.removeFirst();
+                    queue.active++;
+                    // requeue the key behind the others, so keys take turns
+                    schedule(queue);
+                    return task;
+                }
+                try {
+                    ready.wait();
+                } catch (InterruptedException ex) {
+                    return null;
+                }
+            }
+            return null;
+        }
+    }
+
+    private void release(Task task) {
+        synchronized (ready) {
+            Queue queue = task.queue;
+            queue.active--;
+            if (!running) return;
+            if (schedule(queue)) {
+                ready.notify();
+            } else if (queue.active <= 0 && queue.tasks.isEmpty() &&
+                    queues.get(queue.key) == queue) {
+                queues.remove(queue.key);
+            }
+        }
+    }
+
+    private class Worker implements Runnable {
+
+        public void run() {
+            Task task;
+            while ((task = next()) != null) {
+                try {
+                    task.task.run();
+                } catch (Throwable throwable) {
+                    Log.log(Log.WARNING, "Uncaught error in worker: {0}",
+                            throwable);
+                } finally {
+                    release(task);
+                }
+            }
+        }
+
+    }
+
+    private static class Queue {
+
+        final Object key;
+
+        final LinkedList tasks = new LinkedList();
+
+        int active;
+
+        boolean ready;
+
+        Queue(Object key) {
+            this.key = key;
+        }
+
+    }
+
+    private static class Task {
+
+        final Queue queue;
+
+        final Runnable task;
+
+        Task(Queue queue, Runnable task) {
+            this.queue = queue;
+            this.task = task;
+        }
+
+    }
+
+}
@@ -0,0 +1,756 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2007  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import java.security.Principal;
+
+import jcifs.smb.NtlmPasswordAuthentication;
+import jcifs.smb.NtStatus;
+import jcifs.smb.SmbException;
+import jcifs.smb.SmbFile;
+import jcifs.smb.SmbFileFilter;
+import jcifs.smb.SmbFileOutputStream;
+
+/**
+ * Maintains a durable local journal of uploaded content which is
+ * written to the SMB server in the background.  This allows PUT requests
+ * to complete as soon as the content has been committed to local storage,
+ * which is useful where the link to the file server is slow or unreliable.
+ * <p>
+ * Each entry is stored in the journal directory as a data file containing
+ * the uploaded content and an entry file recording the target; the entry
+ * file is only renamed into place after both have been synchronized to
+ * disk, so a partially written entry is never replayed.  Entries are
+ * written to the server in the order in which they were accepted by a
+ * set of flusher threads, with a bounded number of concurrent writes per
+ * server.  Failed writes are retried with an exponential backoff; writes
+ * which fail with a permanent error (such as access being denied) are
+ * abandoned after a configured number of attempts.  Where a newer upload
+ * arrives for a resource which has not yet been written, the older entry
+ * is discarded.
+ * <p>
+ * Content uploaded to a locked resource is written through the locked
+ * resource obtained when the upload was accepted.  If that lock has been
+ * released in the meantime, the content is written only if the resource
+ * has not since been locked by another user.
+ * <p>
+ * Entries which remain in the journal when the queue is started (i.e.,
+ * after a restart) are replayed only if they were uploaded under the
+ * credentials supplied to the constructor (or the default jCIFS
+ * credentials), as the original user's password is not retained.
+ * Other recovered entries, and entries which have been abandoned, are
+ * moved to the <code>quarantine</code> subdirectory of the journal and
+ * reported, so that they can be recovered manually.
+ *
+ * @author Eric Glass
+ */
+public class WriteBehindQueue {
+
+    private static final String ENTRY_SUFFIX = ".entry";
+
+    private static final String DATA_SUFFIX = ".data";
+
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private static final String QUARANTINE = "quarantine";
+
+    private final LinkedList queue = new LinkedList();
+
+    private final Map pending = new HashMap();
+
+    private final Map activeServers = new HashMap();
+
+    private final File directory;
+
+    private final int threads;
+
+    private final int serverConcurrency;
+
+    private final long retryDelay;
+
+    private final long maximumRetryDelay;
+
+    private final long flushTimeout;
+
+    private final int maximumAttempts;
+
+    private final NtlmPasswordAuthentication replayCredentials;
+
+    private LockManager lockManager;
+
+    private Thread[] flushers;
+
+    private long sequence;
+
+    private boolean running;
+
+    /**
+     * Creates a write-behind queue using the specified journal directory.
+     *
+     * @param directory The directory in which the journal is maintained.
+     * @param threads The number of flusher threads.
+     * @param serverConcurrency The maximum number of concurrent writes
+     * to a single server.
+     * @param retryDelay The initial delay in milliseconds before a failed
+     * write is retried.
+     * @param maximumRetryDelay The maximum delay in milliseconds between
+     * retries.
+     * @param flushTimeout The maximum time in milliseconds to wait for
+     * pending content to be written when an explicit flush is requested.
+     * @param maximumAttempts The number of attempts after which a write
+     * failing with a permanent error is abandoned.
+     * @param replayCredentials The credentials used to write entries
+     * recovered from the journal at startup which were uploaded by the
+     * same user.  Entries uploaded by other users are quarantined.
+     * @throws IOException If the journal directory cannot be created.
+     */
+    public WriteBehindQueue(File directory, int threads, int serverConcurrency,
+            long retryDelay, long maximumRetryDelay, long flushTimeout,
+                    int maximumAttempts,
+                            NtlmPasswordAuthentication replayCredentials)
+                                    throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException(SmbDAVUtilities.getResource(
+                    WriteBehindQueue.class, "cantCreateJournal",
+                            new Object[] { directory }, null));
+        }
+        this.directory = directory;
+        this.threads = Math.max(threads, 1);
+        this.serverConcurrency = Math.max(serverConcurrency, 1);
+        this.retryDelay = Math.max(retryDelay, 1);
+        this.maximumRetryDelay = Math.max(maximumRetryDelay, this.retryDelay);
+        this.flushTimeout = flushTimeout;
+        this.maximumAttempts = Math.max(maximumAttempts, 1);
+        this.replayCredentials = replayCredentials;
+    }
+
+    /**
+     * Sets the lock manager used to obtain locked resources when content
+     * is written to the server.
+     *
+     * @param lockManager The installed lock manager, or <code>null</code>
+     * if locking is not supported.
+     */
+    public void setLockManager(LockManager lockManager) {
+        this.lockManager = lockManager;
+    }
+
+    /**
+     * Replays any entries remaining in the journal and starts the flusher
+     * threads.
+     */
+    public void start() {
+        synchronized (queue) {
+            if (running) return;
+            running = true;
+            replay();
+            flushers = new Thread[threads];
+            for (int i = 0; i < threads; i++) {
+                flushers[i] = new Thread(new Flusher(),
+                        "Davenport-WriteBehind-" + i);
+                flushers[i].setDaemon(true);
+                flushers[i].start();
+            }
+            Log.log(Log.INFORMATION,
+                    "Write-behind queue started with {0} pending entries.",
+                            new Integer(queue.size()));
+        }
+    }
+
+    /**
+     * Stops the flusher threads.  Entries which have not been written
+     * remain in the journal and will be replayed on the next start.
+     */
+    public void destroy() {
+        Thread[] flushers;
+        synchronized (queue) {
+            if (!running) return;
+            running = false;
+            flushers = this.flushers;
+            this.flushers = null;
+            queue.notifyAll();
+        }
+        for (int i = 0; i < flushers.length; i++) {
+            try {
+                flushers[i].join(flushTimeout);
+            } catch (InterruptedException ex) { }
+        }
+        synchronized (queue) {
+            queue.clear();
+            pending.clear();
+            activeServers.clear();
+        }
+    }
+
+    /**
+     * Commits the supplied content to the journal, to be written to the
+     * specified resource in the background.  This method returns once
+     * the content is safely on local storage.
+     *
+     * @param file The resource to which the content is to be written.
+     * If the resource is locked, this should be the locked resource
+     * obtained from the lock manager.
+     * @param auth The credentials used to write the content.
+     * @param input The stream from which the content is read.
+     * @return An <code>SmbFile</code> presenting the pending content.
+     * @throws IOException If the content could not be committed to the
+     * journal.
+     */
+    public SmbFile accept(SmbFile file, NtlmPasswordAuthentication auth,
+            InputStream input) throws IOException {
+        long id;
+        synchronized (queue) {
+            id = ++sequence;
+        }
+        String name = Long.toHexString(id);
+        while (name.length() < 16) name = "0" + name;
+        File data = new File(directory, name + DATA_SUFFIX);
+        File entryFile = new File(directory, name + ENTRY_SUFFIX);
+        File temporary = new File(directory, name + TEMPORARY_SUFFIX);
+        long length = 0;
+        FileOutputStream output = new FileOutputStream(data);
+        try {
+            byte[] buf = new byte[8192];
+            int count;
+            while ((count = input.read(buf)) != -1) {
+                output.write(buf, 0, count);
+                length += count;
+            }
+            output.flush();
+            output.getFD().sync();
+        } catch (IOException ex) {
+            output.close();
+            data.delete();
+            throw ex;
+        }
+        output.close();
+        Entry entry = new Entry(name, file.getCanonicalPath(), file.getServer(),
+                data, entryFile, length, System.currentTimeMillis(), auth);
+        entry.target = file;
+        Properties properties = new Properties();
+        properties.setProperty("url", entry.path);
+        properties.setProperty("length", String.valueOf(length));
+        properties.setProperty("timestamp", String.valueOf(entry.timestamp));
+        if (auth != null) properties.setProperty("principal", auth.getName());
+        output = new FileOutputStream(temporary);
+        try {
+            properties.store(output, null);
+            output.flush();
+            output.getFD().sync();
+            output.close();
+            if (!temporary.renameTo(entryFile)) {
+                throw new IOException(SmbDAVUtilities.getResource(
+                        WriteBehindQueue.class, "cantCommitEntry",
+                                new Object[] { entryFile }, null));
+            }
+        } catch (IOException ex) {
+            output.close();
+            temporary.delete();
+            data.delete();
+            throw ex;
+        }
+        Log.log(Log.DEBUG, "Journaled {0} bytes for \"{1}\" as entry {2}.",
+                new Object[] { new Long(length), entry.path, name });
+        enqueue(entry);
+        return new PendingFile(file, entry);
+    }
+
+    /**
+     * Returns a view of the specified resource reflecting any content
+     * which has not yet been written to the server.
+     *
+     * @param file The resource.
+     * @return A pending view of the resource, or the provided
+     * resource if nothing is pending for it.
+     */
+    public SmbFile resolve(SmbFile file) {
+        if (file instanceof PendingFile) return file;
+        Entry entry;
+        synchronized (queue) {
+            if (pending.isEmpty()) return file;
+            entry = (Entry) pending.get(file.getCanonicalPath());
+        }
+        if (entry == null) return file;
+        try {
+            return new PendingFile(file, entry);
+        } catch (IOException ex) {
+            Log.log(Log.DEBUG, ex);
+            return file;
+        }
+    }
+
+    /**
+     * Merges pending content into a listing of the specified collection.
+     * Listed children with pending content are replaced by a pending view,
+     * and pending resources which do not yet exist on the server are added.
+     *
+     * @param directory The collection that was listed.
+     * @param children The children obtained from the server.
+     * @param filter The filter applied to the listing, or <code>null</code>.
+     * @return The merged listing.
+     */
+    public SmbFile[] merge(SmbFile directory, SmbFile[] children,
+            SmbFileFilter filter) {
+        String parent = directory.getCanonicalPath();
+        if (!parent.endsWith("/")) parent += "/";
+        Map entries = new HashMap();
+        synchronized (queue) {
+            if (pending.isEmpty()) return children;
+            Iterator iterator = pending.values().iterator();
+            while (iterator.hasNext()) {
+                Entry entry = (Entry) iterator.next();
+                if (entry.path.startsWith(parent) &&
+                        entry.path.indexOf('/', parent.length()) == -1) {
+                    entries.put(entry.path, entry);
+                }
+            }
+        }
+        if (entries.isEmpty()) return children;
+        List merged = new ArrayList();
+        for (int i = 0; i < children.length; i++) {
+            Entry entry = (Entry) entries.remove(
+                    children[i].getCanonicalPath());
+            if (entry == null) {
+                merged.add(children[i]);
+                continue;
+            }
+            try {
+                merged.add(new PendingFile(children[i], entry));
+            } catch (IOException ex) {
+                merged.add(children[i]);
+            }
+        }
+        Iterator iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = (Entry) iterator.next();
+            try {
+                SmbFile file = new PendingFile(new SmbFile(directory,
+                        entry.path.substring(parent.length())), entry);
+                if (filter == null || filter.accept(file)) merged.add(file);
+            } catch (IOException ex) {
+                Log.log(Log.DEBUG, ex);
+            }
+        }
+        return (SmbFile[]) merged.toArray(new SmbFile[merged.size()]);
+    }
+
+    /**
+     * Writes any pending content for the specified resource (and its
+     * members, if it is a collection) to the server, waiting until this
+     * has completed.  This is used before operations which act directly on
+     * the server copy of a resource.
+     *
+     * @param file The resource to flush.
+     * @throws IOException If the pending content could not be written
+     * within the configured timeout.
+     */
+    public void flush(SmbFile file) throws IOException {
+        String path = file.getCanonicalPath();
+        String prefix = path.endsWith("/") ? path : path + "/";
+        long deadline = System.currentTimeMillis() + flushTimeout;
+        synchronized (queue) {
+            boolean expedited = false;
+            while (true) {
+                boolean found = false;
+                Iterator entries = queue.iterator();
+                while (entries.hasNext()) {
+                    Entry entry = (Entry) entries.next();
+                    if (entry.path.equals(path) ||
+                            entry.path.startsWith(prefix)) {
+                        found = true;
+                        if (!expedited) entry.nextAttempt = 0;
+                    }
+                }
+                if (!found) return;
+                if (!expedited) {
+                    expedited = true;
+                    queue.notifyAll();
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0 || !running) {
+                    throw new IOException(SmbDAVUtilities.getResource(
+                            WriteBehindQueue.class, "flushTimeout",
+                                    new Object[] { path }, null));
+                }
+                try {
+                    queue.wait(remaining);
+                } catch (InterruptedException ex) {
+                    throw new IOException(SmbDAVUtilities.getResource(
+                            WriteBehindQueue.class, "flushTimeout",
+                                    new Object[] { path }, null));
+                }
+            }
+        }
+    }
+
+    private void enqueue(Entry entry) {
+        Entry superseded = null;
+        synchronized (queue) {
+            Entry previous = (Entry) pending.put(entry.path, entry);
+            if (previous != null && !previous.active &&
+                    queue.remove(previous)) {
+                superseded = previous;
+            }
+            queue.addLast(entry);
+            queue.notifyAll();
+        }
+        if (superseded != null) {
+            Log.log(Log.DEBUG, "Entry {0} superseded by {1}.",
+                    new Object[] { superseded.name, entry.name });
+            superseded.discard();
+        }
+    }
+
+    private void replay() {
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        Arrays.sort(files);
+        Set valid = new HashSet();
+        for (int i = 0; i < files.length; i++) {
+            String name = files[i].getName();
+            if (name.endsWith(TEMPORARY_SUFFIX)) {
+                files[i].delete();
+                continue;
+            }
+            if (!name.endsWith(ENTRY_SUFFIX)) continue;
+            name = name.substring(0, name.length() - ENTRY_SUFFIX.length());
+            File data = new File(directory, name + DATA_SUFFIX);
+            try {
+                Properties properties = new Properties();
+                InputStream input = new FileInputStream(files[i]);
+                try {
+                    properties.load(input);
+                } finally {
+                    input.close();
+                }
+                long length = Long.parseLong(properties.getProperty("length"));
+                if (data.length() != length) {
+                    throw new IOException(SmbDAVUtilities.getResource(
+                            WriteBehindQueue.class, "corruptEntry",
+                                    new Object[] { name }, null));
+                }
+                String url = properties.getProperty("url");
+                String principal = properties.getProperty("principal");
+                if (principal != null && (replayCredentials == null ||
+                        !principal.equals(replayCredentials.getName()))) {
+                    Log.log(Log.ERROR, "Journal entry {0} for \"{1}\" was " +
+                            "uploaded by {2}, whose credentials are not " +
+                                    "available; quarantined.", new Object[] {
+                                            name, url, principal });
+                    quarantine(files[i], data);
+                    continue;
+                }
+                SmbFile file = new SmbFile(url);
+                Entry entry = new Entry(name, file.getCanonicalPath(),
+                        file.getServer(), data, files[i], length,
+                                Long.parseLong(properties.getProperty(
+                                        "timestamp")), (principal != null) ?
+                                                replayCredentials : null);
+                sequence = Math.max(sequence, Long.parseLong(name, 16));
+                Entry previous = (Entry) pending.put(entry.path, entry);
+                if (previous != null && queue.remove(previous)) {
+                    previous.discard();
+                }
+                queue.addLast(entry);
+                valid.add(data.getName());
+                Log.log(Log.INFORMATION, "Recovered journal entry {0} for " +
+                        "\"{1}\" (originally from {2}).", new Object[] { name,
+                                url, principal });
+            } catch (Exception ex) {
+                Log.log(Log.WARNING, "Discarding journal entry {0}: {1}",
+                        new Object[] { name, ex });
+                files[i].delete();
+                data.delete();
+            }
+        }
+        for (int i = 0; i < files.length; i++) {
+            String name = files[i].getName();
+            if (name.endsWith(DATA_SUFFIX) && !valid.contains(name) &&
+                    files[i].exists()) {
+                Log.log(Log.DEBUG, "Removing orphaned journal data {0}.", name);
+                files[i].delete();
+            }
+        }
+    }
+
+    private Entry next() {
+        synchronized (queue) {
+            while (running) {
+                long now = System.currentTimeMillis();
+                long wait = 0;
+                Set blocked = null;
+                Iterator entries = queue.iterator();
+                while (entries.hasNext()) {
+                    Entry entry = (Entry) entries.next();
+                    if (entry.active || entry.nextAttempt > now) {
+                        if (!entry.active) {
+                            long delay = entry.nextAttempt - now;
+                            if (wait == 0 || delay < wait) wait = delay;
+                        }
+                        if (blocked == null) blocked = new HashSet();
+                        blocked.add(entry.path);
+                        continue;
+                    }
+                    if (blocked != null && blocked.contains(entry.path)) {
+                        continue;
+                    }
+                    int[] active = (int[]) activeServers.get(entry.server);
+                    if (active == null) {
+                        activeServers.put(entry.server, active = new int[1]);
+                    }
+                    if (active[0] >= serverConcurrency) continue;
+                    active[0]++;
+                    entry.active = true;
+                    return entry;
+                }
+                try {
+                    queue.wait(wait);
+                } catch (InterruptedException ex) {
+                    return null;
+                }
+            }
+            return null;
+        }
+    }
+
+    private void completed(Entry entry) {
+        synchronized (queue) {
+            release(entry);
+            queue.remove(entry);
+            if (pending.get(entry.path) == entry) pending.remove(entry.path);
+            entry.flushed = true;
+            queue.notifyAll();
+        }
+        Log.log(Log.DEBUG, "Flushed entry {0} to \"{1}\".",
+                new Object[] { entry.name, entry.path });
+        entry.discard();
+    }
+
+    private void failed(Entry entry, Exception error) {
+        boolean abandoned = false;
+        synchronized (queue) {
+            release(entry);
+            if (isPermanent(error) && entry.attempts + 1 >= maximumAttempts) {
+                queue.remove(entry);
+                if (pending.get(entry.path) == entry) {
+                    pending.remove(entry.path);
+                }
+                queue.notifyAll();
+                abandoned = true;
+            }
+        }
+        if (abandoned) {
+            String owner = (entry.auth != null) ? entry.auth.getName() : null;
+            Log.log(Log.CRITICAL, "Abandoned entry {0} for \"{1}\" " +
+                    "(uploaded by {2}) after {3} attempts; quarantined: {4}",
+                            new Object[] { entry.name, entry.path, owner,
+                                    new Integer(maximumAttempts), error });
+            quarantine(entry.entryFile, entry.data);
+            return;
+        }
+        synchronized (queue) {
+            long delay = retryDelay;
+            for (int i = 0; i < entry.attempts && delay < maximumRetryDelay;
+                    i++) {
+                delay <<= 1;
+            }
+            entry.attempts++;
+            entry.nextAttempt = System.currentTimeMillis() +
+                    Math.min(delay, maximumRetryDelay);
+            queue.notifyAll();
+        }
+        Log.log(Log.WARNING, "Unable to flush entry {0} to \"{1}\" " +
+                "(attempt {2}): {3}", new Object[] { entry.name, entry.path,
+                        new Integer(entry.attempts), error });
+    }
+
+    private boolean isPermanent(Exception error) {
+        if (error instanceof LockException) return true;
+        if (!(error instanceof SmbException)) return false;
+        switch (((SmbException) error).getNtStatus()) {
+        case NtStatus.NT_STATUS_ACCESS_DENIED:
+        case NtStatus.NT_STATUS_NETWORK_ACCESS_DENIED:
+        case NtStatus.NT_STATUS_LOGON_FAILURE:
+        case NtStatus.NT_STATUS_WRONG_PASSWORD:
+        case NtStatus.NT_STATUS_NO_SUCH_USER:
+        case NtStatus.NT_STATUS_ACCOUNT_DISABLED:
+        case NtStatus.NT_STATUS_ACCOUNT_LOCKED_OUT:
+        case NtStatus.NT_STATUS_ACCOUNT_RESTRICTION:
+        case NtStatus.NT_STATUS_PASSWORD_EXPIRED:
+        case NtStatus.NT_STATUS_PASSWORD_MUST_CHANGE:
+        case NtStatus.NT_STATUS_OBJECT_NAME_INVALID:
+        case NtStatus.NT_STATUS_OBJECT_PATH_INVALID:
+        case NtStatus.NT_STATUS_OBJECT_PATH_NOT_FOUND:
+        case NtStatus.NT_STATUS_OBJECT_PATH_SYNTAX_BAD:
+        case NtStatus.NT_STATUS_FILE_IS_A_DIRECTORY:
+        case NtStatus.NT_STATUS_NOT_A_DIRECTORY:
+        case NtStatus.NT_STATUS_BAD_NETWORK_NAME:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private void quarantine(File entryFile, File data) {
+        File quarantine = new File(directory, QUARANTINE);
+        if ((quarantine.isDirectory() || quarantine.mkdirs()) &&
+                data.renameTo(new File(quarantine, data.getName())) &&
+                        entryFile.renameTo(new File(quarantine,
+                                entryFile.getName()))) {
+            return;
+        }
+        Log.log(Log.CRITICAL, "Unable to quarantine journal entry {0}.",
+                entryFile);
+    }
+
+    private void release(Entry entry) {
+        entry.active = false;
+        int[] active = (int[]) activeServers.get(entry.server);
+        if (active != null && --active[0] <= 0) {
+            activeServers.remove(entry.server);
+        }
+    }
+
+    private void write(Entry entry) throws IOException, LockException {
+        SmbFile file = (entry.auth != null) ?
+                new SmbFile(entry.path, entry.auth) : new SmbFile(entry.path);
+        LockManager lockManager = this.lockManager;
+        if (lockManager != null) {
+            SmbFile locked = lockManager.getLockedResource(file, entry.auth);
+            if (locked != entry.target) {
+                // not written under the lock held when the upload was
+                // accepted; ensure no other user has locked it since
+                checkLocks(lockManager.getActiveLocks(file), entry.auth);
+            }
+            file = locked;
+        }
+        InputStream input = new FileInputStream(entry.data);
+        try {
+            OutputStream output = new SmbFileOutputStream(file);
+            try {
+                byte[] buf = new byte[65536];
+                int count;
+                while ((count = input.read(buf)) != -1) {
+                    output.write(buf, 0, count);
+                }
+                output.flush();
+            } finally {
+                output.close();
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    private void checkLocks(Lock[] locks, Principal principal)
+            throws LockException {
+        if (locks == null) return;
+        String name = (principal != null) ? principal.getName() : null;
+        for (int i = 0; i < locks.length; i++) {
+            Principal owner = locks[i].getPrincipal();
+            if (owner == null || name == null ||
+                    !name.equals(owner.getName())) {
+                throw new LockException(MethodHandler.SC_LOCKED);
+            }
+        }
+    }
+
+    private class Flusher implements Runnable {
+
+        public void run() {
+            Entry entry;
+            while ((entry = next()) != null) {
+                try {
+                    write(entry);
+                    completed(entry);
+                } catch (Exception ex) {
+                    failed(entry, ex);
+                }
+            }
+        }
+
+    }
+
+    static class Entry {
+
+        final String name;
+
+        final String path;
+
+        final String server;
+
+        final File data;
+
+        final File entryFile;
+
+        final long length;
+
+        final long timestamp;
+
+        final NtlmPasswordAuthentication auth;
+
+        boolean active;
+
+        int attempts;
+
+        long nextAttempt;
+
+        volatile boolean flushed;
+
+        SmbFile target;
+
+        Entry(String name, String path, String server, File data,
+                File entryFile, long length, long timestamp,
+                        NtlmPasswordAuthentication auth) {
+            this.name = name;
+            this.path = path;
+            this.server = (server != null) ? server.toUpperCase() : "";
+            this.data = data;
+            this.entryFile = entryFile;
+            this.length = length;
+            this.timestamp = timestamp;
+            this.auth = auth;
+        }
+
+        void discard() {
+            entryFile.delete();
+            data.delete();
+        }
+
+    }
+
+}
@@ -0,0 +1,165 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2007  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package smbdav;
+
+import java.io.InputStream;
+import java.io.IOException;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+
+import org.w3c.dom.Document;
+
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Provides pre-configured XML parsers and serializers shared by the
+ * Davenport handlers.  The JAXP factories are located once; parsers and
+ * identity transformers are created once per thread and reused for
+ * subsequent requests serviced by that thread.  All parsers are namespace
+ * aware, ignore comments, coalesce CDATA sections and refuse to resolve
+ * external entities (via <code>BlockedEntityResolver</code>).
+ *
+ * @author Eric Glass
+ */
+public final class XmlSupport {
+
+    private static final DocumentBuilderFactory BUILDER_FACTORY;
+
+    private static final TransformerFactory TRANSFORMER_FACTORY;
+
+    private static final ThreadLocal BUILDER = new ThreadLocal();
+
+    private static final ThreadLocal TRANSFORMER = new ThreadLocal();
+
+    static {
+        BUILDER_FACTORY = DocumentBuilderFactory.newInstance();
+        BUILDER_FACTORY.setNamespaceAware(true);
+        BUILDER_FACTORY.setExpandEntityReferences(false);
+        BUILDER_FACTORY.setIgnoringComments(true);
+        BUILDER_FACTORY.setCoalescing(true);
+        TRANSFORMER_FACTORY = TransformerFactory.newInstance();
+    }
+
+    private XmlSupport() { }
+
+    /**
+     * Parses an XML document from the given stream.
+     *
+     * @param input The stream containing the document.
+     * @return The parsed <code>Document</code>.
+     * @throws IOException If an IO error occurs.
+     * @throws SAXException If the document is not well-formed.
+     */
+    public static Document parse(InputStream input)
+            throws IOException, SAXException {
+        return parse(new InputSource(input));
+    }
+
+    /**
+     * Parses an XML document from the given input source.
+     *
+     * @param input The source of the document.
+     * @return The parsed <code>Document</code>.
+     * @throws IOException If an IO error occurs.
+     * @throws SAXException If the document is not well-formed.
+     */
+    public static Document parse(InputSource input)
+            throws IOException, SAXException {
+        return getDocumentBuilder().parse(input);
+    }
+
+    /**
+     * Creates a new, empty document.
+     *
+     * @return An empty <code>Document</code>.
+     */
+    public static Document newDocument() {
+        return getDocumentBuilder().newDocument();
+    }
+
+    /**
+     * Returns this thread's identity transformer, used to serialize
+     * documents as UTF-8 encoded XML.  The transformer must not be
+     * retained beyond the current request.
+     *
+     * @return An identity <code>Transformer</code>.
+     */
+    public static Transformer getTransformer() {
+        Transformer transformer = (Transformer) TRANSFORMER.get();
+        if (transformer == null) {
+            try {
+                synchronized (TRANSFORMER_FACTORY) {
+                    transformer = TRANSFORMER_FACTORY.newTransformer();
+                }
+            } catch (TransformerConfigurationException ex) {
+                throw new IllegalStateException(SmbDAVUtilities.getResource(
+                        XmlSupport.class, "cantCreateTransformer",
+                                new Object[] { ex }, null));
+            }
+            TRANSFORMER.set(transformer);
+        } else {
+            transformer.clearParameters();
+        }
+        transformer.setOutputProperty("encoding", "UTF-8");
+        return transformer;
+    }
+
+    /**
+     * Compiles the specified stylesheet.
+     *
+     * @param source The stylesheet source.
+     * @return The compiled <code>Templates</code>.
+     * @throws TransformerConfigurationException If the stylesheet
+     * could not be compiled.
+     */
+    public static Templates newTemplates(Source source)
+            throws TransformerConfigurationException {
+        synchronized (TRANSFORMER_FACTORY) {
+            return TRANSFORMER_FACTORY.newTemplates(source);
+        }
+    }
+
+    private static DocumentBuilder getDocumentBuilder() {
+        DocumentBuilder builder = (DocumentBuilder) BUILDER.get();
+        if (builder == null) {
+            try {
+                synchronized (BUILDER_FACTORY) {
+                    builder = BUILDER_FACTORY.newDocumentBuilder();
+                }
+            } catch (ParserConfigurationException ex) {
+                throw new IllegalStateException(SmbDAVUtilities.getResource(
+                        XmlSupport.class, "cantCreateParser",
+                                new Object[] { ex }, null));
+            }
+            builder.setEntityResolver(BlockedEntityResolver.INSTANCE);
+            BUILDER.set(builder);
+        }
+        return builder;
+    }
+
+}
@@ -0,0 +1,76 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2007  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package smbdav.properties;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletResponse;
+
+import jcifs.smb.DiskAllocation;
+import jcifs.smb.SmbFile;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import smbdav.AbstractProperty;
+import smbdav.Davenport;
+import smbdav.ExplicitProperty;
+import smbdav.QuotaCache;
+
+/**
+ * Base class for the RFC 4331 quota properties.  These apply only to
+ * collections, and are obtained from the allocation information for
+ * the containing share via the <code>QuotaCache</code>.
+ *
+ * @author Eric Glass
+ */
+abstract class AbstractQuotaProperty extends AbstractProperty
+        implements ExplicitProperty {
+
+    public Element createElement(Document document, SmbFile file)
+            throws IOException {
+        return file.isDirectory() ? super.createElement(document, file) : null;
+    }
+
+    public int retrieve(SmbFile file, Element element) throws IOException {
+        if (!file.isDirectory()) return HttpServletResponse.SC_NOT_FOUND;
+        QuotaCache quotaCache = (QuotaCache)
+                getServletConfig().getServletContext().getAttribute(
+                        Davenport.QUOTA_CACHE);
+        DiskAllocation allocation;
+        if (quotaCache != null) {
+            allocation = quotaCache.get(file);
+        } else {
+            allocation = (file.getShare() != null) ?
+                    DiskAllocation.query(file) : null;
+        }
+        if (allocation == null) return HttpServletResponse.SC_NOT_FOUND;
+        element.appendChild(element.getOwnerDocument().createTextNode(
+                String.valueOf(getValue(allocation))));
+        return HttpServletResponse.SC_OK;
+    }
+
+    /**
+     * Returns the property value from the given allocation information.
+     *
+     * @param allocation The allocation information for the share.
+     * @return A <code>long</code> containing the property value.
+     */
+    protected abstract long getValue(DiskAllocation allocation);
+
+}
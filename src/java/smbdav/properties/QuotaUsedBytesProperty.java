@@ -0,0 +1,34 @@
+/* Davenport WebDAV SMB Gateway
+ * Copyright (C) 2007  Eric Glass
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package smbdav.properties;
+
+import jcifs.smb.DiskAllocation;
+
+/**
+ * Provides access to the <code>quota-used-bytes</code> property.
+ * This implementation returns the space in use on the collection's share.
+ *
+ * @author Eric Glass
+ */
+public class QuotaUsedBytesProperty extends AbstractQuotaProperty {
+
+    protected long getValue(DiskAllocation allocation) {
+        return allocation.getUsed();
+    }
+
+}